@@ -37,16 +37,25 @@ import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.disco.ServiceDiscoveryManager;
 import org.jivesoftware.smackx.muc.InvitationListener;
 import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
+import uk.co.rjsoftware.xmpp.model.ChatPersistor;
+import uk.co.rjsoftware.xmpp.model.ChatMemoryBudget;
 import uk.co.rjsoftware.xmpp.model.ChatTarget;
 import uk.co.rjsoftware.xmpp.model.ChatListModel;
 import uk.co.rjsoftware.xmpp.model.CustomMessageListModel;
 import uk.co.rjsoftware.xmpp.model.CustomPresence;
+import uk.co.rjsoftware.xmpp.model.MessageIngester;
 import uk.co.rjsoftware.xmpp.model.RecentChatPersistor;
 import uk.co.rjsoftware.xmpp.model.Room;
 import uk.co.rjsoftware.xmpp.model.RoomListModel;
 import uk.co.rjsoftware.xmpp.model.User;
 import uk.co.rjsoftware.xmpp.model.UserListModel;
 import uk.co.rjsoftware.xmpp.model.UserStatus;
+import uk.co.rjsoftware.xmpp.model.history.ChatStorage;
+import uk.co.rjsoftware.xmpp.model.history.HistoryCompactor;
+import uk.co.rjsoftware.xmpp.model.history.HistoryWriter;
+import uk.co.rjsoftware.xmpp.model.history.KeyValueChatStorage;
+import uk.co.rjsoftware.xmpp.model.history.LogChatStorage;
+import uk.co.rjsoftware.xmpp.model.search.SearchIndex;
 import org.jivesoftware.smackx.muc.HostedRoom;
 import org.jivesoftware.smackx.muc.MultiUserChat;
 import uk.co.rjsoftware.xmpp.model.sortedmodel.SortedArrayListModel;
@@ -55,6 +64,7 @@ import javax.swing.*;
 import javax.swing.text.StyledDocument;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -91,6 +101,12 @@ public class CustomConnection extends Model {
     private final List<YaccInvitationListener> invitationListeners = new ArrayList<YaccInvitationListener>();
 
     private final RecentChatPersistor recentChatPersistor;
+    private final ChatStorage chatStorage;
+    private final HistoryWriter historyWriter;
+    private final HistoryCompactor historyCompactor;
+    private final SearchIndex searchIndex;
+    private final ChatMemoryBudget memoryBudget;
+    private final MessageIngester messageIngester;
     private String connectionStatus = "";
 
     private final ConnectionListener connectionListener;
@@ -100,7 +116,8 @@ public class CustomConnection extends Model {
     private final String username;
     private final String password;
 
-    public CustomConnection(final String username, final String password, final int maxRoomCount) throws YaccException {
+    public CustomConnection(final String username, final String password, final int maxRoomCount,
+                            final YaccProperties yaccProperties) throws YaccException {
         this.maxRoomCount = maxRoomCount;
 
         this.connectionListener = new ConnectionListenerImpl(this);
@@ -169,10 +186,41 @@ public class CustomConnection extends Model {
         }
         this.roomListModel.sort();
 
+        // the history must be ready before any chat or invitation can arrive
+        final File userHistoryDirectory = new File(ChatPersistor.CHAT_HISTORY_DIR + File.separator + this.currentUser.getId());
+        if (YaccProperties.HISTORY_BACKEND_KEY_VALUE.equals(yaccProperties.getProperty(YaccProperties.PROPERTY_NAME_HISTORY_BACKEND))) {
+            this.chatStorage = new KeyValueChatStorage(userHistoryDirectory);
+        }
+        else {
+            this.chatStorage = new LogChatStorage(userHistoryDirectory);
+        }
+
+        // all chat history is written by a single background thread
+        final File journalFile = new File(userHistoryDirectory, HistoryWriter.JOURNAL_FILENAME);
+        final long flushIntervalMillis = yaccProperties.getLongProperty(YaccProperties.PROPERTY_NAME_HISTORY_FLUSH_INTERVAL_MILLIS,
+                HistoryWriter.DEFAULT_FLUSH_INTERVAL_MILLIS);
+        final int flushBatchSize = (int)yaccProperties.getLongProperty(YaccProperties.PROPERTY_NAME_HISTORY_FLUSH_BATCH_SIZE,
+                HistoryWriter.DEFAULT_FLUSH_BATCH_SIZE);
+        if (YaccProperties.HISTORY_STORAGE_JOURNAL.equals(yaccProperties.getProperty(YaccProperties.PROPERTY_NAME_HISTORY_STORAGE))) {
+            this.historyWriter = new HistoryWriter(flushIntervalMillis, flushBatchSize, journalFile, this.chatStorage);
+        }
+        else {
+            // in case the journal was used last time
+            HistoryWriter.replayJournal(journalFile, this.chatStorage);
+            this.historyWriter = new HistoryWriter(flushIntervalMillis, flushBatchSize);
+        }
+        this.historyCompactor = new HistoryCompactor();
+        this.searchIndex = new SearchIndex(new File(userHistoryDirectory, SearchIndex.SEARCH_INDEX_DIR));
+
         //setup the chat listener, to listen for new incomming chats
         this.internalChatListModel = new ChatListModel();
         this.chatListModel = new SortedArrayListModel<ChatTarget>(internalChatListModel, SortOrder.DESCENDING,
                 new TimestampComparator());
+        final long memoryBudgetMB = yaccProperties.getLongProperty(YaccProperties.PROPERTY_NAME_MESSAGE_MEMORY_BUDGET_MB,
+                ChatMemoryBudget.DEFAULT_BUDGET_MB);
+        this.memoryBudget = new ChatMemoryBudget(memoryBudgetMB * 1024 * 1024, this.internalChatListModel);
+        this.messageIngester = new MessageIngester(yaccProperties.getLongProperty(
+                YaccProperties.PROPERTY_NAME_MESSAGE_FRAME_BUDGET_MILLIS, MessageIngester.DEFAULT_FRAME_BUDGET_MILLIS));
         this.chatManagerListener = new ChatManagerListenerImpl(this);
         refreshChatListener(this.chatManagerListener);
 
@@ -349,8 +397,15 @@ public class CustomConnection extends Model {
                 final User user = this.connection.userListModel.get(chat.getParticipant());
 
                 if (user != null) {
-                    this.connection.internalChatListModel.add(user);
-                    user.joinExistingChat(this.connection, chat);
+                    // the history is read here, and the models are only changed on the event dispatch thread
+                    final Runnable completeJoin = user.prepareJoinExistingChat(this.connection, chat);
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            ChatManagerListenerImpl.this.connection.internalChatListModel.add(user);
+                            completeJoin.run();
+                        }
+                    });
                     return;
                 }
 
@@ -362,18 +417,26 @@ public class CustomConnection extends Model {
                     // once we start caching the chat history locally, perhaps we can optimise this
                     // by implementing joinExistingChat on the Room class (and ChatTarget interface)
                     // TODO: Fix: Incomming chats for rooms don't seem to include current user in the occupants list
-                    room.join(this.connection);
+                    SwingUtilities.invokeLater(room.prepareJoin(this.connection));
                 }
             }
         }
     }
 
     public void saveRecentChats() {
+        // the messages still waiting to be handed to the chats go into their history with the rest
+        this.messageIngester.close();
         this.recentChatPersistor.saveRecentChatList();
 
         for (ChatTarget chatTarget : this.internalChatListModel) {
             chatTarget.writeChatHistory();
         }
+
+        this.memoryBudget.close();
+        this.historyCompactor.close();
+        this.historyWriter.close();
+        this.searchIndex.close();
+        this.chatStorage.close();
     }
 
     public void disconnect() {
@@ -455,12 +518,24 @@ public class CustomConnection extends Model {
      * Join a room that previously existed, and is known to this CustomConnection
      */
     public MultiUserChat joinRoom(final Room room) {
-        if (!this.internalChatListModel.contains(room)) {
-            this.internalChatListModel.add(room);
-        }
+        addToChatList(room);
+        return createMultiUserChat(room);
+    }
+
+    /**
+     * Creates the chat for a room, without adding the room to the list of chats.  This does not talk to the
+     * server, so it can be called from any thread.
+     */
+    public MultiUserChat createMultiUserChat(final Room room) {
         return new MultiUserChat(this.connection, room.getId());
     }
 
+    public void addToChatList(final ChatTarget chatTarget) {
+        if (!this.internalChatListModel.contains(chatTarget)) {
+            this.internalChatListModel.add(chatTarget);
+        }
+    }
+
 //    public MultiUserChat createInstantRoom(final String name) {
 //        String roomId = name.replaceAll("[&<>@]", "");
 //        roomId = roomId.replaceAll(" ", "_");
@@ -491,6 +566,26 @@ public class CustomConnection extends Model {
         return this.currentUser;
     }
 
+    public ChatStorage getChatStorage() {
+        return this.chatStorage;
+    }
+
+    public HistoryWriter getHistoryWriter() {
+        return this.historyWriter;
+    }
+
+    public HistoryCompactor getHistoryCompactor() {
+        return this.historyCompactor;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return this.searchIndex;
+    }
+
+    public MessageIngester getMessageIngester() {
+        return this.messageIngester;
+    }
+
     public ChatTarget getCurrentChatTarget() {
         return currentChatTarget;
     }
@@ -509,6 +604,8 @@ public class CustomConnection extends Model {
             final UserListModel oldOccupants = getCurrentChatTargetOccupants();
 
             this.currentChatTarget = currentChatTarget;
+            // bring back the chat's messages, if they were evicted, before they are displayed
+            this.memoryBudget.viewed(currentChatTarget);
 
             if (null != this.currentChatTarget) {
                 this.currentChatTarget.addPropertyChangeListener(ChatTarget.TITLE_PROPERTY_NAME, this.titleListener);
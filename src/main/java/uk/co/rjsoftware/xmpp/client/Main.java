@@ -123,7 +123,7 @@ public final class Main {
             this.hipChatEmoticons = new HipChatEmoticons(this.yaccProperties);
         }
 
-        final CustomConnection connection = new CustomConnection(username, password, this.maxRoomCount);
+        final CustomConnection connection = new CustomConnection(username, password, this.maxRoomCount, this.yaccProperties);
 
         this.loginForm.setVisible(false);
 
@@ -43,6 +43,40 @@ public final class YaccProperties extends Bean {
 
     public static final String PROPERTY_NAME_HIPCHAT_API_ENDPOINT = "hipChatApi.endpoint";
     public static final String PROPERTY_NAME_HIPCHAT_API_AUTH_TOKEN = "hipChatApi.authToken";
+    // the longest time a received message waits before it is flushed to the chat history
+    public static final String PROPERTY_NAME_HISTORY_FLUSH_INTERVAL_MILLIS = "history.flushIntervalMillis";
+    // the number of received messages that causes the chat history to be flushed straight away
+    public static final String PROPERTY_NAME_HISTORY_FLUSH_BATCH_SIZE = "history.flushBatchSize";
+    // how the chat history is written - see HISTORY_STORAGE_LOG and HISTORY_STORAGE_JOURNAL
+    public static final String PROPERTY_NAME_HISTORY_STORAGE = "history.storage";
+
+    // each chat's history is written to directly
+    public static final String HISTORY_STORAGE_LOG = "log";
+    // every chat is written to a shared journal, which is applied to the chats' histories periodically
+    public static final String HISTORY_STORAGE_JOURNAL = "journal";
+
+    // where the chat history is kept - see HISTORY_BACKEND_LOG and HISTORY_BACKEND_KEY_VALUE
+    public static final String PROPERTY_NAME_HISTORY_BACKEND = "history.backend";
+
+    // each chat has a directory of its own, holding a segmented log
+    public static final String HISTORY_BACKEND_LOG = "log";
+    // every chat is kept in a single embedded key-value store file
+    public static final String HISTORY_BACKEND_KEY_VALUE = "keyValue";
+
+    // the heap, in megabytes, that the messages of all of the open chats may take up before the least recently viewed
+    // chats have theirs evicted
+    public static final String PROPERTY_NAME_MESSAGE_MEMORY_BUDGET_MB = "messages.memoryBudgetMB";
+
+    // the time, in milliseconds, that may be spent each frame handing incoming messages to the chats
+    public static final String PROPERTY_NAME_MESSAGE_FRAME_BUDGET_MILLIS = "messages.frameBudgetMillis";
+
+    // how the messages of the current chat are shown - see MESSAGE_VIEW_DOCUMENT and MESSAGE_VIEW_VIRTUAL
+    public static final String PROPERTY_NAME_MESSAGE_VIEW = "messages.view";
+
+    // the chat's whole messages document is shown in a text pane
+    public static final String MESSAGE_VIEW_DOCUMENT = "document";
+    // only the messages in view are laid out, each in a row of its own
+    public static final String MESSAGE_VIEW_VIRTUAL = "virtual";
 
     private Properties properties = new Properties();
     private File propertiesFile;
@@ -57,6 +91,20 @@ public final class YaccProperties extends Bean {
         return this.properties.getProperty(key);
     }
 
+    public long getLongProperty(final String key, final long defaultValue) {
+        final String value = this.properties.getProperty(key);
+        if ((null == value) || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException exception) {
+            System.out.println("Invalid value for property " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
     private boolean propertyChanged(final String key, final String value) {
         final String oldValue = this.properties.getProperty(key);
 
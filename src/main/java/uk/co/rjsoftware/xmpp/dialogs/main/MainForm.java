@@ -42,6 +42,7 @@ import uk.co.rjsoftware.xmpp.dialogs.createroom.NewRoomListener;
 import uk.co.rjsoftware.xmpp.dialogs.debugging.DebuggingForm;
 import uk.co.rjsoftware.xmpp.dialogs.inviteusers.InviteUsersForm;
 import uk.co.rjsoftware.xmpp.dialogs.notification.NotificationHelper;
+import uk.co.rjsoftware.xmpp.dialogs.search.SearchForm;
 import uk.co.rjsoftware.xmpp.dialogs.settings.SettingsForm;
 import uk.co.rjsoftware.xmpp.model.ChatTarget;
 import uk.co.rjsoftware.xmpp.model.CustomMessageListModel;
@@ -52,6 +53,8 @@ import uk.co.rjsoftware.xmpp.model.UserStatus;
 import uk.co.rjsoftware.xmpp.model.hipchat.emoticons.HipChatEmoticons;
 import uk.co.rjsoftware.xmpp.model.hipchat.room.HipChatRoom;
 import uk.co.rjsoftware.xmpp.view.CurrentChatOccupantsCellRenderer;
+import uk.co.rjsoftware.xmpp.view.MessageListHTMLDocument;
+import uk.co.rjsoftware.xmpp.view.MessageListView;
 import uk.co.rjsoftware.xmpp.view.RecentChatListCellRenderer;
 import uk.co.rjsoftware.xmpp.view.RoomListCellRenderer;
 import uk.co.rjsoftware.xmpp.view.UserListCellRenderer;
@@ -110,6 +113,7 @@ public class MainForm extends JFrame {
 
     private final java.util.List<LogoutListener> listeners = new ArrayList<LogoutListener>();
     private ChatTarget currentChatTarget;
+    private OlderMessagesLoader olderMessagesLoader;
 
     public MainForm(final String title, final CustomConnection connection, final YaccProperties yaccProperties,
                     final HipChatEmoticons hipChatEmoticons) {
@@ -267,20 +271,21 @@ public class MainForm extends JFrame {
         chatHeaderPanel.add(chatOccupantsScrollPane, BorderLayout.CENTER);
 
         //Add the message history window
-        final JTextPane messageTextPane = new JTextPane() {
-            @Override
-            public boolean getScrollableTracksViewportWidth() {
-                return true;
-            }
-        };
-        messageTextPane.setEditable(false);
-        messageTextPane.setContentType("text/html");
-        messageTextPane.setEditorKit(new WrapHTMLEditorKit());
-        messageTextPane.addHyperlinkListener(new HyperlinkActivator());
+        final JComponent messageView;
+        if (YaccProperties.MESSAGE_VIEW_VIRTUAL.equals(this.yaccProperties.getProperty(YaccProperties.PROPERTY_NAME_MESSAGE_VIEW))) {
+            messageView = createMessageListView();
+        }
+        else {
+            messageView = createMessageTextPane();
+        }
 
-        final JScrollPane messageListScrollPane = new AutoScrollPane(messageTextPane);
+        final JScrollPane messageListScrollPane = new AutoScrollPane(messageView);
         chatPanel.add(messageListScrollPane, BorderLayout.CENTER);
 
+        // load older messages when the message history window is scrolled to the top
+        this.olderMessagesLoader = new OlderMessagesLoader(messageListScrollPane, this);
+        messageListScrollPane.getVerticalScrollBar().getModel().addChangeListener(this.olderMessagesLoader);
+
         // ensure that the messages get marked as read when appropriate
         final MessageStateChanger stateChanger = new MessageStateChanger(messageListScrollPane, this);
         this.addWindowFocusListener(new WindowAdapter() {
@@ -301,7 +306,7 @@ public class MainForm extends JFrame {
             }
         });
 
-        final ChatListDataListener chatListDataListener = new ChatListDataListener(stateChanger);
+        final ChatListDataListener chatListDataListener = new ChatListDataListener(stateChanger, this);
 
         // add a listener to the current chat target's messages list, so that incoming messages that don't cause a
         // change to the scroll bar still get marked as read
@@ -319,20 +324,6 @@ public class MainForm extends JFrame {
             }
         });
 
-        // add a listener to the current chat target's messages document, so that a change in the current chat target
-        // updates the message view.
-        final ValueModel messagesDocumentModel = adapter.getValueModel(CustomConnection.CURRENT_CHAT_TARGET_MESSAGES_DOCUMENT_PROPERTY_NAME);
-        messagesDocumentModel.addValueChangeListener(new PropertyChangeListener() {
-            @Override
-            public void propertyChange(PropertyChangeEvent event) {
-                if (null == event.getNewValue()) {
-                    messageTextPane.setStyledDocument(new HTMLDocument());
-                }
-                else {
-                    messageTextPane.setStyledDocument((StyledDocument)event.getNewValue());
-                }
-            }
-        });
         // Add the message window
         final JTextArea message = new JTextArea();
         message.setLineWrap(true);
@@ -361,17 +352,72 @@ public class MainForm extends JFrame {
 
     }
 
+    private JTextPane createMessageTextPane() {
+        final JTextPane messageTextPane = new JTextPane() {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true;
+            }
+        };
+        messageTextPane.setEditable(false);
+        messageTextPane.setContentType("text/html");
+        messageTextPane.setEditorKit(new WrapHTMLEditorKit());
+        messageTextPane.addHyperlinkListener(new HyperlinkActivator());
+
+        // add a listener to the current chat target's messages document, so that a change in the current chat target
+        // updates the message view.
+        final ValueModel messagesDocumentModel = adapter.getValueModel(CustomConnection.CURRENT_CHAT_TARGET_MESSAGES_DOCUMENT_PROPERTY_NAME);
+        messagesDocumentModel.addValueChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent event) {
+                if (null == event.getNewValue()) {
+                    messageTextPane.setStyledDocument(new HTMLDocument());
+                }
+                else {
+                    messageTextPane.setStyledDocument((StyledDocument)event.getNewValue());
+                }
+            }
+        });
+
+        return messageTextPane;
+    }
+
+    private MessageListView createMessageListView() {
+        final MessageListView messageListView = new MessageListView(new WrapHTMLEditorKit(), new HyperlinkActivator());
+        messageListView.setChatTarget(this.connection.getCurrentChatTarget());
+
+        // add a listener to the current chat target's messages list, so that a change in the current chat target
+        // updates the message view.
+        final ValueModel messagesListModel = adapter.getValueModel(CustomConnection.CURRENT_CHAT_TARGET_MESSAGES_LIST_PROPERTY_NAME);
+        messagesListModel.addValueChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent event) {
+                messageListView.setChatTarget(connection.getCurrentChatTarget());
+            }
+        });
+
+        return messageListView;
+    }
+
     private static final class ChatListDataListener implements ListDataListener {
 
         private final MessageStateChanger stateChanger;
+        private final MainForm mainForm;
 
-        private ChatListDataListener(final MessageStateChanger stateChanger) {
+        private ChatListDataListener(final MessageStateChanger stateChanger, final MainForm mainForm) {
             this.stateChanger = stateChanger;
+            this.mainForm = mainForm;
         }
 
         @Override
         public void intervalAdded(ListDataEvent event) {
-            this.stateChanger.forceReadMessageCheck();
+            // the new messages can only be seen once they are in the document
+            this.mainForm.invokeWhenMessagesInserted(new Runnable() {
+                @Override
+                public void run() {
+                    ChatListDataListener.this.stateChanger.forceReadMessageCheck();
+                }
+            });
         }
 
         @Override
@@ -633,6 +679,26 @@ public class MainForm extends JFrame {
 
             }
         });
+
+        final JMenuItem loadOlderMessagesMenuItem = new JMenuItem("Load Older Messages");
+        menu.add(loadOlderMessagesMenuItem);
+        loadOlderMessagesMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                MainForm.this.olderMessagesLoader.loadOlderMessages();
+            }
+        });
+
+        final JMenuItem searchMenuItem = new JMenuItem("Search...");
+        menu.add(searchMenuItem);
+        searchMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                final SearchForm searchForm = new SearchForm(connection);
+                searchForm.setVisible(true);
+            }
+        });
+
         final JMenu submenu = new JMenu("Set Status");
         menu.add(submenu);
         final JMenuItem availableMenuItem = new JMenuItem("Available");
@@ -710,6 +776,20 @@ public class MainForm extends JFrame {
         return this.currentChatTarget;
     }
 
+    /**
+     * Runs the task on the event dispatch thread once the messages of the current chat target are all in its messages
+     * document, as they are formatted in the background.
+     */
+    private void invokeWhenMessagesInserted(final Runnable task) {
+        final ChatTarget chatTarget = getCurrentChatTarget();
+        if ((null != chatTarget) && (chatTarget.getMessagesDocument() instanceof MessageListHTMLDocument)) {
+            ((MessageListHTMLDocument)chatTarget.getMessagesDocument()).invokeWhenInserted(task);
+        }
+        else {
+            SwingUtilities.invokeLater(task);
+        }
+    }
+
     //TODO: Bug fix: when switch chats, the scroll bar doesn't switch to the last position for this chat
     private static class AutoScrollPane extends JScrollPane implements ChangeListener {
 
@@ -747,6 +827,71 @@ public class MainForm extends JFrame {
         }
     }
 
+    /**
+     * Inserts a page of older messages at the top of the current chat when the message history window is scrolled to
+     * the top, then scrolls down by the height of the new rows, so the rows that were showing stay where they were.
+     */
+    private static final class OlderMessagesLoader implements ChangeListener {
+
+        private final JScrollPane scrollPane;
+        private final MainForm mainForm;
+        private boolean atTop;
+
+        private OlderMessagesLoader(final JScrollPane scrollPane, final MainForm mainForm) {
+            this.scrollPane = scrollPane;
+            this.mainForm = mainForm;
+        }
+
+        @Override
+        public void stateChanged(final ChangeEvent event) {
+            final BoundedRangeModel model = (BoundedRangeModel)event.getSource();
+            // only once the user lets go of the scroll bar, and only for a window that can scroll
+            final boolean nowAtTop = (model.getValue() == 0) && (model.getExtent() < model.getMaximum());
+            if (nowAtTop && !this.atTop && !model.getValueIsAdjusting()) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadOlderMessages();
+                    }
+                });
+            }
+            this.atTop = nowAtTop && !model.getValueIsAdjusting();
+        }
+
+        private void loadOlderMessages() {
+            final ChatTarget chatTarget = this.mainForm.getCurrentChatTarget();
+            if (null == chatTarget) {
+                return;
+            }
+
+            final JComponent view = (JComponent)this.scrollPane.getViewport().getView();
+            final int oldHeight = view.getPreferredSize().height;
+            final Point oldPosition = this.scrollPane.getViewport().getViewPosition();
+
+            chatTarget.loadOlderMessages(new Runnable() {
+                @Override
+                public void run() {
+                    // wait for the new rows to be inserted, and then for the layout to catch up with them
+                    OlderMessagesLoader.this.mainForm.invokeWhenMessagesInserted(new Runnable() {
+                        @Override
+                        public void run() {
+                            SwingUtilities.invokeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    final int addedHeight = view.getPreferredSize().height - oldHeight;
+                                    if (addedHeight > 0) {
+                                        OlderMessagesLoader.this.scrollPane.getViewport().setViewPosition(
+                                                new Point(oldPosition.x, oldPosition.y + addedHeight));
+                                    }
+                                }
+                            });
+                        }
+                    });
+                }
+            });
+        }
+    }
+
     private static class HyperlinkActivator implements HyperlinkListener {
 
         @Override
@@ -30,6 +30,7 @@
 package uk.co.rjsoftware.xmpp.dialogs.main;
 
 import uk.co.rjsoftware.xmpp.model.ChatTarget;
+import uk.co.rjsoftware.xmpp.view.MessageListView;
 
 import javax.swing.*;
 import javax.swing.Timer;
@@ -55,12 +56,17 @@ import java.util.Set;
 public class MessageStateChanger {
 
     private final JScrollPane scrollPane;
-    private final MessageChangeListener messageChangeListener;
+    private final ChangeListener messageChangeListener;
     private boolean enabled;
 
     public MessageStateChanger(final JScrollPane scrollPane, final MainForm mainForm) {
         this.scrollPane = scrollPane;
-        this.messageChangeListener = new MessageChangeListener(scrollPane, mainForm);
+        if (scrollPane.getViewport().getView() instanceof MessageListView) {
+            this.messageChangeListener = new MessageListViewChangeListener((MessageListView)scrollPane.getViewport().getView(), mainForm);
+        }
+        else {
+            this.messageChangeListener = new MessageChangeListener(scrollPane, mainForm);
+        }
     }
 
     public void enable() {
@@ -135,7 +141,7 @@ public class MessageStateChanger {
                     Rectangle visibleRect = this.scrollableComponent.getVisibleRect();
 
                     final java.util.List<Element> elementsToChange = new ArrayList<Element>();
-                    final java.util.List<Integer> elementIdsToChange = new ArrayList<Integer>();
+                    final java.util.List<Long> elementIdsToChange = new ArrayList<Long>();
 
                     // get the first visible sender tag
                     Element element = getFirstVisibleSenderTableCell();
@@ -143,7 +149,7 @@ public class MessageStateChanger {
                         return;
                     }
 
-                    int i = getIdOfElement(element);
+                    long i = getIdOfElement(element);
 
                     while (null != element) {
 
@@ -238,20 +244,20 @@ public class MessageStateChanger {
                 return false;
             }
 
-            private int getIdOfElement(final Element element) {
+            private long getIdOfElement(final Element element) {
                 final String id = (String)element.getAttributes().getAttribute(HTML.Attribute.ID);
 
                 if (null == id) {
                     return 0;
                 }
                 else {
-                    return Integer.parseInt(id);
+                    return Long.parseLong(id);
                 }
             }
 
         }
 
-        private static class ReadTimer extends Timer {
+        static class ReadTimer extends Timer {
 
             public ReadTimer(final int delay, final ActionListener listener) {
                 super(delay, listener);
@@ -263,11 +269,11 @@ public class MessageStateChanger {
             private final MainForm mainForm;
             private final ChatTarget currentChatTarget;
             private final List<Element> elements;
-            private final List<Integer> elementIdsToChange;
+            private final List<Long> elementIdsToChange;
             private final JTextComponent scrollableComponent;
             private final Map<ChatTarget, Set<Element>> pendingElementsToChange;
 
-            public ReadActionListener(final MainForm mainForm, final ChatTarget currentChatTarget, final List<Element> elements, final List<Integer> elementIdsToChange,
+            public ReadActionListener(final MainForm mainForm, final ChatTarget currentChatTarget, final List<Element> elements, final List<Long> elementIdsToChange,
                                       final JTextComponent scrollableComponent, final Map<ChatTarget, Set<Element>> pendingElementsToChange) {
                 this.mainForm = mainForm;
                 this.currentChatTarget = currentChatTarget;
@@ -315,4 +321,54 @@ public class MessageStateChanger {
 
     }
 
+    /**
+     * Marks the messages of a {@link MessageListView} as read, in the same way as MessageChangeListener does for a
+     * text pane - once they have been completely visible for 5 seconds.
+     */
+    private static final class MessageListViewChangeListener implements ChangeListener {
+
+        private final MessageListView messageListView;
+        private final MainForm mainForm;
+
+        private MessageListViewChangeListener(final MessageListView messageListView, final MainForm mainForm) {
+            this.messageListView = messageListView;
+            this.mainForm = mainForm;
+        }
+
+        @Override
+        public void stateChanged(final ChangeEvent event) {
+            if (((BoundedRangeModel)event.getSource()).getValueIsAdjusting()) {
+                return;
+            }
+
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    final ChatTarget currentChatTarget = MessageListViewChangeListener.this.mainForm.getCurrentChatTarget();
+                    final List<Long> messageSequences = MessageListViewChangeListener.this.messageListView.getVisibleUnreadMessages();
+                    if (messageSequences.isEmpty()) {
+                        return;
+                    }
+
+                    final MessageChangeListener.ReadTimer timer = new MessageChangeListener.ReadTimer(5000, new ActionListener() {
+                        @Override
+                        public void actionPerformed(final ActionEvent event) {
+                            // only if the current chat target has not changed, and the messages are still completely visible
+                            if (MessageListViewChangeListener.this.mainForm.getCurrentChatTarget() != currentChatTarget) {
+                                return;
+                            }
+                            for (long messageSequence : messageSequences) {
+                                if (MessageListViewChangeListener.this.messageListView.isMessageVisible(messageSequence)) {
+                                    MessageListViewChangeListener.this.messageListView.setMessageRead(messageSequence);
+                                }
+                            }
+                        }
+                    });
+                    timer.setRepeats(false);
+                    timer.start();
+                }
+            });
+        }
+    }
+
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.dialogs.search;
+
+import uk.co.rjsoftware.xmpp.client.CustomConnection;
+import uk.co.rjsoftware.xmpp.dialogs.DialogUtils;
+import uk.co.rjsoftware.xmpp.model.ChatTarget;
+import uk.co.rjsoftware.xmpp.model.search.SearchHit;
+import uk.co.rjsoftware.xmpp.view.GenericListCellRenderer;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Searches the history of every chat.  Double clicking on a result opens its chat.
+ */
+public class SearchForm extends JDialog {
+
+    private static final int MAX_HITS = 200;
+
+    private final JTextField queryTextField;
+    private final JButton searchButton;
+    private final JLabel statusLabel;
+    private final JList<SearchHit> resultList;
+    private final DefaultListModel<SearchHit> resultListModel;
+    private final JButton closeButton;
+
+    private final CustomConnection connection;
+
+    public SearchForm(final CustomConnection connection) {
+        super(null, "Search", ModalityType.MODELESS);
+
+        this.connection = connection;
+
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        final Container pane = getContentPane();
+        pane.setLayout(new GridBagLayout());
+
+        GridBagConstraints constraints;
+
+        this.queryTextField = new JTextField();
+        this.queryTextField.setToolTipText("Words to search for.  Use from:name to only match the sender, or in:room to only match the chat.");
+        constraints = new GridBagConstraints(0, 0, 1, 1, 1.0, 0, GridBagConstraints.LINE_START, GridBagConstraints.HORIZONTAL, new Insets(10, 10, 2, 2), 0, 0);
+        pane.add(this.queryTextField, constraints);
+
+        this.searchButton = new JButton("Search");
+        constraints = new GridBagConstraints(1, 0, 1, 1, 0, 0, GridBagConstraints.LINE_END, GridBagConstraints.NONE, new Insets(10, 2, 2, 10), 0, 0);
+        pane.add(this.searchButton, constraints);
+
+        this.searchButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                search();
+            }
+        });
+
+        this.statusLabel = new JLabel(" ");
+        constraints = new GridBagConstraints(0, 1, 2, 1, 0, 0, GridBagConstraints.LINE_START, GridBagConstraints.NONE, new Insets(2, 10, 2, 10), 0, 0);
+        pane.add(this.statusLabel, constraints);
+
+        this.resultListModel = new DefaultListModel<SearchHit>();
+        this.resultList = new JList<SearchHit>(this.resultListModel);
+        this.resultList.setCellRenderer(new SearchHitCellRenderer(connection));
+        this.resultList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        constraints = new GridBagConstraints(0, 2, 2, 1, 1.0, 1.0, GridBagConstraints.CENTER, GridBagConstraints.BOTH, new Insets(2, 10, 2, 10), 0, 0);
+        pane.add(new JScrollPane(this.resultList), constraints);
+
+        this.resultList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent event) {
+                if (event.getClickCount() == 2) {
+                    openSelectedChat();
+                }
+            }
+        });
+
+        final JPanel buttonPanel =  new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        constraints = new GridBagConstraints(0, 3, 2, 1, 0, 0, GridBagConstraints.LINE_END, GridBagConstraints.BOTH, new Insets(0, 0, 0, 0), 0, 0);
+        pane.add(buttonPanel, constraints);
+
+        this.closeButton = new JButton("Close");
+        buttonPanel.add(this.closeButton);
+
+        this.closeButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+
+        setPreferredSize(new Dimension(661, 500));
+
+        getRootPane().setDefaultButton(this.searchButton);
+
+        pack();
+
+        DialogUtils.centerDialog(this);
+    }
+
+    private void search() {
+        final String query = this.queryTextField.getText();
+        if (query.trim().isEmpty()) {
+            return;
+        }
+
+        this.searchButton.setEnabled(false);
+        this.statusLabel.setText("Searching...");
+
+        // the index is read from disk, so search in the background
+        new SwingWorker<List<SearchHit>, Void>() {
+            private long elapsedMillis;
+
+            @Override
+            protected List<SearchHit> doInBackground() {
+                final long start = System.nanoTime();
+                final List<SearchHit> hits = connection.getSearchIndex().search(query, MAX_HITS);
+                this.elapsedMillis = (System.nanoTime() - start) / 1000000;
+                return hits;
+            }
+
+            @Override
+            protected void done() {
+                searchButton.setEnabled(true);
+                resultListModel.clear();
+                try {
+                    final List<SearchHit> hits = get();
+                    for (SearchHit hit : hits) {
+                        resultListModel.addElement(hit);
+                    }
+                    statusLabel.setText(hits.size() + ((hits.size() == MAX_HITS) ? "+" : "") + " messages found in "
+                            + this.elapsedMillis + " ms");
+                } catch (InterruptedException | ExecutionException exception) {
+                    statusLabel.setText("Unable to search: " + exception.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    private void openSelectedChat() {
+        final SearchHit hit = this.resultList.getSelectedValue();
+        if (null == hit) {
+            return;
+        }
+
+        final ChatTarget chatTarget = findChatTarget(this.connection, hit.getChatJid());
+        if (null != chatTarget) {
+            this.connection.setCurrentChatTarget(chatTarget);
+            this.connection.getCurrentChatTarget().join(this.connection);
+        }
+    }
+
+    /**
+     * @return the room or user that the chat is with, or null if it no longer exists
+     */
+    private static ChatTarget findChatTarget(final CustomConnection connection, final String chatJid) {
+        final ChatTarget room = connection.getRoomListModel().get(chatJid);
+        if (null != room) {
+            return room;
+        }
+        return connection.getUserListModel().get(chatJid);
+    }
+
+    private static final class SearchHitCellRenderer extends GenericListCellRenderer<SearchHit> {
+
+        private final CustomConnection connection;
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd MMM yyyy HH:mm", Locale.getDefault());
+
+        private SearchHitCellRenderer(final CustomConnection connection) {
+            super(0);
+            this.connection = connection;
+        }
+
+        @Override
+        protected void setupNameLabel(JLabel nameLabel, JList<? extends SearchHit> list, SearchHit hit, int index, boolean isSelected, boolean cellHasFocus) {
+            super.setupNameLabel(nameLabel, list, hit, index, isSelected, cellHasFocus);
+
+            final ChatTarget chatTarget = findChatTarget(this.connection, hit.getChatJid());
+            final String chatName = (null == chatTarget) ? hit.getChatJid() : chatTarget.getName();
+            nameLabel.setText("<html><b>" + escape(chatName) + "</b> - " + escape(hit.getSender()) + ", "
+                    + this.dateFormat.format(new Date(hit.getTimestamp())) + "<br>" + escape(hit.getSnippet()) + "</html>");
+        }
+
+        private static String escape(final String text) {
+            return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the messages held in memory by all of the open chats within a budget, by evicting the messages of the chats
+ * that were viewed least recently (see {@link ChatTarget#evictMessages()}).  The chat being viewed is never evicted,
+ * and an evicted chat has its messages restored when it is next viewed.
+ * <p>
+ * The budget is checked whenever a chat is viewed, and periodically, as the chats in the background keep receiving
+ * messages.  Everything happens on the event dispatch thread, apart from reading evicted messages back from the
+ * history.
+ */
+public class ChatMemoryBudget {
+
+    public static final long DEFAULT_BUDGET_MB = 64;
+
+    private static final int CHECK_INTERVAL_MILLIS = 60 * 1000;
+
+    private final long budgetBytes;
+    private final Iterable<ChatTarget> chatTargets;
+    // the chats that have been viewed, least recently viewed first
+    private final Map<ChatTarget, Boolean> viewedChatTargets = new LinkedHashMap<ChatTarget, Boolean>(16, 0.75f, true);
+    private final Timer timer;
+    private ChatTarget currentChatTarget;
+
+    /**
+     * @param chatTargets the open chats - read each time the budget is checked
+     */
+    public ChatMemoryBudget(final long budgetBytes, final Iterable<ChatTarget> chatTargets) {
+        this.budgetBytes = budgetBytes;
+        this.chatTargets = chatTargets;
+
+        this.timer = new Timer(CHECK_INTERVAL_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(final ActionEvent event) {
+                enforce();
+            }
+        });
+        this.timer.start();
+    }
+
+    /**
+     * Records that the chat is now being viewed, restoring its messages in the background if they were evicted.
+     */
+    public void viewed(final ChatTarget chatTarget) {
+        this.currentChatTarget = chatTarget;
+        if (null == chatTarget) {
+            return;
+        }
+
+        this.viewedChatTargets.put(chatTarget, Boolean.TRUE);
+        chatTarget.restoreMessages();
+        enforce();
+    }
+
+    /**
+     * Evicts the messages of the least recently viewed chats until the rest fit within the budget.  The chats that
+     * have never been viewed go first.
+     */
+    public void enforce() {
+        final Set<ChatTarget> openChatTargets = new HashSet<ChatTarget>();
+        final List<ChatTarget> evictionOrder = new ArrayList<ChatTarget>();
+        long usage = 0;
+        for (ChatTarget chatTarget : this.chatTargets) {
+            openChatTargets.add(chatTarget);
+            usage += chatTarget.getMessageMemoryUsage();
+            if (!this.viewedChatTargets.containsKey(chatTarget)) {
+                evictionOrder.add(chatTarget);
+            }
+        }
+        // forget the chats that have been closed
+        this.viewedChatTargets.keySet().retainAll(openChatTargets);
+        if (usage <= this.budgetBytes) {
+            return;
+        }
+        evictionOrder.addAll(this.viewedChatTargets.keySet());
+
+        for (ChatTarget chatTarget : evictionOrder) {
+            if (usage <= this.budgetBytes) {
+                break;
+            }
+            if ((chatTarget == this.currentChatTarget) || chatTarget.getCustomMessageListModel().isEmpty()) {
+                continue;
+            }
+
+            final long chatUsage = chatTarget.getMessageMemoryUsage();
+            chatTarget.evictMessages();
+            usage -= chatUsage - chatTarget.getMessageMemoryUsage();
+        }
+    }
+
+    public void close() {
+        this.timer.stop();
+    }
+}
@@ -29,143 +29,318 @@
  */
 package uk.co.rjsoftware.xmpp.model;
 
-import com.google.gson.Gson;
+import uk.co.rjsoftware.xmpp.model.history.ChatHistory;
+import uk.co.rjsoftware.xmpp.model.history.ChatStorage;
+import uk.co.rjsoftware.xmpp.model.history.HistoryCompactor;
+import uk.co.rjsoftware.xmpp.model.history.HistoryRecord;
+import uk.co.rjsoftware.xmpp.model.history.HistoryWriter;
+import uk.co.rjsoftware.xmpp.model.search.SearchIndex;
 
+import javax.swing.*;
 import javax.swing.event.ListDataEvent;
 import javax.swing.event.ListDataListener;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 public class ChatPersistor {
 
     public static final String CHAT_HISTORY_DIR = "chathistory";
 
-    private final String currentUserId;
-    private final String chatJid;
+    // the number of messages loaded when a chat is opened, and each time older messages are requested
+    public static final int INITIAL_MESSAGE_COUNT = 200;
+    public static final int OLDER_MESSAGE_COUNT = 100;
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+            // nothing to do
+        }
+    };
+
     private final CustomMessageListModel customMessageListModel;
     private final ChatListDataListener listener;
-    private final String filename;
-    private final Gson gson = new Gson();
+    private final ChatHistory chatHistory;
+    private final HistoryWriter historyWriter;
+    private final HistoryCompactor historyCompactor;
+    private final SearchIndex searchIndex;
+    // the sequence number of the message at index 0 of the message list model
+    private long firstLoadedSequence;
+    // the sequence number of the first unread message - every message before it has been read
+    private long readWatermark;
+    // the messages read by loadChatHistory(), waiting to be added to the message list model
+    private List<HistoryRecord> loadedRecords;
+    private long[] loadedStanzaIdFingerprints;
+    private MessageFingerprintIndex fingerprintIndex;
+    // whether the messages in the model were dropped by evictMessages(), and not yet restored
+    private boolean evicted;
+    // whether older messages are being read in the background
+    private boolean readingOlderMessages;
 
-    public ChatPersistor(final String currentUserId, final String chatJid, final CustomMessageListModel customMessageListModel) {
-        this.currentUserId = currentUserId;
-        this.chatJid = chatJid;
+    public ChatPersistor(final String chatJid, final CustomMessageListModel customMessageListModel,
+                         final ChatStorage chatStorage, final HistoryWriter historyWriter,
+                         final HistoryCompactor historyCompactor, final SearchIndex searchIndex) {
         this.customMessageListModel = customMessageListModel;
+        this.historyWriter = historyWriter;
+        this.historyCompactor = historyCompactor;
+        this.searchIndex = searchIndex;
 
-        this.filename = CHAT_HISTORY_DIR + File.separator + this.currentUserId + File.separator + this.chatJid + ".txt";
-        this.listener = new ChatListDataListener(this.customMessageListModel, this.filename);
-        this.customMessageListModel.addListDataListener(this.listener);
+        this.chatHistory = chatStorage.openChat(chatJid);
+        this.listener = new ChatListDataListener(this.customMessageListModel, this.chatHistory, this.historyWriter);
     }
 
-    private CustomMessage stringToMessage(final String messageString) {
-        CustomMessage message = this.gson.fromJson(messageString, CustomMessage.class);
-        return message;
+    /**
+     * Reads the most recent messages from the history, without touching the message list model, so that this can
+     * be called from any thread.
+     */
+    public void loadChatHistory() {
+        // make sure any messages still queued from a previous session of this chat are included
+        this.historyWriter.sync(this.chatHistory);
+        this.readWatermark = this.chatHistory.getReadWatermark();
+
+        // only the most recent messages are loaded up front - older ones are loaded on request
+        this.loadedRecords = this.chatHistory.readTail(INITIAL_MESSAGE_COUNT);
+        this.loadedStanzaIdFingerprints = this.chatHistory.readFingerprints();
     }
 
-    public void readChatHistory() {
-        final File historyFile = new File(this.filename);
-        if (historyFile.exists()) {
-            // read the history from the file system, and update the message list model
-            this.customMessageListModel.removeListDataListener(this.listener);
+    /**
+     * Adds the messages read by {@link #loadChatHistory()} to the message list model, and starts writing the
+     * messages added to the model after them to the history.
+     */
+    public void applyChatHistory() {
+        final List<HistoryRecord> records = this.loadedRecords;
+        this.loadedRecords = null;
+        this.firstLoadedSequence = records.isEmpty() ? this.chatHistory.getNextSequence() : records.get(0).getSequence();
+        if (!records.isEmpty()) {
+            this.customMessageListModel.addAll(this.customMessageListModel.size(), toMessages(records));
+        }
+        this.customMessageListModel.addListDataListener(this.listener);
 
-            try {
-                final BufferedReader reader = new BufferedReader(new FileReader(historyFile));
+        this.fingerprintIndex = new MessageFingerprintIndex();
+        this.fingerprintIndex.addStanzaIdFingerprints(this.loadedStanzaIdFingerprints);
+        this.loadedStanzaIdFingerprints = null;
+        for (int index = 0 ; index < this.customMessageListModel.size() ; index++) {
+            this.fingerprintIndex.addExisting(this.customMessageListModel.getTimestamp(index),
+                    this.customMessageListModel.getSender(index), this.customMessageListModel.getBody(index));
+        }
 
-                String line = reader.readLine();
-                while (null != line) {
-                    final CustomMessage message = stringToMessage(line);
-                    this.customMessageListModel.add(message);
+        this.historyCompactor.register(this.chatHistory);
+        this.searchIndex.register(this.chatHistory);
+    }
 
-                    line = reader.readLine();
-                }
-            } catch (FileNotFoundException exception) {
-                throw new RuntimeException(exception);
-            } catch (IOException exception) {
-                throw new RuntimeException(exception);
-            } finally {
-                this.customMessageListModel.addListDataListener(this.listener);
-            }
-        }
+    /**
+     * Closes the history, for a chat that could not be joined once its history had been loaded.
+     */
+    public void close() {
+        this.chatHistory.close();
     }
 
-    public void writeChatHistory() {
-        final File file = new File(this.filename);
-        file.getParentFile().mkdirs();
+    /**
+     * @return the fingerprints of the chat's most recent messages, used to recognise the ones the server sends again
+     */
+    MessageFingerprintIndex getFingerprintIndex() {
+        return this.fingerprintIndex;
+    }
 
-        // read the history from the file system, and update the message list model
-        this.customMessageListModel.removeListDataListener(this.listener);
-        this.listener.closeFile();
+    public boolean hasOlderMessages() {
+        return this.firstLoadedSequence > this.chatHistory.getFirstSequence();
+    }
 
-        try {
-            final PrintWriter printWriter;
-            try {
-                printWriter = new PrintWriter(new BufferedWriter(new FileWriter(file, false)));
-            } catch (IOException exception) {
-                throw new RuntimeException(exception);
+    /**
+     * Reads the messages from before the oldest one in the message list model in the background, and then inserts
+     * them at the start of it.
+     *
+     * @param whenLoaded run on the event dispatch thread once the messages have been inserted, or straight away if
+     * there are none to read
+     */
+    public void loadOlderMessages(final Runnable whenLoaded) {
+        if (!hasOlderMessages() || this.readingOlderMessages) {
+            whenLoaded.run();
+            return;
+        }
+
+        readOlderMessages(OLDER_MESSAGE_COUNT, false, whenLoaded);
+    }
+
+    /**
+     * Reads the messages before the oldest one in the message list model on a worker thread, so that the event
+     * dispatch thread never waits for the disk, and then inserts them at the start of the model.
+     *
+     * @param sync whether to wait for the messages still queued to be written first
+     * @param whenRead run on the event dispatch thread once the messages have been inserted
+     */
+    private void readOlderMessages(final int count, final boolean sync, final Runnable whenRead) {
+        this.readingOlderMessages = true;
+        final long beforeSequence = this.firstLoadedSequence;
+        new SwingWorker<List<HistoryRecord>, Void>() {
+            @Override
+            protected List<HistoryRecord> doInBackground() {
+                if (sync) {
+                    ChatPersistor.this.historyWriter.sync(ChatPersistor.this.chatHistory);
+                }
+                return ChatPersistor.this.chatHistory.readBefore(beforeSequence, count);
             }
 
-            for (CustomMessage message : this.customMessageListModel) {
-                printWriter.println(this.gson.toJson(message));
+            @Override
+            protected void done() {
+                ChatPersistor.this.readingOlderMessages = false;
+                try {
+                    final List<HistoryRecord> records = get();
+                    // the messages may have been evicted while these were being read
+                    if (!records.isEmpty() && (beforeSequence == ChatPersistor.this.firstLoadedSequence)) {
+                        ChatPersistor.this.firstLoadedSequence = records.get(0).getSequence();
+                        addToModel(records, 0);
+                    }
+                } catch (InterruptedException | ExecutionException exception) {
+                    System.out.println("Unable to read the history of " + ChatPersistor.this.chatHistory.getChatJid()
+                            + ": " + exception.getMessage());
+                } finally {
+                    whenRead.run();
+                }
             }
+        }.execute();
+    }
+
+    /**
+     * Drops the messages in the message list model to free up memory.  The messages received after this are still
+     * added to the model, after the position the dropped ones would have had, so the unread count, and the sequence
+     * numbers of the messages read, are unaffected.
+     */
+    public void evictMessages() {
+        if (this.customMessageListModel.isEmpty()) {
+            return;
+        }
 
-            printWriter.flush();
-            printWriter.close();
+        this.firstLoadedSequence += this.customMessageListModel.size();
+        this.customMessageListModel.removeListDataListener(this.listener);
+        try {
+            this.customMessageListModel.clear();
         } finally {
             this.customMessageListModel.addListDataListener(this.listener);
         }
+        this.evicted = true;
     }
 
-    private static final class ChatListDataListener implements ListDataListener {
+    /**
+     * Reads the messages dropped by {@link #evictMessages()} back from the history in the background, until the
+     * message list model holds as many messages as when the chat was first opened.
+     */
+    public void restoreMessages() {
+        if (!this.evicted) {
+            return;
+        }
+        this.evicted = false;
 
-        private final CustomMessageListModel customMessageListModel;
-        private final String filename;
-        private final Gson gson = new Gson();
-        private PrintWriter printWriter;
+        final int count = INITIAL_MESSAGE_COUNT - this.customMessageListModel.size();
+        if ((count <= 0) || !hasOlderMessages()) {
+            return;
+        }
 
+        // the dropped messages may still be queued
+        readOlderMessages(count, true, NOTHING);
+    }
 
-        private ChatListDataListener(final CustomMessageListModel customMessageListModel, final String filename) {
-            this.customMessageListModel = customMessageListModel;
-            this.filename = filename;
+    /**
+     * @return the timestamp of the newest message in the history, or 0 if there isn't one
+     */
+    public long getLastMessageTimestamp() {
+        this.historyWriter.sync(this.chatHistory);
+        return this.chatHistory.getLastTimestamp();
+    }
+
+    private void addToModel(final List<HistoryRecord> records, final int index) {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        // the messages are already in the history, so don't let the listener write them out again
+        this.customMessageListModel.removeListDataListener(this.listener);
+        try {
+            this.customMessageListModel.addAll(index, toMessages(records));
+        } finally {
+            this.customMessageListModel.addListDataListener(this.listener);
         }
+    }
 
-        private String messageToString(final CustomMessage message) {
-            final String messageString = this.gson.toJson(message);
-            return messageString;
+    private static List<CustomMessage> toMessages(final List<HistoryRecord> records) {
+        final List<CustomMessage> messages = new ArrayList<CustomMessage>(records.size());
+        for (HistoryRecord record : records) {
+            messages.add(record.getMessage());
         }
+        return messages;
+    }
 
-        private void ensureWriterCreated() {
-            if (null != this.printWriter) {
-                return;
-            }
+    /**
+     * @return the number of messages after the read watermark, including any that have not been loaded into the
+     * message list model
+     */
+    public int getUnreadMessageCount() {
+        return (int)Math.max(0, this.firstLoadedSequence + this.customMessageListModel.size() - this.readWatermark);
+    }
 
-            final File file = new File(this.filename);
-            file.getParentFile().mkdirs();
-            try {
-                this.printWriter = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
-            } catch (IOException exception) {
-                throw new RuntimeException(exception);
-            }
+    /**
+     * @return the sequence number in the history of the message at the given index of the message list model.  Unlike
+     * the index, this doesn't change when older messages are inserted before the message.
+     */
+    public long getSequence(final int messageIndex) {
+        return this.firstLoadedSequence + messageIndex;
+    }
 
+    /**
+     * Records that the message with the given sequence number, and every message before it, has been read.
+     *
+     * @return false if the message had already been read
+     */
+    public boolean setMessageRead(final long sequence) {
+        if (sequence < this.readWatermark) {
+            return false;
         }
 
-        public void closeFile() {
-            if (null != this.printWriter) {
-                this.printWriter.close();
-            }
+        this.readWatermark = sequence + 1;
+        this.historyWriter.markRead(this.chatHistory, sequence);
+        return true;
+    }
+
+    /**
+     * @return whether the message with the given sequence number is before the read watermark
+     */
+    public boolean isMessageRead(final long sequence) {
+        return sequence < this.readWatermark;
+    }
+
+    /**
+     * Forces the messages received, and the messages read, since the last checkpoint to disk, along with the
+     * fingerprints of the most recent messages.  Nothing else is written, so this is cheap however long the history
+     * is.
+     */
+    public void writeChatHistory() {
+        if (null != this.fingerprintIndex) {
+            this.chatHistory.writeFingerprints(this.fingerprintIndex.getStanzaIdFingerprints());
+        }
+        this.historyWriter.sync(this.chatHistory);
+        this.chatHistory.checkpoint();
+    }
+
+    private static final class ChatListDataListener implements ListDataListener {
+
+        private final CustomMessageListModel customMessageListModel;
+        private final ChatHistory chatHistory;
+        private final HistoryWriter historyWriter;
+
+        private ChatListDataListener(final CustomMessageListModel customMessageListModel, final ChatHistory chatHistory,
+                                     final HistoryWriter historyWriter) {
+            this.customMessageListModel = customMessageListModel;
+            this.chatHistory = chatHistory;
+            this.historyWriter = historyWriter;
         }
 
         @Override
         public void intervalAdded(ListDataEvent event) {
-            ensureWriterCreated();
-            final CustomMessage message = this.customMessageListModel.get(event.getIndex0());
-            this.printWriter.println(messageToString(message));
-            this.printWriter.flush();
+            // queue the messages to be written in the background, rather than writing them on the event thread
+            for (int index = event.getIndex0() ; index <= event.getIndex1() ; index++) {
+                // the writer thread needs a message of its own, as the model is only used on this thread
+                this.historyWriter.append(this.chatHistory, this.customMessageListModel.get(index));
+            }
         }
 
         @Override
@@ -180,7 +355,7 @@ public class ChatPersistor {
 
         @Override
         protected void finalize() throws Throwable {
-            closeFile();
+            this.chatHistory.close();
         }
 
     }
@@ -42,8 +42,25 @@ public interface ChatTarget {
     String LATEST_MESSAGE_TIMESTAMP_PROPERTY_NAME = "latestMessageTimestamp";
     String UNREAD_MESSAGE_COUNT_PROPERTY_NAME = "unreadMessageCount";
 
+    // returned by prepareJoin when the chat has already been joined, so there is nothing left to do
+    Runnable ALREADY_JOINED = new Runnable() {
+        @Override
+        public void run() {
+            // nothing to do
+        }
+    };
+
     void join(final CustomConnection customConnection);
 
+    /**
+     * Does the slow part of joining the chat - reading its history, and any round trip to the server - without
+     * changing any of the models, so that several chats can be joined at once.  Calling this, then running the
+     * result, is the same as calling {@link #join(CustomConnection)}.
+     *
+     * @return completes the join - this must be run on the thread that would otherwise have called join
+     */
+    Runnable prepareJoin(final CustomConnection customConnection);
+
     void rejoin(final CustomConnection customConnection);
 
     String getId();
@@ -70,9 +87,50 @@ public interface ChatTarget {
 
     void writeChatHistory();
 
+    /**
+     * Reads a page of the messages from before the oldest one in the message list model in the background, and
+     * inserts them at the start of it.
+     *
+     * @param whenLoaded run on the event dispatch thread once the messages have been inserted
+     */
+    void loadOlderMessages(Runnable whenLoaded);
+
+    /**
+     * @return roughly how many bytes of heap the chat's messages, and its messages document, take up
+     */
+    long getMessageMemoryUsage();
+
+    /**
+     * Drops the chat's messages, and its messages document, from memory, keeping just enough to maintain the unread
+     * message count.  They are read back from the history by {@link #restoreMessages()}.
+     */
+    void evictMessages();
+
+    /**
+     * Reads the messages dropped by {@link #evictMessages()} back from the history in the background, and adds them
+     * to the message list model on the event dispatch thread.
+     */
+    void restoreMessages();
+
     long getLatestMessageTimestamp();
 
     int getUnreadMessageCount();
 
-    void setMessageRead(Integer messageIndex);
+    /**
+     * @return the sequence number of the message at the given index of the message list model - the number given to
+     * its row in the messages document
+     */
+    long getMessageSequence(int messageIndex);
+
+    /**
+     * Records that the message with the given sequence number (the number given to its row in the messages document),
+     * and every message before it, has been read.
+     */
+    void setMessageRead(long messageSequence);
+
+    /**
+     * @return whether the message with the given sequence number has been read - that is, whether it is before the
+     * read watermark
+     */
+    boolean isMessageRead(long messageSequence);
 }
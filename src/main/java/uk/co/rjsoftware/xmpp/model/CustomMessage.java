@@ -38,7 +38,6 @@ public class CustomMessage {
     private final long timestamp;
     private final String sender;
     private final String body;
-    private boolean read;
 
     /**
      *
@@ -47,17 +46,6 @@ public class CustomMessage {
      * @param body
      */
     public CustomMessage(final long timestamp, final String sender, final String body) {
-        this(timestamp, sender, body, false);
-    }
-
-    /**
-     *
-     * @param timestamp
-     * @param sender The sender in the format {roomname}@conf.hipchat.com/{username}
-     * @param body
-     * @param read Indicates whether or not the message has already been read or not.
-     */
-    public CustomMessage(final long timestamp, final String sender, final String body, final boolean read) {
         this.timestamp = timestamp;
         final int index = sender.indexOf("/");
         if (index == -1) {
@@ -67,7 +55,6 @@ public class CustomMessage {
             this.sender = sender.substring(index+1);
         }
         this.body = body;
-        this.read = read;
     }
 
     public long getTimestamp() {
@@ -82,14 +69,6 @@ public class CustomMessage {
         return this.body;
     }
 
-    public boolean isRead() {
-        return read;
-    }
-
-    public void setRead(final boolean read) {
-        this.read = read;
-    }
-
     @Override
     public String toString() {
         final DateFormat formatter = new SimpleDateFormat("HH:mm");
@@ -29,10 +29,232 @@
  */
 package uk.co.rjsoftware.xmpp.model;
 
-import com.jgoodies.common.collect.ArrayListModel;
-
 import javax.swing.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The messages of a chat, held a column per field rather than as CustomMessage objects, so that a busy room costs
+ * little more than the text of its messages:
+ *
+ * <ul>
+ *     <li>the timestamps in a long[]</li>
+ *     <li>the senders as ids into a dictionary of the chat's senders, in an int[]</li>
+ *     <li>the bodies, UTF-8 encoded, one after another in a single byte[] arena, with the offset and length of each
+ *     in an int[]</li>
+ * </ul>
+ *
+ * {@link #get(int)}, and the iterator, build a new CustomMessage from the columns each time, so they allocate, and
+ * the message returned is a snapshot.  Use the column accessors ({@link #getTimestamp(int)}, {@link #getSender(int)}
+ * and {@link #getBody(int)}) to read the messages, rather than building a CustomMessage only to read its fields.
+ * <p>
+ * Whether a message has been read isn't held here - it comes from the chat's read watermark (see
+ * {@link ChatTarget#isMessageRead(long)}).
+ */
+public class CustomMessageListModel extends AbstractListModel<CustomMessage> implements Iterable<CustomMessage> {
+
+    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int INITIAL_ARENA_CAPACITY = 1024;
+
+    private int size;
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private int[] senderIds = new int[INITIAL_CAPACITY];
+    private int[] bodyOffsets = new int[INITIAL_CAPACITY];
+    private int[] bodyLengths = new int[INITIAL_CAPACITY];
+
+    private final List<String> senders = new ArrayList<String>();
+    private final Map<String, Integer> senderIdsByName = new HashMap<String, Integer>();
+
+    private byte[] arena = new byte[INITIAL_ARENA_CAPACITY];
+    private int arenaSize;
+
+    public void add(final CustomMessage message) {
+        insert(this.size, message);
+        fireIntervalAdded(this, this.size - 1, this.size - 1);
+    }
+
+    /**
+     * Inserts the messages, in order, before the message at the given index.
+     */
+    public void addAll(final int index, final Collection<? extends CustomMessage> messages) {
+        if ((index < 0) || (index > this.size)) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        final int count = messages.size();
+        ensureCapacity(this.size + count);
+        if (index < this.size) {
+            // open a gap for the new rows.  The bodies don't move - they are appended to the arena wherever the rows go
+            final int tail = this.size - index;
+            System.arraycopy(this.timestamps, index, this.timestamps, index + count, tail);
+            System.arraycopy(this.senderIds, index, this.senderIds, index + count, tail);
+            System.arraycopy(this.bodyOffsets, index, this.bodyOffsets, index + count, tail);
+            System.arraycopy(this.bodyLengths, index, this.bodyLengths, index + count, tail);
+        }
+
+        int row = index;
+        for (CustomMessage message : messages) {
+            setRow(row++, message);
+        }
+        this.size += count;
+        fireIntervalAdded(this, index, index + count - 1);
+    }
+
+    /**
+     * @return a snapshot of the message at the given index, built from the columns
+     */
+    public CustomMessage get(final int index) {
+        checkIndex(index);
+        return new CustomMessage(this.timestamps[index], this.senders.get(this.senderIds[index]), getBody(index));
+    }
+
+    public long getTimestamp(final int index) {
+        checkIndex(index);
+        return this.timestamps[index];
+    }
+
+    public String getSender(final int index) {
+        checkIndex(index);
+        return this.senders.get(this.senderIds[index]);
+    }
+
+    public String getBody(final int index) {
+        checkIndex(index);
+        return new String(this.arena, this.bodyOffsets[index], this.bodyLengths[index], UTF_8);
+    }
+
+    /**
+     * @return roughly how many bytes of heap the messages take up
+     */
+    public long estimateMemoryUsage() {
+        long usage = (this.timestamps.length * 8L) + (this.senderIds.length * 4L) + (this.bodyOffsets.length * 4L)
+                + (this.bodyLengths.length * 4L) + this.arena.length;
+        for (String sender : this.senders) {
+            usage += 64 + (sender.length() * 2L);
+        }
+        return usage;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public void clear() {
+        if (this.size == 0) {
+            return;
+        }
+
+        final int lastIndex = this.size - 1;
+        this.size = 0;
+        this.timestamps = new long[INITIAL_CAPACITY];
+        this.senderIds = new int[INITIAL_CAPACITY];
+        this.bodyOffsets = new int[INITIAL_CAPACITY];
+        this.bodyLengths = new int[INITIAL_CAPACITY];
+        this.senders.clear();
+        this.senderIdsByName.clear();
+        this.arena = new byte[INITIAL_ARENA_CAPACITY];
+        this.arenaSize = 0;
+        fireIntervalRemoved(this, 0, lastIndex);
+    }
+
+    @Override
+    public int getSize() {
+        return this.size;
+    }
+
+    @Override
+    public CustomMessage getElementAt(final int index) {
+        return get(index);
+    }
+
+    @Override
+    public Iterator<CustomMessage> iterator() {
+        return new Iterator<CustomMessage>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return this.index < CustomMessageListModel.this.size;
+            }
+
+            @Override
+            public CustomMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(this.index++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void insert(final int index, final CustomMessage message) {
+        ensureCapacity(this.size + 1);
+        setRow(index, message);
+        this.size++;
+    }
+
+    private void setRow(final int index, final CustomMessage message) {
+        this.timestamps[index] = message.getTimestamp();
+        this.senderIds[index] = getSenderId(message.getSender());
+
+        final byte[] body = message.getBody().getBytes(UTF_8);
+        if (this.arenaSize + body.length > this.arena.length) {
+            this.arena = Arrays.copyOf(this.arena, Math.max(this.arena.length * 2, this.arenaSize + body.length));
+        }
+        System.arraycopy(body, 0, this.arena, this.arenaSize, body.length);
+        this.bodyOffsets[index] = this.arenaSize;
+        this.bodyLengths[index] = body.length;
+        this.arenaSize += body.length;
+    }
+
+    private int getSenderId(final String sender) {
+        final Integer senderId = this.senderIdsByName.get(sender);
+        if (null != senderId) {
+            return senderId;
+        }
+
+        this.senders.add(sender);
+        this.senderIdsByName.put(sender, this.senders.size() - 1);
+        return this.senders.size() - 1;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity <= this.timestamps.length) {
+            return;
+        }
+
+        final int newCapacity = Math.max(this.timestamps.length * 2, capacity);
+        this.timestamps = Arrays.copyOf(this.timestamps, newCapacity);
+        this.senderIds = Arrays.copyOf(this.senderIds, newCapacity);
+        this.bodyOffsets = Arrays.copyOf(this.bodyOffsets, newCapacity);
+        this.bodyLengths = Arrays.copyOf(this.bodyLengths, newCapacity);
+    }
 
-public class CustomMessageListModel extends ArrayListModel<CustomMessage> {
+    private void checkIndex(final int index) {
+        if ((index < 0) || (index >= this.size)) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+    }
 
 }
@@ -29,6 +29,8 @@
  */
 package uk.co.rjsoftware.xmpp.model;
 
+import org.apache.commons.lang3.StringEscapeUtils;
+
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,10 +38,12 @@ public class Emoticon {
 
     private final String shortcut;
     private final String regexShortcut;
+    private final String unescapedShortcut;
     private final String url;
 
     public Emoticon(final String shortcut, final String url) {
         this.shortcut = shortcut;
+        this.unescapedShortcut = StringEscapeUtils.unescapeHtml4(shortcut);
         this.regexShortcut = escapeRegexCharacters(shortcut);
         this.url = url;
     }
@@ -73,6 +77,13 @@ public class Emoticon {
         return regexShortcut;
     }
 
+    /**
+     * @return the shortcut as it is typed, rather than HTML escaped
+     */
+    public String getShortcut() {
+        return this.unescapedShortcut;
+    }
+
     public String getRegexShortcut() {
         return this.regexShortcut;
     }
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recognises the messages a room sends again when it is joined.  HipChat replays the last 75 or so messages on
+ * every join, whatever history was asked for, so each incoming message is checked against the fingerprints of the
+ * room's most recent messages.
+ *
+ * A message is fingerprinted by its stanza id, when the server gave it one, and always by a hash of its timestamp
+ * (to the second, as that is all the server keeps), sender and body.  Different messages can have the same content
+ * fingerprint - "+1" twice in the same second, say - so the content fingerprints are counted, and each one can only
+ * be matched as many times as it was recorded, once per replay.  That way a replay never adds a message that is
+ * already here, and never drops one that only looks the same as one that is.
+ *
+ * Only the last {@link #CAPACITY} fingerprints are kept, which is plenty to cover a replay.  The stanza id
+ * fingerprints are saved with the chat's history; the content fingerprints are rebuilt from the messages loaded
+ * when the chat is opened.  This is only used on the event dispatch thread.
+ */
+final class MessageFingerprintIndex {
+
+    static final int CAPACITY = 1024;
+
+    // the lowest bit of each fingerprint says what kind it is
+    private static final long KIND_CONTENT = 0;
+    private static final long KIND_STANZA_ID = 1;
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    // the fingerprints, oldest first, in a circular buffer
+    private final long[] fingerprints = new long[CAPACITY];
+    private int start;
+    private int size;
+    // how many times each fingerprint is in the buffer
+    private final Map<Long, Integer> counts = new HashMap<Long, Integer>();
+    // how many times each content fingerprint has been matched since the last replay started
+    private final Map<Long, Integer> matchedCounts = new HashMap<Long, Integer>();
+
+    /**
+     * Records a message that is already in the history.
+     */
+    void addExisting(final CustomMessage message) {
+        add(contentFingerprint(message.getTimestamp(), message.getSender(), message.getBody()));
+    }
+
+    /**
+     * Records a message that is already in the history, from its fields.
+     */
+    void addExisting(final long timestamp, final String sender, final String body) {
+        add(contentFingerprint(timestamp, sender, body));
+    }
+
+    /**
+     * Records the saved stanza id fingerprints.
+     */
+    void addStanzaIdFingerprints(final long[] stanzaIdFingerprints) {
+        for (long fingerprint : stanzaIdFingerprints) {
+            if ((fingerprint & 1) == KIND_STANZA_ID) {
+                add(fingerprint);
+            }
+        }
+    }
+
+    /**
+     * @return the stanza id fingerprints, oldest first, to be saved with the history
+     */
+    long[] getStanzaIdFingerprints() {
+        int count = 0;
+        final long[] result = new long[this.size];
+        for (int index = 0 ; index < this.size ; index++) {
+            final long fingerprint = this.fingerprints[(this.start + index) % CAPACITY];
+            if ((fingerprint & 1) == KIND_STANZA_ID) {
+                result[count++] = fingerprint;
+            }
+        }
+        final long[] trimmed = new long[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * Starts matching a new replay, in which each message already here may be sent again.
+     */
+    void startReplay() {
+        this.matchedCounts.clear();
+    }
+
+    /**
+     * Checks the message against the recent messages, and records it if it is new.
+     *
+     * @param stanzaId the id the server gave the message, or null if it didn't give it one
+     * @return false if the message is one that is already here
+     */
+    boolean isNew(final CustomMessage message, final String stanzaId) {
+        final long contentFingerprint = contentFingerprint(message);
+        if (null != stanzaId) {
+            final long stanzaIdFingerprint = stanzaIdFingerprint(stanzaId);
+            if (this.counts.containsKey(stanzaIdFingerprint)) {
+                // it is one of the messages with this content, so another one can't be matched against it
+                matchContent(contentFingerprint);
+                return false;
+            }
+            // remember the id, whether or not the message had been seen without it
+            add(stanzaIdFingerprint);
+        }
+
+        if (matchContent(contentFingerprint)) {
+            return false;
+        }
+
+        add(contentFingerprint);
+        // it is here now, so this replay shouldn't match it again
+        increment(this.matchedCounts, contentFingerprint);
+        return true;
+    }
+
+    /**
+     * @return true if the content fingerprint is here more times than it has been matched in this replay, in which
+     * case the match is counted
+     */
+    private boolean matchContent(final long contentFingerprint) {
+        final Integer count = this.counts.get(contentFingerprint);
+        final Integer matchedCount = this.matchedCounts.get(contentFingerprint);
+        if ((null == count) || ((null != matchedCount) && (matchedCount >= count))) {
+            return false;
+        }
+        increment(this.matchedCounts, contentFingerprint);
+        return true;
+    }
+
+    private void add(final long fingerprint) {
+        if (this.size == CAPACITY) {
+            // forget the oldest
+            final long oldest = this.fingerprints[this.start];
+            this.start = (this.start + 1) % CAPACITY;
+            this.size--;
+            final int count = this.counts.get(oldest) - 1;
+            if (count == 0) {
+                this.counts.remove(oldest);
+                this.matchedCounts.remove(oldest);
+            }
+            else {
+                this.counts.put(oldest, count);
+                final Integer matchedCount = this.matchedCounts.get(oldest);
+                if ((null != matchedCount) && (matchedCount > count)) {
+                    this.matchedCounts.put(oldest, count);
+                }
+            }
+        }
+
+        this.fingerprints[(this.start + this.size) % CAPACITY] = fingerprint;
+        this.size++;
+        increment(this.counts, fingerprint);
+    }
+
+    private static void increment(final Map<Long, Integer> map, final long fingerprint) {
+        final Integer count = map.get(fingerprint);
+        map.put(fingerprint, (null == count) ? 1 : count + 1);
+    }
+
+    static long contentFingerprint(final CustomMessage message) {
+        return contentFingerprint(message.getTimestamp(), message.getSender(), message.getBody());
+    }
+
+    private static long contentFingerprint(final long timestamp, final String sender, final String body) {
+        long hash = hash(FNV_OFFSET_BASIS, Long.toString(timestamp / 1000));
+        hash = hash(hash, sender);
+        hash = hash(hash, body);
+        return (hash & ~1L) | KIND_CONTENT;
+    }
+
+    static long stanzaIdFingerprint(final String stanzaId) {
+        return (hash(FNV_OFFSET_BASIS, stanzaId) & ~1L) | KIND_STANZA_ID;
+    }
+
+    /**
+     * 64 bit FNV-1a, over the characters of the value and a separator after them.
+     */
+    private static long hash(final long initialHash, final String value) {
+        long hash = initialHash;
+        if (null != value) {
+            for (int index = 0 ; index < value.length() ; index++) {
+                final char character = value.charAt(index);
+                hash = (hash ^ (character & 0xFF)) * FNV_PRIME;
+                hash = (hash ^ (character >>> 8)) * FNV_PRIME;
+            }
+        }
+        return (hash ^ 0xFFFF) * FNV_PRIME;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the messages received by the chats to them on the event dispatch thread, in batches, and only for so long
+ * each frame, so that a flood of messages can't stop the window from repainting and responding.
+ * <p>
+ * Each chat offers what it receives to a {@link Channel} of its own, from any thread.  Then, each frame, the chats
+ * with something waiting are taken in turn, and each is given everything it has waiting - up to a limit - in one go,
+ * until the frame's budget has been used up.  Whatever is left waits for the next frame, a frame's interval later, so
+ * that the window gets a chance to catch up in between.
+ * <p>
+ * When messages arrive faster than they can be handled, they back up.  The backlog, and how long messages wait, are
+ * kept track of (see {@link #toString()}), and the backlog is logged when it grows past a warning size.
+ */
+public class MessageIngester {
+
+    public static final long DEFAULT_FRAME_BUDGET_MILLIS = 8;
+
+    private static final int FRAME_INTERVAL_MILLIS = 16;
+    // the most that a chat is given in one go, so that one chat can't use up the whole of a frame
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final int BACKLOG_WARNING_SIZE = 1000;
+
+    private final long frameBudgetNanos;
+    private final Timer timer;
+    private final Runnable frameRunner = new Runnable() {
+        @Override
+        public void run() {
+            runFrame();
+        }
+    };
+
+    // everything below is guarded by this
+    // the channels with something waiting, in the order that they are to be served
+    private final Set<Channel<?>> waitingChannels = new LinkedHashSet<Channel<?>>();
+    // whether a frame has been scheduled, either straight away or on the timer
+    private boolean scheduled;
+    private boolean backlogWarning;
+    private int backlog;
+    private int maxBacklog;
+    private long handledCount;
+    private long batchCount;
+    private long frameCount;
+    private long overBudgetFrameCount;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    public MessageIngester(final long frameBudgetMillis) {
+        this.frameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(frameBudgetMillis);
+
+        this.timer = new Timer(FRAME_INTERVAL_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(final ActionEvent event) {
+                runFrame();
+            }
+        });
+        this.timer.setRepeats(false);
+    }
+
+    /**
+     * @param name what the channel is for, for the log
+     * @param handler given the items offered to the channel, in order, on the event dispatch thread
+     */
+    public <T> Channel<T> createChannel(final String name, final BatchHandler<T> handler) {
+        return new Channel<T>(this, name, handler);
+    }
+
+    /**
+     * Handles everything that is waiting, whatever the budget, and stops.  This must be called on the event dispatch
+     * thread.
+     */
+    public void close() {
+        this.timer.stop();
+        while (handleNextBatch()) {
+            // keep going until there is nothing left
+        }
+    }
+
+    public synchronized int getBacklog() {
+        return this.backlog;
+    }
+
+    public synchronized int getMaxBacklog() {
+        return this.maxBacklog;
+    }
+
+    /**
+     * @return the number of frames that went over their budget, which happens when a single batch takes longer than
+     * the budget to handle
+     */
+    public synchronized long getOverBudgetFrameCount() {
+        return this.overBudgetFrameCount;
+    }
+
+    /**
+     * @return the longest that an item has waited between being offered and being handled, in milliseconds
+     */
+    public synchronized long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxWaitNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final long averageWaitMillis = (this.handledCount == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(this.totalWaitNanos / this.handledCount);
+        final long averageBatchSize = (this.batchCount == 0) ? 0 : this.handledCount / this.batchCount;
+        return String.format("%d handled in %d batches (%d on average) over %d frames, %d frames over budget, " +
+                        "backlog %d (at most %d), wait %d ms on average (at most %d ms)", this.handledCount,
+                this.batchCount, averageBatchSize, this.frameCount, this.overBudgetFrameCount, this.backlog,
+                this.maxBacklog, averageWaitMillis, getMaxWaitMillis());
+    }
+
+    private synchronized void offered(final Channel<?> channel) {
+        this.waitingChannels.add(channel);
+        this.backlog++;
+        this.maxBacklog = Math.max(this.maxBacklog, this.backlog);
+        if ((this.backlog > BACKLOG_WARNING_SIZE) && !this.backlogWarning) {
+            this.backlogWarning = true;
+            System.out.println("Message ingestion is falling behind, with " + this.backlog + " messages waiting (the latest for "
+                    + channel.name + ")");
+        }
+
+        if (!this.scheduled) {
+            this.scheduled = true;
+            SwingUtilities.invokeLater(this.frameRunner);
+        }
+    }
+
+    private void runFrame() {
+        final long frameStart = System.nanoTime();
+        try {
+            while (handleNextBatch() && (System.nanoTime() - frameStart < this.frameBudgetNanos)) {
+                // keep going until there is nothing left, or the budget has been used up
+            }
+        } finally {
+            endFrame(System.nanoTime() - frameStart);
+        }
+    }
+
+    private synchronized void endFrame(final long frameNanos) {
+        this.frameCount++;
+        if (frameNanos > this.frameBudgetNanos) {
+            this.overBudgetFrameCount++;
+        }
+
+        if (this.waitingChannels.isEmpty()) {
+            this.scheduled = false;
+            if (this.backlogWarning) {
+                this.backlogWarning = false;
+                System.out.println("Message ingestion has caught up: " + this);
+            }
+        }
+        else {
+            this.timer.restart();
+        }
+    }
+
+    /**
+     * Gives the next channel in turn a batch of what it has waiting.
+     *
+     * @return false if there was nothing waiting
+     */
+    private boolean handleNextBatch() {
+        final Channel<?> channel;
+        synchronized (this) {
+            final Iterator<Channel<?>> iterator = this.waitingChannels.iterator();
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            channel = iterator.next();
+            iterator.remove();
+        }
+        channel.handleBatch();
+        return true;
+    }
+
+    // called with the lock held
+    private void taken(final Channel<?> channel, final int count, final long waitNanos, final long oldestWaitNanos,
+                       final boolean more) {
+        if (more) {
+            // to the back of the queue
+            this.waitingChannels.add(channel);
+        }
+        this.backlog -= count;
+        this.handledCount += count;
+        this.batchCount++;
+        this.totalWaitNanos += waitNanos;
+        this.maxWaitNanos = Math.max(this.maxWaitNanos, oldestWaitNanos);
+    }
+
+    public interface BatchHandler<T> {
+
+        void handle(List<T> batch);
+    }
+
+    /**
+     * Where a chat offers the items it receives, to be handed back to it in batches on the event dispatch thread.
+     */
+    public static final class Channel<T> {
+
+        private final MessageIngester ingester;
+        private final String name;
+        private final BatchHandler<T> handler;
+        // guarded by the ingester
+        private final ArrayDeque<T> items = new ArrayDeque<T>();
+        private final ArrayDeque<Long> offerTimes = new ArrayDeque<Long>();
+
+        private Channel(final MessageIngester ingester, final String name, final BatchHandler<T> handler) {
+            this.ingester = ingester;
+            this.name = name;
+            this.handler = handler;
+        }
+
+        /**
+         * Queues the item to be handled, from any thread.
+         */
+        public void offer(final T item) {
+            synchronized (this.ingester) {
+                this.items.add(item);
+                this.offerTimes.add(System.nanoTime());
+                this.ingester.offered(this);
+            }
+        }
+
+        private void handleBatch() {
+            final List<T> batch;
+            synchronized (this.ingester) {
+                final int count = Math.min(this.items.size(), MAX_BATCH_SIZE);
+                if (count == 0) {
+                    return;
+                }
+                final long now = System.nanoTime();
+                // the first item has waited the longest
+                final long oldestWaitNanos = now - this.offerTimes.peek();
+                long waitNanos = 0;
+                batch = new ArrayList<T>(count);
+                for (int index = 0 ; index < count ; index++) {
+                    batch.add(this.items.remove());
+                    waitNanos += now - this.offerTimes.remove();
+                }
+                this.ingester.taken(this, count, waitNanos, oldestWaitNanos, !this.items.isEmpty());
+            }
+            this.handler.handle(batch);
+        }
+    }
+}
@@ -31,17 +31,20 @@ package uk.co.rjsoftware.xmpp.model;
 
 import uk.co.rjsoftware.xmpp.client.CustomConnection;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class RecentChatPersistor {
 
+    // the most chats to join at once at login - each one is mostly waiting on the disk or the server
+    private static final int MAX_PARALLEL_JOINS = 8;
+
     private final CustomConnection connection;
     private final UserListModel userListModel;
     private final RoomListModel roomListModel;
@@ -52,84 +55,101 @@ public class RecentChatPersistor {
         this.roomListModel = connection.getRoomListModel();
     }
 
-    private String getChatListFilename(final String currentUserId) {
-        return ChatPersistor.CHAT_HISTORY_DIR + File.separator + currentUserId + File.separator + "recentChatList.txt";
-    }
-
     public void saveRecentChatList() {
-        final String filename = getChatListFilename(this.connection.getCurrentUser().getId());
-
-        final File file = new File(filename);
-        file.getParentFile().mkdirs();
-
-        final PrintWriter printWriter;
-        try {
-            printWriter = new PrintWriter(new BufferedWriter(new FileWriter(file, false)));
-        } catch (IOException exception) {
-            throw new RuntimeException(exception);
-        }
-
+        final List<String> entries = new ArrayList<String>();
         for (int index = 0 ; index < this.connection.getChatListModel().getSize() ; index++) {
             final ChatTarget chatTarget = this.connection.getChatListModel().getElementAt(index);
-            printWriter.println(chatTarget.getClass().getSimpleName() + ":" + chatTarget.getId());
+            entries.add(chatTarget.getClass().getSimpleName() + ":" + chatTarget.getId());
         }
 
-        printWriter.flush();
-        printWriter.close();
+        this.connection.getChatStorage().writeRecentChats(entries);
     }
 
+    /**
+     * Joins the chats in the recent chat list.  The slow part of each join is done on a pool of threads, so that
+     * logging in takes about as long as the slowest chat, rather than all of them added together, and then the
+     * chats are added to the models one at a time, on this thread, in the order they appear in the list.  A chat
+     * that cannot be joined is left out of the list, and once the rest have been joined, the failures are thrown.
+     */
     public void loadRecentChatList() {
-        final String filename = getChatListFilename(this.connection.getCurrentUser().getId());
-
-        final File file = new File(filename);
-        if (file.exists()) {
-            // open the file
-            final BufferedReader reader;
-            try {
-                reader = new BufferedReader(new FileReader(file));
-            } catch (FileNotFoundException exception) {
-                throw new RuntimeException(exception);
-            }
+        final List<ChatTarget> chatTargets = readRecentChatList();
+        if (chatTargets.isEmpty()) {
+            return;
+        }
 
-            // read the file and join all the chats
-            try {
-                String line = reader.readLine();
-                while (null != line) {
-                    final String[] lineArray = line.split(":");
-                    joinChat(lineArray);
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(chatTargets.size(), MAX_PARALLEL_JOINS),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "Chat Restore");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
 
-                    line = reader.readLine();
-                }
+        try {
+            final List<Future<Runnable>> joins = new ArrayList<Future<Runnable>>(chatTargets.size());
+            for (final ChatTarget chatTarget : chatTargets) {
+                joins.add(executor.submit(new Callable<Runnable>() {
+                    @Override
+                    public Runnable call() {
+                        return chatTarget.prepareJoin(RecentChatPersistor.this.connection);
+                    }
+                }));
+            }
 
-            } catch (IOException exception) {
-                throw new RuntimeException(exception);
-            } finally {
+            RuntimeException failure = null;
+            for (int index = 0 ; index < joins.size() ; index++) {
                 try {
-                    reader.close();
-                } catch (IOException exception) {
+                    joins.get(index).get().run();
+                } catch (ExecutionException exception) {
+                    final RuntimeException joinFailure = new RuntimeException("Unable to rejoin "
+                            + chatTargets.get(index).getId(), exception.getCause());
+                    if (null == failure) {
+                        failure = joinFailure;
+                    }
+                    else {
+                        failure.addSuppressed(joinFailure);
+                    }
+                } catch (InterruptedException exception) {
                     throw new RuntimeException(exception);
                 }
             }
+
+            // the rest of the chats have been joined, so report the ones that couldn't be, as joining them one at a
+            // time would have
+            if (null != failure) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
         }
     }
 
-    private void joinChat(String[] lineArray) {
-        // join the specified chat
+    private List<ChatTarget> readRecentChatList() {
+        final List<ChatTarget> chatTargets = new ArrayList<ChatTarget>();
+
+        // find all the chats
+        for (String entry : this.connection.getChatStorage().readRecentChats()) {
+            final String[] lineArray = entry.split(":");
+            final ChatTarget chatTarget = findChat(lineArray);
+            if (null != chatTarget) {
+                chatTargets.add(chatTarget);
+            }
+        }
+
+        return chatTargets;
+    }
+
+    /**
+     * @return the specified chat, or null if it no longer exists
+     */
+    private ChatTarget findChat(String[] lineArray) {
         switch (lineArray[0]) {
 
-            case "User" : final User user = this.userListModel.get(lineArray[1]);
-                          // user may no longer exist - check for this here
-                          if (null != user) {
-                              user.join(this.connection);
-                          }
-                          break;
-
-            case "Room" : final Room room = this.roomListModel.get(lineArray[1]);
-                          // room may no longer exist - check for this here
-                          if (null != room) {
-                              room.join(this.connection);
-                          }
-                          break;
+            case "User" : return this.userListModel.get(lineArray[1]);
+
+            case "Room" : return this.roomListModel.get(lineArray[1]);
 
             default: throw new RuntimeException("Unexpected chat type: " + lineArray[0]);
         }
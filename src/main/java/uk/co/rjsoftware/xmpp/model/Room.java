@@ -51,6 +51,7 @@ import javax.swing.*;
 import javax.swing.event.ListDataEvent;
 import javax.swing.event.ListDataListener;
 import javax.swing.text.StyledDocument;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -90,7 +91,12 @@ public class Room extends Model implements Comparable<Room>, ChatTarget {
     public Room(final String roomId, final String name) {
         this.roomId = roomId;
         this.name = name;
-        this.messagesDocument = new MessageListHTMLDocument();
+        this.messagesDocument = new MessageListHTMLDocument(new MessageListHTMLDocument.ReadState() {
+            @Override
+            public boolean isRead(final long messageNumber) {
+                return isMessageRead(messageNumber);
+            }
+        });
         this.customMessageListModel.addListDataListener(new ChatListDataListener(this));
 
         this.subjectUpdatedListener = new SubjectUpdatedListenerImpl(this);
@@ -160,64 +166,121 @@ public class Room extends Model implements Comparable<Room>, ChatTarget {
         return this.name.toUpperCase(Locale.getDefault()).compareTo(room.name.toUpperCase(Locale.getDefault()));
     }
 
-    private void joinRoom() {
-        try {
-            final String password = "";
-            DiscussionHistory history = new DiscussionHistory();
+    private void joinMultiUserChat(final MultiUserChat multiUserChat, final ChatPersistor persistor)
+            throws XMPPException, SmackException {
+        final String password = "";
+        DiscussionHistory history = new DiscussionHistory();
 
-            // request history starting from just after the last message retrieved from the local history, if any
-            final long lastMessageTimestamp;
-            if (this.customMessageListModel.isEmpty()) {
-                lastMessageTimestamp = 0;
-            }
-            else {
-                final CustomMessage latestMessage = this.customMessageListModel.get(this.customMessageListModel.size()-1);
-                lastMessageTimestamp = latestMessage.getTimestamp();
-            }
-            history.setSince(new Date(lastMessageTimestamp + 1));
+        // request history starting from just after the last message in the local history, if any
+        final long lastMessageTimestamp = persistor.getLastMessageTimestamp();
+        history.setSince(new Date(lastMessageTimestamp + 1));
 
-            // note that the above doesn't seem to work in hipchat - it will reply with lots of messages before the
-            // specified date - about 75, it seems, so need to rely on the MessageReceiver to filter out old
-            // messages.
+        // note that the above doesn't seem to work in hipchat - it will reply with lots of messages before the
+        // specified date - about 75, it seems, so need to rely on the MessageReceiver to filter out old
+        // messages, using the chat's fingerprint index.
 
-            chat.join(customConnection.getCurrentUser().getName(), password, history, this.customConnection.getPacketReplyTimeout());
+        multiUserChat.join(customConnection.getCurrentUser().getName(), password, history, this.customConnection.getPacketReplyTimeout());
+    }
 
-            // create a separate thread that will fetch the chat history and all future messages for this room
-            this.messageReceivingThread = new Thread(new MessageReceiver(this.chat, this.customMessageListModel, this));
-            this.messageReceivingThread.start();
+    private void startReceivingMessages() {
+        // create a separate thread that will fetch the chat history and all future messages for this room
+        this.messageReceivingThread = new Thread(new MessageReceiver(this.chat, this.customMessageListModel, this,
+                this.chatPersistor.getFingerprintIndex(), this.customConnection.getMessageIngester()));
+        this.messageReceivingThread.start();
+    }
+
+    private void joinRoom() {
+        try {
+            joinMultiUserChat(this.chat, this.chatPersistor);
+            startReceivingMessages();
         } catch (XMPPException | SmackException exception) {
             this.chat = null;
-            // Remove the messages read from the local history
-            this.customMessageListModel.clear();
-            this.messagesDocument.clear();
+            // Remove the messages read from the local history - on the event dispatch thread, as this may be a rejoin
+            // after reconnecting
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    Room.this.customMessageListModel.clear();
+                    Room.this.messagesDocument.clear();
+                }
+            });
             throw new RuntimeException(exception);
         }
     }
 
     @Override
     public void join(final CustomConnection customConnection) {
+        prepareJoin(customConnection).run();
+    }
+
+    @Override
+    public Runnable prepareJoin(final CustomConnection customConnection) {
         this.customConnection = customConnection;
 
-        if (this.chat == null) {
-            this.chatPersistor = new ChatPersistor(customConnection.getCurrentUser().getId(), this.roomId, this.customMessageListModel);
-            this.chatPersistor.readChatHistory();
-            this.chat = customConnection.joinRoom(this);
+        if (this.chat != null) {
+            return ALREADY_JOINED;
+        }
+
+        final ChatPersistor newChatPersistor = new ChatPersistor(this.roomId, this.customMessageListModel,
+                customConnection.getChatStorage(), customConnection.getHistoryWriter(),
+                customConnection.getHistoryCompactor(), customConnection.getSearchIndex());
+        final MultiUserChat newChat;
+        try {
+            newChatPersistor.loadChatHistory();
+
+            // the messages sent once the room has been joined are queued by the chat until the MessageReceiver is
+            // started
+            newChat = customConnection.createMultiUserChat(this);
+            joinMultiUserChat(newChat, newChatPersistor);
+        } catch (XMPPException | SmackException exception) {
+            newChatPersistor.close();
+            throw new RuntimeException(exception);
+        } catch (RuntimeException exception) {
+            newChatPersistor.close();
+            throw exception;
+        }
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (Room.this.chat != null) {
+                    // joined some other way while this was being prepared
+                    leave(newChat);
+                    newChatPersistor.close();
+                    return;
+                }
+
+                Room.this.chatPersistor = newChatPersistor;
+                Room.this.chatPersistor.applyChatHistory();
+                customConnection.addToChatList(Room.this);
+                Room.this.chat = newChat;
 
-            // add all the chat listeners
-            this.chat.addSubjectUpdatedListener(this.subjectUpdatedListener);
-            this.chat.addParticipantStatusListener(this.participantStatusListener);
+                // add all the chat listeners
+                Room.this.chat.addSubjectUpdatedListener(Room.this.subjectUpdatedListener);
+                Room.this.chat.addParticipantStatusListener(Room.this.participantStatusListener);
 
-            joinRoom();
+                // only start receiving once the local history is in the model, so that the messages it already
+                // contains can be recognised
+                startReceivingMessages();
 
-            // Note: List of occupants is fine for public rooms, but for private rooms, would like to
-            // display all of the users who are allowed access, but who are not currently online.
-            for (String participantJID : this.chat.getOccupants()) {
-                System.out.println("Participant: " + participantJID);
-                final Occupant occupant = this.chat.getOccupant(participantJID);
-                System.out.println("User JID: " + occupant.getJid());
+                // Note: List of occupants is fine for public rooms, but for private rooms, would like to
+                // display all of the users who are allowed access, but who are not currently online.
+                for (String participantJID : Room.this.chat.getOccupants()) {
+                    System.out.println("Participant: " + participantJID);
+                    final Occupant occupant = Room.this.chat.getOccupant(participantJID);
+                    System.out.println("User JID: " + occupant.getJid());
 
-                addOccupant(participantJID, occupant);
+                    addOccupant(participantJID, occupant);
+                }
             }
+        };
+    }
+
+    private static void leave(final MultiUserChat multiUserChat) {
+        try {
+            multiUserChat.leave();
+        } catch (SmackException.NotConnectedException exception) {
+            // nothing to leave
         }
     }
 
@@ -249,24 +312,28 @@ public class Room extends Model implements Comparable<Room>, ChatTarget {
         }
     }
 
-    private static class MessageReceiver extends SwingWorker<List<MessagePayload>, MessagePayload> {
+    /**
+     * Receives the room's messages on a thread of its own, and offers them to the message ingester, which hands them
+     * back in batches on the event dispatch thread.
+     */
+    private static class MessageReceiver implements Runnable, MessageIngester.BatchHandler<MessagePayload> {
 
         private final MultiUserChat chat;
         private final CustomMessageListModel customMessageListModel;
-        private final CustomMessage mostRecentMessageFromLocalHistory;
         private final Room room;
+        private final MessageFingerprintIndex fingerprintIndex;
+        private final MessageIngester.Channel<MessagePayload> channel;
+        // whether the first messages received, which will include the replay, have been processed
+        private boolean replayStarted;
 
         public MessageReceiver(final MultiUserChat chat, final CustomMessageListModel customMessageListModel,
-                               final Room room) {
+                               final Room room, final MessageFingerprintIndex fingerprintIndex,
+                               final MessageIngester messageIngester) {
             this.chat = chat;
             this.customMessageListModel = customMessageListModel;
-            if (this.customMessageListModel.isEmpty()) {
-                this.mostRecentMessageFromLocalHistory = null;
-            }
-            else {
-                this.mostRecentMessageFromLocalHistory = this.customMessageListModel.get(this.customMessageListModel.size()-1);
-            }
             this.room = room;
+            this.fingerprintIndex = fingerprintIndex;
+            this.channel = messageIngester.createChannel(room.getName(), this);
         }
 
         private long extractTimestamp(final Message message) {
@@ -281,7 +348,7 @@ public class Room extends Model implements Comparable<Room>, ChatTarget {
         }
 
         @Override
-        protected List<MessagePayload> doInBackground() throws Exception {
+        public void run() {
             boolean interrupted = false;
             while (!interrupted) {
                 try {
@@ -294,12 +361,12 @@ public class Room extends Model implements Comparable<Room>, ChatTarget {
                         case groupchat:
                             if (message.getBody() != null) {
                                 final CustomMessage customMessage = new CustomMessage(extractTimestamp(message), message.getFrom(), message.getBody());
-                                final MessagePayload messagePayload = new MessagePayload(customMessage);
-                                publish(messagePayload);
+                                final MessagePayload messagePayload = new MessagePayload(customMessage, message.getPacketID());
+                                this.channel.offer(messagePayload);
                             }
                             else if (message.getSubject() != null) {
                                 final MessagePayload messagePayload = new MessagePayload(message.getSubject());
-                                publish(messagePayload);
+                                this.channel.offer(messagePayload);
                             }
                         default: // do nothing
                     }
@@ -310,70 +377,62 @@ public class Room extends Model implements Comparable<Room>, ChatTarget {
                     interrupted = true;
                 }
             }
-
-            return null;
         }
 
-        private boolean isNewMessage(final CustomMessage newMessage) {
-            if (null == this.mostRecentMessageFromLocalHistory) {
-                return true;
-
-            }
-            if (this.mostRecentMessageFromLocalHistory.getTimestamp() > newMessage.getTimestamp()) {
-                return false;
-            }
-
-            if (this.mostRecentMessageFromLocalHistory.getTimestamp() < newMessage.getTimestamp()) {
-                return true;
-            }
-
-            // timestamps are the same.  hipchat messages are rounded (or truncated?) to the nearest second,
-            // so it's quite possible to have multiple messages with the same timestamp.  Therefore
-            // we need to check the sender and body to see if it's a new message.
-            if (!this.mostRecentMessageFromLocalHistory.getSender().equals(newMessage.getSender())) {
-                return true;
-            }
-
-            if (!this.mostRecentMessageFromLocalHistory.getBody().equals(newMessage.getBody())) {
-                return true;
+        /**
+         * Adds the new messages of the batch to the model in one go, so that the document, the unread count and the
+         * chat list are only updated once for all of them.
+         */
+        @Override
+        public void handle(final List<MessagePayload> batch) {
+            if (!this.replayStarted) {
+                // every message already here may be sent again, even if it was sent again last time
+                this.fingerprintIndex.startReplay();
+                this.replayStarted = true;
             }
 
-            // all parts of the new message are the same as the most recent one, so must assume that it is the same message
-            return false;
-        }
-
-        @Override
-        protected void process(List<MessagePayload> chunks) {
-            for (MessagePayload messagePayload : chunks) {
+            final List<CustomMessage> newMessages = new ArrayList<CustomMessage>();
+            for (MessagePayload messagePayload : batch) {
                 if (messagePayload.getCustomMessage() != null) {
-                    if (isNewMessage(messagePayload.getCustomMessage())) {
-                        this.customMessageListModel.add(messagePayload.getCustomMessage());
-                        NotificationHelper.addMessage(this.room, messagePayload.getCustomMessage());
+                    if (this.fingerprintIndex.isNew(messagePayload.getCustomMessage(), messagePayload.getStanzaId())) {
+                        newMessages.add(messagePayload.getCustomMessage());
                     }
                 }
                 else if (messagePayload.getSubject() != null) {
                     this.room.doSetSubject(messagePayload.getSubject());
                 }
             }
+
+            this.customMessageListModel.addAll(this.customMessageListModel.size(), newMessages);
+            for (CustomMessage message : newMessages) {
+                NotificationHelper.addMessage(this.room, message);
+            }
         }
     }
 
     private static class MessagePayload {
         private CustomMessage customMessage;
+        // the id the server gave the message, if any
+        private String stanzaId;
         private String subject;
 
         public MessagePayload(final String subject) {
             this.subject = subject;
         }
 
-        public MessagePayload(final CustomMessage customMessage) {
+        public MessagePayload(final CustomMessage customMessage, final String stanzaId) {
             this.customMessage = customMessage;
+            this.stanzaId = stanzaId;
         }
 
         public CustomMessage getCustomMessage() {
             return customMessage;
         }
 
+        public String getStanzaId() {
+            return stanzaId;
+        }
+
         public String getSubject() {
             return subject;
         }
@@ -393,18 +452,28 @@ public class Room extends Model implements Comparable<Room>, ChatTarget {
 
         @Override
         public void intervalAdded(ListDataEvent event) {
-            final int index = event.getIndex0();
-            final CustomMessage message = this.customMessageListModel.get(index);
-            this.messagesDocument.insertMessage(message, index);
+            // the rows are numbered by the messages' sequence numbers, which don't change when older messages are
+            // inserted before them
+            final long firstSequence = this.room.chatPersistor.getSequence(event.getIndex0());
+            // the whole batch is added to the document at once
+            if (event.getIndex1() < this.customMessageListModel.size() - 1) {
+                // older messages have been inserted before the existing ones
+                this.messagesDocument.insertMessagesAtStart(this.customMessageListModel, event.getIndex0(),
+                        event.getIndex1() + 1, firstSequence);
+            }
+            else {
+                this.messagesDocument.insertMessages(this.customMessageListModel, event.getIndex0(),
+                        event.getIndex1() + 1, firstSequence);
+            }
 
             // update 'latestMessageTimestamp in the ChatTarget (room)
-            if (message.getTimestamp() > this.room.latestMessageTimestamp) {
-                this.room.setLatestMessageTimestamp(message.getTimestamp());
+            long latestTimestamp = this.room.latestMessageTimestamp;
+            for (int index = event.getIndex0() ; index <= event.getIndex1() ; index++) {
+                latestTimestamp = Math.max(latestTimestamp, this.customMessageListModel.getTimestamp(index));
             }
+            this.room.setLatestMessageTimestamp(latestTimestamp);
 
-            if (!message.isRead()) {
-                this.room.setUnreadMessageCount(this.room.getUnreadMessageCount()+1);
-            }
+            this.room.updateUnreadMessageCount();
         }
 
         @Override
@@ -493,16 +562,37 @@ public class Room extends Model implements Comparable<Room>, ChatTarget {
         return this.unreadMessageCount;
     }
 
+    /**
+     * Works out the unread message count from the read watermark, rather than counting the unread messages.
+     */
+    private void updateUnreadMessageCount() {
+        if (null != this.chatPersistor) {
+            setUnreadMessageCount(this.chatPersistor.getUnreadMessageCount());
+        }
+    }
+
     @Override
-    public void setMessageRead(final Integer messageIndex) {
-        CustomMessage message = this.customMessageListModel.get(messageIndex);
+    public long getMessageSequence(final int messageIndex) {
+        // until the history has been read, there are no messages to number
+        if (null == this.chatPersistor) {
+            return messageIndex;
+        }
+        return this.chatPersistor.getSequence(messageIndex);
+    }
 
-        if (!message.isRead()) {
-            message.setRead(true);
-            setUnreadMessageCount(this.unreadMessageCount-1);
+    @Override
+    public void setMessageRead(final long messageSequence) {
+        if (this.chatPersistor.setMessageRead(messageSequence)) {
+            updateUnreadMessageCount();
         }
     }
 
+    @Override
+    public boolean isMessageRead(final long messageSequence) {
+        // until the history has been read, nothing has been
+        return (null != this.chatPersistor) && this.chatPersistor.isMessageRead(messageSequence);
+    }
+
     public void cleanUp() {
         if (this.messageReceivingThread != null) {
             this.messageReceivingThread.interrupt();
@@ -581,4 +671,35 @@ public class Room extends Model implements Comparable<Room>, ChatTarget {
     public void writeChatHistory() {
         this.chatPersistor.writeChatHistory();
     }
+
+    @Override
+    public void loadOlderMessages(final Runnable whenLoaded) {
+        // the history is only read once the chat has been joined
+        if (null == this.chatPersistor) {
+            whenLoaded.run();
+            return;
+        }
+        this.chatPersistor.loadOlderMessages(whenLoaded);
+    }
+
+    @Override
+    public long getMessageMemoryUsage() {
+        return this.customMessageListModel.estimateMemoryUsage() + this.messagesDocument.estimateMemoryUsage();
+    }
+
+    @Override
+    public void evictMessages() {
+        // a chat that is still being joined has nothing to evict
+        if (null != this.chatPersistor) {
+            this.chatPersistor.evictMessages();
+            this.messagesDocument.clear();
+        }
+    }
+
+    @Override
+    public void restoreMessages() {
+        if (null != this.chatPersistor) {
+            this.chatPersistor.restoreMessages();
+        }
+    }
 }
@@ -46,6 +46,7 @@ import javax.swing.event.ListDataListener;
 import javax.swing.text.StyledDocument;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -55,13 +56,14 @@ public class User extends Model implements Comparable<User>, ChatTarget {
 
     private final String userId;
     private final String name;
-    private final UserListModel occupantsModel = new UserListModel();
+    // the chat state is only created once the chat is joined or viewed, as most users in the roster never are
+    private UserListModel occupantsModel;
 
     private Map<String, UserStatus> statuses = new HashMap<String, UserStatus>();
 
     private Chat chat;
-    private CustomMessageListModel customMessageListModel = new CustomMessageListModel();
-    private final MessageListHTMLDocument messagesDocument;
+    private CustomMessageListModel customMessageListModel;
+    private MessageListHTMLDocument messagesDocument;
     private CustomConnection customConnection;
     private long latestMessageTimestamp;
     private int unreadMessageCount;
@@ -72,9 +74,22 @@ public class User extends Model implements Comparable<User>, ChatTarget {
     public User(final String userId, final String name) {
         this.userId = userId;
         this.name = name;
-        this.occupantsModel.add(this);
-        this.messagesDocument = new MessageListHTMLDocument();
-        this.customMessageListModel.addListDataListener(new ChatListDataListener(this));
+    }
+
+    /**
+     * Creates the message list model and messages document, if this is the first time they are needed.
+     */
+    private synchronized void createChatState() {
+        if (null == this.customMessageListModel) {
+            this.messagesDocument = new MessageListHTMLDocument(new MessageListHTMLDocument.ReadState() {
+                @Override
+                public boolean isRead(final long messageNumber) {
+                    return isMessageRead(messageNumber);
+                }
+            });
+            this.customMessageListModel = new CustomMessageListModel();
+            this.customMessageListModel.addListDataListener(new ChatListDataListener(this));
+        }
     }
 
     @Override
@@ -167,25 +182,74 @@ public class User extends Model implements Comparable<User>, ChatTarget {
 
     @Override
     public void join(final CustomConnection customConnection) {
-        if (this.chat == null) {
-            this.chatPersistor = new ChatPersistor(customConnection.getCurrentUser().getId(), this.userId, this.customMessageListModel);
-            this.chatPersistor.readChatHistory();
-            this.customConnection = customConnection;
-            this.chat = customConnection.createChat(this);
-            this.userMessageListener = new UserMessageListener(this, customConnection);
-            this.chat.addMessageListener(this.userMessageListener);
-        }
+        prepareJoin(customConnection).run();
     }
 
-    public void joinExistingChat(final CustomConnection customConnection, final Chat chat) {
-        if (this.chat == null) {
-            this.chatPersistor = new ChatPersistor(customConnection.getCurrentUser().getId(), this.userId, this.customMessageListModel);
-            this.chatPersistor.readChatHistory();
-            this.customConnection = customConnection;
-            this.chat = chat;
-            this.userMessageListener = new UserMessageListener(this, customConnection);
-            this.chat.addMessageListener(this.userMessageListener);
+    @Override
+    public Runnable prepareJoin(final CustomConnection customConnection) {
+        return prepareJoin(customConnection, null);
+    }
+
+    /**
+     * Prepares to join a chat that the other user has started, in the same way as
+     * {@link #prepareJoin(CustomConnection)}, so that its history is read on the connection's thread.  The chat's
+     * messages are listened for straight away, so that none are missed, but they are only added to the message list
+     * model once the returned Runnable has been run on the event dispatch thread.
+     */
+    public Runnable prepareJoinExistingChat(final CustomConnection customConnection, final Chat existingChat) {
+        return prepareJoin(customConnection, existingChat);
+    }
+
+    private Runnable prepareJoin(final CustomConnection customConnection, final Chat existingChat) {
+        if (this.chat != null) {
+            return ALREADY_JOINED;
+        }
+
+        createChatState();
+        final ChatPersistor newChatPersistor = new ChatPersistor(this.userId, this.customMessageListModel,
+                customConnection.getChatStorage(), customConnection.getHistoryWriter(),
+                customConnection.getHistoryCompactor(), customConnection.getSearchIndex());
+        try {
+            newChatPersistor.loadChatHistory();
+        } catch (RuntimeException exception) {
+            newChatPersistor.close();
+            throw exception;
         }
+
+        final UserMessageListener existingChatListener;
+        if (null == existingChat) {
+            existingChatListener = null;
+        }
+        else {
+            // the messages are handed over on the event dispatch thread, after the history has been applied
+            existingChatListener = new UserMessageListener(this, customConnection);
+            existingChat.addMessageListener(existingChatListener);
+        }
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (User.this.chat != null) {
+                    // joined some other way while this was being prepared.  Any messages from the existing chat
+                    // still end up in the message list model
+                    newChatPersistor.close();
+                }
+                else {
+                    User.this.chatPersistor = newChatPersistor;
+                    User.this.chatPersistor.applyChatHistory();
+                    User.this.customConnection = customConnection;
+                    if (null == existingChat) {
+                        User.this.chat = customConnection.createChat(User.this);
+                        User.this.userMessageListener = new UserMessageListener(User.this, customConnection);
+                        User.this.chat.addMessageListener(User.this.userMessageListener);
+                    }
+                    else {
+                        User.this.chat = existingChat;
+                        User.this.userMessageListener = existingChatListener;
+                    }
+                }
+            }
+        };
     }
 
     @Override
@@ -199,20 +263,24 @@ public class User extends Model implements Comparable<User>, ChatTarget {
         this.chat.addMessageListener(this.userMessageListener);
     }
 
-    private static class UserMessageListener implements MessageListener {
+    /**
+     * Receives the chat's messages, on the connection's thread, and offers them to the message ingester, which hands
+     * them back in batches on the event dispatch thread.
+     */
+    private static class UserMessageListener implements MessageListener, MessageIngester.BatchHandler<CustomMessage> {
 
         private final User user;
         private final String otherUserId;
         private final String otherUsername;
         private final CustomConnection customConnection;
-        private final CustomMessageListModel customMessageListModel;
+        private final MessageIngester.Channel<CustomMessage> channel;
 
         public UserMessageListener(final User user, final CustomConnection customConnection) {
             this.user = user;
             this.otherUserId = user.userId;
             this.otherUsername = user.name;
             this.customConnection = customConnection;
-            this.customMessageListModel = user.customMessageListModel;
+            this.channel = customConnection.getMessageIngester().createChannel(user.name, this);
         }
 
         @Override
@@ -253,13 +321,21 @@ public class User extends Model implements Comparable<User>, ChatTarget {
                             username = customConnection.getCurrentUser().getName();
                         }
                         final CustomMessage customMessage = new CustomMessage(extractTimestamp(message), username, message.getBody());
-                        this.customMessageListModel.add(customMessage);
-                        NotificationHelper.addMessage(this.user, customMessage);
+                        this.channel.offer(customMessage);
                     }
                 default: // do nothing
             }
         }
 
+        @Override
+        public void handle(final List<CustomMessage> batch) {
+            final CustomMessageListModel customMessageListModel = this.user.customMessageListModel;
+            customMessageListModel.addAll(customMessageListModel.size(), batch);
+            for (CustomMessage customMessage : batch) {
+                NotificationHelper.addMessage(this.user, customMessage);
+            }
+        }
+
         private long extractTimestamp(final Message message) {
             // one to one chat messages don't have valid timestamps, so always use the current time
             return new Date().getTime();
@@ -295,18 +371,28 @@ public class User extends Model implements Comparable<User>, ChatTarget {
 
         @Override
         public void intervalAdded(ListDataEvent event) {
-            final int index = event.getIndex0();
-            final CustomMessage message = this.customMessageListModel.get(index);
-            this.messagesDocument.insertMessage(message, index);
+            // the rows are numbered by the messages' sequence numbers, which don't change when older messages are
+            // inserted before them
+            final long firstSequence = this.user.chatPersistor.getSequence(event.getIndex0());
+            // the whole batch is added to the document at once
+            if (event.getIndex1() < this.customMessageListModel.size() - 1) {
+                // older messages have been inserted before the existing ones
+                this.messagesDocument.insertMessagesAtStart(this.customMessageListModel, event.getIndex0(),
+                        event.getIndex1() + 1, firstSequence);
+            }
+            else {
+                this.messagesDocument.insertMessages(this.customMessageListModel, event.getIndex0(),
+                        event.getIndex1() + 1, firstSequence);
+            }
 
             // update 'latestMessageTimestamp in the ChatTarget (room)
-            if (message.getTimestamp() > this.user.latestMessageTimestamp) {
-                this.user.setLatestMessageTimestamp(message.getTimestamp());
+            long latestTimestamp = this.user.latestMessageTimestamp;
+            for (int index = event.getIndex0() ; index <= event.getIndex1() ; index++) {
+                latestTimestamp = Math.max(latestTimestamp, this.customMessageListModel.getTimestamp(index));
             }
+            this.user.setLatestMessageTimestamp(latestTimestamp);
 
-            if (!message.isRead()) {
-                this.user.setUnreadMessageCount(this.user.getUnreadMessageCount() + 1);
-            }
+            this.user.updateUnreadMessageCount();
         }
 
         @Override
@@ -323,16 +409,22 @@ public class User extends Model implements Comparable<User>, ChatTarget {
 
     @Override
     public CustomMessageListModel getCustomMessageListModel() {
+        createChatState();
         return this.customMessageListModel;
     }
 
     @Override
     public StyledDocument getMessagesDocument() {
+        createChatState();
         return this.messagesDocument;
     }
 
     @Override
-    public UserListModel getOccupantsModel() {
+    public synchronized UserListModel getOccupantsModel() {
+        if (null == this.occupantsModel) {
+            this.occupantsModel = new UserListModel();
+            this.occupantsModel.add(this);
+        }
         return this.occupantsModel;
     }
 
@@ -367,16 +459,37 @@ public class User extends Model implements Comparable<User>, ChatTarget {
         return this.unreadMessageCount;
     }
 
+    /**
+     * Works out the unread message count from the read watermark, rather than counting the unread messages.
+     */
+    private void updateUnreadMessageCount() {
+        if (null != this.chatPersistor) {
+            setUnreadMessageCount(this.chatPersistor.getUnreadMessageCount());
+        }
+    }
+
     @Override
-    public void setMessageRead(final Integer messageIndex) {
-        CustomMessage message = this.customMessageListModel.get(messageIndex);
+    public long getMessageSequence(final int messageIndex) {
+        // until the history has been read, there are no messages to number
+        if (null == this.chatPersistor) {
+            return messageIndex;
+        }
+        return this.chatPersistor.getSequence(messageIndex);
+    }
 
-        if (!message.isRead()) {
-            message.setRead(true);
-            setUnreadMessageCount(this.unreadMessageCount-1);
+    @Override
+    public void setMessageRead(final long messageSequence) {
+        if (this.chatPersistor.setMessageRead(messageSequence)) {
+            updateUnreadMessageCount();
         }
     }
 
+    @Override
+    public boolean isMessageRead(final long messageSequence) {
+        // until the history has been read, nothing has been
+        return (null != this.chatPersistor) && this.chatPersistor.isMessageRead(messageSequence);
+    }
+
     @Override
     public void delete() {
         throw new RuntimeException("Cannot delete a single user chat");
@@ -386,4 +499,38 @@ public class User extends Model implements Comparable<User>, ChatTarget {
     public void writeChatHistory() {
         this.chatPersistor.writeChatHistory();
     }
+
+    @Override
+    public void loadOlderMessages(final Runnable whenLoaded) {
+        // the history is only read once the chat has been joined
+        if (null == this.chatPersistor) {
+            whenLoaded.run();
+            return;
+        }
+        this.chatPersistor.loadOlderMessages(whenLoaded);
+    }
+
+    @Override
+    public synchronized long getMessageMemoryUsage() {
+        if (null == this.customMessageListModel) {
+            return 0;
+        }
+        return this.customMessageListModel.estimateMemoryUsage() + this.messagesDocument.estimateMemoryUsage();
+    }
+
+    @Override
+    public void evictMessages() {
+        // a chat that is still being joined has nothing to evict
+        if (null != this.chatPersistor) {
+            this.chatPersistor.evictMessages();
+            this.messagesDocument.clear();
+        }
+    }
+
+    @Override
+    public void restoreMessages() {
+        if (null != this.chatPersistor) {
+            this.chatPersistor.restoreMessages();
+        }
+    }
 }
@@ -38,6 +38,7 @@ import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Response;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 // This class is a nasty hack to avoid passing the list of emoticons around.
@@ -47,7 +48,8 @@ import java.util.List;
 public class HipChatEmoticons {
 
     private final YaccProperties yaccProperties;
-    private static final List<Emoticon> EMOTICONS = new ArrayList<Emoticon>();
+    // replaced, rather than changed, when the emoticons are updated - see setEmoticons
+    private static volatile List<Emoticon> emoticons = Collections.emptyList();
 
     public HipChatEmoticons(final YaccProperties yaccProperties) {
         this.yaccProperties = yaccProperties;
@@ -58,7 +60,7 @@ public class HipChatEmoticons {
         final String apiEndpoint = this.yaccProperties.getProperty(YaccProperties.PROPERTY_NAME_HIPCHAT_API_ENDPOINT);
         final String authToken = this.yaccProperties.getProperty(YaccProperties.PROPERTY_NAME_HIPCHAT_API_AUTH_TOKEN);
 
-        EMOTICONS.clear();
+        final List<Emoticon> newEmoticons = new ArrayList<Emoticon>();
 
         if ((apiEndpoint != null) && (!apiEndpoint.equals("")) && (authToken != null) && (!authToken.equals(""))) {
             Client client = ClientBuilder.newClient();
@@ -67,18 +69,20 @@ public class HipChatEmoticons {
                     .queryParam("max-results", 0);
 
             EmoticonListResponse emoticonListResponse = requestEmoticons(emoticonTarget);
-            addResponseToList(emoticonListResponse, EMOTICONS);
+            addResponseToList(emoticonListResponse, newEmoticons);
 
             while ((null != emoticonListResponse.getLinks().getNext()) && (emoticonListResponse.getItems().size() > 0)) {
                 emoticonTarget = client.target(emoticonListResponse.getLinks().getNext()).queryParam("auth_token", authToken);
 
                 emoticonListResponse = requestEmoticons(emoticonTarget);
-                addResponseToList(emoticonListResponse, EMOTICONS);
+                addResponseToList(emoticonListResponse, newEmoticons);
             }
         }
 
         // Add the standard emoticons: :-), etc
-        addOtherHipchatEmoticons(EMOTICONS);
+        addOtherHipchatEmoticons(newEmoticons);
+
+        setEmoticons(newEmoticons);
     }
 
     private EmoticonListResponse requestEmoticons(WebTarget emoticonTarget) {
@@ -140,7 +144,15 @@ public class HipChatEmoticons {
      * Returns a list of all the known emoticons
      */
     public static List<Emoticon> getEmoticons() {
-        return EMOTICONS;
+        return emoticons;
+    }
+
+    /**
+     * Replaces the list of known emoticons.  A new, unmodifiable, list is published each time, so anything built
+     * from the emoticons can tell that they have changed by comparing it with the list it was built from.
+     */
+    public static void setEmoticons(final List<Emoticon> newEmoticons) {
+        emoticons = Collections.unmodifiableList(new ArrayList<Emoticon>(newEmoticons));
     }
 
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+
+import java.util.List;
+
+/**
+ * The history of a single chat, as provided by a {@link ChatStorage}.  Every message is given a sequence number,
+ * starting from zero, in the order it was appended, and the messages before the read watermark have been read.
+ *
+ * Appends and changes to the read state may be buffered until {@link #flush()} is called, and are only certain
+ * to be on disk once {@link #checkpoint()} has been called.  The methods may be called from any thread.
+ */
+public interface ChatHistory {
+
+    String getChatJid();
+
+    /**
+     * Sets the listener told about each message appended from now on, replacing any previous one.
+     */
+    void setAppendListener(HistoryAppendListener appendListener);
+
+    /**
+     * Appends the message to the end of the history.
+     *
+     * @return the sequence number assigned to the message
+     */
+    long append(CustomMessage message);
+
+    /**
+     * Records that the message with the given sequence number, and every message before it, has been read.
+     */
+    void markRead(long sequence);
+
+    /**
+     * @return the sequence number of the first unread message - every message before it has been read
+     */
+    long getReadWatermark();
+
+    /**
+     * @return the sequence number that will be given to the next message appended
+     */
+    long getNextSequence();
+
+    /**
+     * @return the sequence number of the oldest message in the history
+     */
+    long getFirstSequence();
+
+    /**
+     * @return the timestamp of the newest message in the history, or 0 if it is empty
+     */
+    long getLastTimestamp();
+
+    /**
+     * @return the newest messages in the history, oldest first
+     */
+    List<HistoryRecord> readTail(int count);
+
+    /**
+     * @return up to <code>count</code> messages from immediately before the given sequence number, oldest first
+     */
+    List<HistoryRecord> readBefore(long sequence, int count);
+
+    /**
+     * @return up to <code>count</code> messages from the given sequence number onwards, oldest first
+     */
+    List<HistoryRecord> readForwards(long sequence, int count);
+
+    /**
+     * @return up to <code>count</code> messages, oldest first, starting with the first message at or after
+     * <code>timestamp</code>
+     */
+    List<HistoryRecord> readFrom(long timestamp, int count);
+
+    /**
+     * @return the fingerprints last saved by {@link #writeFingerprints(long[])}, or an empty array if there are none
+     */
+    long[] readFingerprints();
+
+    /**
+     * Saves the fingerprints that identify the chat's most recent messages, so that they can be recognised when
+     * the server sends them again.  They replace any saved before.
+     */
+    void writeFingerprints(long[] fingerprints);
+
+    /**
+     * Writes out anything buffered, without forcing it to disk.
+     */
+    void flush();
+
+    /**
+     * Writes out everything appended or marked as read since the last checkpoint, and forces it to disk.
+     */
+    void checkpoint();
+
+    /**
+     * Writes out anything buffered and releases the files held open for the chat.  The history is reopened if it
+     * is used again.
+     */
+    void close();
+
+    /**
+     * Reclaims space from the parts of the history that are no longer being appended to.  This is intended to be
+     * called from a background thread, and does nothing if the storage looks after this itself.
+     *
+     * @return the number of parts compacted
+     */
+    int compact();
+
+}
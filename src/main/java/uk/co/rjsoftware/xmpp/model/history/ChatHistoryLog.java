@@ -0,0 +1,864 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The history of a single chat, stored as a segmented, append-only log of binary records (see
+ * {@link HistoryFormat}) in a directory of its own.  Every message is given a sequence number, starting from zero,
+ * in the order it was appended.
+ */
+public class ChatHistoryLog implements ChatHistory {
+
+    static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final File directory;
+    private final boolean memoryMapped;
+    private final List<HistorySegment> segments = new ArrayList<HistorySegment>();
+    private final RecordBuffer recordBuffer = new RecordBuffer();
+    private SenderDictionary senders;
+    private CompressionDictionary dictionary;
+    private ReadWatermark readState;
+    private TimestampIndex timestampIndex;
+    private SegmentWriter writer;
+    private long nextSequence;
+    // the timestamp of the last message in the log, or 0 if it is empty
+    private long lastTimestamp;
+    private boolean opened;
+
+    // where the last backwards read finished, so that paging through older messages can carry on from there
+    private ReadPosition lastReadPosition;
+    // where the last forwards read finished
+    private ReadPosition lastForwardPosition;
+    private HistoryAppendListener appendListener;
+
+    public ChatHistoryLog(final File directory) {
+        this(directory, true);
+    }
+
+    /**
+     * @param memoryMapped whether to read the history by memory mapping the segments, or through streams
+     */
+    public ChatHistoryLog(final File directory, final boolean memoryMapped) {
+        this.directory = directory;
+        this.memoryMapped = memoryMapped;
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * @return the jid of the chat, which is the name of the log's directory
+     */
+    @Override
+    public String getChatJid() {
+        return this.directory.getName();
+    }
+
+    @Override
+    public synchronized void setAppendListener(final HistoryAppendListener appendListener) {
+        this.appendListener = appendListener;
+    }
+
+    private void ensureOpened() throws IOException {
+        if (this.opened) {
+            return;
+        }
+
+        this.directory.mkdirs();
+
+        this.senders = new SenderDictionary(new File(this.directory, HistoryFormat.SENDERS_FILENAME));
+
+        this.dictionary = CompressionDictionary.load(new File(this.directory, HistoryFormat.DICTIONARY_FILENAME));
+
+        final File[] segmentFiles = this.directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(HistoryFormat.SEGMENT_SUFFIX) || name.endsWith(HistoryFormat.COMPRESSED_SEGMENT_SUFFIX)
+                        || name.endsWith(HistoryFormat.TEMPORARY_SUFFIX);
+            }
+        });
+        if (null != segmentFiles) {
+            for (File segmentFile : segmentFiles) {
+                final String name = segmentFile.getName();
+                if (name.endsWith(HistoryFormat.TEMPORARY_SUFFIX)) {
+                    // left over from a compaction that didn't finish
+                    segmentFile.delete();
+                }
+                else if (name.endsWith(HistoryFormat.COMPRESSED_SEGMENT_SUFFIX)) {
+                    this.segments.add(HistorySegment.openCompressed(segmentFile, this.dictionary));
+                }
+                else if (new File(this.directory, name + "z").exists()) {
+                    // the segment was compressed, but the application stopped before the original was deleted
+                    segmentFile.delete();
+                }
+                else {
+                    this.segments.add(HistorySegment.open(segmentFile));
+                }
+            }
+        }
+        Collections.sort(this.segments);
+
+        this.nextSequence = 0;
+        this.lastTimestamp = 0;
+        if (!this.segments.isEmpty()) {
+            recoverLastSegment(this.segments.get(this.segments.size() - 1));
+        }
+
+        this.timestampIndex = new TimestampIndex(new File(this.directory, HistoryFormat.TIMESTAMP_INDEX_FILENAME), this.nextSequence);
+        updateTimestampIndex();
+
+        final File watermarkFile = new File(this.directory, HistoryFormat.READ_WATERMARK_FILENAME);
+        final File legacyReadStateFile = new File(this.directory, HistoryFormat.LEGACY_READ_STATE_FILENAME);
+        if (watermarkFile.exists()) {
+            this.readState = new ReadWatermark(watermarkFile, 0);
+        }
+        else {
+            this.readState = new ReadWatermark(watermarkFile, findLegacyReadWatermark(legacyReadStateFile));
+            this.readState.sync();
+        }
+        legacyReadStateFile.delete();
+
+        this.opened = true;
+    }
+
+    /**
+     * Finds the sequence number of the last complete record in the segment, and removes any partially written
+     * record after it.  Normally only the last record needs to be read, but if that is not valid the whole
+     * segment is scanned.
+     */
+    private void recoverLastSegment(final HistorySegment segment) throws IOException {
+        this.nextSequence = segment.getBaseSequence();
+
+        final long length = segment.getLength();
+        if (length <= HistoryFormat.HEADER_SIZE) {
+            return;
+        }
+
+        try (final ReverseSegmentReader reader = new ReverseSegmentReader(segment, this.senders, length)) {
+            final HistoryRecord lastRecord = reader.previous();
+            if (null != lastRecord) {
+                this.nextSequence = lastRecord.getSequence() + 1;
+                this.lastTimestamp = lastRecord.getMessage().getTimestamp();
+                return;
+            }
+        } catch (HistoryFormatException exception) {
+            System.out.println("Scanning chat history for the last valid record: " + exception.getMessage());
+        }
+
+        final long validLength;
+        try (final SegmentReader reader = new SegmentReader(segment, this.senders)) {
+            HistoryRecord record = reader.next();
+            while (null != record) {
+                this.nextSequence = record.getSequence() + 1;
+                this.lastTimestamp = record.getMessage().getTimestamp();
+                record = reader.next();
+            }
+            validLength = reader.getValidLength();
+        }
+
+        if ((validLength < length) && !segment.isCompressed()) {
+            System.out.println("Truncating partially written chat history: " + segment.getFile());
+            try (final RandomAccessFile file = new RandomAccessFile(segment.getFile(), "rw")) {
+                file.setLength(validLength);
+            }
+        }
+    }
+
+    /**
+     * Adds any messages that are missing from the end of the timestamp index, e.g. because the index was deleted,
+     * or the application was killed before it was written.  The log is in time order, so the index is up to date
+     * if its last entry is from the same hour as the last message.
+     */
+    private void updateTimestampIndex() throws IOException {
+        if (this.nextSequence == 0) {
+            return;
+        }
+
+        int segmentIndex = 0;
+        long position = HistoryFormat.HEADER_SIZE;
+        final int lastEntry = this.timestampIndex.size() - 1;
+        if (lastEntry >= 0) {
+            if (this.timestampIndex.getTimestamp(lastEntry) / TimestampIndex.BUCKET_MILLIS
+                    >= this.lastTimestamp / TimestampIndex.BUCKET_MILLIS) {
+                return;
+            }
+            segmentIndex = Math.max(0, findSegmentIndex(this.timestampIndex.getSequence(lastEntry)));
+            position = this.timestampIndex.getPosition(lastEntry);
+        }
+
+        for ( ; segmentIndex < this.segments.size() ; segmentIndex++) {
+            try (final SegmentReader reader = new SegmentReader(this.segments.get(segmentIndex), this.senders, position)) {
+                long recordPosition = reader.getValidLength();
+                HistoryRecord record = reader.next();
+                while (null != record) {
+                    this.timestampIndex.add(record.getMessage().getTimestamp(), record.getSequence(), recordPosition);
+                    recordPosition = reader.getValidLength();
+                    record = reader.next();
+                }
+            }
+            position = HistoryFormat.HEADER_SIZE;
+        }
+    }
+
+    /**
+     * Works out the read watermark for a history written by an earlier version, which recorded the read state of
+     * each message separately - either in the records themselves, or in a journal.  Everything up to the last
+     * message that was read is treated as read.  This reads the whole history, but only happens once.
+     */
+    private long findLegacyReadWatermark(final File legacyReadStateFile) throws IOException {
+        long watermark = ReadWatermark.readLegacyJournal(legacyReadStateFile);
+        for (HistorySegment segment : this.segments) {
+            try (final SegmentReader reader = new SegmentReader(segment, this.senders)) {
+                HistoryRecord record = reader.next();
+                while (null != record) {
+                    if (record.isLegacyRead()) {
+                        watermark = Math.max(watermark, record.getSequence() + 1);
+                    }
+                    record = reader.next();
+                }
+            }
+        }
+        return Math.min(watermark, this.nextSequence);
+    }
+
+    public synchronized boolean isEmpty() {
+        try {
+            ensureOpened();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        return this.nextSequence == 0;
+    }
+
+    /**
+     * @return every message in the history, oldest first
+     */
+    public synchronized List<CustomMessage> readAll() {
+        final List<CustomMessage> messages = new ArrayList<CustomMessage>();
+        try {
+            ensureOpened();
+            flush();
+
+            for (HistorySegment segment : this.segments) {
+                if (this.memoryMapped) {
+                    try (final MappedSegmentReader reader = new MappedSegmentReader(segment, this.senders)) {
+                        HistoryRecord record = reader.next();
+                        while (null != record) {
+                            messages.add(record.getMessage());
+                            record = reader.next();
+                        }
+                    }
+                }
+                else {
+                    try (final SegmentReader reader = new SegmentReader(segment, this.senders)) {
+                        HistoryRecord record = reader.next();
+                        while (null != record) {
+                            messages.add(record.getMessage());
+                            record = reader.next();
+                        }
+                    }
+                }
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        return messages;
+    }
+
+    /**
+     * @return the sequence number that will be given to the next message appended to the log
+     */
+    @Override
+    public synchronized long getNextSequence() {
+        try {
+            ensureOpened();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        return this.nextSequence;
+    }
+
+    /**
+     * @return the sequence number of the oldest message in the log
+     */
+    @Override
+    public synchronized long getFirstSequence() {
+        try {
+            ensureOpened();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        if (this.segments.isEmpty()) {
+            return this.nextSequence;
+        }
+        return this.segments.get(0).getBaseSequence();
+    }
+
+    /**
+     * @return the timestamp of the newest message in the log, or 0 if it is empty
+     */
+    @Override
+    public synchronized long getLastTimestamp() {
+        try {
+            ensureOpened();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        return this.lastTimestamp;
+    }
+
+    /**
+     * Reads the messages from the given time onwards.  The timestamp index is used to go straight to the hour
+     * before the first of them, so this only reads the messages it returns, and at most an hour's worth before
+     * them, however long the history is.  Calling {@link #readBefore(long, int)} with the sequence of the first
+     * record returned carries on backwards from there.
+     *
+     * @return up to <code>count</code> messages, oldest first, starting with the first message at or after
+     * <code>timestamp</code>
+     */
+    @Override
+    public synchronized List<HistoryRecord> readFrom(final long timestamp, final int count) {
+        final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        try {
+            ensureOpened();
+            flush();
+            if (this.segments.isEmpty()) {
+                return records;
+            }
+
+            int segmentIndex = 0;
+            long position = HistoryFormat.HEADER_SIZE;
+            final int entry = this.timestampIndex.floor(timestamp);
+            if (entry >= 0) {
+                segmentIndex = Math.max(0, findSegmentIndex(this.timestampIndex.getSequence(entry)));
+                position = this.timestampIndex.getPosition(entry);
+            }
+
+            this.lastReadPosition = null;
+            for ( ; (segmentIndex < this.segments.size()) && (records.size() < count) ; segmentIndex++) {
+                final HistorySegment segment = this.segments.get(segmentIndex);
+                try (final SegmentReader reader = new SegmentReader(segment, this.senders, position)) {
+                    long recordPosition = reader.getValidLength();
+                    HistoryRecord record = reader.next();
+                    while ((null != record) && (records.size() < count)) {
+                        if (!records.isEmpty() || (record.getMessage().getTimestamp() >= timestamp)) {
+                            if (records.isEmpty()) {
+                                // reading backwards from the first record carries on from here
+                                this.lastReadPosition = new ReadPosition(segment, recordPosition, record.getSequence());
+                            }
+                            records.add(record);
+                        }
+                        recordPosition = reader.getValidLength();
+                        record = reader.next();
+                    }
+                }
+                position = HistoryFormat.HEADER_SIZE;
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        return records;
+    }
+
+    /**
+     * Reads the messages from the given sequence number onwards.  Reading on from the sequence after the last
+     * record returned by the previous call carries on from where that call stopped, so reading through the whole
+     * log a batch at a time only reads each record once.
+     *
+     * @return up to <code>count</code> messages, oldest first
+     */
+    @Override
+    public synchronized List<HistoryRecord> readForwards(final long sequence, final int count) {
+        final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        try {
+            ensureOpened();
+            flush();
+
+            int segmentIndex;
+            long position;
+            if ((null != this.lastForwardPosition) && (this.lastForwardPosition.sequence == sequence)
+                    && (this.segments.contains(this.lastForwardPosition.segment))) {
+                segmentIndex = this.segments.indexOf(this.lastForwardPosition.segment);
+                position = this.lastForwardPosition.position;
+            }
+            else {
+                segmentIndex = Math.max(0, findSegmentIndex(sequence));
+                position = HistoryFormat.HEADER_SIZE;
+            }
+            this.lastForwardPosition = null;
+
+            for ( ; (segmentIndex < this.segments.size()) && (records.size() < count) ; segmentIndex++) {
+                final HistorySegment segment = this.segments.get(segmentIndex);
+                try (final SegmentReader reader = new SegmentReader(segment, this.senders, position)) {
+                    HistoryRecord record = reader.next();
+                    while ((null != record) && (records.size() < count)) {
+                        if (record.getSequence() >= sequence) {
+                            records.add(record);
+                        }
+                        if (records.size() < count) {
+                            record = reader.next();
+                        }
+                    }
+                    if (!records.isEmpty()) {
+                        this.lastForwardPosition = new ReadPosition(segment, reader.getValidLength(),
+                                records.get(records.size() - 1).getSequence() + 1);
+                    }
+                }
+                position = HistoryFormat.HEADER_SIZE;
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        return records;
+    }
+
+    /**
+     * @return the newest messages in the log, oldest first
+     */
+    @Override
+    public synchronized List<HistoryRecord> readTail(final int count) {
+        return readBefore(getNextSequence(), count);
+    }
+
+    /**
+     * Reads the messages immediately before the given sequence number, by walking backwards from the end of the
+     * segment that contains them.  Paging backwards through the history (i.e. passing in the sequence of the
+     * oldest record returned by the previous call) carries on from where the previous call stopped, so each page
+     * only costs as much as the records it returns.
+     *
+     * @return up to <code>count</code> messages, oldest first
+     */
+    @Override
+    public synchronized List<HistoryRecord> readBefore(final long sequence, final int count) {
+        final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        try {
+            ensureOpened();
+            flush();
+
+            int segmentIndex;
+            long endPosition;
+            if ((null != this.lastReadPosition) && (this.lastReadPosition.sequence == sequence)
+                    && (this.segments.contains(this.lastReadPosition.segment))) {
+                segmentIndex = this.segments.indexOf(this.lastReadPosition.segment);
+                endPosition = this.lastReadPosition.position;
+            }
+            else {
+                segmentIndex = findSegmentIndex(sequence - 1);
+                endPosition = (segmentIndex < 0) ? 0 : this.segments.get(segmentIndex).getLength();
+            }
+            this.lastReadPosition = null;
+
+            while ((records.size() < count) && (segmentIndex >= 0)) {
+                final HistorySegment segment = this.segments.get(segmentIndex);
+                final long position = readSegmentBackwards(segment, endPosition, sequence, count, records);
+                if (records.size() == count) {
+                    // if the segment had to be read forwards, the next page must start from the end of it again
+                    if (position >= 0) {
+                        this.lastReadPosition = new ReadPosition(segment, position, records.get(records.size() - 1).getSequence());
+                    }
+                    break;
+                }
+
+                segmentIndex--;
+                if (segmentIndex >= 0) {
+                    endPosition = this.segments.get(segmentIndex).getLength();
+                }
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+
+        Collections.reverse(records);
+        return records;
+    }
+
+    /**
+     * Adds records from the segment, newest first, until <code>count</code> records have been collected.
+     *
+     * @return the position in the segment that reading stopped at, or -1 if it is not known
+     */
+    private long readSegmentBackwards(final HistorySegment segment, final long endPosition, final long sequence,
+                                      final int count, final List<HistoryRecord> records) throws IOException {
+        try (final ReverseSegmentReader reader = new ReverseSegmentReader(segment, this.senders, endPosition, this.memoryMapped)) {
+            HistoryRecord record = reader.previous();
+            while (null != record) {
+                if (record.getSequence() < sequence) {
+                    records.add(record);
+                    if (records.size() == count) {
+                        return reader.getPosition();
+                    }
+                }
+                record = reader.previous();
+            }
+            return reader.getPosition();
+        } catch (HistoryFormatException exception) {
+            System.out.println("Unable to read chat history backwards, reading forwards instead: " + exception.getMessage());
+        }
+
+        // fall back to reading the valid records from the start of the segment
+        final long oldestSequence = records.isEmpty() ? sequence : records.get(records.size() - 1).getSequence();
+        final List<HistoryRecord> segmentRecords = new ArrayList<HistoryRecord>();
+        try (final SegmentReader reader = new SegmentReader(segment, this.senders)) {
+            HistoryRecord record = reader.next();
+            while ((null != record) && (record.getSequence() < oldestSequence)) {
+                segmentRecords.add(record);
+                record = reader.next();
+            }
+        }
+        for (int index = segmentRecords.size() - 1 ; (index >= 0) && (records.size() < count) ; index--) {
+            records.add(segmentRecords.get(index));
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the segment that contains the given sequence number, or -1 if there isn't one
+     */
+    private int findSegmentIndex(final long sequence) {
+        int low = 0;
+        int high = this.segments.size() - 1;
+        int result = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (this.segments.get(middle).getBaseSequence() <= sequence) {
+                result = middle;
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Appends the message to the end of the log.  The record is buffered until {@link #flush()} is called.
+     *
+     * @return the sequence number assigned to the message
+     */
+    @Override
+    public synchronized long append(final CustomMessage message) {
+        try {
+            ensureOpened();
+
+            // start a new segment each month, so that older months can be compressed
+            if ((null == this.writer) || (this.writer.size() >= MAX_SEGMENT_SIZE)
+                    || (HistoryFormat.monthOf(message.getTimestamp()) > HistoryFormat.monthOf(this.writer.getSegment().getBaseTimestamp()))) {
+                rollSegment(message.getTimestamp());
+            }
+
+            final long sequence = this.nextSequence;
+            final long position = this.writer.size();
+            HistoryRecord.encodeMessage(this.recordBuffer, this.writer.getSegment(), sequence,
+                    this.senders.getId(message.getSender()), message);
+            this.writer.write(this.recordBuffer);
+            this.nextSequence++;
+            this.lastTimestamp = message.getTimestamp();
+            this.timestampIndex.add(message.getTimestamp(), sequence, position);
+
+            if (null != this.appendListener) {
+                this.appendListener.messageAppended(this, sequence, message);
+            }
+
+            return sequence;
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    private void rollSegment(final long baseTimestamp) throws IOException {
+        if (null != this.writer) {
+            this.writer.close();
+            this.writer = null;
+        }
+
+        HistorySegment segment = null;
+        if (!this.segments.isEmpty()) {
+            final HistorySegment lastSegment = this.segments.get(this.segments.size() - 1);
+            if (!lastSegment.isCompressed() && (lastSegment.getLength() < MAX_SEGMENT_SIZE)
+                    && (HistoryFormat.monthOf(baseTimestamp) <= HistoryFormat.monthOf(lastSegment.getBaseTimestamp()))) {
+                // carry on appending to the existing segment
+                segment = lastSegment;
+            }
+        }
+
+        if (null == segment) {
+            segment = HistorySegment.create(this.directory, this.nextSequence, baseTimestamp);
+            this.segments.add(segment);
+        }
+
+        this.writer = new SegmentWriter(segment);
+    }
+
+    /**
+     * @return the sequence number of the first unread message - every message before it has been read
+     */
+    @Override
+    public synchronized long getReadWatermark() {
+        try {
+            ensureOpened();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        return this.readState.get();
+    }
+
+    /**
+     * Records that the message with the given sequence number, and every message before it, has been read.  Like
+     * appended messages, this is buffered until {@link #flush()} is called.
+     */
+    @Override
+    public synchronized void markRead(final long sequence) {
+        try {
+            ensureOpened();
+            this.readState.markRead(sequence);
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    @Override
+    public synchronized long[] readFingerprints() {
+        final File file = new File(this.directory, HistoryFormat.FINGERPRINTS_FILENAME);
+        if (!file.exists()) {
+            return new long[0];
+        }
+
+        try (final RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            final byte[] bytes = new byte[(int)input.length()];
+            input.readFully(bytes);
+            return HistoryFormat.decodeFingerprints(bytes);
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * The fingerprints are written to a temporary file, which then replaces the old one.
+     */
+    @Override
+    public synchronized void writeFingerprints(final long[] fingerprints) {
+        this.directory.mkdirs();
+        final File file = new File(this.directory, HistoryFormat.FINGERPRINTS_FILENAME);
+        final File temporaryFile = new File(file.getPath() + HistoryFormat.TEMPORARY_SUFFIX);
+        try (final FileOutputStream output = new FileOutputStream(temporaryFile)) {
+            output.write(HistoryFormat.encodeFingerprints(fingerprints));
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        file.delete();
+        if (!temporaryFile.renameTo(file)) {
+            throw new RuntimeException("Unable to rename " + temporaryFile + " to " + file);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        try {
+            if (null != this.writer) {
+                this.writer.flush();
+            }
+            if (null != this.readState) {
+                this.readState.flush();
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * Writes out everything appended or marked as read since the last checkpoint, and forces it to disk.  Nothing
+     * that has already been written is rewritten, so this only costs as much as the changes since the last one.
+     */
+    @Override
+    public synchronized void checkpoint() {
+        try {
+            if (null != this.writer) {
+                this.writer.sync();
+            }
+            if (null != this.readState) {
+                this.readState.sync();
+            }
+            if (null != this.timestampIndex) {
+                this.timestampIndex.sync();
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (null != this.writer) {
+                this.writer.close();
+                this.writer = null;
+            }
+            if (null != this.readState) {
+                this.readState.close();
+                this.readState = null;
+            }
+            if (null != this.timestampIndex) {
+                this.timestampIndex.close();
+                this.timestampIndex = null;
+            }
+            if (null != this.senders) {
+                this.senders.close();
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        } finally {
+            this.segments.clear();
+            this.lastReadPosition = null;
+            this.lastForwardPosition = null;
+            this.opened = false;
+        }
+    }
+
+    /**
+     * Compresses the segments that are no longer being appended to.  This is intended to be called from a
+     * background thread - the log is only locked while choosing the segments and swapping each compressed segment
+     * in, so appending and reading carry on while the segments are compressed.
+     *
+     * @return the number of segments compressed
+     */
+    public int compactColdSegments() {
+        final List<HistorySegment> coldSegments = new ArrayList<HistorySegment>();
+        CompressionDictionary compressionDictionary;
+        synchronized (this) {
+            try {
+                ensureOpened();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+
+            // every segment but the last is cold
+            for (int index = 0 ; index < this.segments.size() - 1 ; index++) {
+                if (!this.segments.get(index).isCompressed()) {
+                    coldSegments.add(this.segments.get(index));
+                }
+            }
+            compressionDictionary = this.dictionary;
+        }
+
+        int compactedCount = 0;
+        for (HistorySegment segment : coldSegments) {
+            final File compressedFile = new File(this.directory, HistoryFormat.compressedSegmentFilename(segment.getBaseSequence()));
+            final File temporaryFile = new File(compressedFile.getPath() + HistoryFormat.TEMPORARY_SUFFIX);
+            try {
+                // cold segments never change, so can safely be read without holding the lock
+                if (null == compressionDictionary) {
+                    compressionDictionary = trainDictionary(segment);
+                }
+                segment.compressTo(temporaryFile, compressionDictionary);
+
+                synchronized (this) {
+                    if (!this.opened || !this.segments.contains(segment)) {
+                        // closed while the segment was being compressed
+                        temporaryFile.delete();
+                        continue;
+                    }
+
+                    if (!temporaryFile.renameTo(compressedFile)) {
+                        throw new IOException("Unable to rename " + temporaryFile + " to " + compressedFile);
+                    }
+                    this.dictionary = compressionDictionary;
+                    this.segments.set(this.segments.indexOf(segment), HistorySegment.openCompressed(compressedFile, compressionDictionary));
+                    this.lastReadPosition = null;
+                    this.lastForwardPosition = null;
+                    if (!segment.getFile().delete()) {
+                        System.out.println("Unable to delete compressed chat history segment: " + segment.getFile());
+                    }
+                }
+                compactedCount++;
+            } catch (IOException exception) {
+                System.out.println("Unable to compress chat history segment " + segment.getFile() + ": " + exception.getMessage());
+                temporaryFile.delete();
+            }
+        }
+        return compactedCount;
+    }
+
+    @Override
+    public int compact() {
+        return compactColdSegments();
+    }
+
+    /**
+     * Creates the chat's compression dictionary from the text of the messages in the segment.
+     */
+    private CompressionDictionary trainDictionary(final HistorySegment segment) throws IOException {
+        final List<String> samples = new ArrayList<String>();
+        try (final SegmentReader reader = new SegmentReader(segment, this.senders)) {
+            HistoryRecord record = reader.next();
+            while (null != record) {
+                samples.add(record.getMessage().getBody());
+                record = reader.next();
+            }
+        }
+        return CompressionDictionary.train(new File(this.directory, HistoryFormat.DICTIONARY_FILENAME), samples);
+    }
+
+    static void deleteDirectory(final File directory) {
+        final File[] files = directory.listFiles();
+        if (null == files) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static final class ReadPosition {
+
+        private final HistorySegment segment;
+        private final long position;
+        private final long sequence;
+
+        private ReadPosition(final HistorySegment segment, final long position, final long sequence) {
+            this.segment = segment;
+            this.position = position;
+            this.sequence = sequence;
+        }
+    }
+}
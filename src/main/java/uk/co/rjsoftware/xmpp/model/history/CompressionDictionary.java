@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+/**
+ * A preset dictionary for compressing the segments of a chat's history.  Deflate can only find repeated strings
+ * within the 32KB before them, which is not much of a chat, so priming it with the words the chat uses most gives
+ * it something to refer back to from the start of every segment.
+ *
+ * The dictionary is trained once for each chat, from the text of the first segment to be compressed, and never
+ * changes after that.
+ */
+final class CompressionDictionary {
+
+    // the words are separated by spaces, which is how they will usually appear in the text
+    private static final byte SEPARATOR = ' ';
+
+    private final byte[] bytes;
+    private final int checksum;
+
+    private CompressionDictionary(final byte[] bytes) {
+        this.bytes = bytes;
+        final Adler32 adler32 = new Adler32();
+        adler32.update(bytes);
+        this.checksum = (int)adler32.getValue();
+    }
+
+    byte[] getBytes() {
+        return this.bytes;
+    }
+
+    int getChecksum() {
+        return this.checksum;
+    }
+
+    /**
+     * @return the dictionary, or null if the file doesn't exist
+     */
+    static CompressionDictionary load(final File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (final RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            final byte[] bytes = new byte[(int)Math.min(input.length(), HistoryFormat.MAX_DICTIONARY_SIZE)];
+            input.readFully(bytes);
+            return new CompressionDictionary(bytes);
+        }
+    }
+
+    /**
+     * Builds a dictionary from the most valuable words in the sample text - those that would save the most if
+     * they could be referred back to - and saves it to the file.  The most valuable words go at the end, as deflate
+     * codes short distances back more cheaply than long ones.
+     */
+    static CompressionDictionary train(final File file, final List<String> samples) throws IOException {
+        final Map<String, Integer> wordCounts = new HashMap<String, Integer>();
+        for (String sample : samples) {
+            for (String word : sample.split("\\s+")) {
+                if (word.length() > 2) {
+                    final Integer count = wordCounts.get(word);
+                    wordCounts.put(word, (null == count) ? 1 : count + 1);
+                }
+            }
+        }
+
+        final List<Map.Entry<String, Integer>> words = new ArrayList<Map.Entry<String, Integer>>(wordCounts.entrySet());
+        Collections.sort(words, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(final Map.Entry<String, Integer> first, final Map.Entry<String, Integer> second) {
+                return Long.compare(value(second), value(first));
+            }
+
+            private long value(final Map.Entry<String, Integer> word) {
+                return (long)(word.getValue() - 1) * word.getKey().length();
+            }
+        });
+
+        // take the most valuable words that fit, then reverse them so the most valuable are at the end
+        final List<byte[]> selected = new ArrayList<byte[]>();
+        int size = 0;
+        for (Map.Entry<String, Integer> word : words) {
+            if (word.getValue() < 2) {
+                break;
+            }
+            final byte[] wordBytes = word.getKey().getBytes(HistoryFormat.UTF8);
+            if (size + wordBytes.length + 1 > HistoryFormat.MAX_DICTIONARY_SIZE) {
+                continue;
+            }
+            selected.add(wordBytes);
+            size += wordBytes.length + 1;
+        }
+        Collections.reverse(selected);
+
+        final byte[] bytes = new byte[size];
+        int position = 0;
+        for (byte[] wordBytes : selected) {
+            System.arraycopy(wordBytes, 0, bytes, position, wordBytes.length);
+            position += wordBytes.length;
+            bytes[position++] = SEPARATOR;
+        }
+
+        // the dictionary must be safely on disk before anything is compressed with it
+        final File temporaryFile = new File(file.getPath() + HistoryFormat.TEMPORARY_SUFFIX);
+        try (final FileOutputStream output = new FileOutputStream(temporaryFile)) {
+            output.write(bytes);
+            output.getFD().sync();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            throw new IOException("Unable to rename " + temporaryFile + " to " + file);
+        }
+
+        return new CompressionDictionary(bytes);
+    }
+}
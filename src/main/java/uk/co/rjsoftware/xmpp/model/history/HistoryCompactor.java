@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses the cold segments of the chat histories in the background (see {@link ChatHistory#compact()}).  Each log is compacted shortly after
+ * it is registered, and then all of them are compacted periodically, so that the months that roll over while the
+ * application is running are compressed as well.
+ */
+public class HistoryCompactor {
+
+    private static final long INITIAL_DELAY_SECONDS = 60;
+    private static final long INTERVAL_MINUTES = 60;
+
+    private final List<ChatHistory> logs = new ArrayList<ChatHistory>();
+    private final ScheduledExecutorService executor;
+
+    public HistoryCompactor() {
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "History Compactor");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final List<ChatHistory> currentLogs;
+                synchronized (HistoryCompactor.this.logs) {
+                    currentLogs = new ArrayList<ChatHistory>(HistoryCompactor.this.logs);
+                }
+                for (ChatHistory log : currentLogs) {
+                    compact(log);
+                }
+            }
+        }, INTERVAL_MINUTES, INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    public void register(final ChatHistory log) {
+        synchronized (this.logs) {
+            this.logs.add(log);
+        }
+
+        this.executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                compact(log);
+            }
+        }, INITIAL_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void compact(final ChatHistory log) {
+        try {
+            final int compactedCount = log.compact();
+            if (compactedCount > 0) {
+                System.out.println("Compacted " + compactedCount + " part(s) of the chat history of " + log.getChatJid());
+            }
+        } catch (RuntimeException exception) {
+            // don't let one chat stop the others from being compacted
+            System.out.println("Unable to compact chat history " + log.getChatJid() + ": " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Stops compacting.  A compaction that is part way through is abandoned, which is safe as the original
+     * segment is only replaced once its compressed copy is complete.
+     */
+    public void close() {
+        this.executor.shutdownNow();
+        synchronized (this.logs) {
+            this.logs.clear();
+        }
+    }
+}
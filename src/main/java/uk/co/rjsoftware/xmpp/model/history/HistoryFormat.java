@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Constants and low level encoding helpers for the binary chat history format.
+ *
+ * A chat's history is stored as a directory of segment files.  Each segment starts with a fixed size header
+ * (magic, version, base timestamp and base sequence number), followed by a sequence of records:
+ *
+ * <pre>
+ *     varint  payload length
+ *     byte[]  payload
+ *     int     CRC32 of the payload
+ *     varint  payload length, with its bytes reversed
+ * </pre>
+ *
+ * The trailing, reversed copy of the length allows the log to be walked backwards from the end of a segment
+ * as well as forwards from the start.
+ *
+ * Segments that are no longer being appended to may be compressed, in which case the segment is stored as a
+ * small header (magic, version, checksum of the chat's compression dictionary and uncompressed length), followed
+ * by the raw deflated bytes of the whole segment.
+ */
+public final class HistoryFormat {
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int MAGIC = 0x59414348; // "YACH"
+    static final int COMPRESSED_MAGIC = 0x5941435A; // "YACZ"
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 4 + 1 + 8 + 8;
+    static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    // magic, version, dictionary checksum and uncompressed length
+    static final int COMPRESSED_HEADER_SIZE = 4 + 1 + 4 + 8;
+    // the largest dictionary that deflate can make use of
+    static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String COMPRESSED_SEGMENT_SUFFIX = ".segz";
+    static final String TEMPORARY_SUFFIX = ".tmp";
+    static final String DICTIONARY_FILENAME = "dictionary.dat";
+    static final String SENDERS_FILENAME = "senders.dat";
+    static final String READ_WATERMARK_FILENAME = "watermark.dat";
+    // the read state journal used by earlier versions, which is replaced by the watermark
+    static final String LEGACY_READ_STATE_FILENAME = "read.dat";
+    static final String TIMESTAMP_INDEX_FILENAME = "timestamps.idx";
+    static final String FINGERPRINTS_FILENAME = "fingerprints.dat";
+
+    static final byte RECORD_TYPE_MESSAGE = 1;
+
+    // set on the records of the messages that had been read by versions that didn't keep a read watermark, and only
+    // read to work out the watermark of their histories
+    static final byte FLAG_READ = 0x01;
+
+    private HistoryFormat() {
+        // empty private constructor to prevent instantiation
+    }
+
+    public static String segmentFilename(final long baseSequence) {
+        return String.format("%020d", baseSequence) + SEGMENT_SUFFIX;
+    }
+
+    public static String compressedSegmentFilename(final long baseSequence) {
+        return String.format("%020d", baseSequence) + COMPRESSED_SEGMENT_SUFFIX;
+    }
+
+    /**
+     * @return a number that identifies the (local) calendar month that the timestamp falls in
+     */
+    public static int monthOf(final long timestamp) {
+        final Calendar calendar = Calendar.getInstance(Locale.getDefault());
+        calendar.setTimeInMillis(timestamp);
+        return (calendar.get(Calendar.YEAR) * 12) + calendar.get(Calendar.MONTH);
+    }
+
+    public static int varIntSize(final long value) {
+        long remaining = value;
+        int size = 1;
+        while ((remaining & ~0x7FL) != 0) {
+            remaining >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static long zigZagEncode(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long zigZagDecode(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static long readVarLong(final ByteBuffer buffer) {
+        long result = 0;
+        int shift = 0;
+        while (shift < 64) {
+            final byte current = buffer.get();
+            result |= (long)(current & 0x7F) << shift;
+            if ((current & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+        throw new HistoryFormatException("Malformed varint");
+    }
+
+    public static long readVarLong(final DataInput input) throws IOException {
+        long result = 0;
+        int shift = 0;
+        while (shift < 64) {
+            final byte current = input.readByte();
+            result |= (long)(current & 0x7F) << shift;
+            if ((current & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+        throw new HistoryFormatException("Malformed varint");
+    }
+
+    /**
+     * Reads the reversed varint that ends immediately before <code>endPosition</code>.  The buffer's position is
+     * left unchanged.
+     *
+     * @return the decoded value, or -1 if the bytes before <code>endPosition</code> are not a valid trailer
+     */
+    public static long readReversedVarLong(final ByteBuffer buffer, final int endPosition, final int startLimit) {
+        long result = 0;
+        int shift = 0;
+        int position = endPosition - 1;
+        while ((position >= startLimit) && (shift < 64)) {
+            final byte current = buffer.get(position);
+            result |= (long)(current & 0x7F) << shift;
+            if ((current & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+            position--;
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes the fingerprints of a chat's recent messages (see {@link ChatHistory#writeFingerprints(long[])}) as:
+     *
+     * <pre>
+     *     int   number of fingerprints
+     *     long  fingerprint  (repeated)
+     *     int   CRC32 of the above
+     * </pre>
+     */
+    static byte[] encodeFingerprints(final long[] fingerprints) {
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + (8 * fingerprints.length) + 4);
+        buffer.putInt(fingerprints.length);
+        for (long fingerprint : fingerprints) {
+            buffer.putLong(fingerprint);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int)crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * @return the fingerprints, or an empty array if they are incomplete or fail their checksum
+     */
+    static long[] decodeFingerprints(final byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final int count = (bytes.length >= 8) ? buffer.getInt(0) : -1;
+        if ((count < 0) || (bytes.length != 4 + (8 * count) + 4)) {
+            return new long[0];
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if (buffer.getInt(bytes.length - 4) != (int)crc.getValue()) {
+            return new long[0];
+        }
+
+        final long[] fingerprints = new long[count];
+        buffer.position(4);
+        for (int index = 0 ; index < count ; index++) {
+            fingerprints[index] = buffer.getLong();
+        }
+        return fingerprints;
+    }
+
+    public static String decodeString(final ByteBuffer buffer, final int length) {
+        if (buffer.hasArray()) {
+            final String result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+            buffer.position(buffer.position() + length);
+            return result;
+        }
+
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
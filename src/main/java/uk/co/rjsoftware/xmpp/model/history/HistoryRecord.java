@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single decoded record from a chat history segment, together with its position in the chat's history.
+ */
+public final class HistoryRecord {
+
+    private final long sequence;
+    private final CustomMessage message;
+    private final boolean legacyRead;
+
+    HistoryRecord(final long sequence, final CustomMessage message) {
+        this(sequence, message, false);
+    }
+
+    private HistoryRecord(final long sequence, final CustomMessage message, final boolean legacyRead) {
+        this.sequence = sequence;
+        this.message = message;
+        this.legacyRead = legacyRead;
+    }
+
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public CustomMessage getMessage() {
+        return this.message;
+    }
+
+    /**
+     * @return whether the record was marked as read by an earlier version, which recorded the read state of each
+     * message in its record rather than as a watermark.  This is only used to work out the watermark of such a
+     * history - whether a message has been read comes from the watermark alone.
+     */
+    boolean isLegacyRead() {
+        return this.legacyRead;
+    }
+
+    /**
+     * Encodes a message record into the buffer.  The sequence and timestamp are stored relative to the
+     * segment's base values, so they normally only take a couple of bytes each.
+     */
+    static void encodeMessage(final RecordBuffer buffer, final HistorySegment segment, final long sequence,
+                              final int senderId, final CustomMessage message) {
+        buffer.reset();
+        buffer.putByte(HistoryFormat.RECORD_TYPE_MESSAGE);
+        buffer.putVarLong(sequence - segment.getBaseSequence());
+        buffer.putVarLong(HistoryFormat.zigZagEncode(message.getTimestamp() - segment.getBaseTimestamp()));
+        buffer.putVarLong(senderId);
+        // no flags are set any more - see isLegacyRead()
+        buffer.putByte((byte)0);
+        buffer.putBytes(message.getBody().getBytes(HistoryFormat.UTF8));
+    }
+
+    /**
+     * Decodes the payload between the buffer's position and its limit.
+     */
+    static HistoryRecord decode(final ByteBuffer payload, final HistorySegment segment, final SenderDictionary senders) {
+        final byte type = payload.get();
+        if (type != HistoryFormat.RECORD_TYPE_MESSAGE) {
+            throw new HistoryFormatException("Unknown record type " + type + " in " + segment.getFile());
+        }
+
+        final long sequence = segment.getBaseSequence() + HistoryFormat.readVarLong(payload);
+        final long timestamp = segment.getBaseTimestamp() + HistoryFormat.zigZagDecode(HistoryFormat.readVarLong(payload));
+        final String sender = senders.getName((int)HistoryFormat.readVarLong(payload));
+        final byte flags = payload.get();
+        final String body = HistoryFormat.decodeString(payload, payload.remaining());
+
+        return new HistoryRecord(sequence, new CustomMessage(timestamp, sender, body), (flags & HistoryFormat.FLAG_READ) != 0);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Describes one segment file of a chat's history: its location, and the base values that the sequence numbers
+ * and timestamps of its records are stored relative to.
+ *
+ * A compressed segment is decompressed into memory as a whole when it is read.  The decompressed contents are
+ * kept for as long as memory allows, as paging backwards through the history reads the same segment many times.
+ */
+final class HistorySegment implements Comparable<HistorySegment> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final long baseSequence;
+    private final long baseTimestamp;
+    // only set for compressed segments
+    private final CompressionDictionary dictionary;
+    private final long uncompressedLength;
+    private SoftReference<byte[]> contents;
+
+    private HistorySegment(final File file, final long baseSequence, final long baseTimestamp,
+                           final CompressionDictionary dictionary, final long uncompressedLength) {
+        this.file = file;
+        this.baseSequence = baseSequence;
+        this.baseTimestamp = baseTimestamp;
+        this.dictionary = dictionary;
+        this.uncompressedLength = uncompressedLength;
+    }
+
+    static HistorySegment open(final File file) throws IOException {
+        try (final DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            return readHeader(file, input, null, -1);
+        }
+    }
+
+    private static HistorySegment readHeader(final File file, final DataInputStream input, final CompressionDictionary dictionary,
+                                             final long uncompressedLength) throws IOException {
+        if (input.readInt() != HistoryFormat.MAGIC) {
+            throw new HistoryFormatException("Not a chat history segment: " + file);
+        }
+        final byte version = input.readByte();
+        if (version != HistoryFormat.VERSION) {
+            throw new HistoryFormatException("Unsupported chat history version " + version + ": " + file);
+        }
+        final long baseTimestamp = input.readLong();
+        final long baseSequence = input.readLong();
+        return new HistorySegment(file, baseSequence, baseTimestamp, dictionary, uncompressedLength);
+    }
+
+    /**
+     * Opens a compressed segment.  Only the start of it is decompressed, to read the header of the original segment.
+     */
+    static HistorySegment openCompressed(final File file, final CompressionDictionary dictionary) throws IOException {
+        try (final DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            final long uncompressedLength = readCompressedHeader(file, input, dictionary);
+            final byte[] header = new byte[HistoryFormat.HEADER_SIZE];
+            inflate(file, input, dictionary, header);
+            return readHeader(file, new DataInputStream(new ByteArrayInputStream(header)), dictionary, uncompressedLength);
+        }
+    }
+
+    private static long readCompressedHeader(final File file, final DataInputStream input, final CompressionDictionary dictionary)
+            throws IOException {
+        if (input.readInt() != HistoryFormat.COMPRESSED_MAGIC) {
+            throw new HistoryFormatException("Not a compressed chat history segment: " + file);
+        }
+        final byte version = input.readByte();
+        if (version != HistoryFormat.VERSION) {
+            throw new HistoryFormatException("Unsupported chat history version " + version + ": " + file);
+        }
+        final int dictionaryChecksum = input.readInt();
+        if ((null == dictionary) || (dictionaryChecksum != dictionary.getChecksum())) {
+            throw new HistoryFormatException("Missing compression dictionary for " + file);
+        }
+        return input.readLong();
+    }
+
+    /**
+     * Fills the buffer with the start of the decompressed data.
+     */
+    private static void inflate(final File file, final InputStream input, final CompressionDictionary dictionary,
+                                final byte[] buffer) throws IOException {
+        final Inflater inflater = new Inflater(true);
+        try {
+            if (dictionary.getBytes().length > 0) {
+                inflater.setDictionary(dictionary.getBytes());
+            }
+
+            final byte[] inputBuffer = new byte[BUFFER_SIZE];
+            boolean endOfInput = false;
+            int length = 0;
+            while (length < buffer.length) {
+                if (inflater.needsInput()) {
+                    if (endOfInput) {
+                        break;
+                    }
+                    final int read = input.read(inputBuffer);
+                    if (read < 0) {
+                        // raw inflate needs an extra byte of input to signal the end of the data
+                        inflater.setInput(new byte[1]);
+                        endOfInput = true;
+                    }
+                    else {
+                        inflater.setInput(inputBuffer, 0, read);
+                    }
+                }
+
+                final int inflated = inflater.inflate(buffer, length, buffer.length - length);
+                if ((inflated == 0) && (inflater.finished() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+
+            if (length < buffer.length) {
+                throw new HistoryFormatException("Compressed chat history segment is too short: " + file);
+            }
+        } catch (DataFormatException exception) {
+            throw new HistoryFormatException("Corrupt compressed chat history segment " + file + ": " + exception.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes a compressed copy of this (uncompressed) segment to the given file.
+     */
+    void compressTo(final File compressedFile, final CompressionDictionary dictionary) throws IOException {
+        final long length = this.file.length();
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try (final InputStream input = new FileInputStream(this.file);
+             final FileOutputStream output = new FileOutputStream(compressedFile)) {
+            final DataOutputStream header = new DataOutputStream(output);
+            header.writeInt(HistoryFormat.COMPRESSED_MAGIC);
+            header.writeByte(HistoryFormat.VERSION);
+            header.writeInt(dictionary.getChecksum());
+            header.writeLong(length);
+            header.flush();
+
+            if (dictionary.getBytes().length > 0) {
+                deflater.setDictionary(dictionary.getBytes());
+            }
+
+            final byte[] inputBuffer = new byte[BUFFER_SIZE];
+            final byte[] outputBuffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                final int read = input.read(inputBuffer, 0, (int)Math.min(inputBuffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + this.file);
+                }
+                remaining -= read;
+                deflater.setInput(inputBuffer, 0, read);
+                while (!deflater.needsInput()) {
+                    writeDeflated(deflater, output, outputBuffer);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                writeDeflated(deflater, output, outputBuffer);
+            }
+
+            // the compressed segment replaces the original, so must be on disk before the original is deleted
+            output.getFD().sync();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeDeflated(final Deflater deflater, final OutputStream output, final byte[] outputBuffer) throws IOException {
+        final int deflated = deflater.deflate(outputBuffer);
+        if (deflated > 0) {
+            output.write(outputBuffer, 0, deflated);
+        }
+    }
+
+    static HistorySegment create(final File directory, final long baseSequence, final long baseTimestamp) throws IOException {
+        final File file = new File(directory, HistoryFormat.segmentFilename(baseSequence));
+        try (final DataOutputStream output = new DataOutputStream(new FileOutputStream(file, false))) {
+            output.writeInt(HistoryFormat.MAGIC);
+            output.writeByte(HistoryFormat.VERSION);
+            output.writeLong(baseTimestamp);
+            output.writeLong(baseSequence);
+        }
+        return new HistorySegment(file, baseSequence, baseTimestamp, null, -1);
+    }
+
+    File getFile() {
+        return this.file;
+    }
+
+    long getBaseSequence() {
+        return this.baseSequence;
+    }
+
+    long getBaseTimestamp() {
+        return this.baseTimestamp;
+    }
+
+    boolean isCompressed() {
+        return null != this.dictionary;
+    }
+
+    /**
+     * @return the length of the segment, once decompressed
+     */
+    long getLength() {
+        return isCompressed() ? this.uncompressedLength : this.file.length();
+    }
+
+    /**
+     * @return the decompressed contents of a compressed segment
+     */
+    synchronized byte[] readContents() throws IOException {
+        byte[] result = (null == this.contents) ? null : this.contents.get();
+        if (null == result) {
+            if (this.uncompressedLength > Integer.MAX_VALUE) {
+                throw new HistoryFormatException("Compressed chat history segment is too large: " + this.file);
+            }
+            result = new byte[(int)this.uncompressedLength];
+            try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file), BUFFER_SIZE))) {
+                readCompressedHeader(this.file, input, this.dictionary);
+                inflate(this.file, input, this.dictionary, result);
+            }
+            this.contents = new SoftReference<byte[]>(result);
+        }
+        return result;
+    }
+
+    @Override
+    public int compareTo(final HistorySegment segment) {
+        return Long.compare(this.baseSequence, segment.baseSequence);
+    }
+}
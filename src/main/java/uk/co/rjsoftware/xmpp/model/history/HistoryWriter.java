@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes messages, and changes to their read state, to the chat history logs in the background, so that receiving
+ * or reading a message never waits for the disk.  Messages from every chat are queued for a single writer thread,
+ * which appends them in batches and flushes the logs once either <code>flushBatchSize</code> messages are waiting
+ * to be flushed, or the oldest of them has waited for <code>flushIntervalMillis</code>.  That interval is the most
+ * that could be lost if the application is killed.
+ *
+ * A write that fails is kept, along with every later write to the same chat, and tried again until it succeeds or
+ * the writer is closed, so that the messages in a log always have the sequence numbers the chat gave them.
+ *
+ * Optionally, every chat can be written to a single {@link SharedJournal} instead, which is forced to disk each
+ * time it is flushed, so nothing flushed is lost.  The messages are only applied to the chats' own logs when the
+ * journal is checkpointed - when it grows too large, or has been holding messages for a while - so there is only
+ * one file open for writing, and one fsync per flush, however many chats are open.  A chat that is about to be
+ * read has just its own messages applied.
+ */
+public class HistoryWriter {
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    public static final int DEFAULT_FLUSH_BATCH_SIZE = 256;
+
+    public static final String JOURNAL_FILENAME = "journal.dat";
+    // the journal is checkpointed once it reaches this size, or has been holding messages for this long
+    private static final long JOURNAL_CHECKPOINT_SIZE = 4 * 1024 * 1024;
+    private static final long JOURNAL_CHECKPOINT_INTERVAL_MILLIS = 60 * 1000;
+    // how long to wait before trying the writes that failed again
+    private static final long RETRY_INTERVAL_MILLIS = 5 * 1000;
+    // how long to wait for the writer thread, in case it has died
+    private static final long WRITER_TIMEOUT_SECONDS = 60;
+
+    private final long flushIntervalMillis;
+    private final int flushBatchSize;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+    // null if each chat is written to its own log directly
+    private final SharedJournal journal;
+    // held while queueing, so that nothing can be queued once the writer thread has been told to stop
+    private final Object enqueueLock = new Object();
+    // guarded by enqueueLock
+    private boolean closed;
+
+    public HistoryWriter(final long flushIntervalMillis, final int flushBatchSize) {
+        this(flushIntervalMillis, flushBatchSize, null, null);
+    }
+
+    /**
+     * @param journalFile the journal to write every chat to, or null to write each chat to its own log
+     * @param chatStorage where to find the chats that anything left in the journal belongs to
+     */
+    public HistoryWriter(final long flushIntervalMillis, final int flushBatchSize, final File journalFile,
+                         final ChatStorage chatStorage) {
+        this.flushIntervalMillis = Math.max(0, flushIntervalMillis);
+        this.flushBatchSize = Math.max(1, flushBatchSize);
+        try {
+            this.journal = (null == journalFile) ? null : new SharedJournal(journalFile, chatStorage);
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+
+        final Thread writerThread = new Thread(new WriterLoop(this), "History Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues the message to be appended to the log.  Messages are appended in the order they are queued.
+     */
+    public void append(final ChatHistory log, final CustomMessage message) {
+        synchronized (this.enqueueLock) {
+            if (!this.closed) {
+                this.queue.add(new PendingWrite(log, message, -1, null, false));
+                return;
+            }
+        }
+        // nothing left to write it in the background, so write it straight away
+        log.append(message);
+        log.flush();
+    }
+
+    /**
+     * Queues moving the read watermark past the message with the given sequence number.
+     */
+    public void markRead(final ChatHistory log, final long sequence) {
+        synchronized (this.enqueueLock) {
+            if (!this.closed) {
+                this.queue.add(new PendingWrite(log, null, sequence, null, false));
+                return;
+            }
+        }
+        log.markRead(sequence);
+        log.flush();
+    }
+
+    /**
+     * Applies anything left in the journal by a session that used one, so that the logs can be written to
+     * directly.
+     */
+    public static void replayJournal(final File journalFile, final ChatStorage chatStorage) {
+        try {
+            SharedJournal.replay(journalFile, chatStorage);
+            journalFile.delete();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * Waits until every message queued so far has been appended to its log, and flushed, so that the given chat can
+     * be read.  When writing to the journal, only that chat's messages are applied to its log.  This waits for the
+     * disk, so it must not be called on the event dispatch thread.
+     */
+    public void sync(final ChatHistory log) {
+        final PendingWrite marker = new PendingWrite(log, null, -1, new CountDownLatch(1), false);
+        synchronized (this.enqueueLock) {
+            if (this.closed) {
+                return;
+            }
+            this.queue.add(marker);
+        }
+        if (!await(marker)) {
+            System.out.println("Timed out waiting for the chat history of " + log.getChatJid() + " to be written");
+        }
+    }
+
+    /**
+     * Writes out everything that is queued, then stops the writer thread.  Any messages appended after this are
+     * written straight away.
+     */
+    public void close() {
+        // nothing can be queued while the writer thread is stopping, so nothing is left behind once it has stopped
+        synchronized (this.enqueueLock) {
+            if (this.closed) {
+                return;
+            }
+
+            final PendingWrite marker = new PendingWrite(null, null, -1, new CountDownLatch(1), true);
+            this.queue.add(marker);
+            if (!await(marker)) {
+                System.out.println("Timed out waiting for the chat history to be written - anything still queued has "
+                        + "been lost");
+            }
+            this.closed = true;
+        }
+    }
+
+    /**
+     * @return false if the writer thread didn't reach the marker in time
+     */
+    private static boolean await(final PendingWrite marker) {
+        try {
+            return marker.latch.await(WRITER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    private static final class PendingWrite {
+
+        private final ChatHistory log;
+        private final CustomMessage message;
+        // the sequence number of the message that has been read, or -1 if this is not a change to the read state
+        private final long readSequence;
+        // only set for the markers used to wait for the queue to be written
+        private final CountDownLatch latch;
+        private final boolean stop;
+
+        private PendingWrite(final ChatHistory log, final CustomMessage message, final long readSequence,
+                             final CountDownLatch latch, final boolean stop) {
+            this.log = log;
+            this.message = message;
+            this.readSequence = readSequence;
+            this.latch = latch;
+            this.stop = stop;
+        }
+    }
+
+    private static final class WriterLoop implements Runnable {
+
+        private final HistoryWriter historyWriter;
+        // the logs with unflushed messages - identity based, as each log is a separate chat
+        private final Map<ChatHistory, Boolean> dirtyLogs = new IdentityHashMap<ChatHistory, Boolean>();
+        private final List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        // the writes that failed, and every later write to the same log, in the order they were queued
+        private final Map<ChatHistory, List<PendingWrite>> failedWrites = new IdentityHashMap<ChatHistory, List<PendingWrite>>();
+        private long retryDeadline;
+        private int unflushedCount;
+        private long flushDeadline;
+        // when the journal must next be checkpointed, if it is holding any messages
+        private long checkpointDeadline;
+
+        private WriterLoop(final HistoryWriter historyWriter) {
+            this.historyWriter = historyWriter;
+        }
+
+        @Override
+        public void run() {
+            boolean stopped = false;
+            while (!stopped) {
+                final PendingWrite first;
+                try {
+                    final long deadline = nextDeadline();
+                    if (deadline == Long.MAX_VALUE) {
+                        first = this.historyWriter.queue.take();
+                    }
+                    else {
+                        first = this.historyWriter.queue.poll(Math.max(0, deadline - System.currentTimeMillis()),
+                                TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException exception) {
+                    flush();
+                    return;
+                }
+
+                if (null != first) {
+                    this.batch.add(first);
+                    this.historyWriter.queue.drainTo(this.batch, this.historyWriter.flushBatchSize);
+                    stopped = writeBatch();
+                }
+
+                if ((this.unflushedCount >= this.historyWriter.flushBatchSize)
+                        || ((this.unflushedCount > 0) && (System.currentTimeMillis() >= this.flushDeadline))) {
+                    flush();
+                }
+                if ((null != this.historyWriter.journal) && this.historyWriter.journal.hasPendingEntries()
+                        && (System.currentTimeMillis() >= this.checkpointDeadline)) {
+                    checkpoint();
+                }
+                if (!stopped && !this.failedWrites.isEmpty() && (System.currentTimeMillis() >= this.retryDeadline)) {
+                    retryFailedWrites();
+                }
+            }
+        }
+
+        private long nextDeadline() {
+            long deadline = Long.MAX_VALUE;
+            if (this.unflushedCount > 0) {
+                deadline = this.flushDeadline;
+            }
+            if ((null != this.historyWriter.journal) && this.historyWriter.journal.hasPendingEntries()) {
+                deadline = Math.min(deadline, this.checkpointDeadline);
+            }
+            if (!this.failedWrites.isEmpty()) {
+                deadline = Math.min(deadline, this.retryDeadline);
+            }
+            return deadline;
+        }
+
+        /**
+         * @return true if the batch contained the marker to stop writing
+         */
+        private boolean writeBatch() {
+            PendingWrite stopMarker = null;
+            for (PendingWrite pendingWrite : this.batch) {
+                if (pendingWrite.stop) {
+                    // write the rest of the batch before stopping - nothing can be queued after it
+                    stopMarker = pendingWrite;
+                }
+                else if (null != pendingWrite.latch) {
+                    // whoever is waiting wants to read what has been written to the chat, so it must be in its log
+                    retryFailedWrites(pendingWrite.log);
+                    flush();
+                    checkpoint(pendingWrite.log);
+                    pendingWrite.latch.countDown();
+                }
+                else {
+                    write(pendingWrite);
+                }
+            }
+            this.batch.clear();
+
+            if (null != stopMarker) {
+                retryFailedWrites();
+                for (Map.Entry<ChatHistory, List<PendingWrite>> entry : this.failedWrites.entrySet()) {
+                    System.out.println("Unable to write " + entry.getValue().size() + " changes to chat history "
+                            + entry.getKey().getChatJid() + " - they have been lost");
+                }
+                flush();
+                if (null != this.historyWriter.journal) {
+                    try {
+                        this.historyWriter.journal.close();
+                    } catch (IOException exception) {
+                        System.out.println("Unable to close chat history journal: " + exception.getMessage());
+                    }
+                }
+                stopMarker.latch.countDown();
+                return true;
+            }
+            return false;
+        }
+
+        private void write(final PendingWrite pendingWrite) {
+            final List<PendingWrite> failed = this.failedWrites.get(pendingWrite.log);
+            if (null != failed) {
+                // it must wait for the earlier writes to the log, or it would be given the wrong sequence number
+                failed.add(pendingWrite);
+            }
+            else if (!tryWrite(pendingWrite)) {
+                if (this.failedWrites.isEmpty()) {
+                    this.retryDeadline = System.currentTimeMillis() + RETRY_INTERVAL_MILLIS;
+                }
+                final List<PendingWrite> writes = new ArrayList<PendingWrite>();
+                writes.add(pendingWrite);
+                this.failedWrites.put(pendingWrite.log, writes);
+            }
+        }
+
+        /**
+         * @return false if the write failed, and must be tried again
+         */
+        private boolean tryWrite(final PendingWrite pendingWrite) {
+            final SharedJournal journal = this.historyWriter.journal;
+            try {
+                if (null != journal) {
+                    if (!journal.hasPendingEntries()) {
+                        this.checkpointDeadline = System.currentTimeMillis() + JOURNAL_CHECKPOINT_INTERVAL_MILLIS;
+                    }
+                    if (null != pendingWrite.message) {
+                        journal.append(pendingWrite.log, pendingWrite.message);
+                    }
+                    else {
+                        journal.markRead(pendingWrite.log, pendingWrite.readSequence);
+                    }
+                }
+                else if (null != pendingWrite.message) {
+                    pendingWrite.log.append(pendingWrite.message);
+                }
+                else {
+                    pendingWrite.log.markRead(pendingWrite.readSequence);
+                }
+            } catch (RuntimeException exception) {
+                System.out.println("Unable to write to chat history " + pendingWrite.log.getChatJid() + ", will try again: "
+                        + exception.getMessage());
+                return false;
+            }
+
+            if (null == journal) {
+                this.dirtyLogs.put(pendingWrite.log, Boolean.TRUE);
+            }
+            if (this.unflushedCount == 0) {
+                this.flushDeadline = System.currentTimeMillis() + this.historyWriter.flushIntervalMillis;
+            }
+            this.unflushedCount++;
+            return true;
+        }
+
+        private void retryFailedWrites() {
+            for (ChatHistory log : new ArrayList<ChatHistory>(this.failedWrites.keySet())) {
+                retryFailedWrites(log);
+            }
+            this.retryDeadline = System.currentTimeMillis() + RETRY_INTERVAL_MILLIS;
+        }
+
+        /**
+         * Tries the log's failed writes again, in order, stopping at the first that fails again.
+         */
+        private void retryFailedWrites(final ChatHistory log) {
+            final List<PendingWrite> writes = this.failedWrites.get(log);
+            if (null == writes) {
+                return;
+            }
+            int writtenCount = 0;
+            while ((writtenCount < writes.size()) && tryWrite(writes.get(writtenCount))) {
+                writtenCount++;
+            }
+            if (writtenCount == writes.size()) {
+                this.failedWrites.remove(log);
+            }
+            else {
+                writes.subList(0, writtenCount).clear();
+            }
+        }
+
+        private void flush() {
+            final SharedJournal journal = this.historyWriter.journal;
+            if (null != journal) {
+                try {
+                    journal.commit();
+                } catch (IOException exception) {
+                    System.out.println("Unable to write chat history journal: " + exception.getMessage());
+                }
+                if (journal.size() >= JOURNAL_CHECKPOINT_SIZE) {
+                    checkpoint();
+                }
+            }
+
+            for (ChatHistory log : this.dirtyLogs.keySet()) {
+                try {
+                    log.flush();
+                } catch (RuntimeException exception) {
+                    System.out.println("Unable to flush chat history " + log.getChatJid() + ": " + exception.getMessage());
+                }
+            }
+            this.dirtyLogs.clear();
+            this.unflushedCount = 0;
+        }
+
+        private void checkpoint(final ChatHistory log) {
+            if (null != this.historyWriter.journal) {
+                try {
+                    this.historyWriter.journal.checkpoint(log);
+                } catch (IOException exception) {
+                    System.out.println("Unable to checkpoint chat history journal: " + exception.getMessage());
+                }
+            }
+        }
+
+        private void checkpoint() {
+            final SharedJournal journal = this.historyWriter.journal;
+            if (null != journal) {
+                try {
+                    journal.checkpoint();
+                } catch (IOException exception) {
+                    System.out.println("Unable to checkpoint chat history journal: " + exception.getMessage());
+                }
+                if (journal.hasPendingEntries()) {
+                    // some of the entries couldn't be applied, so try again later, rather than straight away
+                    this.checkpointDeadline = System.currentTimeMillis() + JOURNAL_CHECKPOINT_INTERVAL_MILLIS;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+import uk.co.rjsoftware.xmpp.model.store.KeyValueStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps every chat's history, and the recent chat list, in a single {@link KeyValueStore}.  The keys are:
+ *
+ * <pre>
+ *     'm', UTF-8 chat jid, 0, long sequence    a message:  varint zig-zag timestamp, varint length, UTF-8 sender,
+ *                                                           byte flags, UTF-8 body
+ *     's', UTF-8 chat jid                      a chat:     varint first sequence, varint next sequence,
+ *                                                           varint read watermark, varint zig-zag last timestamp
+ *     'f', UTF-8 chat jid                      the fingerprints of the chat's recent messages
+ *     'r'                                      the recent chat list, as UTF-8 lines
+ * </pre>
+ *
+ * The sequence is big-endian, so each chat's messages are next to each other in the store, in order, and any
+ * range of them can be read with a single scan.  A chat's entry is only rewritten when it is flushed, so when a
+ * chat is opened, any messages after the ones it records are counted back in.
+ *
+ * The first time a chat is opened, any history it has in a {@link LogChatStorage} is copied into the store.  The
+ * logs are left as they are, but aren't kept up to date from then on.
+ */
+public class KeyValueChatStorage implements ChatStorage {
+
+    public static final String STORE_FILENAME = "history.kv";
+
+    private static final byte KEY_MESSAGE = 'm';
+    private static final byte KEY_CHAT = 's';
+    private static final byte KEY_FINGERPRINTS = 'f';
+    private static final byte[] RECENT_CHATS_KEY = {'r'};
+    private static final int IMPORT_BATCH_SIZE = 1000;
+
+    private final File userDirectory;
+    private final KeyValueStore store;
+    private final Map<String, KeyValueChatHistory> chats = new HashMap<String, KeyValueChatHistory>();
+
+    /**
+     * @param userDirectory the directory holding the current user's chats
+     */
+    public KeyValueChatStorage(final File userDirectory) {
+        this.userDirectory = userDirectory;
+        try {
+            this.store = new KeyValueStore(new File(userDirectory, STORE_FILENAME));
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * Every call for the same chat returns the same history, as they all share the store.
+     */
+    @Override
+    public synchronized ChatHistory openChat(final String chatJid) {
+        KeyValueChatHistory chat = this.chats.get(chatJid);
+        if (null == chat) {
+            chat = new KeyValueChatHistory(this, chatJid);
+            this.chats.put(chatJid, chat);
+        }
+        return chat;
+    }
+
+    @Override
+    public List<String> readRecentChats() {
+        final List<String> entries = new ArrayList<String>();
+        try {
+            final byte[] value = this.store.get(RECENT_CHATS_KEY);
+            if (null != value) {
+                for (String entry : new String(value, HistoryFormat.UTF8).split("\n")) {
+                    if (!entry.isEmpty()) {
+                        entries.add(entry);
+                    }
+                }
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        return entries;
+    }
+
+    @Override
+    public void writeRecentChats(final List<String> entries) {
+        final StringBuilder value = new StringBuilder();
+        for (String entry : entries) {
+            value.append(entry).append('\n');
+        }
+        try {
+            this.store.put(RECENT_CHATS_KEY, value.toString().getBytes(HistoryFormat.UTF8));
+            this.store.sync();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            for (KeyValueChatHistory chat : this.chats.values()) {
+                chat.flush();
+            }
+            this.store.close();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    private static byte[] chatKey(final byte type, final String chatJid) {
+        final byte[] jid = chatJid.getBytes(HistoryFormat.UTF8);
+        final byte[] key = new byte[1 + jid.length];
+        key[0] = type;
+        System.arraycopy(jid, 0, key, 1, jid.length);
+        return key;
+    }
+
+    private static final class KeyValueChatHistory implements ChatHistory {
+
+        private final KeyValueChatStorage storage;
+        private final String chatJid;
+        private final byte[] chatKey;
+        private final byte[] fingerprintsKey;
+        // the message keys, less the sequence at the end
+        private final byte[] messageKeyPrefix;
+        private final RecordBuffer recordBuffer = new RecordBuffer();
+        private HistoryAppendListener appendListener;
+        private boolean opened;
+        private long firstSequence;
+        private long nextSequence;
+        private long readWatermark;
+        private long lastTimestamp;
+        // whether the chat's entry needs rewriting
+        private boolean dirty;
+
+        private KeyValueChatHistory(final KeyValueChatStorage storage, final String chatJid) {
+            this.storage = storage;
+            this.chatJid = chatJid;
+            this.chatKey = chatKey(KEY_CHAT, chatJid);
+            this.fingerprintsKey = chatKey(KEY_FINGERPRINTS, chatJid);
+            final byte[] jid = chatJid.getBytes(HistoryFormat.UTF8);
+            this.messageKeyPrefix = new byte[1 + jid.length + 1];
+            this.messageKeyPrefix[0] = KEY_MESSAGE;
+            System.arraycopy(jid, 0, this.messageKeyPrefix, 1, jid.length);
+        }
+
+        private byte[] messageKey(final long sequence) {
+            final byte[] key = Arrays.copyOf(this.messageKeyPrefix, this.messageKeyPrefix.length + 8);
+            ByteBuffer.wrap(key, this.messageKeyPrefix.length, 8).putLong(sequence);
+            return key;
+        }
+
+        private void ensureOpened() throws IOException {
+            if (this.opened) {
+                return;
+            }
+
+            final byte[] chat = this.storage.store.get(this.chatKey);
+            if (null == chat) {
+                importLog();
+            }
+            else {
+                final ByteBuffer buffer = ByteBuffer.wrap(chat);
+                this.firstSequence = HistoryFormat.readVarLong(buffer);
+                this.nextSequence = HistoryFormat.readVarLong(buffer);
+                this.readWatermark = HistoryFormat.readVarLong(buffer);
+                this.lastTimestamp = HistoryFormat.zigZagDecode(HistoryFormat.readVarLong(buffer));
+            }
+
+            // pick up the messages appended after the chat's entry was last written
+            byte[] message = this.storage.store.get(messageKey(this.nextSequence));
+            while (null != message) {
+                this.lastTimestamp = decode(this.nextSequence, message).getMessage().getTimestamp();
+                this.nextSequence++;
+                this.dirty = true;
+                message = this.storage.store.get(messageKey(this.nextSequence));
+            }
+            this.opened = true;
+        }
+
+        /**
+         * Copies the chat's history from its log, if it has one.
+         */
+        private void importLog() throws IOException {
+            final File logDirectory = new File(this.storage.userDirectory, this.chatJid);
+            final File textFile = new File(logDirectory.getPath() + TextHistoryMigrator.TEXT_HISTORY_SUFFIX);
+            this.dirty = true;
+            if (!logDirectory.exists() && !textFile.exists()) {
+                return;
+            }
+
+            System.out.println("Importing chat history: " + logDirectory);
+            final ChatHistory log = new LogChatStorage(this.storage.userDirectory).openChat(this.chatJid);
+            try {
+                this.firstSequence = log.getFirstSequence();
+                this.nextSequence = this.firstSequence;
+                List<HistoryRecord> records = log.readForwards(this.nextSequence, IMPORT_BATCH_SIZE);
+                while (!records.isEmpty()) {
+                    for (HistoryRecord record : records) {
+                        this.storage.store.put(messageKey(record.getSequence()), encode(record.getMessage()));
+                        this.nextSequence = record.getSequence() + 1;
+                        this.lastTimestamp = record.getMessage().getTimestamp();
+                    }
+                    records = log.readForwards(this.nextSequence, IMPORT_BATCH_SIZE);
+                }
+                this.readWatermark = log.getReadWatermark();
+            } finally {
+                log.close();
+            }
+            writeChat();
+        }
+
+        private byte[] encode(final CustomMessage message) {
+            final byte[] sender = message.getSender().getBytes(HistoryFormat.UTF8);
+            this.recordBuffer.reset();
+            this.recordBuffer.putVarLong(HistoryFormat.zigZagEncode(message.getTimestamp()));
+            this.recordBuffer.putVarLong(sender.length);
+            this.recordBuffer.putBytes(sender);
+            // no flags - whether a message has been read comes from the read watermark
+            this.recordBuffer.putByte((byte)0);
+            this.recordBuffer.putBytes(message.getBody().getBytes(HistoryFormat.UTF8));
+            return Arrays.copyOf(this.recordBuffer.array(), this.recordBuffer.size());
+        }
+
+        private HistoryRecord decode(final long sequence, final byte[] value) {
+            final ByteBuffer buffer = ByteBuffer.wrap(value);
+            final long timestamp = HistoryFormat.zigZagDecode(HistoryFormat.readVarLong(buffer));
+            final String sender = HistoryFormat.decodeString(buffer, (int)HistoryFormat.readVarLong(buffer));
+            // skip the flags
+            buffer.get();
+            final String body = HistoryFormat.decodeString(buffer, buffer.remaining());
+            return new HistoryRecord(sequence, new CustomMessage(timestamp, sender, body));
+        }
+
+        private void writeChat() throws IOException {
+            this.recordBuffer.reset();
+            this.recordBuffer.putVarLong(this.firstSequence);
+            this.recordBuffer.putVarLong(this.nextSequence);
+            this.recordBuffer.putVarLong(this.readWatermark);
+            this.recordBuffer.putVarLong(HistoryFormat.zigZagEncode(this.lastTimestamp));
+            this.storage.store.put(this.chatKey, Arrays.copyOf(this.recordBuffer.array(), this.recordBuffer.size()));
+            this.dirty = false;
+        }
+
+        @Override
+        public String getChatJid() {
+            return this.chatJid;
+        }
+
+        @Override
+        public synchronized void setAppendListener(final HistoryAppendListener appendListener) {
+            this.appendListener = appendListener;
+        }
+
+        @Override
+        public synchronized long append(final CustomMessage message) {
+            try {
+                ensureOpened();
+                final long sequence = this.nextSequence;
+                this.storage.store.put(messageKey(sequence), encode(message));
+                this.nextSequence++;
+                this.lastTimestamp = message.getTimestamp();
+                this.dirty = true;
+
+                if (null != this.appendListener) {
+                    this.appendListener.messageAppended(this, sequence, message);
+                }
+                return sequence;
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+
+        @Override
+        public synchronized void markRead(final long sequence) {
+            try {
+                ensureOpened();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+            if (sequence >= this.readWatermark) {
+                this.readWatermark = sequence + 1;
+                this.dirty = true;
+            }
+        }
+
+        @Override
+        public synchronized long getReadWatermark() {
+            try {
+                ensureOpened();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+            return this.readWatermark;
+        }
+
+        @Override
+        public synchronized long getNextSequence() {
+            try {
+                ensureOpened();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+            return this.nextSequence;
+        }
+
+        @Override
+        public synchronized long getFirstSequence() {
+            try {
+                ensureOpened();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+            return this.firstSequence;
+        }
+
+        @Override
+        public synchronized long getLastTimestamp() {
+            try {
+                ensureOpened();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+            return this.lastTimestamp;
+        }
+
+        @Override
+        public synchronized List<HistoryRecord> readTail(final int count) {
+            return readBefore(getNextSequence(), count);
+        }
+
+        @Override
+        public synchronized List<HistoryRecord> readBefore(final long sequence, final int count) {
+            try {
+                ensureOpened();
+                final long end = Math.min(sequence, this.nextSequence);
+                return read(Math.max(this.firstSequence, end - count), end);
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+
+        @Override
+        public synchronized List<HistoryRecord> readForwards(final long sequence, final int count) {
+            try {
+                ensureOpened();
+                final long start = Math.max(sequence, this.firstSequence);
+                return read(start, Math.min(this.nextSequence, start + count));
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+
+        /**
+         * Finds the first message at or after the timestamp with a binary search over the sequence numbers, which
+         * relies on the messages having been appended in time order, as they are.
+         */
+        @Override
+        public synchronized List<HistoryRecord> readFrom(final long timestamp, final int count) {
+            try {
+                ensureOpened();
+                long low = this.firstSequence;
+                long high = this.nextSequence;
+                while (low < high) {
+                    final long middle = (low + high) >>> 1;
+                    final byte[] message = this.storage.store.get(messageKey(middle));
+                    if ((null != message) && (decode(middle, message).getMessage().getTimestamp() < timestamp)) {
+                        low = middle + 1;
+                    }
+                    else {
+                        high = middle;
+                    }
+                }
+                return read(low, Math.min(this.nextSequence, low + count));
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+
+        /**
+         * @return the messages from <code>fromSequence</code> (inclusive) to <code>toSequence</code> (exclusive)
+         */
+        private List<HistoryRecord> read(final long fromSequence, final long toSequence) throws IOException {
+            final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+            if (fromSequence >= toSequence) {
+                return records;
+            }
+
+            final Map<byte[], byte[]> messages = this.storage.store.scan(messageKey(fromSequence), messageKey(toSequence));
+            for (Map.Entry<byte[], byte[]> entry : messages.entrySet()) {
+                final byte[] key = entry.getKey();
+                records.add(decode(ByteBuffer.wrap(key, key.length - 8, 8).getLong(), entry.getValue()));
+            }
+            return records;
+        }
+
+        @Override
+        public long[] readFingerprints() {
+            try {
+                final byte[] value = this.storage.store.get(this.fingerprintsKey);
+                return (null == value) ? new long[0] : HistoryFormat.decodeFingerprints(value);
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+
+        @Override
+        public void writeFingerprints(final long[] fingerprints) {
+            try {
+                this.storage.store.put(this.fingerprintsKey, HistoryFormat.encodeFingerprints(fingerprints));
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+
+        @Override
+        public synchronized void flush() {
+            try {
+                if (this.dirty) {
+                    writeChat();
+                }
+                this.storage.store.flush();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+
+        @Override
+        public synchronized void checkpoint() {
+            flush();
+            try {
+                this.storage.store.sync();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+
+        /**
+         * There is nothing held open for a single chat, so this only writes out anything buffered.
+         */
+        @Override
+        public synchronized void close() {
+            if (this.opened) {
+                flush();
+            }
+        }
+
+        /**
+         * The store merges its own runs as it goes.
+         */
+        @Override
+        public int compact() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps each chat's history in a {@link ChatHistoryLog} of its own, in a directory named after the chat, and the
+ * recent chat list in a text file with one entry per line.  Any history still in the original text format is
+ * migrated when its chat is opened.
+ */
+public class LogChatStorage implements ChatStorage {
+
+    public static final String RECENT_CHAT_LIST_FILENAME = "recentChatList.txt";
+
+    private final File userDirectory;
+
+    /**
+     * @param userDirectory the directory holding the current user's chats
+     */
+    public LogChatStorage(final File userDirectory) {
+        this.userDirectory = userDirectory;
+    }
+
+    @Override
+    public ChatHistory openChat(final String chatJid) {
+        final File logDirectory = new File(this.userDirectory, chatJid);
+        TextHistoryMigrator.migrate(new File(logDirectory.getPath() + TextHistoryMigrator.TEXT_HISTORY_SUFFIX), logDirectory);
+        return new ChatHistoryLog(logDirectory);
+    }
+
+    @Override
+    public List<String> readRecentChats() {
+        return readRecentChats(new File(this.userDirectory, RECENT_CHAT_LIST_FILENAME));
+    }
+
+    static List<String> readRecentChats(final File file) {
+        final List<String> entries = new ArrayList<String>();
+        if (!file.exists()) {
+            return entries;
+        }
+
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), HistoryFormat.UTF8))) {
+            String line = reader.readLine();
+            while (null != line) {
+                if (!line.isEmpty()) {
+                    entries.add(line);
+                }
+                line = reader.readLine();
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        return entries;
+    }
+
+    @Override
+    public void writeRecentChats(final List<String> entries) {
+        this.userDirectory.mkdirs();
+        try (final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(this.userDirectory, RECENT_CHAT_LIST_FILENAME)), HistoryFormat.UTF8))) {
+            for (String entry : entries) {
+                writer.write(entry);
+                writer.newLine();
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    @Override
+    public void close() {
+        // each chat's log is closed along with the chat
+    }
+}
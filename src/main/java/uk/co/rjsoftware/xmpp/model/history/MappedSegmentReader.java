@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the records of a single segment, from the first to the last, by memory mapping the segment.  This avoids
+ * the system calls and buffer copies of reading through a stream, which is what dominates the time taken to open
+ * a large history that is already in the page cache.  It behaves in exactly the same way as {@link SegmentReader}.
+ * Compressed segments can't be mapped, so are read from their decompressed contents instead.
+ */
+final class MappedSegmentReader implements Closeable {
+
+    private final HistorySegment segment;
+    private final SenderDictionary senders;
+    private final ByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+    private byte[] payload = new byte[256];
+
+    MappedSegmentReader(final HistorySegment segment, final SenderDictionary senders) throws IOException {
+        this.segment = segment;
+        this.senders = senders;
+        if (segment.isCompressed()) {
+            this.buffer = ByteBuffer.wrap(segment.readContents());
+        }
+        else {
+            this.buffer = map(segment, segment.getLength());
+        }
+
+        // skip past the header - it has already been validated when the segment was opened
+        this.buffer.position(HistoryFormat.HEADER_SIZE);
+    }
+
+    /**
+     * Maps the first <code>length</code> bytes of the segment.  The mapping remains valid after the file has been
+     * closed, until it is released with {@link #unmap(MappedByteBuffer)}.
+     */
+    static MappedByteBuffer map(final HistorySegment segment, final long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new HistoryFormatException("Segment too large to map: " + segment.getFile());
+        }
+
+        try (final RandomAccessFile file = new RandomAccessFile(segment.getFile(), "r")) {
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+
+    /**
+     * Releases the mapping straight away, rather than waiting for the buffer to be garbage collected.  Until then,
+     * some platforms (Windows in particular) will not allow the file to be deleted or renamed.  If the JVM doesn't
+     * support this, the mapping is left for the garbage collector to release.
+     */
+    static void unmap(final MappedByteBuffer buffer) {
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (null != cleaner) {
+                final Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+            }
+        } catch (Exception exception) {
+            // ignore - the mapping will be released when the buffer is garbage collected
+        }
+    }
+
+    /**
+     * @return the next record, or null if there are no more (valid) records in the segment
+     */
+    HistoryRecord next() {
+        if (!this.buffer.hasRemaining()) {
+            return null;
+        }
+
+        final int recordStart = this.buffer.position();
+        final HistoryRecord record;
+        try {
+            final long length = HistoryFormat.readVarLong(this.buffer);
+            if ((length < 0) || (length > HistoryFormat.MAX_RECORD_SIZE)) {
+                return corrupt(recordStart, "invalid record length " + length);
+            }
+
+            // CRC32 can only be calculated over an array, so take a copy of the payload to decode from
+            if (length > this.payload.length) {
+                this.payload = new byte[Math.max((int)length, this.payload.length * 2)];
+            }
+            this.buffer.get(this.payload, 0, (int)length);
+
+            final int checksum = this.buffer.getInt();
+            this.crc.reset();
+            this.crc.update(this.payload, 0, (int)length);
+            if (checksum != (int)this.crc.getValue()) {
+                return corrupt(recordStart, "checksum mismatch");
+            }
+
+            // skip the reversed length - it is only needed when reading backwards
+            final int trailerSize = HistoryFormat.varIntSize(length);
+            if (this.buffer.remaining() < trailerSize) {
+                this.buffer.position(this.buffer.limit());
+                return null;
+            }
+            this.buffer.position(this.buffer.position() + trailerSize);
+
+            record = HistoryRecord.decode(ByteBuffer.wrap(this.payload, 0, (int)length), this.segment, this.senders);
+        } catch (BufferUnderflowException exception) {
+            // an incomplete record at the end of the segment
+            this.buffer.position(this.buffer.limit());
+            return null;
+        } catch (HistoryFormatException exception) {
+            return corrupt(recordStart, exception.getMessage());
+        }
+
+        return record;
+    }
+
+    private HistoryRecord corrupt(final int recordStart, final String reason) {
+        System.out.println("Ignoring corrupt record in " + this.segment.getFile() + " at offset " + recordStart + ": " + reason);
+        this.buffer.position(this.buffer.limit());
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (this.buffer instanceof MappedByteBuffer) {
+            unmap((MappedByteBuffer)this.buffer);
+        }
+    }
+}
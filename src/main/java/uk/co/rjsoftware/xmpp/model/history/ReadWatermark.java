@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Records how far through a chat the user has read, as the sequence number of the first unread message - every
+ * message before it has been read, and every message from it onwards has not.  This means the number of unread
+ * messages is simply the number of messages after the watermark, and marking messages as read never touches the
+ * history itself.
+ *
+ * The file has two slots, each holding a watermark and its CRC32, which are written alternately so that a write
+ * that is interrupted part way through always leaves the previous watermark intact:
+ *
+ * <pre>
+ *     long  watermark
+ *     int   CRC32 of the above
+ * </pre>
+ *
+ * The watermark only ever moves forwards, so the valid slot with the highest watermark is the current one.
+ */
+final class ReadWatermark implements Closeable {
+
+    private static final int SLOT_SIZE = 8 + 4;
+    private static final int LEGACY_ENTRY_SIZE = 8 + 4 + 4;
+
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+    private final ByteBuffer checksumBuffer = ByteBuffer.allocate(8);
+    private final RandomAccessFile file;
+
+    private long watermark;
+    // the watermark that is in the file
+    private long writtenWatermark;
+    private int nextSlot;
+
+    /**
+     * @param initialWatermark the watermark to start from, if the file doesn't exist yet
+     */
+    ReadWatermark(final File file, final long initialWatermark) throws IOException {
+        final boolean exists = file.exists();
+        this.file = new RandomAccessFile(file, "rw");
+
+        if (exists) {
+            load();
+        }
+        else {
+            this.watermark = initialWatermark;
+            this.writtenWatermark = -1;
+            flush();
+        }
+    }
+
+    private void load() throws IOException {
+        this.watermark = 0;
+        this.writtenWatermark = 0;
+        for (int index = 0 ; index < 2 ; index++) {
+            this.slot.clear();
+            final int length = this.file.getChannel().read(this.slot, (long)index * SLOT_SIZE);
+            if (length == SLOT_SIZE) {
+                final long value = this.slot.getLong(0);
+                if ((this.slot.getInt(8) == checksum(value)) && (value > this.watermark)) {
+                    this.watermark = value;
+                    this.writtenWatermark = value;
+                    // overwrite the other slot next time
+                    this.nextSlot = 1 - index;
+                }
+            }
+        }
+    }
+
+    private int checksum(final long value) {
+        this.checksumBuffer.putLong(0, value);
+        this.crc.reset();
+        this.crc.update(this.checksumBuffer.array(), 0, 8);
+        return (int)this.crc.getValue();
+    }
+
+    /**
+     * @return the sequence number of the first unread message
+     */
+    long get() {
+        return this.watermark;
+    }
+
+    /**
+     * Marks the message, and every message before it, as read.
+     */
+    void markRead(final long sequence) {
+        this.watermark = Math.max(this.watermark, sequence + 1);
+    }
+
+    /**
+     * Writes the watermark to the file, if it has moved since it was last written.
+     */
+    void flush() throws IOException {
+        if (this.watermark == this.writtenWatermark) {
+            return;
+        }
+
+        this.slot.clear();
+        this.slot.putLong(this.watermark);
+        this.slot.putInt(checksum(this.watermark));
+        this.slot.flip();
+        this.file.getChannel().write(this.slot, (long)this.nextSlot * SLOT_SIZE);
+        this.nextSlot = 1 - this.nextSlot;
+        this.writtenWatermark = this.watermark;
+    }
+
+    /**
+     * Writes the watermark, and forces it to disk.
+     */
+    void sync() throws IOException {
+        flush();
+        this.file.getChannel().force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        this.file.close();
+    }
+
+    /**
+     * Reads the read state journal used by earlier versions, which recorded the read messages as ranges of
+     * sequence numbers:
+     *
+     * <pre>
+     *     long  first sequence in the range
+     *     int   number of messages in the range
+     *     int   CRC32 of the above
+     * </pre>
+     *
+     * @return the sequence number after the last message that was read, or 0 if there is no journal
+     */
+    static long readLegacyJournal(final File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        final CRC32 crc = new CRC32();
+        final ByteBuffer entry = ByteBuffer.allocate(LEGACY_ENTRY_SIZE);
+        long watermark = 0;
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                input.readFully(entry.array());
+                final long start = entry.getLong(0);
+                final int count = entry.getInt(8);
+                crc.reset();
+                crc.update(entry.array(), 0, 12);
+                if ((entry.getInt(12) != (int)crc.getValue()) || (count <= 0)) {
+                    break;
+                }
+                watermark = Math.max(watermark, start + count);
+            }
+        } catch (EOFException exception) {
+            // reached the end of the valid entries
+        }
+        return watermark;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A reusable, growable byte buffer used to build a record before it is written to a segment.
+ */
+final class RecordBuffer {
+
+    private byte[] bytes = new byte[256];
+    private int size;
+    private final CRC32 crc = new CRC32();
+
+    void reset() {
+        this.size = 0;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    byte[] array() {
+        return this.bytes;
+    }
+
+    private void ensureCapacity(final int additional) {
+        if (this.size + additional > this.bytes.length) {
+            this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + additional));
+        }
+    }
+
+    void putByte(final int value) {
+        ensureCapacity(1);
+        this.bytes[this.size++] = (byte)value;
+    }
+
+    void putVarLong(final long value) {
+        ensureCapacity(10);
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            this.bytes[this.size++] = (byte)((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        this.bytes[this.size++] = (byte)remaining;
+    }
+
+    void putBytes(final byte[] value) {
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, this.bytes, this.size, value.length);
+        this.size += value.length;
+    }
+
+    /**
+     * Writes the contents of this buffer to the output stream as a single framed record.
+     *
+     * @return the number of bytes written
+     */
+    int writeFramed(final OutputStream output) throws IOException {
+        final byte[] length = encodeVarLong(this.size);
+
+        this.crc.reset();
+        this.crc.update(this.bytes, 0, this.size);
+        final int checksum = (int)this.crc.getValue();
+
+        output.write(length);
+        output.write(this.bytes, 0, this.size);
+        output.write(checksum >>> 24);
+        output.write(checksum >>> 16);
+        output.write(checksum >>> 8);
+        output.write(checksum);
+        for (int index = length.length - 1 ; index >= 0 ; index--) {
+            output.write(length[index]);
+        }
+
+        return length.length + this.size + 4 + length.length;
+    }
+
+    private static byte[] encodeVarLong(final long value) {
+        final byte[] result = new byte[HistoryFormat.varIntSize(value)];
+        long remaining = value;
+        int index = 0;
+        while ((remaining & ~0x7FL) != 0) {
+            result[index++] = (byte)((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        result[index] = (byte)remaining;
+        return result;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the records of a single segment from the last to the first, using the reversed length that follows each
+ * record.  The file is either memory mapped, or read in large blocks from the end, so only the part of the segment
+ * that is actually needed is ever read.
+ */
+final class ReverseSegmentReader implements Closeable {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final HistorySegment segment;
+    private final SenderDictionary senders;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer mappedBuffer;
+    private final CRC32 crc = new CRC32();
+    private byte[] payload;
+
+    // the block of the file currently held in memory, covering [blockStart, blockStart + block.limit())
+    private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+    private long blockStart;
+    private long position;
+
+    /**
+     * @param endPosition the offset just after the last record to be read
+     */
+    ReverseSegmentReader(final HistorySegment segment, final SenderDictionary senders, final long endPosition) throws IOException {
+        this(segment, senders, endPosition, false);
+    }
+
+    /**
+     * @param endPosition the offset just after the last record to be read
+     * @param memoryMapped whether to map the segment, rather than reading it
+     */
+    ReverseSegmentReader(final HistorySegment segment, final SenderDictionary senders, final long endPosition,
+                         final boolean memoryMapped) throws IOException {
+        this.segment = segment;
+        this.senders = senders;
+        this.position = endPosition;
+
+        if (segment.isCompressed()) {
+            // compressed segments are always read from their decompressed contents
+            this.file = null;
+            this.channel = null;
+            this.mappedBuffer = null;
+            this.block = ByteBuffer.wrap(segment.readContents());
+            this.blockStart = 0;
+        }
+        else if (memoryMapped) {
+            // the whole of the range is mapped, so it never needs loading
+            this.file = null;
+            this.channel = null;
+            this.mappedBuffer = MappedSegmentReader.map(segment, endPosition);
+            this.block = this.mappedBuffer;
+            this.blockStart = 0;
+        }
+        else {
+            this.file = new RandomAccessFile(segment.getFile(), "r");
+            this.channel = this.file.getChannel();
+            this.mappedBuffer = null;
+            this.block.limit(0);
+        }
+    }
+
+    /**
+     * @return the offset just after the next record that {@link #previous()} will return
+     */
+    long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * @return the previous record, or null if the start of the segment has been reached
+     * @throws HistoryFormatException if the record before the current position is not valid
+     */
+    HistoryRecord previous() throws IOException {
+        if (this.position <= HistoryFormat.HEADER_SIZE) {
+            return null;
+        }
+
+        // decode the reversed length at the end of the record
+        ensureLoaded(Math.max(HistoryFormat.HEADER_SIZE, this.position - 10), this.position);
+        final int trailerEnd = (int)(this.position - this.blockStart);
+        final long length = HistoryFormat.readReversedVarLong(this.block, trailerEnd,
+                (int)Math.max(0, HistoryFormat.HEADER_SIZE - this.blockStart));
+        if ((length < 0) || (length > HistoryFormat.MAX_RECORD_SIZE)) {
+            throw new HistoryFormatException("Invalid record trailer in " + this.segment.getFile() + " at offset " + this.position);
+        }
+
+        final int lengthSize = HistoryFormat.varIntSize(length);
+        final long recordStart = this.position - lengthSize - length - 4 - lengthSize;
+        if (recordStart < HistoryFormat.HEADER_SIZE) {
+            throw new HistoryFormatException("Invalid record length in " + this.segment.getFile() + " at offset " + this.position);
+        }
+        ensureLoaded(recordStart, this.position);
+
+        // check the leading length matches the trailing one, then validate the checksum
+        this.block.position((int)(recordStart - this.blockStart));
+        if (HistoryFormat.readVarLong(this.block) != length) {
+            throw new HistoryFormatException("Mismatched record lengths in " + this.segment.getFile() + " at offset " + recordStart);
+        }
+        final int payloadStart = this.block.position();
+        final int payloadEnd = payloadStart + (int)length;
+
+        final ByteBuffer payload;
+        this.crc.reset();
+        if (this.block.hasArray()) {
+            this.crc.update(this.block.array(), this.block.arrayOffset() + payloadStart, (int)length);
+            payload = this.block.duplicate();
+            payload.position(payloadStart);
+            payload.limit(payloadEnd);
+        }
+        else {
+            // CRC32 can only be calculated over an array, so take a copy of a mapped payload to decode from
+            if ((null == this.payload) || (length > this.payload.length)) {
+                this.payload = new byte[Math.max((int)length, 256)];
+            }
+            this.block.get(this.payload, 0, (int)length);
+            this.crc.update(this.payload, 0, (int)length);
+            payload = ByteBuffer.wrap(this.payload, 0, (int)length);
+        }
+        if (this.block.getInt(payloadEnd) != (int)this.crc.getValue()) {
+            throw new HistoryFormatException("Checksum mismatch in " + this.segment.getFile() + " at offset " + recordStart);
+        }
+
+        final HistoryRecord record = HistoryRecord.decode(payload, this.segment, this.senders);
+
+        this.position = recordStart;
+        return record;
+    }
+
+    /**
+     * Ensures that the bytes in the range [start, end) of the file are held in the block buffer.
+     */
+    private void ensureLoaded(final long start, final long end) throws IOException {
+        if ((start >= this.blockStart) && (end <= this.blockStart + this.block.limit())) {
+            return;
+        }
+
+        // load the block that ends at 'end', reading as far back towards the header as the block size allows
+        final int size = (int)Math.max(end - start, Math.min(BLOCK_SIZE, end - HistoryFormat.HEADER_SIZE));
+        if (size > this.block.capacity()) {
+            this.block = ByteBuffer.allocate(size);
+        }
+        this.block.clear();
+        this.block.limit(size);
+        this.blockStart = end - size;
+
+        while (this.block.hasRemaining()) {
+            if (this.channel.read(this.block, this.blockStart + this.block.position()) < 0) {
+                throw new HistoryFormatException("Unexpected end of " + this.segment.getFile());
+            }
+        }
+        this.block.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null != this.mappedBuffer) {
+            MappedSegmentReader.unmap(this.mappedBuffer);
+        }
+        else if (null != this.file) {
+            this.file.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the records of a single segment, from the first to the last.  Reading stops at the first record that is
+ * incomplete or fails its checksum, which is what the tail of a segment looks like if the application was killed
+ * part way through writing to it.
+ */
+final class SegmentReader implements Closeable {
+
+    private final HistorySegment segment;
+    private final SenderDictionary senders;
+    private final DataInputStream input;
+    private final CRC32 crc = new CRC32();
+    private byte[] payload = new byte[256];
+    private long validLength;
+
+    SegmentReader(final HistorySegment segment, final SenderDictionary senders) throws IOException {
+        this(segment, senders, HistoryFormat.HEADER_SIZE);
+    }
+
+    /**
+     * @param startPosition the position of the first record to read, which must be the start of a record
+     */
+    SegmentReader(final HistorySegment segment, final SenderDictionary senders, final long startPosition) throws IOException {
+        this.segment = segment;
+        this.senders = senders;
+        final InputStream segmentInput;
+        if (segment.isCompressed()) {
+            segmentInput = new ByteArrayInputStream(segment.readContents());
+        }
+        else {
+            segmentInput = new FileInputStream(segment.getFile());
+        }
+        this.input = new DataInputStream(new BufferedInputStream(segmentInput, 64 * 1024));
+
+        // skip past the header - it has already been validated when the segment was opened - and any records
+        // before the start position
+        long remaining = Math.max(startPosition, HistoryFormat.HEADER_SIZE);
+        while (remaining > 0) {
+            final int skipped = this.input.skipBytes((int)Math.min(remaining, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException("Start position " + startPosition + " is past the end of " + segment.getFile());
+            }
+            remaining -= skipped;
+        }
+        this.validLength = Math.max(startPosition, HistoryFormat.HEADER_SIZE);
+    }
+
+    /**
+     * @return the next record, or null if there are no more (valid) records in the segment
+     */
+    HistoryRecord next() throws IOException {
+        final HistoryRecord record;
+        try {
+            final long length = HistoryFormat.readVarLong(this.input);
+            if ((length < 0) || (length > HistoryFormat.MAX_RECORD_SIZE)) {
+                return corrupt("invalid record length " + length);
+            }
+            if (length > this.payload.length) {
+                this.payload = new byte[Math.max((int)length, this.payload.length * 2)];
+            }
+            this.input.readFully(this.payload, 0, (int)length);
+
+            final int checksum = this.input.readInt();
+            this.crc.reset();
+            this.crc.update(this.payload, 0, (int)length);
+            if (checksum != (int)this.crc.getValue()) {
+                return corrupt("checksum mismatch");
+            }
+
+            // skip the reversed length - it is only needed when reading backwards
+            final int trailerSize = HistoryFormat.varIntSize(length);
+            for (int index = 0 ; index < trailerSize ; index++) {
+                this.input.readByte();
+            }
+
+            record = HistoryRecord.decode(ByteBuffer.wrap(this.payload, 0, (int)length), this.segment, this.senders);
+            this.validLength += HistoryFormat.varIntSize(length) + length + 4 + trailerSize;
+        } catch (EOFException exception) {
+            return null;
+        } catch (HistoryFormatException exception) {
+            return corrupt(exception.getMessage());
+        }
+
+        return record;
+    }
+
+    private HistoryRecord corrupt(final String reason) {
+        System.out.println("Ignoring corrupt record in " + this.segment.getFile() + " at offset " + this.validLength + ": " + reason);
+        return null;
+    }
+
+    /**
+     * @return the number of bytes, including the header, that make up the valid records read so far - which is also
+     * the position of the next record
+     */
+    long getValidLength() {
+        return this.validLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.input.close();
+    }
+}
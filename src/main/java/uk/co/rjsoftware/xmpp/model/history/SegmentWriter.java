@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Appends framed records to the end of a segment.
+ */
+final class SegmentWriter implements Closeable {
+
+    private final HistorySegment segment;
+    private final FileOutputStream fileOutput;
+    private final BufferedOutputStream output;
+    private long size;
+
+    SegmentWriter(final HistorySegment segment) throws IOException {
+        this.segment = segment;
+        this.fileOutput = new FileOutputStream(segment.getFile(), true);
+        this.output = new BufferedOutputStream(this.fileOutput, 64 * 1024);
+        this.size = segment.getFile().length();
+    }
+
+    HistorySegment getSegment() {
+        return this.segment;
+    }
+
+    void write(final RecordBuffer record) throws IOException {
+        this.size += record.writeFramed(this.output);
+    }
+
+    long size() {
+        return this.size;
+    }
+
+    void flush() throws IOException {
+        this.output.flush();
+    }
+
+    /**
+     * Flushes the records, and forces them to disk.
+     */
+    void sync() throws IOException {
+        this.output.flush();
+        this.fileOutput.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.output.close();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps sender names to small integer ids, so that each history record only needs to store the id.  The
+ * dictionary is append-only, and is kept in its own file alongside the segments so that any record can be
+ * decoded without first reading the records before it.
+ */
+final class SenderDictionary {
+
+    private final File file;
+    private final List<String> names = new ArrayList<String>();
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private DataOutputStream output;
+
+    SenderDictionary(final File file) throws IOException {
+        this.file = file;
+        load();
+    }
+
+    private void load() throws IOException {
+        if (!this.file.exists()) {
+            return;
+        }
+
+        long validLength = 0;
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+            while (true) {
+                final int length = input.readUnsignedShort();
+                final byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                addName(new String(bytes, HistoryFormat.UTF8));
+                validLength += 2 + length;
+            }
+        } catch (EOFException exception) {
+            // end of the dictionary, or an entry that was only partially written
+        }
+
+        if (validLength < this.file.length()) {
+            System.out.println("Truncating partially written sender dictionary: " + this.file);
+            try (final RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw")) {
+                randomAccessFile.setLength(validLength);
+            }
+        }
+    }
+
+    private int addName(final String name) {
+        final int id = this.names.size();
+        this.names.add(name);
+        this.ids.put(name, id);
+        return id;
+    }
+
+    synchronized String getName(final int id) {
+        if ((id < 0) || (id >= this.names.size())) {
+            throw new HistoryFormatException("Unknown sender id " + id + " in " + this.file);
+        }
+        return this.names.get(id);
+    }
+
+    /**
+     * Returns the id for the sender, adding it to the dictionary if required.  New entries are written through
+     * to disk immediately, so that they are always persisted before any record that refers to them.
+     */
+    synchronized int getId(final String name) throws IOException {
+        final Integer existingId = this.ids.get(name);
+        if (null != existingId) {
+            return existingId;
+        }
+
+        if (null == this.output) {
+            this.output = new DataOutputStream(new FileOutputStream(this.file, true));
+        }
+
+        final byte[] bytes = name.getBytes(HistoryFormat.UTF8);
+        if (bytes.length > 0xFFFF) {
+            throw new HistoryFormatException("Sender name is too long to store: " + name);
+        }
+        this.output.writeShort(bytes.length);
+        this.output.write(bytes);
+        this.output.flush();
+
+        return addName(name);
+    }
+
+    synchronized void close() throws IOException {
+        if (null != this.output) {
+            this.output.close();
+            this.output = null;
+        }
+    }
+}
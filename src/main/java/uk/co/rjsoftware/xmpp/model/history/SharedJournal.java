@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal shared by every chat, so that writing to the history only ever needs one open file, and
+ * one fsync to make everything written since the last one safe, however many chats are open.  The entries for
+ * each chat are held in memory until the journal is checkpointed, when they are applied to the chat's own history,
+ * the histories are forced to disk and closed, and the journal is emptied.  A chat that is about to be read can
+ * have just its own entries applied.
+ *
+ * The journal starts with a header of:
+ *
+ * <pre>
+ *     int   magic number - "YACJ"
+ *     byte  format version
+ * </pre>
+ *
+ * followed by entries framed in the same way as the records in a segment, each starting with its type:
+ *
+ * <pre>
+ *     chat:     varint chat id, varint length, UTF-8 chat jid
+ *     message:  varint chat id, varint sequence, varint zig-zag timestamp, varint length, UTF-8 sender,
+ *               UTF-8 body
+ *     read:     varint chat id, varint sequence
+ * </pre>
+ *
+ * Chat ids are only used within the journal, and each is defined by a chat entry before it is first used.  Every
+ * message entry carries the sequence number it will have in its chat's log, so replaying a journal whose
+ * checkpoint was interrupted part way through skips the messages that had already been applied.  A journal that
+ * can't be replayed - one from an older version, say - is moved aside, to <code>journal.dat.bad</code>, so that
+ * the history can still be opened.
+ */
+final class SharedJournal implements Closeable {
+
+    private static final int MAGIC = 0x5941434A; // "YACJ"
+    // version 1 named each chat by the path of its log directory, rather than by its jid, and version 2 gave each
+    // message a byte of flags, for its read state - journals from either are set aside rather than replayed
+    private static final byte VERSION = 3;
+    static final String BAD_SUFFIX = ".bad";
+    static final int HEADER_SIZE = 4 + 1;
+
+    private static final byte ENTRY_TYPE_CHAT = 1;
+    private static final byte ENTRY_TYPE_MESSAGE = 2;
+    private static final byte ENTRY_TYPE_READ = 3;
+
+    private final FileOutputStream output;
+    private final RecordBuffer recordBuffer = new RecordBuffer();
+    // the entries written since the last commit
+    private final ByteArrayOutputStream uncommitted = new ByteArrayOutputStream(64 * 1024);
+    private final Map<ChatHistory, Integer> chatIds = new IdentityHashMap<ChatHistory, Integer>();
+    private final Map<ChatHistory, Long> nextSequences = new IdentityHashMap<ChatHistory, Long>();
+    // the entries for each chat that have not yet been applied to its log, in the order they were written
+    private final Map<ChatHistory, List<PendingEntry>> pendingEntries = new IdentityHashMap<ChatHistory, List<PendingEntry>>();
+    private long size;
+
+    /**
+     * Opens the journal, first replaying anything left in it by a previous session.
+     */
+    SharedJournal(final File file, final ChatStorage chatStorage) throws IOException {
+        replay(file, chatStorage);
+
+        file.getParentFile().mkdirs();
+        this.output = new FileOutputStream(file);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.put(VERSION);
+        this.output.write(header.array());
+        this.output.getFD().sync();
+        this.size = HEADER_SIZE;
+    }
+
+    long size() {
+        return this.size + this.uncommitted.size();
+    }
+
+    boolean hasPendingEntries() {
+        return !this.pendingEntries.isEmpty();
+    }
+
+    void append(final ChatHistory log, final CustomMessage message) {
+        final long sequence = nextSequence(log);
+        final int chatId = chatId(log);
+
+        this.recordBuffer.reset();
+        this.recordBuffer.putByte(ENTRY_TYPE_MESSAGE);
+        this.recordBuffer.putVarLong(chatId);
+        this.recordBuffer.putVarLong(sequence);
+        this.recordBuffer.putVarLong(HistoryFormat.zigZagEncode(message.getTimestamp()));
+        putString(message.getSender());
+        this.recordBuffer.putBytes(message.getBody().getBytes(HistoryFormat.UTF8));
+        writeEntry();
+
+        this.nextSequences.put(log, sequence + 1);
+        addPendingEntry(log, new PendingEntry(message, sequence));
+    }
+
+    void markRead(final ChatHistory log, final long sequence) {
+        final int chatId = chatId(log);
+
+        this.recordBuffer.reset();
+        this.recordBuffer.putByte(ENTRY_TYPE_READ);
+        this.recordBuffer.putVarLong(chatId);
+        this.recordBuffer.putVarLong(sequence);
+        writeEntry();
+
+        addPendingEntry(log, new PendingEntry(null, sequence));
+    }
+
+    private long nextSequence(final ChatHistory log) {
+        final Long nextSequence = this.nextSequences.get(log);
+        return (null == nextSequence) ? log.getNextSequence() : nextSequence;
+    }
+
+    private int chatId(final ChatHistory log) {
+        Integer chatId = this.chatIds.get(log);
+        if (null == chatId) {
+            chatId = this.chatIds.size();
+            this.chatIds.put(log, chatId);
+
+            this.recordBuffer.reset();
+            this.recordBuffer.putByte(ENTRY_TYPE_CHAT);
+            this.recordBuffer.putVarLong(chatId);
+            putString(log.getChatJid());
+            writeEntry();
+        }
+        return chatId;
+    }
+
+    private void putString(final String value) {
+        final byte[] bytes = value.getBytes(HistoryFormat.UTF8);
+        this.recordBuffer.putVarLong(bytes.length);
+        this.recordBuffer.putBytes(bytes);
+    }
+
+    private void writeEntry() {
+        try {
+            this.recordBuffer.writeFramed(this.uncommitted);
+        } catch (IOException exception) {
+            // can't happen when writing to memory
+            throw new RuntimeException(exception);
+        }
+    }
+
+    private void addPendingEntry(final ChatHistory log, final PendingEntry entry) {
+        List<PendingEntry> entries = this.pendingEntries.get(log);
+        if (null == entries) {
+            entries = new ArrayList<PendingEntry>();
+            this.pendingEntries.put(log, entries);
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * Writes the entries added since the last commit to the journal with a single write, and forces them to disk.
+     */
+    void commit() throws IOException {
+        if (this.uncommitted.size() == 0) {
+            return;
+        }
+        this.uncommitted.writeTo(this.output);
+        this.output.getFD().sync();
+        this.size += this.uncommitted.size();
+        this.uncommitted.reset();
+    }
+
+    /**
+     * Applies the pending entries to the chats' own histories, forces those to disk and closes them, and then empties
+     * the journal.  If any of the histories can't be written to, its entries are kept, to be applied again at the
+     * next checkpoint, and the journal is kept until they have been, so that they are replayed next time if the
+     * application stops first.
+     */
+    void checkpoint() throws IOException {
+        commit();
+
+        final Iterator<Map.Entry<ChatHistory, List<PendingEntry>>> iterator = this.pendingEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<ChatHistory, List<PendingEntry>> chatEntries = iterator.next();
+            final ChatHistory log = chatEntries.getKey();
+            try {
+                apply(log, chatEntries.getValue(), true);
+                iterator.remove();
+            } catch (RuntimeException exception) {
+                System.out.println("Unable to apply chat history journal to " + log.getChatJid() + ": " + exception.getMessage());
+            }
+        }
+
+        if (this.pendingEntries.isEmpty()) {
+            truncate();
+        }
+    }
+
+    /**
+     * Applies the pending entries of a single chat to its history, and forces it to disk, so that the chat can be
+     * read without checkpointing every other chat.  The history is left open, as it is about to be read.  The journal
+     * is emptied if nothing else is left in it.
+     */
+    void checkpoint(final ChatHistory log) throws IOException {
+        final List<PendingEntry> entries = this.pendingEntries.get(log);
+        if (null == entries) {
+            return;
+        }
+
+        commit();
+        try {
+            apply(log, entries, false);
+        } catch (RuntimeException exception) {
+            System.out.println("Unable to apply chat history journal to " + log.getChatJid() + ": " + exception.getMessage());
+            return;
+        }
+        this.pendingEntries.remove(log);
+
+        if (this.pendingEntries.isEmpty()) {
+            truncate();
+        }
+    }
+
+    private void truncate() throws IOException {
+        if (this.size > HEADER_SIZE) {
+            this.output.getChannel().truncate(HEADER_SIZE);
+            this.size = HEADER_SIZE;
+            // the chat entries were truncated along with everything else
+            this.chatIds.clear();
+        }
+    }
+
+    /**
+     * Applies a chat's entries to its history, forces it to disk and optionally closes it.  The messages that reached the
+     * history before an earlier attempt to apply them failed are skipped.
+     */
+    private static void apply(final ChatHistory log, final List<PendingEntry> entries, final boolean close) {
+        for (PendingEntry entry : entries) {
+            if (null == entry.message) {
+                log.markRead(entry.sequence);
+            }
+            else if (entry.sequence >= log.getNextSequence()) {
+                final long sequence = log.append(entry.message);
+                if (sequence != entry.sequence) {
+                    System.out.println("Chat history journal expected sequence " + entry.sequence + " but got "
+                            + sequence + " in " + log.getChatJid());
+                }
+            }
+        }
+        log.checkpoint();
+        if (close) {
+            // reopened if it is read from, but nothing needs it to be open to write to it
+            log.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            this.output.close();
+        }
+    }
+
+    /**
+     * Applies the entries in the journal to the chats' histories, skipping any that were already applied before the
+     * journal was last checkpointed.
+     */
+    static void replay(final File file, final ChatStorage chatStorage) throws IOException {
+        if (!file.exists() || (file.length() <= HEADER_SIZE)) {
+            return;
+        }
+
+        final Map<Long, ChatHistory> logs = new HashMap<Long, ChatHistory>();
+        int replayedCount = 0;
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (input.readInt() != MAGIC) {
+                throw new HistoryFormatException("Not a chat history journal: " + file);
+            }
+            final byte version = input.readByte();
+            if (version != VERSION) {
+                throw new HistoryFormatException("Unsupported chat history journal version " + version + ": " + file);
+            }
+
+            final CRC32 crc = new CRC32();
+            byte[] payload = readEntry(input, crc);
+            for ( ; null != payload ; payload = readEntry(input, crc)) {
+                final ByteBuffer entry = ByteBuffer.wrap(payload);
+                final byte type = entry.get();
+                final long chatId = HistoryFormat.readVarLong(entry);
+                if (type == ENTRY_TYPE_CHAT) {
+                    final String chatJid = HistoryFormat.decodeString(entry, (int)HistoryFormat.readVarLong(entry));
+                    logs.put(chatId, chatStorage.openChat(chatJid));
+                    continue;
+                }
+
+                final ChatHistory log = logs.get(chatId);
+                if (null == log) {
+                    throw new HistoryFormatException("Undefined chat " + chatId + " in " + file);
+                }
+                final long sequence = HistoryFormat.readVarLong(entry);
+                if (type == ENTRY_TYPE_MESSAGE) {
+                    final long timestamp = HistoryFormat.zigZagDecode(HistoryFormat.readVarLong(entry));
+                    final String sender = HistoryFormat.decodeString(entry, (int)HistoryFormat.readVarLong(entry));
+                    final String body = HistoryFormat.decodeString(entry, entry.remaining());
+                    if (sequence >= log.getNextSequence()) {
+                        log.append(new CustomMessage(timestamp, sender, body));
+                        replayedCount++;
+                    }
+                }
+                else if (type == ENTRY_TYPE_READ) {
+                    log.markRead(sequence);
+                }
+                else {
+                    throw new HistoryFormatException("Unknown entry type " + type + " in " + file);
+                }
+            }
+        } catch (HistoryFormatException exception) {
+            setAside(file, exception.getMessage());
+        } finally {
+            for (ChatHistory log : logs.values()) {
+                log.checkpoint();
+                log.close();
+            }
+        }
+
+        if (replayedCount > 0) {
+            System.out.println("Replayed " + replayedCount + " message(s) from the chat history journal");
+        }
+    }
+
+    /**
+     * Moves a journal that can't be replayed out of the way, so that a new one can be started in its place, while
+     * what was in it can still be recovered by hand.
+     */
+    private static void setAside(final File file, final String reason) {
+        final File badFile = new File(file.getPath() + BAD_SUFFIX);
+        System.out.println("Unable to replay the chat history journal, moving it to " + badFile + ": " + reason);
+        badFile.delete();
+        if (!file.renameTo(badFile)) {
+            System.out.println("Unable to move " + file + " to " + badFile);
+        }
+    }
+
+    /**
+     * Reading stops at the first entry that is incomplete or fails its checksum, which is what the end of the
+     * journal looks like if the application was killed part way through writing to it.
+     *
+     * @return the payload of the next entry, or null if there are no more (valid) entries
+     */
+    private static byte[] readEntry(final DataInputStream input, final CRC32 crc) throws IOException {
+        try {
+            final long length = HistoryFormat.readVarLong(input);
+            if ((length <= 0) || (length > HistoryFormat.MAX_RECORD_SIZE)) {
+                return null;
+            }
+
+            final byte[] payload = new byte[(int)length];
+            input.readFully(payload);
+            final int checksum = input.readInt();
+            crc.reset();
+            crc.update(payload);
+            if (checksum != (int)crc.getValue()) {
+                return null;
+            }
+            // skip the reversed length
+            input.skipBytes(HistoryFormat.varIntSize(length));
+            return payload;
+        } catch (EOFException exception) {
+            return null;
+        }
+    }
+
+    private static final class PendingEntry {
+
+        // null if this is a change to the read state
+        private final CustomMessage message;
+        private final long sequence;
+
+        private PendingEntry(final CustomMessage message, final long sequence) {
+            this.message = message;
+            this.sequence = sequence;
+        }
+    }
+}
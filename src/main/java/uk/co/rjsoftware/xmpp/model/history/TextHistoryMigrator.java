@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Converts the original history format (one JSON encoded {@link CustomMessage} per line, in a single text file
+ * per chat) into a {@link ChatHistoryLog}.
+ */
+public final class TextHistoryMigrator {
+
+    public static final String TEXT_HISTORY_SUFFIX = ".txt";
+    private static final String MIGRATED_SUFFIX = ".migrated";
+    private static final String MIGRATING_SUFFIX = ".migrating";
+
+    private TextHistoryMigrator() {
+        // empty private constructor to prevent instantiation
+    }
+
+    /**
+     * Migrates the text history file into the log directory, if it has not already been migrated.  The log is
+     * built in a temporary directory and then moved into place, so an interrupted migration is simply restarted
+     * next time.  Once migrated, the text file is renamed rather than deleted.
+     *
+     * @return true if a text history file was migrated
+     */
+    public static boolean migrate(final File textFile, final File logDirectory) {
+        if (!textFile.exists()) {
+            return false;
+        }
+
+        final File migratedFile = new File(textFile.getPath() + MIGRATED_SUFFIX);
+        if (logDirectory.exists()) {
+            // a previous migration completed, but the text file was not renamed
+            textFile.renameTo(migratedFile);
+            return false;
+        }
+
+        final File migratingDirectory = new File(logDirectory.getPath() + MIGRATING_SUFFIX);
+        ChatHistoryLog.deleteDirectory(migratingDirectory);
+
+        System.out.println("Migrating chat history: " + textFile);
+        final Gson gson = new Gson();
+        final ChatHistoryLog log = new ChatHistoryLog(migratingDirectory);
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(textFile), HistoryFormat.UTF8))) {
+            String line = reader.readLine();
+            while (null != line) {
+                final TextHistoryLine historyLine = parseLine(gson, line);
+                if (null != historyLine) {
+                    final long sequence = log.append(new CustomMessage(historyLine.timestamp, historyLine.sender,
+                            historyLine.body));
+                    if (historyLine.read) {
+                        log.markRead(sequence);
+                    }
+                }
+                line = reader.readLine();
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        } finally {
+            log.close();
+        }
+
+        if (!migratingDirectory.renameTo(logDirectory)) {
+            throw new RuntimeException("Unable to move " + migratingDirectory + " to " + logDirectory);
+        }
+        textFile.renameTo(migratedFile);
+        return true;
+    }
+
+    private static TextHistoryLine parseLine(final Gson gson, final String line) {
+        try {
+            final TextHistoryLine historyLine = gson.fromJson(line, TextHistoryLine.class);
+            if ((null == historyLine) || (null == historyLine.sender) || (null == historyLine.body)) {
+                return null;
+            }
+            return historyLine;
+        } catch (JsonParseException exception) {
+            // the last line may have been partially written
+            System.out.println("Ignoring invalid chat history line: " + line);
+            return null;
+        }
+    }
+
+    /**
+     * A line of a text history - a message, as it was serialised, along with whether it had been read.
+     */
+    private static final class TextHistoryLine {
+
+        private long timestamp;
+        private String sender;
+        private String body;
+        private boolean read;
+    }
+}
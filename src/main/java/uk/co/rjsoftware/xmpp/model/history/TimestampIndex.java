@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A sparse index from time to position in the history, so that the messages from a given time can be found
+ * without reading every message before them.  The first message appended in each hour gets an entry, which is
+ * appended to the index file as:
+ *
+ * <pre>
+ *     long  timestamp of the message
+ *     long  sequence number of the message
+ *     long  position of the message's record in its segment
+ *     int   CRC32 of the above
+ * </pre>
+ *
+ * Entries are only added in timestamp order, so they can be binary searched.  Positions are always within the
+ * uncompressed segment, so compressing a segment doesn't change its entries.  The index can be rebuilt from the
+ * segments at any time, so if it is lost or falls behind the log it is simply brought up to date when the log is
+ * opened.
+ */
+final class TimestampIndex implements Closeable {
+
+    static final long BUCKET_MILLIS = 60 * 60 * 1000;
+
+    private static final int ENTRY_SIZE = 8 + 8 + 8 + 4;
+
+    private final File file;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+    private final FileOutputStream output;
+
+    private long[] timestamps = new long[64];
+    private long[] sequences = new long[64];
+    private long[] positions = new long[64];
+    private int size;
+
+    /**
+     * Loads the index, discarding any entries for messages at or after <code>nextSequence</code> - i.e. those that
+     * were lost from the end of the log - along with any partially written entry.
+     */
+    TimestampIndex(final File file, final long nextSequence) throws IOException {
+        this.file = file;
+        load(nextSequence);
+        this.output = new FileOutputStream(this.file, true);
+    }
+
+    private void load(final long nextSequence) throws IOException {
+        if (!this.file.exists()) {
+            return;
+        }
+
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+            while (true) {
+                final long timestamp = input.readLong();
+                final long sequence = input.readLong();
+                final long position = input.readLong();
+                final int checksum = input.readInt();
+                if ((checksum != checksum(timestamp, sequence, position)) || (sequence >= nextSequence)) {
+                    break;
+                }
+                addEntry(timestamp, sequence, position);
+            }
+        } catch (EOFException exception) {
+            // reached the end of the valid entries
+        }
+
+        final long validLength = (long)this.size * ENTRY_SIZE;
+        if (validLength < this.file.length()) {
+            try (final RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw")) {
+                randomAccessFile.setLength(validLength);
+            }
+        }
+    }
+
+    private int checksum(final long timestamp, final long sequence, final long position) {
+        this.entry.clear();
+        this.entry.putLong(timestamp);
+        this.entry.putLong(sequence);
+        this.entry.putLong(position);
+        this.crc.reset();
+        this.crc.update(this.entry.array(), 0, ENTRY_SIZE - 4);
+        return (int)this.crc.getValue();
+    }
+
+    private void addEntry(final long timestamp, final long sequence, final long position) {
+        if (this.size == this.timestamps.length) {
+            this.timestamps = Arrays.copyOf(this.timestamps, this.size * 2);
+            this.sequences = Arrays.copyOf(this.sequences, this.size * 2);
+            this.positions = Arrays.copyOf(this.positions, this.size * 2);
+        }
+        this.timestamps[this.size] = timestamp;
+        this.sequences[this.size] = sequence;
+        this.positions[this.size] = position;
+        this.size++;
+    }
+
+    /**
+     * Called for every message appended to the log.  Only the first message in each hour is added to the index.
+     */
+    void add(final long timestamp, final long sequence, final long position) throws IOException {
+        if ((this.size > 0) && ((timestamp / BUCKET_MILLIS <= this.timestamps[this.size - 1] / BUCKET_MILLIS)
+                || (sequence <= this.sequences[this.size - 1]))) {
+            return;
+        }
+
+        final int checksum = checksum(timestamp, sequence, position);
+        this.entry.putInt(checksum);
+        this.output.write(this.entry.array(), 0, ENTRY_SIZE);
+        addEntry(timestamp, sequence, position);
+    }
+
+    /**
+     * @return the index of the last entry with a timestamp at or before the given one, or -1 if there isn't one
+     */
+    int floor(final long timestamp) {
+        int low = 0;
+        int high = this.size - 1;
+        int result = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (this.timestamps[middle] <= timestamp) {
+                result = middle;
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    long getTimestamp(final int index) {
+        return this.timestamps[index];
+    }
+
+    long getSequence(final int index) {
+        return this.sequences[index];
+    }
+
+    long getPosition(final int index) {
+        return this.positions[index];
+    }
+
+    /**
+     * Forces the index to disk.
+     */
+    void sync() throws IOException {
+        this.output.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.output.close();
+    }
+}
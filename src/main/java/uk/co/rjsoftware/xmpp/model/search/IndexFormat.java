@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.search;
+
+import uk.co.rjsoftware.xmpp.model.history.HistoryFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Constants and encoding helpers for the files of the search index.
+ *
+ * Each segment of the index is an immutable file, laid out as:
+ *
+ * <pre>
+ *     header       magic and version
+ *     documents    for each document: varint chat id, varint sequence, long timestamp, string sender, string snippet
+ *     doc offsets  int position of each document
+ *     postings     for each term: (varint document number delta, varint term frequency) for each document
+ *     dictionary   for each term, in order: string term, varint document count, varint postings position,
+ *                  varint postings length
+ *     term index   every {@link #TERM_INDEX_INTERVAL}th term: string term, varint dictionary position
+ *     footer       int document count, int term count, long doc offsets position, long dictionary position,
+ *                  long term index position, int magic
+ * </pre>
+ *
+ * Strings are stored as a varint length followed by their UTF-8 bytes.  Only the term index is held in memory, so
+ * finding a term costs a binary search in memory and a single read of part of the dictionary.
+ */
+final class IndexFormat {
+
+    static final int MAGIC = 0x59414349; // "YACI"
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 4 + 1;
+    static final int FOOTER_SIZE = 4 + 4 + 8 + 8 + 8 + 4;
+    static final int TERM_INDEX_INTERVAL = 32;
+
+    static final String SEGMENT_SUFFIX = ".idx";
+    static final String TEMPORARY_SUFFIX = ".tmp";
+    static final String STATE_FILENAME = "index.dat";
+
+    private IndexFormat() {
+        // empty private constructor to prevent instantiation
+    }
+
+    static String segmentFilename(final long generation) {
+        return String.format("%020d", generation) + SEGMENT_SUFFIX;
+    }
+
+    static int writeVarLong(final OutputStream output, final long value) throws IOException {
+        long remaining = value;
+        int size = 1;
+        while ((remaining & ~0x7FL) != 0) {
+            output.write((int)((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+            size++;
+        }
+        output.write((int)remaining);
+        return size;
+    }
+
+    static int writeString(final OutputStream output, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(HistoryFormat.UTF8);
+        final int size = writeVarLong(output, bytes.length);
+        output.write(bytes);
+        return size + bytes.length;
+    }
+
+    static String readString(final ByteBuffer buffer) {
+        final int length = (int)HistoryFormat.readVarLong(buffer);
+        return HistoryFormat.decodeString(buffer, length);
+    }
+}
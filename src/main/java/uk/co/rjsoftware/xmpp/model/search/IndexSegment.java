@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.search;
+
+import uk.co.rjsoftware.xmpp.model.history.HistoryFormat;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A segment of the search index (see {@link IndexFormat}).  Segments never change once written, so can be read
+ * without any locking.  Only the term index is held in memory - everything else is read from the file as it is
+ * needed.
+ */
+final class IndexSegment implements Closeable, Comparable<IndexSegment> {
+
+    private final File file;
+    private final long generation;
+    private final RandomAccessFile input;
+    private final FileChannel channel;
+
+    private final int documentCount;
+    private final int termCount;
+    private final long documentOffsetsPosition;
+    private final long dictionaryPosition;
+    private final long termIndexPosition;
+    private final String[] indexTerms;
+    private final long[] indexPositions;
+
+    private IndexSegment(final File file, final long generation) throws IOException {
+        this.file = file;
+        this.generation = generation;
+        this.input = new RandomAccessFile(file, "r");
+        this.channel = this.input.getChannel();
+
+        try {
+            final long length = this.channel.size();
+            if (length < IndexFormat.HEADER_SIZE + IndexFormat.FOOTER_SIZE) {
+                throw new IOException("Search index segment too short: " + file);
+            }
+            final ByteBuffer header = read(0, IndexFormat.HEADER_SIZE);
+            if ((header.getInt() != IndexFormat.MAGIC) || (header.get() != IndexFormat.VERSION)) {
+                throw new IOException("Not a search index segment: " + file);
+            }
+
+            final ByteBuffer footer = read(length - IndexFormat.FOOTER_SIZE, IndexFormat.FOOTER_SIZE);
+            this.documentCount = footer.getInt();
+            this.termCount = footer.getInt();
+            this.documentOffsetsPosition = footer.getLong();
+            this.dictionaryPosition = footer.getLong();
+            this.termIndexPosition = footer.getLong();
+            if (footer.getInt() != IndexFormat.MAGIC) {
+                throw new IOException("Incomplete search index segment: " + file);
+            }
+
+            final int indexSize = (this.termCount + IndexFormat.TERM_INDEX_INTERVAL - 1) / IndexFormat.TERM_INDEX_INTERVAL;
+            this.indexTerms = new String[indexSize];
+            this.indexPositions = new long[indexSize];
+            final ByteBuffer termIndex = read(this.termIndexPosition, (int)(length - IndexFormat.FOOTER_SIZE - this.termIndexPosition));
+            for (int index = 0 ; index < indexSize ; index++) {
+                this.indexTerms[index] = IndexFormat.readString(termIndex);
+                this.indexPositions[index] = HistoryFormat.readVarLong(termIndex);
+            }
+        } catch (IOException | RuntimeException exception) {
+            this.input.close();
+            throw exception;
+        }
+    }
+
+    static IndexSegment open(final File file, final long generation) throws IOException {
+        return new IndexSegment(file, generation);
+    }
+
+    File getFile() {
+        return this.file;
+    }
+
+    long getGeneration() {
+        return this.generation;
+    }
+
+    int getDocumentCount() {
+        return this.documentCount;
+    }
+
+    long getLength() {
+        return this.file.length();
+    }
+
+    private ByteBuffer read(final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of search index segment: " + this.file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return the term's entry in the dictionary, or null if no document in the segment contains it
+     */
+    Term findTerm(final String term) throws IOException {
+        int low = 0;
+        int high = this.indexTerms.length - 1;
+        int block = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (this.indexTerms[middle].compareTo(term) <= 0) {
+                block = middle;
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        if (block < 0) {
+            return null;
+        }
+
+        final long blockEnd = (block + 1 < this.indexPositions.length) ? this.indexPositions[block + 1] : this.termIndexPosition;
+        final ByteBuffer entries = read(this.indexPositions[block], (int)(blockEnd - this.indexPositions[block]));
+        try {
+            while (entries.hasRemaining()) {
+                final Term entry = readTerm(entries);
+                final int comparison = entry.getTerm().compareTo(term);
+                if (comparison == 0) {
+                    return entry;
+                }
+                if (comparison > 0) {
+                    break;
+                }
+            }
+        } catch (BufferUnderflowException exception) {
+            throw new IOException("Corrupt dictionary in search index segment: " + this.file);
+        }
+        return null;
+    }
+
+    private static Term readTerm(final ByteBuffer buffer) {
+        final String term = IndexFormat.readString(buffer);
+        final int documentCount = (int)HistoryFormat.readVarLong(buffer);
+        final long postingsPosition = HistoryFormat.readVarLong(buffer);
+        final int postingsLength = (int)HistoryFormat.readVarLong(buffer);
+        return new Term(term, documentCount, postingsPosition, postingsLength);
+    }
+
+    Postings readPostings(final Term term) throws IOException {
+        final ByteBuffer buffer = read(term.postingsPosition, term.postingsLength);
+        final Postings postings = new Postings(term.documentCount);
+        int document = 0;
+        try {
+            for (int index = 0 ; index < term.documentCount ; index++) {
+                document += (int)HistoryFormat.readVarLong(buffer);
+                postings.add(document, (int)HistoryFormat.readVarLong(buffer));
+            }
+        } catch (BufferUnderflowException exception) {
+            throw new IOException("Corrupt postings in search index segment: " + this.file);
+        }
+        return postings;
+    }
+
+    IndexedDocument readDocument(final int document) throws IOException {
+        final ByteBuffer offsets = read(this.documentOffsetsPosition + (4L * document), (document + 1 < this.documentCount) ? 8 : 4);
+        final int start = offsets.getInt();
+        final long end = offsets.hasRemaining() ? offsets.getInt() : this.documentOffsetsPosition;
+
+        final ByteBuffer buffer = read(start, (int)(end - start));
+        try {
+            final int chatId = (int)HistoryFormat.readVarLong(buffer);
+            final long sequence = HistoryFormat.readVarLong(buffer);
+            final long timestamp = buffer.getLong();
+            final String sender = IndexFormat.readString(buffer);
+            final String snippet = IndexFormat.readString(buffer);
+            return new IndexedDocument(chatId, sequence, timestamp, sender, snippet);
+        } catch (BufferUnderflowException exception) {
+            throw new IOException("Corrupt document in search index segment: " + this.file);
+        }
+    }
+
+    /**
+     * Copies the encoded documents, without their offsets, to the output.
+     */
+    void copyDocuments(final OutputStream output) throws IOException {
+        long position = IndexFormat.HEADER_SIZE;
+        while (position < this.documentOffsetsPosition) {
+            final ByteBuffer buffer = read(position, (int)Math.min(64 * 1024, this.documentOffsetsPosition - position));
+            output.write(buffer.array(), 0, buffer.limit());
+            position += buffer.limit();
+        }
+    }
+
+    int[] readDocumentOffsets() throws IOException {
+        final ByteBuffer buffer = read(this.documentOffsetsPosition, 4 * this.documentCount);
+        final int[] offsets = new int[this.documentCount];
+        for (int index = 0 ; index < this.documentCount ; index++) {
+            offsets[index] = buffer.getInt();
+        }
+        return offsets;
+    }
+
+    /**
+     * @return every term in the segment, in order
+     */
+    TermIterator terms() throws IOException {
+        return new TermIterator(this);
+    }
+
+    @Override
+    public int compareTo(final IndexSegment other) {
+        return Long.compare(this.generation, other.generation);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.input.close();
+    }
+
+    /**
+     * An entry in the dictionary of a segment.
+     */
+    static final class Term {
+
+        private final String term;
+        private final int documentCount;
+        private final long postingsPosition;
+        private final int postingsLength;
+
+        private Term(final String term, final int documentCount, final long postingsPosition, final int postingsLength) {
+            this.term = term;
+            this.documentCount = documentCount;
+            this.postingsPosition = postingsPosition;
+            this.postingsLength = postingsLength;
+        }
+
+        String getTerm() {
+            return this.term;
+        }
+
+        int getDocumentCount() {
+            return this.documentCount;
+        }
+    }
+
+    /**
+     * Reads through the whole dictionary of a segment, for merging it with others.
+     */
+    static final class TermIterator implements Closeable {
+
+        private final DataInputStream dictionaryInput;
+        private int remaining;
+        private Term current;
+
+        private TermIterator(final IndexSegment segment) throws IOException {
+            final FileInputStream fileInput = new FileInputStream(segment.file);
+            fileInput.getChannel().position(segment.dictionaryPosition);
+            this.dictionaryInput = new DataInputStream(new BufferedInputStream(fileInput, 64 * 1024));
+            this.remaining = segment.termCount;
+            next();
+        }
+
+        /**
+         * @return the current term, or null if all of them have been read
+         */
+        Term current() {
+            return this.current;
+        }
+
+        void next() throws IOException {
+            if (this.remaining == 0) {
+                this.current = null;
+                return;
+            }
+            final byte[] termBytes = new byte[(int)HistoryFormat.readVarLong(this.dictionaryInput)];
+            this.dictionaryInput.readFully(termBytes);
+            final int documentCount = (int)HistoryFormat.readVarLong(this.dictionaryInput);
+            final long postingsPosition = HistoryFormat.readVarLong(this.dictionaryInput);
+            final int postingsLength = (int)HistoryFormat.readVarLong(this.dictionaryInput);
+            this.current = new Term(new String(termBytes, HistoryFormat.UTF8), documentCount, postingsPosition, postingsLength);
+            this.remaining--;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.dictionaryInput.close();
+        }
+    }
+}
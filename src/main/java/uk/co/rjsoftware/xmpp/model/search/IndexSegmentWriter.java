@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.search;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a new segment of the search index (see {@link IndexFormat}).  The documents are added first, then the
+ * terms in order, each followed by its postings.  The segment is written to a temporary file, which is only
+ * renamed into place once it is complete and on disk.
+ */
+final class IndexSegmentWriter {
+
+    private final File file;
+    private final File temporaryFile;
+    private final File dictionaryFile;
+    private final FileOutputStream fileOutput;
+    private final CountingOutputStream output;
+    private final CountingOutputStream dictionaryOutput;
+
+    private int[] documentOffsets = new int[1024];
+    private int documentCount;
+    private boolean documentsFinished;
+    private long documentOffsetsPosition;
+
+    private final List<String> indexTerms = new ArrayList<String>();
+    private final List<Long> indexPositions = new ArrayList<Long>();
+    private int termCount;
+    private String currentTerm;
+    private long currentPostingsPosition;
+    private int currentDocumentCount;
+    private int previousDocument;
+
+    IndexSegmentWriter(final File file) throws IOException {
+        this.file = file;
+        this.temporaryFile = new File(file.getPath() + IndexFormat.TEMPORARY_SUFFIX);
+        this.dictionaryFile = new File(file.getPath() + ".dictionary" + IndexFormat.TEMPORARY_SUFFIX);
+
+        this.fileOutput = new FileOutputStream(this.temporaryFile);
+        this.output = new CountingOutputStream(new BufferedOutputStream(this.fileOutput, 64 * 1024));
+        this.dictionaryOutput = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(this.dictionaryFile), 64 * 1024));
+
+        final DataOutputStream header = new DataOutputStream(this.output);
+        header.writeInt(IndexFormat.MAGIC);
+        header.writeByte(IndexFormat.VERSION);
+    }
+
+    int getDocumentCount() {
+        return this.documentCount;
+    }
+
+    /**
+     * @return the number of the document within the segment
+     */
+    int addDocument(final IndexedDocument document) throws IOException {
+        addDocumentOffset(this.output.getCount());
+        IndexFormat.writeVarLong(this.output, document.getChatId());
+        IndexFormat.writeVarLong(this.output, document.getSequence());
+        new DataOutputStream(this.output).writeLong(document.getTimestamp());
+        IndexFormat.writeString(this.output, document.getSender());
+        IndexFormat.writeString(this.output, document.getSnippet());
+        return this.documentCount - 1;
+    }
+
+    /**
+     * Copies all of the documents of an existing segment, which are numbered from the current document count.
+     */
+    void copyDocuments(final IndexSegment segment) throws IOException {
+        final long shift = this.output.getCount() - IndexFormat.HEADER_SIZE;
+        segment.copyDocuments(this.output);
+        for (int offset : segment.readDocumentOffsets()) {
+            addDocumentOffset(offset + shift);
+        }
+    }
+
+    private void addDocumentOffset(final long offset) throws IOException {
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Search index segment too large: " + this.file);
+        }
+        if (this.documentCount == this.documentOffsets.length) {
+            this.documentOffsets = Arrays.copyOf(this.documentOffsets, this.documentCount * 2);
+        }
+        this.documentOffsets[this.documentCount++] = (int)offset;
+    }
+
+    private void finishDocuments() throws IOException {
+        if (this.documentsFinished) {
+            return;
+        }
+        this.documentOffsetsPosition = this.output.getCount();
+        final DataOutputStream dataOutput = new DataOutputStream(this.output);
+        for (int index = 0 ; index < this.documentCount ; index++) {
+            dataOutput.writeInt(this.documentOffsets[index]);
+        }
+        this.documentsFinished = true;
+    }
+
+    /**
+     * Starts the postings of the next term, which must come after the previous one.
+     */
+    void startTerm(final String term) throws IOException {
+        finishDocuments();
+        this.currentTerm = term;
+        this.currentPostingsPosition = this.output.getCount();
+        this.currentDocumentCount = 0;
+        this.previousDocument = 0;
+    }
+
+    /**
+     * Adds a document to the postings of the current term.  Documents must be added in increasing order.
+     */
+    void addPosting(final int document, final int frequency) throws IOException {
+        IndexFormat.writeVarLong(this.output, document - this.previousDocument);
+        IndexFormat.writeVarLong(this.output, frequency);
+        this.previousDocument = document;
+        this.currentDocumentCount++;
+    }
+
+    void endTerm() throws IOException {
+        if (this.termCount % IndexFormat.TERM_INDEX_INTERVAL == 0) {
+            this.indexTerms.add(this.currentTerm);
+            this.indexPositions.add(this.dictionaryOutput.getCount());
+        }
+        IndexFormat.writeString(this.dictionaryOutput, this.currentTerm);
+        IndexFormat.writeVarLong(this.dictionaryOutput, this.currentDocumentCount);
+        IndexFormat.writeVarLong(this.dictionaryOutput, this.currentPostingsPosition);
+        IndexFormat.writeVarLong(this.dictionaryOutput, this.output.getCount() - this.currentPostingsPosition);
+        this.termCount++;
+        this.currentTerm = null;
+    }
+
+    /**
+     * Writes the dictionary, term index and footer, and moves the segment into place.
+     */
+    void finish() throws IOException {
+        finishDocuments();
+
+        // the dictionary positions in the term index are relative to the start of the dictionary
+        this.dictionaryOutput.close();
+        final long dictionaryPosition = this.output.getCount();
+        try (final InputStream dictionaryInput = new FileInputStream(this.dictionaryFile)) {
+            final byte[] buffer = new byte[64 * 1024];
+            int count = dictionaryInput.read(buffer);
+            while (count >= 0) {
+                this.output.write(buffer, 0, count);
+                count = dictionaryInput.read(buffer);
+            }
+        }
+
+        final long termIndexPosition = this.output.getCount();
+        for (int index = 0 ; index < this.indexTerms.size() ; index++) {
+            IndexFormat.writeString(this.output, this.indexTerms.get(index));
+            IndexFormat.writeVarLong(this.output, dictionaryPosition + this.indexPositions.get(index));
+        }
+
+        final DataOutputStream footer = new DataOutputStream(this.output);
+        footer.writeInt(this.documentCount);
+        footer.writeInt(this.termCount);
+        footer.writeLong(this.documentOffsetsPosition);
+        footer.writeLong(dictionaryPosition);
+        footer.writeLong(termIndexPosition);
+        footer.writeInt(IndexFormat.MAGIC);
+
+        this.output.flush();
+        this.fileOutput.getFD().sync();
+        this.output.close();
+        this.dictionaryFile.delete();
+
+        if (!this.temporaryFile.renameTo(this.file)) {
+            throw new IOException("Unable to rename " + this.temporaryFile + " to " + this.file);
+        }
+    }
+
+    /**
+     * Discards the partially written segment.
+     */
+    void abort() {
+        try {
+            this.output.close();
+            this.dictionaryOutput.close();
+        } catch (IOException exception) {
+            // ignore - the files are being deleted anyway
+        }
+        this.temporaryFile.delete();
+        this.dictionaryFile.delete();
+    }
+
+    /**
+     * Keeps track of the position in the file, so that it doesn't have to be asked for.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(final OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(final int value) throws IOException {
+            this.out.write(value);
+            this.count++;
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            this.out.write(bytes, offset, length);
+            this.count += length;
+        }
+
+        private long getCount() {
+            return this.count;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.search;
+
+import java.util.Arrays;
+
+/**
+ * The documents that contain a term, in increasing document number order, with the number of times the term
+ * appears in each of them.
+ */
+final class Postings {
+
+    private int[] documents;
+    private int[] frequencies;
+    private int size;
+
+    Postings(final int capacity) {
+        this.documents = new int[Math.max(1, capacity)];
+        this.frequencies = new int[Math.max(1, capacity)];
+    }
+
+    void add(final int document, final int frequency) {
+        if (this.size == this.documents.length) {
+            this.documents = Arrays.copyOf(this.documents, this.size * 2);
+            this.frequencies = Arrays.copyOf(this.frequencies, this.size * 2);
+        }
+        this.documents[this.size] = document;
+        this.frequencies[this.size] = frequency;
+        this.size++;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return a copy of the postings, which is unaffected by any added to these afterwards
+     */
+    Postings copy() {
+        final Postings copy = new Postings(this.size);
+        System.arraycopy(this.documents, 0, copy.documents, 0, this.size);
+        System.arraycopy(this.frequencies, 0, copy.frequencies, 0, this.size);
+        copy.size = this.size;
+        return copy;
+    }
+
+    int getDocument(final int index) {
+        return this.documents[index];
+    }
+
+    int getFrequency(final int index) {
+        return this.frequencies[index];
+    }
+}
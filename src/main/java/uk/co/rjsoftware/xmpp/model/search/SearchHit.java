@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.search;
+
+/**
+ * A message that matched a search.
+ */
+public class SearchHit {
+
+    private final String chatJid;
+    private final long sequence;
+    private final long timestamp;
+    private final String sender;
+    private final String snippet;
+    private final double score;
+
+    public SearchHit(final String chatJid, final long sequence, final long timestamp, final String sender,
+                     final String snippet, final double score) {
+        this.chatJid = chatJid;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.snippet = snippet;
+        this.score = score;
+    }
+
+    public String getChatJid() {
+        return this.chatJid;
+    }
+
+    /**
+     * @return the sequence number of the message in its chat's history
+     */
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public String getSender() {
+        return this.sender;
+    }
+
+    /**
+     * @return the start of the message body
+     */
+    public String getSnippet() {
+        return this.snippet;
+    }
+
+    public double getScore() {
+        return this.score;
+    }
+}
@@ -0,0 +1,784 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.search;
+
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+import uk.co.rjsoftware.xmpp.model.history.ChatHistory;
+import uk.co.rjsoftware.xmpp.model.history.HistoryAppendListener;
+import uk.co.rjsoftware.xmpp.model.history.HistoryRecord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A full text index of the messages in every chat history of the current user, stored as an on-disk inverted
+ * index.  Each message is indexed under the words of its body, the words of its sender's name (prefixed with
+ * <code>from:</code>) and the words of its chat's id (prefixed with <code>in:</code>).
+ *
+ * New messages are indexed as they are appended to the chat histories, into an in-memory buffer that is written
+ * out as a new segment once it is big enough.  Segments never change once written, so searching reads them
+ * without copying them into memory, and a background thread merges the smallest of them together whenever there
+ * are too many.  The index records how far through each chat's history it has got, so any messages that it
+ * missed (e.g. because the application was killed before the buffer was written) are indexed the next time the
+ * chat is opened.
+ *
+ * Searching only locks the index while it takes a copy of the segment list and the buffered messages it needs, so
+ * a slow search never holds up the indexing of new messages, and so the writing of the chat histories.  Segments
+ * aren't closed while a search may still be reading them.
+ */
+public class SearchIndex implements HistoryAppendListener {
+
+    public static final String SEARCH_INDEX_DIR = "search";
+
+    public static final String SENDER_PREFIX = "from:";
+    public static final String CHAT_PREFIX = "in:";
+
+    private static final int MAX_BUFFERED_DOCUMENTS = 20000;
+    private static final int MAX_SEGMENTS = 10;
+    private static final int MERGE_FACTOR = 5;
+    // bigger segments are left alone - they only get merged in to when the history doubles in size
+    private static final long MAX_MERGED_SEGMENT_SIZE = 512 * 1024 * 1024;
+    private static final int SNIPPET_LENGTH = 200;
+    private static final int CATCH_UP_BATCH_SIZE = 1000;
+    // BM25 term frequency saturation
+    private static final double K1 = 1.2;
+
+    private final File directory;
+    private final List<IndexSegment> segments = new ArrayList<IndexSegment>();
+    private final List<String> chatJids = new ArrayList<String>();
+    private final Map<String, Integer> chatIds = new HashMap<String, Integer>();
+    // the sequence of the next message to be indexed from each chat, by chat id
+    private final List<Long> nextSequences = new ArrayList<Long>();
+    private final List<IndexedDocument> bufferedDocuments = new ArrayList<IndexedDocument>();
+    private final Map<String, Postings> bufferedPostings = new HashMap<String, Postings>();
+    private final ExecutorService executor;
+    // held for reading while searching the segments, and for writing while closing them - always taken before the
+    // index's own lock
+    private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+    private long nextGeneration;
+    private boolean closed;
+
+    public SearchIndex(final File directory) {
+        this.directory = directory;
+        this.directory.mkdirs();
+
+        try {
+            load();
+        } catch (IOException | RuntimeException exception) {
+            // the index can always be rebuilt from the chat histories
+            System.out.println("Unable to open search index, rebuilding it: " + exception.getMessage());
+            reset();
+        }
+
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "Search Indexer");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Reads the list of segments and chats, and deletes any files that aren't part of the index - i.e. those left
+     * over from a merge or flush that didn't finish.
+     */
+    private void load() throws IOException {
+        final File stateFile = new File(this.directory, IndexFormat.STATE_FILENAME);
+        final File temporaryStateFile = new File(stateFile.getPath() + IndexFormat.TEMPORARY_SUFFIX);
+        if (!stateFile.exists() && temporaryStateFile.exists()) {
+            // the application stopped while the state was being replaced
+            temporaryStateFile.renameTo(stateFile);
+        }
+
+        final Set<String> liveFilenames = new HashSet<String>();
+        liveFilenames.add(IndexFormat.STATE_FILENAME);
+        if (stateFile.exists()) {
+            try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+                if ((input.readInt() != IndexFormat.MAGIC) || (input.readByte() != IndexFormat.VERSION)) {
+                    throw new IOException("Not a search index: " + stateFile);
+                }
+                this.nextGeneration = input.readLong();
+                final int segmentCount = input.readInt();
+                for (int index = 0 ; index < segmentCount ; index++) {
+                    final long generation = input.readLong();
+                    final String filename = IndexFormat.segmentFilename(generation);
+                    this.segments.add(IndexSegment.open(new File(this.directory, filename), generation));
+                    liveFilenames.add(filename);
+                }
+                final int chatCount = input.readInt();
+                for (int index = 0 ; index < chatCount ; index++) {
+                    final String chatJid = input.readUTF();
+                    this.chatIds.put(chatJid, this.chatJids.size());
+                    this.chatJids.add(chatJid);
+                    this.nextSequences.add(input.readLong());
+                }
+            }
+        }
+
+        final File[] files = this.directory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                if (!liveFilenames.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void reset() {
+        closeSegments();
+        this.chatJids.clear();
+        this.chatIds.clear();
+        this.nextSequences.clear();
+        this.bufferedDocuments.clear();
+        this.bufferedPostings.clear();
+        this.nextGeneration = 0;
+
+        final File[] files = this.directory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the list of segments and chats, replacing the previous list only once the new one is on disk.
+     */
+    private void writeState() throws IOException {
+        final File stateFile = new File(this.directory, IndexFormat.STATE_FILENAME);
+        final File temporaryStateFile = new File(stateFile.getPath() + IndexFormat.TEMPORARY_SUFFIX);
+        final FileOutputStream fileOutput = new FileOutputStream(temporaryStateFile);
+        try (final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput))) {
+            output.writeInt(IndexFormat.MAGIC);
+            output.writeByte(IndexFormat.VERSION);
+            output.writeLong(this.nextGeneration);
+            output.writeInt(this.segments.size());
+            for (IndexSegment segment : this.segments) {
+                output.writeLong(segment.getGeneration());
+            }
+            output.writeInt(this.chatJids.size());
+            for (int index = 0 ; index < this.chatJids.size() ; index++) {
+                output.writeUTF(this.chatJids.get(index));
+                output.writeLong(this.nextSequences.get(index));
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+
+        if ((stateFile.exists() && !stateFile.delete()) || !temporaryStateFile.renameTo(stateFile)) {
+            throw new IOException("Unable to replace " + stateFile + " with " + temporaryStateFile);
+        }
+    }
+
+    private int getChatId(final String chatJid) {
+        Integer chatId = this.chatIds.get(chatJid);
+        if (null == chatId) {
+            chatId = this.chatJids.size();
+            this.chatIds.put(chatJid, chatId);
+            this.chatJids.add(chatJid);
+            this.nextSequences.add(0L);
+        }
+        return chatId;
+    }
+
+    /**
+     * Indexes the messages appended to the log from now on, and any already in it that haven't been indexed yet.
+     */
+    public void register(final ChatHistory log) {
+        log.setAppendListener(this);
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    catchUp(log);
+                } catch (RuntimeException exception) {
+                    System.out.println("Unable to index chat history " + log.getChatJid() + ": " + exception.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Indexes the messages in the log that haven't been indexed yet.  The log is only locked while each batch of
+     * messages is read, so messages can carry on being appended to it - those are ignored by
+     * {@link #messageAppended} until this has caught up, then indexed as they are appended.
+     */
+    private void catchUp(final ChatHistory log) {
+        final String chatJid = log.getChatJid();
+        int indexedCount = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            final long nextSequence;
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                nextSequence = this.nextSequences.get(getChatId(chatJid));
+            }
+
+            final List<HistoryRecord> records = log.readForwards(nextSequence, CATCH_UP_BATCH_SIZE);
+            if (records.isEmpty()) {
+                break;
+            }
+
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                final int chatId = getChatId(chatJid);
+                for (HistoryRecord record : records) {
+                    // some of these may have been appended, and so indexed, since they were read
+                    if (record.getSequence() >= this.nextSequences.get(chatId)) {
+                        addDocument(chatId, record.getSequence(), record.getMessage());
+                        indexedCount++;
+                    }
+                }
+            }
+        }
+
+        if (indexedCount > 0) {
+            System.out.println("Indexed " + indexedCount + " message(s) from " + chatJid);
+        }
+    }
+
+    @Override
+    public synchronized void messageAppended(final ChatHistory log, final long sequence, final CustomMessage message) {
+        if (this.closed) {
+            return;
+        }
+
+        final int chatId = getChatId(log.getChatJid());
+        // anything other than the next message means the index hasn't caught up with this chat yet
+        if (sequence == this.nextSequences.get(chatId)) {
+            addDocument(chatId, sequence, message);
+        }
+    }
+
+    private void addDocument(final int chatId, final long sequence, final CustomMessage message) {
+        final String body = (null == message.getBody()) ? "" : message.getBody();
+        final String sender = (null == message.getSender()) ? "" : message.getSender();
+        final String snippet = (body.length() > SNIPPET_LENGTH) ? body.substring(0, SNIPPET_LENGTH) : body;
+
+        final int document = this.bufferedDocuments.size();
+        this.bufferedDocuments.add(new IndexedDocument(chatId, sequence, message.getTimestamp(), sender, snippet));
+        this.nextSequences.set(chatId, sequence + 1);
+
+        // count the occurrences of each term in the message
+        final Map<String, Integer> frequencies = new LinkedHashMap<String, Integer>();
+        for (String token : Tokenizer.tokenize(body)) {
+            addTerm(frequencies, token);
+        }
+        for (String token : Tokenizer.tokenize(sender)) {
+            addTerm(frequencies, SENDER_PREFIX + token);
+        }
+        for (String token : Tokenizer.tokenize(localPart(this.chatJids.get(chatId)))) {
+            addTerm(frequencies, CHAT_PREFIX + token);
+        }
+
+        for (Map.Entry<String, Integer> frequency : frequencies.entrySet()) {
+            Postings postings = this.bufferedPostings.get(frequency.getKey());
+            if (null == postings) {
+                postings = new Postings(4);
+                this.bufferedPostings.put(frequency.getKey(), postings);
+            }
+            postings.add(document, frequency.getValue());
+        }
+
+        if (this.bufferedDocuments.size() >= MAX_BUFFERED_DOCUMENTS) {
+            try {
+                flush();
+            } catch (RuntimeException exception) {
+                System.out.println("Unable to write search index: " + exception.getMessage());
+            }
+        }
+    }
+
+    private static void addTerm(final Map<String, Integer> frequencies, final String term) {
+        final Integer frequency = frequencies.get(term);
+        frequencies.put(term, (null == frequency) ? 1 : frequency + 1);
+    }
+
+    private static String localPart(final String jid) {
+        final int separator = jid.indexOf('@');
+        return (separator < 0) ? jid : jid.substring(0, separator);
+    }
+
+    /**
+     * Writes the buffered messages out as a new segment.
+     */
+    public synchronized void flush() {
+        if (this.bufferedDocuments.isEmpty()) {
+            return;
+        }
+
+        final long generation = this.nextGeneration++;
+        final File file = new File(this.directory, IndexFormat.segmentFilename(generation));
+        IndexSegmentWriter writer = null;
+        try {
+            writer = new IndexSegmentWriter(file);
+            for (IndexedDocument document : this.bufferedDocuments) {
+                writer.addDocument(document);
+            }
+            for (Map.Entry<String, Postings> term : new TreeMap<String, Postings>(this.bufferedPostings).entrySet()) {
+                writer.startTerm(term.getKey());
+                final Postings postings = term.getValue();
+                for (int index = 0 ; index < postings.size() ; index++) {
+                    writer.addPosting(postings.getDocument(index), postings.getFrequency(index));
+                }
+                writer.endTerm();
+            }
+            writer.finish();
+            writer = null;
+
+            this.segments.add(IndexSegment.open(file, generation));
+            this.bufferedDocuments.clear();
+            this.bufferedPostings.clear();
+            writeState();
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        } finally {
+            if (null != writer) {
+                writer.abort();
+            }
+        }
+
+        if ((this.segments.size() > MAX_SEGMENTS) && !this.closed) {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        merge();
+                    } catch (RuntimeException exception) {
+                        System.out.println("Unable to merge search index: " + exception.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Merges the smallest segments into one.  The segments are merged without the index being locked, as they
+     * never change, and are only replaced by the merged segment once it is complete.
+     */
+    private void merge() {
+        final List<IndexSegment> mergedSegments = new ArrayList<IndexSegment>();
+        final long generation;
+        synchronized (this) {
+            if (this.closed || (this.segments.size() <= MAX_SEGMENTS)) {
+                return;
+            }
+
+            final List<IndexSegment> candidates = new ArrayList<IndexSegment>(this.segments);
+            Collections.sort(candidates, new Comparator<IndexSegment>() {
+                @Override
+                public int compare(final IndexSegment first, final IndexSegment second) {
+                    return Long.compare(first.getLength(), second.getLength());
+                }
+            });
+            for (IndexSegment segment : candidates) {
+                if ((mergedSegments.size() < MERGE_FACTOR) && (segment.getLength() < MAX_MERGED_SEGMENT_SIZE)) {
+                    mergedSegments.add(segment);
+                }
+            }
+            if (mergedSegments.size() < 2) {
+                return;
+            }
+            Collections.sort(mergedSegments);
+            generation = this.nextGeneration++;
+        }
+
+        final File file = new File(this.directory, IndexFormat.segmentFilename(generation));
+        IndexSegmentWriter writer = null;
+        try {
+            writer = new IndexSegmentWriter(file);
+            mergeSegments(mergedSegments, writer);
+            writer.finish();
+            writer = null;
+
+            synchronized (this) {
+                if (this.closed) {
+                    file.delete();
+                    return;
+                }
+                this.segments.removeAll(mergedSegments);
+                this.segments.add(IndexSegment.open(file, generation));
+                Collections.sort(this.segments);
+                writeState();
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        } finally {
+            if (null != writer) {
+                writer.abort();
+            }
+        }
+
+        // wait for any searches that are still reading the merged segments
+        this.segmentsLock.writeLock().lock();
+        try {
+            for (IndexSegment segment : mergedSegments) {
+                try {
+                    segment.close();
+                } catch (IOException exception) {
+                    // ignore - it's being deleted
+                }
+                segment.getFile().delete();
+            }
+        } finally {
+            this.segmentsLock.writeLock().unlock();
+        }
+    }
+
+    private static void mergeSegments(final List<IndexSegment> mergedSegments, final IndexSegmentWriter writer) throws IOException {
+        // the documents of each segment are numbered after those of the segments before it
+        final int[] firstDocuments = new int[mergedSegments.size()];
+        for (int index = 0 ; index < mergedSegments.size() ; index++) {
+            firstDocuments[index] = writer.getDocumentCount();
+            writer.copyDocuments(mergedSegments.get(index));
+        }
+
+        final IndexSegment.TermIterator[] iterators = new IndexSegment.TermIterator[mergedSegments.size()];
+        try {
+            for (int index = 0 ; index < mergedSegments.size() ; index++) {
+                iterators[index] = mergedSegments.get(index).terms();
+            }
+
+            while (true) {
+                String term = null;
+                for (IndexSegment.TermIterator iterator : iterators) {
+                    if ((null != iterator.current()) && ((null == term) || (iterator.current().getTerm().compareTo(term) < 0))) {
+                        term = iterator.current().getTerm();
+                    }
+                }
+                if (null == term) {
+                    break;
+                }
+
+                writer.startTerm(term);
+                for (int index = 0 ; index < iterators.length ; index++) {
+                    final IndexSegment.Term current = iterators[index].current();
+                    if ((null != current) && current.getTerm().equals(term)) {
+                        final Postings postings = mergedSegments.get(index).readPostings(current);
+                        for (int posting = 0 ; posting < postings.size() ; posting++) {
+                            writer.addPosting(firstDocuments[index] + postings.getDocument(posting), postings.getFrequency(posting));
+                        }
+                        iterators[index].next();
+                    }
+                }
+                writer.endTerm();
+            }
+        } finally {
+            for (IndexSegment.TermIterator iterator : iterators) {
+                if (null != iterator) {
+                    iterator.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the messages that contain every word in the query.  Words can be prefixed with <code>from:</code> to
+     * only match the sender, or <code>in:</code> to only match the chat.  The results are ranked using BM25, so
+     * messages that contain the rarer words of the query, or contain them more often, come first.
+     *
+     * @return up to <code>maxHits</code> messages, best match first
+     */
+    public List<SearchHit> search(final String query, final int maxHits) {
+        final List<String> terms = new ArrayList<String>();
+        final List<Boolean> scored = new ArrayList<Boolean>();
+        for (String word : query.trim().split("\\s+")) {
+            String prefix = "";
+            String text = word;
+            for (String filterPrefix : new String[] {SENDER_PREFIX, CHAT_PREFIX}) {
+                if (word.toLowerCase(Locale.ENGLISH).startsWith(filterPrefix)) {
+                    prefix = filterPrefix;
+                    text = word.substring(filterPrefix.length());
+                }
+            }
+            for (String token : Tokenizer.tokenize(text)) {
+                if (!terms.contains(prefix + token)) {
+                    terms.add(prefix + token);
+                    // only the words of the message itself count towards the ranking
+                    scored.add(prefix.isEmpty());
+                }
+            }
+        }
+
+        final List<SearchHit> hits = new ArrayList<SearchHit>();
+        if (terms.isEmpty() || (maxHits <= 0)) {
+            return hits;
+        }
+
+        this.segmentsLock.readLock().lock();
+        try {
+            // take a copy of what is needed, so that messages can carry on being indexed while the segments are read
+            final List<IndexSegment> segments;
+            final List<String> chatJids;
+            final List<IndexedDocument> bufferedDocuments;
+            final Postings[] bufferedPostings = new Postings[terms.size()];
+            synchronized (this) {
+                if (this.closed) {
+                    return hits;
+                }
+                segments = new ArrayList<IndexSegment>(this.segments);
+                chatJids = new ArrayList<String>(this.chatJids);
+                bufferedDocuments = new ArrayList<IndexedDocument>(this.bufferedDocuments);
+                for (int termIndex = 0 ; termIndex < terms.size() ; termIndex++) {
+                    final Postings postings = this.bufferedPostings.get(terms.get(termIndex));
+                    bufferedPostings[termIndex] = (null == postings) ? null : postings.copy();
+                }
+            }
+
+            // the document frequencies are across the whole index, so that scores can be compared between segments
+            final IndexSegment.Term[][] segmentTerms = new IndexSegment.Term[segments.size()][terms.size()];
+            long totalDocuments = bufferedDocuments.size();
+            final long[] documentFrequencies = new long[terms.size()];
+            for (int segmentIndex = 0 ; segmentIndex < segments.size() ; segmentIndex++) {
+                final IndexSegment segment = segments.get(segmentIndex);
+                totalDocuments += segment.getDocumentCount();
+                for (int termIndex = 0 ; termIndex < terms.size() ; termIndex++) {
+                    segmentTerms[segmentIndex][termIndex] = segment.findTerm(terms.get(termIndex));
+                    if (null != segmentTerms[segmentIndex][termIndex]) {
+                        documentFrequencies[termIndex] += segmentTerms[segmentIndex][termIndex].getDocumentCount();
+                    }
+                }
+            }
+
+            final double[] weights = new double[terms.size()];
+            for (int termIndex = 0 ; termIndex < terms.size() ; termIndex++) {
+                if (null != bufferedPostings[termIndex]) {
+                    documentFrequencies[termIndex] += bufferedPostings[termIndex].size();
+                }
+                if (documentFrequencies[termIndex] == 0) {
+                    return hits;
+                }
+                weights[termIndex] = scored.get(termIndex)
+                        ? Math.log(1 + (totalDocuments - documentFrequencies[termIndex] + 0.5) / (documentFrequencies[termIndex] + 0.5))
+                        : 0;
+            }
+
+            final PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>();
+            for (int segmentIndex = 0 ; segmentIndex < segments.size() ; segmentIndex++) {
+                final IndexSegment segment = segments.get(segmentIndex);
+                final Postings[] postings = new Postings[terms.size()];
+                boolean allFound = true;
+                for (int termIndex = 0 ; (termIndex < terms.size()) && allFound ; termIndex++) {
+                    allFound = (null != segmentTerms[segmentIndex][termIndex]);
+                    if (allFound) {
+                        postings[termIndex] = segment.readPostings(segmentTerms[segmentIndex][termIndex]);
+                    }
+                }
+                if (allFound) {
+                    collect(segment, postings, weights, maxHits, candidates);
+                }
+            }
+
+            boolean allBuffered = true;
+            for (int termIndex = 0 ; (termIndex < terms.size()) && allBuffered ; termIndex++) {
+                allBuffered = (null != bufferedPostings[termIndex]);
+            }
+            if (allBuffered) {
+                collect(null, bufferedPostings, weights, maxHits, candidates);
+            }
+
+            for (Candidate candidate : candidates) {
+                final IndexedDocument document = (null == candidate.segment)
+                        ? bufferedDocuments.get(candidate.document)
+                        : candidate.segment.readDocument(candidate.document);
+                hits.add(new SearchHit(chatJids.get(document.getChatId()), document.getSequence(), document.getTimestamp(),
+                        document.getSender(), document.getSnippet(), candidate.score));
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        } finally {
+            this.segmentsLock.readLock().unlock();
+        }
+
+        // best first, then newest first
+        Collections.sort(hits, new Comparator<SearchHit>() {
+            @Override
+            public int compare(final SearchHit first, final SearchHit second) {
+                final int comparison = Double.compare(second.getScore(), first.getScore());
+                return (comparison != 0) ? comparison : Long.compare(second.getTimestamp(), first.getTimestamp());
+            }
+        });
+        return hits;
+    }
+
+    /**
+     * Scores the documents that appear in all of the postings, keeping the best <code>maxHits</code> of them.  The
+     * shortest postings are walked, and the others are advanced to each of its documents in turn, so the cost is
+     * mostly that of reading the postings.
+     */
+    private static void collect(final IndexSegment segment, final Postings[] postings, final double[] weights,
+                                final int maxHits, final PriorityQueue<Candidate> candidates) {
+        int shortest = 0;
+        for (int termIndex = 1 ; termIndex < postings.length ; termIndex++) {
+            if (postings[termIndex].size() < postings[shortest].size()) {
+                shortest = termIndex;
+            }
+        }
+
+        final int[] positions = new int[postings.length];
+        for (int index = 0 ; index < postings[shortest].size() ; index++) {
+            final int document = postings[shortest].getDocument(index);
+            double score = 0;
+            boolean matched = true;
+            for (int termIndex = 0 ; (termIndex < postings.length) && matched ; termIndex++) {
+                final Postings termPostings = postings[termIndex];
+                while ((positions[termIndex] < termPostings.size()) && (termPostings.getDocument(positions[termIndex]) < document)) {
+                    positions[termIndex]++;
+                }
+                if (positions[termIndex] == termPostings.size()) {
+                    // no more documents contain this term
+                    return;
+                }
+                matched = (termPostings.getDocument(positions[termIndex]) == document);
+                if (matched) {
+                    final int frequency = termPostings.getFrequency(positions[termIndex]);
+                    score += weights[termIndex] * (frequency * (K1 + 1)) / (frequency + K1);
+                }
+            }
+
+            if (matched) {
+                final Candidate candidate = new Candidate(segment, document, score);
+                if ((candidates.size() < maxHits) || (candidate.compareTo(candidates.peek()) > 0)) {
+                    candidates.add(candidate);
+                    if (candidates.size() > maxHits) {
+                        candidates.poll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes out the buffered messages and stops indexing.
+     */
+    public void close() {
+        this.executor.shutdownNow();
+        try {
+            this.executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            try {
+                flush();
+            } finally {
+                this.closed = true;
+            }
+        }
+
+        // wait for any searches that are still reading the segments
+        this.segmentsLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                closeSegments();
+            }
+        } finally {
+            this.segmentsLock.writeLock().unlock();
+        }
+    }
+
+    private void closeSegments() {
+        for (IndexSegment segment : this.segments) {
+            try {
+                segment.close();
+            } catch (IOException exception) {
+                System.out.println("Unable to close search index segment " + segment.getFile() + ": " + exception.getMessage());
+            }
+        }
+        this.segments.clear();
+    }
+
+    /**
+     * A document that may be one of the best matches.  Ordered worst first, so that the worst is the one dropped
+     * from the queue.  Documents with the same score are ordered by the segment they are in, then their position
+     * in it, which puts the older messages first.
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+
+        // null for the buffered documents
+        private final IndexSegment segment;
+        private final int document;
+        private final double score;
+
+        private Candidate(final IndexSegment segment, final int document, final double score) {
+            this.segment = segment;
+            this.document = document;
+            this.score = score;
+        }
+
+        private long getGeneration() {
+            return (null == this.segment) ? Long.MAX_VALUE : this.segment.getGeneration();
+        }
+
+        @Override
+        public int compareTo(final Candidate other) {
+            int comparison = Double.compare(this.score, other.score);
+            if (comparison == 0) {
+                comparison = Long.compare(getGeneration(), other.getGeneration());
+            }
+            return (comparison != 0) ? comparison : Integer.compare(this.document, other.document);
+        }
+    }
+}
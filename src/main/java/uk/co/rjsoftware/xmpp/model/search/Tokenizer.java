@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits text into the terms that are indexed and searched for: runs of letters and digits, in lower case.
+ */
+final class Tokenizer {
+
+    // longer tokens are almost always URLs or pasted data, which nobody searches for
+    static final int MAX_TOKEN_LENGTH = 40;
+
+    private Tokenizer() {
+        // empty private constructor to prevent instantiation
+    }
+
+    static List<String> tokenize(final String text) {
+        final List<String> tokens = new ArrayList<String>();
+        if (null == text) {
+            return tokens;
+        }
+
+        int start = -1;
+        for (int index = 0 ; index <= text.length() ; index++) {
+            final boolean wordCharacter = (index < text.length()) && Character.isLetterOrDigit(text.charAt(index));
+            if (wordCharacter && (start < 0)) {
+                start = index;
+            }
+            else if (!wordCharacter && (start >= 0)) {
+                if (index - start <= MAX_TOKEN_LENGTH) {
+                    tokens.add(text.substring(start, index).toLowerCase(Locale.ENGLISH));
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
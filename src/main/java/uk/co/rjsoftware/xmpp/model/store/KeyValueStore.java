@@ -0,0 +1,669 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded key-value store, kept in a single file, in the style of a log-structured merge tree.  Keys and values
+ * are byte arrays, and keys are ordered by comparing their bytes as unsigned values.
+ *
+ * Each put is appended to the end of the file, as a log entry, and added to an in-memory table.  Once that table
+ * grows past {@link #MAX_MEMTABLE_SIZE} (by default) it is written out, after the log entries, as a {@link SortedRun}, and the
+ * log entries before it are no longer needed.  When there are more than {@link #MAX_RUNS} runs, the whole store is
+ * rewritten as a single run in a new file, which then replaces this one.  Nothing is ever deleted.
+ *
+ * The file starts with a header of:
+ *
+ * <pre>
+ *     int   magic number - "YAKV"
+ *     byte  format version
+ *     two superblock slots, each of:
+ *         long  generation
+ *         long  position of the manifest, or -1 if there isn't one
+ *         long  position of the first log entry that is not in a run
+ *         int   CRC32 of the above
+ * </pre>
+ *
+ * followed by frames of:
+ *
+ * <pre>
+ *     byte  type
+ *     int   payload length
+ *     bytes payload
+ *     int   CRC32 of the type and payload
+ * </pre>
+ *
+ * A manifest frame lists the positions of the runs' index frames, oldest first, and a log entry frame is a varint
+ * key length, the key, and the value.  The superblock slots are written alternately, and the one with the highest
+ * generation is current, so a flush that is interrupted part way through leaves the previous one in place.  When
+ * the store is opened, the log entries after the current superblock's position are added back into the table, up
+ * to the first frame that is incomplete or fails its checksum.
+ */
+public class KeyValueStore implements Closeable {
+
+    static final int BLOCK_SIZE = 16 * 1024;
+    static final long MAX_MEMTABLE_SIZE = 4 * 1024 * 1024;
+    static final int MAX_RUNS = 8;
+
+    static final byte FRAME_PUT = 1;
+    static final byte FRAME_BLOCK = 2;
+    static final byte FRAME_RUN_INDEX = 3;
+    static final byte FRAME_MANIFEST = 4;
+
+    private static final int MAGIC = 0x59414B56; // "YAKV"
+    private static final byte VERSION = 1;
+    private static final int SLOT_SIZE = 8 + 8 + 8 + 4;
+    private static final int HEADER_SIZE = 4 + 1 + (2 * SLOT_SIZE);
+    private static final int FRAME_HEADER_SIZE = 1 + 4;
+    // the log entries are written to the file once this many bytes are waiting, even if the store isn't flushed
+    private static final int MAX_UNWRITTEN_SIZE = 64 * 1024;
+    private static final String COMPACTING_SUFFIX = ".compacting";
+
+    private static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(final byte[] first, final byte[] second) {
+            return compareKeys(first, second);
+        }
+    };
+
+    private final File file;
+    private final long maxMemtableSize;
+    private final CRC32 crc = new CRC32();
+    private final FrameBuffer logEntry = new FrameBuffer();
+    // log entries that have been put, but not yet written to the file
+    private final FrameBuffer unwritten = new FrameBuffer();
+    private final TreeMap<byte[], byte[]> memtable = new TreeMap<byte[], byte[]>(KEY_ORDER);
+    // the runs, oldest first
+    private final List<SortedRun> runs = new ArrayList<SortedRun>();
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private long memtableSize;
+    // where the next frame will be written
+    private long size;
+    private long generation;
+    private int nextSlot;
+
+    public KeyValueStore(final File file) throws IOException {
+        this(file, MAX_MEMTABLE_SIZE);
+    }
+
+    /**
+     * @param maxMemtableSize the size the memtable can grow to before it is written out as a run
+     */
+    KeyValueStore(final File file, final long maxMemtableSize) throws IOException {
+        this.file = file;
+        this.maxMemtableSize = maxMemtableSize;
+        new File(file.getPath() + COMPACTING_SUFFIX).delete();
+        open();
+    }
+
+    private void open() throws IOException {
+        final boolean exists = this.file.exists() && (this.file.length() >= HEADER_SIZE);
+        if (null != this.file.getParentFile()) {
+            this.file.getParentFile().mkdirs();
+        }
+        this.randomAccessFile = new RandomAccessFile(this.file, "rw");
+        this.channel = this.randomAccessFile.getChannel();
+
+        if (!exists) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.put(VERSION);
+            header.flip();
+            this.channel.truncate(0);
+            this.channel.write(header, 0);
+            this.size = HEADER_SIZE;
+            this.generation = 0;
+            this.nextSlot = 0;
+            writeSuperblock(-1, HEADER_SIZE);
+            this.channel.force(false);
+            return;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        if ((header.getInt(0) != MAGIC) || (header.get(4) != VERSION)) {
+            throw new IOException("Not a key-value store: " + this.file);
+        }
+
+        long manifestPosition = -1;
+        long logStart = HEADER_SIZE;
+        this.generation = -1;
+        for (int slot = 0 ; slot < 2 ; slot++) {
+            final int offset = 5 + (slot * SLOT_SIZE);
+            final long slotGeneration = header.getLong(offset);
+            this.crc.reset();
+            this.crc.update(header.array(), offset, SLOT_SIZE - 4);
+            if ((header.getInt(offset + SLOT_SIZE - 4) == (int)this.crc.getValue()) && (slotGeneration > this.generation)) {
+                this.generation = slotGeneration;
+                manifestPosition = header.getLong(offset + 8);
+                logStart = header.getLong(offset + 16);
+                this.nextSlot = 1 - slot;
+            }
+        }
+        if (this.generation < 0) {
+            throw new IOException("No valid superblock in " + this.file);
+        }
+
+        if (manifestPosition >= 0) {
+            final ByteBuffer manifest = readFrame(manifestPosition, FRAME_MANIFEST);
+            final int runCount = (int)readVarInt(manifest);
+            for (int run = 0 ; run < runCount ; run++) {
+                this.runs.add(SortedRun.read(this, manifest.getLong()));
+            }
+        }
+
+        replayLog(logStart);
+    }
+
+    /**
+     * Adds the log entries from the position onwards back into the memtable, and removes anything after the last
+     * valid frame.
+     */
+    private void replayLog(final long logStart) throws IOException {
+        final long length = this.channel.size();
+        final ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        long position = logStart;
+        while (position + FRAME_HEADER_SIZE <= length) {
+            frameHeader.clear();
+            readFully(frameHeader, position);
+            final byte type = frameHeader.get(0);
+            final int payloadLength = frameHeader.getInt(1);
+            if ((payloadLength < 0) || (position + FRAME_HEADER_SIZE + payloadLength + 4 > length)) {
+                break;
+            }
+
+            final ByteBuffer payload = readFrameIfValid(position, type, payloadLength);
+            if (null == payload) {
+                break;
+            }
+            if (type == FRAME_PUT) {
+                final byte[] key = readBytes(payload);
+                final byte[] value = new byte[payload.remaining()];
+                payload.get(value);
+                putInMemtable(key, value);
+            }
+            // the blocks and indexes of a run that was never added to the manifest are simply skipped
+            position += FRAME_HEADER_SIZE + payloadLength + 4;
+        }
+
+        if (position < length) {
+            System.out.println("Truncating partially written key-value store: " + this.file);
+            this.channel.truncate(position);
+        }
+        this.size = position;
+    }
+
+    private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            final int read = this.channel.read(buffer, current);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + this.file + " at " + current);
+            }
+            current += read;
+        }
+        buffer.flip();
+    }
+
+    private ByteBuffer readFrameIfValid(final long position, final byte type, final int payloadLength) throws IOException {
+        final ByteBuffer frame = ByteBuffer.allocate(payloadLength + 4);
+        readFully(frame, position + FRAME_HEADER_SIZE);
+        this.crc.reset();
+        this.crc.update(type);
+        this.crc.update(frame.array(), 0, payloadLength);
+        if (frame.getInt(payloadLength) != (int)this.crc.getValue()) {
+            return null;
+        }
+        frame.limit(payloadLength);
+        return frame;
+    }
+
+    /**
+     * @return the payload of the frame at the given position, which must be of the given type
+     */
+    ByteBuffer readFrame(final long position, final byte expectedType) throws IOException {
+        final ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        readFully(frameHeader, position);
+        final byte type = frameHeader.get(0);
+        final int payloadLength = frameHeader.getInt(1);
+        if ((type != expectedType) || (payloadLength < 0)) {
+            throw new IOException("Expected a frame of type " + expectedType + " at " + position + " in " + this.file);
+        }
+
+        final ByteBuffer payload = readFrameIfValid(position, type, payloadLength);
+        if (null == payload) {
+            throw new IOException("Corrupt frame at " + position + " in " + this.file);
+        }
+        return payload;
+    }
+
+    /**
+     * Writes a frame at the end of the file.
+     *
+     * @return the position of the frame
+     */
+    long writeFrame(final byte type, final FrameBuffer payload) throws IOException {
+        writeUnwritten();
+        final FrameBuffer frame = new FrameBuffer();
+        appendFrame(frame, type, payload);
+        final long position = this.size;
+        this.channel.write(ByteBuffer.wrap(frame.array(), 0, frame.size()), position);
+        this.size += frame.size();
+        return position;
+    }
+
+    private void appendFrame(final FrameBuffer frame, final byte type, final FrameBuffer payload) {
+        this.crc.reset();
+        this.crc.update(type);
+        this.crc.update(payload.array(), 0, payload.size());
+
+        frame.putByte(type);
+        frame.putInt(payload.size());
+        frame.putRaw(payload.array(), 0, payload.size());
+        frame.putInt((int)this.crc.getValue());
+    }
+
+    private void writeUnwritten() throws IOException {
+        if (this.unwritten.size() > 0) {
+            this.channel.write(ByteBuffer.wrap(this.unwritten.array(), 0, this.unwritten.size()), this.size);
+            this.size += this.unwritten.size();
+            this.unwritten.reset();
+        }
+    }
+
+    private void writeSuperblock(final long manifestPosition, final long logStart) throws IOException {
+        this.generation++;
+        final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        slot.putLong(this.generation);
+        slot.putLong(manifestPosition);
+        slot.putLong(logStart);
+        this.crc.reset();
+        this.crc.update(slot.array(), 0, SLOT_SIZE - 4);
+        slot.putInt((int)this.crc.getValue());
+        slot.flip();
+        this.channel.write(slot, 5 + (this.nextSlot * SLOT_SIZE));
+        this.nextSlot = 1 - this.nextSlot;
+    }
+
+    public synchronized void put(final byte[] key, final byte[] value) throws IOException {
+        this.logEntry.reset();
+        this.logEntry.putBytes(key);
+        this.logEntry.putRaw(value, 0, value.length);
+        appendFrame(this.unwritten, FRAME_PUT, this.logEntry);
+        putInMemtable(key, value);
+
+        if (this.memtableSize >= this.maxMemtableSize) {
+            flushMemtable();
+        }
+        else if (this.unwritten.size() >= MAX_UNWRITTEN_SIZE) {
+            writeUnwritten();
+        }
+    }
+
+    private void putInMemtable(final byte[] key, final byte[] value) {
+        final byte[] oldValue = this.memtable.put(key, value);
+        this.memtableSize += value.length - ((null == oldValue) ? -key.length : oldValue.length);
+    }
+
+    synchronized int getRunCount() {
+        return this.runs.size();
+    }
+
+    /**
+     * @return the value, or null if there isn't one for the key
+     */
+    public synchronized byte[] get(final byte[] key) throws IOException {
+        final byte[] value = this.memtable.get(key);
+        if (null != value) {
+            return value;
+        }
+
+        for (int run = this.runs.size() - 1 ; run >= 0 ; run--) {
+            final byte[] runValue = this.runs.get(run).get(key);
+            if (null != runValue) {
+                return runValue;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the entries with keys from <code>fromKey</code> (inclusive) to <code>toKey</code> (exclusive), in key
+     * order
+     */
+    public synchronized SortedMap<byte[], byte[]> scan(final byte[] fromKey, final byte[] toKey) throws IOException {
+        final SortedMap<byte[], byte[]> results = new TreeMap<byte[], byte[]>(KEY_ORDER);
+        // newer values replace older ones
+        for (SortedRun run : this.runs) {
+            run.scan(fromKey, toKey, results);
+        }
+        results.putAll(this.memtable.subMap(fromKey, toKey));
+        return results;
+    }
+
+    /**
+     * Writes the log entries that have been put to the file, without forcing them to disk.
+     */
+    public synchronized void flush() throws IOException {
+        writeUnwritten();
+    }
+
+    /**
+     * Writes the log entries that have been put to the file, and forces them to disk.
+     */
+    public synchronized void sync() throws IOException {
+        writeUnwritten();
+        this.channel.force(false);
+    }
+
+    /**
+     * Writes the memtable out as a new run.
+     */
+    private void flushMemtable() throws IOException {
+        writeUnwritten();
+        if (this.memtable.isEmpty()) {
+            return;
+        }
+
+        final Iterator<Map.Entry<byte[], byte[]>> entries = this.memtable.entrySet().iterator();
+        this.runs.add(SortedRun.write(this, new SortedRun.EntryIterator() {
+            private Map.Entry<byte[], byte[]> entry;
+
+            @Override
+            public boolean next() {
+                this.entry = entries.hasNext() ? entries.next() : null;
+                return null != this.entry;
+            }
+
+            @Override
+            public byte[] key() {
+                return this.entry.getKey();
+            }
+
+            @Override
+            public byte[] value() {
+                return this.entry.getValue();
+            }
+        }));
+        writeManifest();
+
+        this.memtable.clear();
+        this.memtableSize = 0;
+
+        if (this.runs.size() > MAX_RUNS) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes a manifest listing the current runs, and makes it current.
+     */
+    private void writeManifest() throws IOException {
+        final FrameBuffer manifest = new FrameBuffer();
+        manifest.putVarInt(this.runs.size());
+        for (SortedRun run : this.runs) {
+            manifest.putLong(run.getIndexPosition());
+        }
+        final long manifestPosition = writeFrame(FRAME_MANIFEST, manifest);
+
+        // the runs must be on disk before the superblock refers to them
+        this.channel.force(false);
+        writeSuperblock(manifestPosition, this.size);
+        this.channel.force(false);
+    }
+
+    /**
+     * Rewrites the store as a single run in a new file, leaving out the values that have been replaced and the
+     * log entries that have already been written to runs, and then replaces this file with it.
+     */
+    private void compact() throws IOException {
+        final File compactingFile = new File(this.file.getPath() + COMPACTING_SUFFIX);
+        final KeyValueStore compacted = new KeyValueStore(compactingFile, this.maxMemtableSize);
+        try {
+            compacted.runs.add(SortedRun.write(compacted, new MergingIterator(this.runs)));
+            compacted.writeManifest();
+        } finally {
+            compacted.close();
+        }
+
+        this.channel.close();
+        this.runs.clear();
+        Files.move(compactingFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        open();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            this.channel.close();
+            this.randomAccessFile.close();
+        }
+    }
+
+    static int compareKeys(final byte[] first, final byte[] second) {
+        final int length = Math.min(first.length, second.length);
+        for (int index = 0 ; index < length ; index++) {
+            final int difference = (first[index] & 0xFF) - (second[index] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return first.length - second.length;
+    }
+
+    static long readVarInt(final ByteBuffer buffer) {
+        long result = 0;
+        int shift = 0;
+        while (true) {
+            final byte current = buffer.get();
+            result |= (long)(current & 0x7F) << shift;
+            if ((current & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+    }
+
+    static byte[] readBytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[(int)readVarInt(buffer)];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Merges runs into a single sequence of entries in key order, taking the value from the newest run when a key
+     * is in more than one of them.
+     */
+    private static final class MergingIterator implements SortedRun.EntryIterator {
+
+        private final PriorityQueue<RunCursor> cursors = new PriorityQueue<RunCursor>();
+        private final List<SortedRun> runs;
+        private boolean started;
+        private byte[] key;
+        private byte[] value;
+
+        private MergingIterator(final List<SortedRun> runs) {
+            this.runs = runs;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (!this.started) {
+                this.started = true;
+                for (int run = 0 ; run < this.runs.size() ; run++) {
+                    final RunCursor cursor = new RunCursor(this.runs.get(run).iterator(), run);
+                    if (cursor.iterator.next()) {
+                        this.cursors.add(cursor);
+                    }
+                }
+            }
+
+            final RunCursor newest = this.cursors.poll();
+            if (null == newest) {
+                return false;
+            }
+            this.key = newest.iterator.key();
+            this.value = newest.iterator.value();
+            advance(newest);
+
+            // skip the same key in the older runs
+            while (!this.cursors.isEmpty() && (compareKeys(this.cursors.peek().iterator.key(), this.key) == 0)) {
+                advance(this.cursors.poll());
+            }
+            return true;
+        }
+
+        private void advance(final RunCursor cursor) throws IOException {
+            if (cursor.iterator.next()) {
+                this.cursors.add(cursor);
+            }
+        }
+
+        @Override
+        public byte[] key() {
+            return this.key;
+        }
+
+        @Override
+        public byte[] value() {
+            return this.value;
+        }
+    }
+
+    private static final class RunCursor implements Comparable<RunCursor> {
+
+        private final SortedRun.EntryIterator iterator;
+        // higher is newer
+        private final int age;
+
+        private RunCursor(final SortedRun.EntryIterator iterator, final int age) {
+            this.iterator = iterator;
+            this.age = age;
+        }
+
+        @Override
+        public int compareTo(final RunCursor other) {
+            final int comparison = compareKeys(this.iterator.key(), other.iterator.key());
+            // for the same key, the newest run comes first
+            return (comparison != 0) ? comparison : Integer.compare(other.age, this.age);
+        }
+    }
+
+    /**
+     * A reusable, growable byte buffer used to build frames.
+     */
+    static final class FrameBuffer {
+
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        void reset() {
+            this.size = 0;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        byte[] array() {
+            return this.bytes;
+        }
+
+        private void ensureCapacity(final int additional) {
+            if (this.size + additional > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + additional));
+            }
+        }
+
+        void putByte(final int value) {
+            ensureCapacity(1);
+            this.bytes[this.size++] = (byte)value;
+        }
+
+        void putInt(final int value) {
+            ensureCapacity(4);
+            this.bytes[this.size++] = (byte)(value >>> 24);
+            this.bytes[this.size++] = (byte)(value >>> 16);
+            this.bytes[this.size++] = (byte)(value >>> 8);
+            this.bytes[this.size++] = (byte)value;
+        }
+
+        void putLong(final long value) {
+            putInt((int)(value >>> 32));
+            putInt((int)value);
+        }
+
+        void putVarInt(final long value) {
+            ensureCapacity(10);
+            long remaining = value;
+            while ((remaining & ~0x7FL) != 0) {
+                this.bytes[this.size++] = (byte)((remaining & 0x7F) | 0x80);
+                remaining >>>= 7;
+            }
+            this.bytes[this.size++] = (byte)remaining;
+        }
+
+        void putRaw(final byte[] value, final int offset, final int length) {
+            ensureCapacity(length);
+            System.arraycopy(value, offset, this.bytes, this.size, length);
+            this.size += length;
+        }
+
+        /**
+         * Puts the bytes, preceded by their length.
+         */
+        void putBytes(final byte[] value) {
+            putVarInt(value.length);
+            putRaw(value, 0, value.length);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * A sorted run of entries in a {@link KeyValueStore}, written when the memtable is flushed, or when the runs are
+ * merged.  The entries are stored in blocks of about {@link KeyValueStore#BLOCK_SIZE} bytes, each of which is a
+ * frame of its own:
+ *
+ * <pre>
+ *     varint key length, key, varint value length, value    (repeated)
+ * </pre>
+ *
+ * followed by an index frame, which is all that is kept in memory:
+ *
+ * <pre>
+ *     varint block count
+ *     for each block:  varint key length, first key in the block, long position of the block frame
+ * </pre>
+ */
+final class SortedRun {
+
+    private final KeyValueStore store;
+    // the position of the index frame
+    private final long indexPosition;
+    private final byte[][] firstKeys;
+    private final long[] blockPositions;
+
+    private SortedRun(final KeyValueStore store, final long indexPosition, final byte[][] firstKeys, final long[] blockPositions) {
+        this.store = store;
+        this.indexPosition = indexPosition;
+        this.firstKeys = firstKeys;
+        this.blockPositions = blockPositions;
+    }
+
+    long getIndexPosition() {
+        return this.indexPosition;
+    }
+
+    static SortedRun read(final KeyValueStore store, final long indexPosition) throws IOException {
+        final ByteBuffer index = store.readFrame(indexPosition, KeyValueStore.FRAME_RUN_INDEX);
+        final int blockCount = (int)KeyValueStore.readVarInt(index);
+        final byte[][] firstKeys = new byte[blockCount][];
+        final long[] blockPositions = new long[blockCount];
+        for (int block = 0 ; block < blockCount ; block++) {
+            firstKeys[block] = KeyValueStore.readBytes(index);
+            blockPositions[block] = index.getLong();
+        }
+        return new SortedRun(store, indexPosition, firstKeys, blockPositions);
+    }
+
+    /**
+     * Writes the entries as a new run, starting at the end of the store.
+     */
+    static SortedRun write(final KeyValueStore store, final EntryIterator entries) throws IOException {
+        final Builder builder = new Builder(store);
+        while (entries.next()) {
+            builder.add(entries.key(), entries.value());
+        }
+        return builder.finish();
+    }
+
+    /**
+     * @return the index of the block that would contain the key, or -1 if the key is before the first block
+     */
+    private int findBlock(final byte[] key) {
+        int low = 0;
+        int high = this.firstKeys.length - 1;
+        int result = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (KeyValueStore.compareKeys(this.firstKeys[middle], key) <= 0) {
+                result = middle;
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    byte[] get(final byte[] key) throws IOException {
+        final int block = findBlock(key);
+        if (block < 0) {
+            return null;
+        }
+
+        final ByteBuffer entries = this.store.readFrame(this.blockPositions[block], KeyValueStore.FRAME_BLOCK);
+        while (entries.hasRemaining()) {
+            final byte[] entryKey = KeyValueStore.readBytes(entries);
+            final int valueLength = (int)KeyValueStore.readVarInt(entries);
+            final int comparison = KeyValueStore.compareKeys(entryKey, key);
+            if (comparison == 0) {
+                final byte[] value = new byte[valueLength];
+                entries.get(value);
+                return value;
+            }
+            if (comparison > 0) {
+                break;
+            }
+            entries.position(entries.position() + valueLength);
+        }
+        return null;
+    }
+
+    /**
+     * Adds the entries with keys from <code>fromKey</code> (inclusive) to <code>toKey</code> (exclusive) to the
+     * results, replacing any that are already there.
+     */
+    void scan(final byte[] fromKey, final byte[] toKey, final SortedMap<byte[], byte[]> results) throws IOException {
+        for (int block = Math.max(0, findBlock(fromKey)) ; block < this.blockPositions.length ; block++) {
+            if (KeyValueStore.compareKeys(this.firstKeys[block], toKey) >= 0) {
+                return;
+            }
+
+            final ByteBuffer entries = this.store.readFrame(this.blockPositions[block], KeyValueStore.FRAME_BLOCK);
+            while (entries.hasRemaining()) {
+                final byte[] key = KeyValueStore.readBytes(entries);
+                if (KeyValueStore.compareKeys(key, toKey) >= 0) {
+                    return;
+                }
+                final byte[] value = KeyValueStore.readBytes(entries);
+                if (KeyValueStore.compareKeys(key, fromKey) >= 0) {
+                    results.put(key, value);
+                }
+            }
+        }
+    }
+
+    EntryIterator iterator() {
+        return new RunIterator();
+    }
+
+    /**
+     * Iterates over the entries in key order.  Unlike a java.util.Iterator, the key and value of the current entry
+     * are read separately.
+     */
+    interface EntryIterator {
+
+        /**
+         * Moves to the next entry.
+         *
+         * @return false if there are no more entries
+         */
+        boolean next() throws IOException;
+
+        byte[] key();
+
+        byte[] value();
+    }
+
+    /**
+     * Reads the run a block at a time.
+     */
+    private final class RunIterator implements EntryIterator {
+
+        private int nextBlock;
+        private ByteBuffer entries;
+        private byte[] key;
+        private byte[] value;
+
+        @Override
+        public boolean next() throws IOException {
+            while ((null == this.entries) || !this.entries.hasRemaining()) {
+                if (this.nextBlock >= SortedRun.this.blockPositions.length) {
+                    return false;
+                }
+                this.entries = SortedRun.this.store.readFrame(SortedRun.this.blockPositions[this.nextBlock++], KeyValueStore.FRAME_BLOCK);
+            }
+            this.key = KeyValueStore.readBytes(this.entries);
+            this.value = KeyValueStore.readBytes(this.entries);
+            return true;
+        }
+
+        @Override
+        public byte[] key() {
+            return this.key;
+        }
+
+        @Override
+        public byte[] value() {
+            return this.value;
+        }
+    }
+
+    /**
+     * Writes the blocks of a run as its entries are added, in key order, then its index.
+     */
+    private static final class Builder {
+
+        private final KeyValueStore store;
+        private final KeyValueStore.FrameBuffer block = new KeyValueStore.FrameBuffer();
+        private final KeyValueStore.FrameBuffer index = new KeyValueStore.FrameBuffer();
+        private final List<byte[]> firstKeys = new ArrayList<byte[]>();
+        private long[] blockPositions = new long[16];
+        private byte[] firstKeyInBlock;
+
+        private Builder(final KeyValueStore store) {
+            this.store = store;
+        }
+
+        private void add(final byte[] key, final byte[] value) throws IOException {
+            if (null == this.firstKeyInBlock) {
+                this.firstKeyInBlock = key;
+            }
+            this.block.putBytes(key);
+            this.block.putBytes(value);
+            if (this.block.size() >= KeyValueStore.BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (this.firstKeys.size() == this.blockPositions.length) {
+                this.blockPositions = Arrays.copyOf(this.blockPositions, this.blockPositions.length * 2);
+            }
+            this.blockPositions[this.firstKeys.size()] = this.store.writeFrame(KeyValueStore.FRAME_BLOCK, this.block);
+            this.firstKeys.add(this.firstKeyInBlock);
+            this.block.reset();
+            this.firstKeyInBlock = null;
+        }
+
+        private SortedRun finish() throws IOException {
+            if (this.block.size() > 0) {
+                writeBlock();
+            }
+
+            final int blockCount = this.firstKeys.size();
+            this.index.putVarInt(blockCount);
+            for (int block = 0 ; block < blockCount ; block++) {
+                this.index.putBytes(this.firstKeys.get(block));
+                this.index.putLong(this.blockPositions[block]);
+            }
+            final long indexPosition = this.store.writeFrame(KeyValueStore.FRAME_RUN_INDEX, this.index);
+
+            return new SortedRun(this.store, indexPosition, this.firstKeys.toArray(new byte[blockCount][]),
+                    Arrays.copyOf(this.blockPositions, blockCount));
+        }
+    }
+}
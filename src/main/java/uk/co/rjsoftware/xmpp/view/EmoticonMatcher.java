@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import uk.co.rjsoftware.xmpp.model.Emoticon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the emoticon shortcuts in a message body in a single pass, however many emoticons there are, using an
+ * Aho-Corasick automaton built from the shortcuts.  The automaton is built once for a list of emoticons - see
+ * {@link #getEmoticons()} - and can then be used from any thread.
+ * <p>
+ * Each state of the automaton is a prefix of one or more shortcuts.  Its transitions are kept as a sorted run of
+ * characters (and the states they lead to) in shared arrays, with a direct lookup table for the ASCII transitions out
+ * of the root, which is where the scan spends most of its time.
+ */
+final class EmoticonMatcher {
+
+    private static final int ROOT = 0;
+    private static final int NO_STATE = -1;
+    private static final int ROOT_TABLE_SIZE = 128;
+
+    private final List<Emoticon> emoticons;
+    private final Emoticon[] emoticonArray;
+
+    // the transitions out of state s are transitionCharacters/transitionTargets[firstTransition[s]] up to
+    // [firstTransition[s + 1]], sorted by character
+    private final int[] firstTransition;
+    private final char[] transitionCharacters;
+    private final int[] transitionTargets;
+    private final int[] rootTransitions = new int[ROOT_TABLE_SIZE];
+    // the longest proper suffix of the state's prefix that is also a state
+    private final int[] failure;
+    // the emoticon whose shortcut is the state's prefix, or -1
+    private final int[] output;
+    // the nearest state along the failure links with an emoticon, or -1
+    private final int[] outputLink;
+    private final int[] depth;
+
+    EmoticonMatcher(final List<Emoticon> emoticons) {
+        this.emoticons = emoticons;
+        this.emoticonArray = emoticons.toArray(new Emoticon[emoticons.size()]);
+
+        // build a trie of the shortcuts
+        final List<Map<Character, Integer>> trie = new ArrayList<Map<Character, Integer>>();
+        final List<Integer> trieOutput = new ArrayList<Integer>();
+        trie.add(new HashMap<Character, Integer>());
+        trieOutput.add(NO_STATE);
+        for (int index = 0 ; index < this.emoticonArray.length ; index++) {
+            final String shortcut = this.emoticonArray[index].getShortcut();
+            if (shortcut.isEmpty()) {
+                continue;
+            }
+
+            int state = ROOT;
+            for (int position = 0 ; position < shortcut.length() ; position++) {
+                Integer next = trie.get(state).get(shortcut.charAt(position));
+                if (null == next) {
+                    next = trie.size();
+                    trie.add(new HashMap<Character, Integer>());
+                    trieOutput.add(NO_STATE);
+                    trie.get(state).put(shortcut.charAt(position), next);
+                }
+                state = next;
+            }
+            // where shortcuts are duplicated, the first one wins
+            if (trieOutput.get(state) == NO_STATE) {
+                trieOutput.set(state, index);
+            }
+        }
+
+        // flatten the trie into sorted runs of transitions
+        final int stateCount = trie.size();
+        int transitionCount = 0;
+        for (Map<Character, Integer> transitions : trie) {
+            transitionCount += transitions.size();
+        }
+        this.firstTransition = new int[stateCount + 1];
+        this.transitionCharacters = new char[transitionCount];
+        this.transitionTargets = new int[transitionCount];
+        this.output = new int[stateCount];
+        int transitionIndex = 0;
+        for (int state = 0 ; state < stateCount ; state++) {
+            this.firstTransition[state] = transitionIndex;
+            this.output[state] = trieOutput.get(state);
+            final Character[] characters = trie.get(state).keySet().toArray(new Character[trie.get(state).size()]);
+            Arrays.sort(characters);
+            for (Character character : characters) {
+                this.transitionCharacters[transitionIndex] = character;
+                this.transitionTargets[transitionIndex] = trie.get(state).get(character);
+                transitionIndex++;
+            }
+        }
+        this.firstTransition[stateCount] = transitionIndex;
+
+        Arrays.fill(this.rootTransitions, NO_STATE);
+        for (int transition = this.firstTransition[ROOT] ; transition < this.firstTransition[ROOT + 1] ; transition++) {
+            if (this.transitionCharacters[transition] < ROOT_TABLE_SIZE) {
+                this.rootTransitions[this.transitionCharacters[transition]] = this.transitionTargets[transition];
+            }
+        }
+
+        // work out the failure and output links, a level of the trie at a time
+        this.failure = new int[stateCount];
+        this.outputLink = new int[stateCount];
+        this.depth = new int[stateCount];
+        this.outputLink[ROOT] = NO_STATE;
+        final int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = ROOT;
+        while (head < tail) {
+            final int state = queue[head++];
+            for (int transition = this.firstTransition[state] ; transition < this.firstTransition[state + 1] ; transition++) {
+                final int next = this.transitionTargets[transition];
+                this.depth[next] = this.depth[state] + 1;
+                if (state == ROOT) {
+                    this.failure[next] = ROOT;
+                }
+                else {
+                    this.failure[next] = step(this.failure[state], this.transitionCharacters[transition]);
+                }
+                final int failureState = this.failure[next];
+                this.outputLink[next] = (this.output[failureState] != NO_STATE) ? failureState : this.outputLink[failureState];
+                queue[tail++] = next;
+            }
+        }
+    }
+
+    /**
+     * @return the emoticons that this was built from
+     */
+    List<Emoticon> getEmoticons() {
+        return this.emoticons;
+    }
+
+    /**
+     * Finds every emoticon shortcut in the text, including those that overlap.
+     *
+     * @return for each index of the text, the emoticon with the longest shortcut starting there, or null if none does
+     * - or null instead of the array, if there are no shortcuts in the text at all
+     */
+    Emoticon[] findEmoticons(final String text) {
+        Emoticon[] found = null;
+        int state = ROOT;
+        for (int index = 0 ; index < text.length() ; index++) {
+            state = step(state, text.charAt(index));
+
+            int matchState = (this.output[state] != NO_STATE) ? state : this.outputLink[state];
+            while (matchState != NO_STATE) {
+                final Emoticon emoticon = this.emoticonArray[this.output[matchState]];
+                final int start = index - this.depth[matchState] + 1;
+                if (null == found) {
+                    found = new Emoticon[text.length()];
+                }
+                // a longer shortcut starting at the same place ends later, so is found after this one
+                if ((null == found[start]) || (found[start].getShortcut().length() < this.depth[matchState])) {
+                    found[start] = emoticon;
+                }
+                matchState = this.outputLink[matchState];
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the state after reading the character in the given state, following the failure links as needed
+     */
+    private int step(final int state, final char character) {
+        int current = state;
+        while (true) {
+            final int next = getTransition(current, character);
+            if (next != NO_STATE) {
+                return next;
+            }
+            if (current == ROOT) {
+                return ROOT;
+            }
+            current = this.failure[current];
+        }
+    }
+
+    private int getTransition(final int state, final char character) {
+        if (state == ROOT) {
+            if (character < ROOT_TABLE_SIZE) {
+                return this.rootTransitions[character];
+            }
+        }
+
+        int low = this.firstTransition[state];
+        int high = this.firstTransition[state + 1] - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final char middleCharacter = this.transitionCharacters[middle];
+            if (middleCharacter < character) {
+                low = middle + 1;
+            }
+            else if (middleCharacter > character) {
+                high = middle - 1;
+            }
+            else {
+                return this.transitionTargets[middle];
+            }
+        }
+        return NO_STATE;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import javax.swing.*;
+import javax.swing.text.DefaultStyledDocument.ElementSpec;
+import javax.swing.text.MutableAttributeSet;
+import javax.swing.text.html.HTML;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Formats messages into the rows of {@link MessageListHTMLDocument} on a pool of background threads, so that the
+ * event dispatch thread only has to insert them.  Each row is built ready to insert - its body tokenized and its
+ * element specs built - along with the day of the message, and the date header to use if the row starts a new day.
+ * <p>
+ * The messages of a large batch, such as a page of history, are split between the threads.
+ */
+final class MessageFormatter {
+
+    private static final int THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // fewer messages than this aren't worth sharing between threads
+    private static final int MINIMUM_CHUNK_SIZE = 50;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "Message Formatter " + this.threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private MessageFormatter() {
+        // empty private constructor to prevent instantiation
+    }
+
+    /**
+     * Starts formatting the messages in the background.  They are passed a column per field, the way the message
+     * list model holds them, and the arrays must not be changed afterwards.
+     *
+     * @param firstMessageNumber the number of the first of the messages - the rest are numbered on from it
+     * @param whenFormatted run on the event dispatch thread once all of the messages have been formatted
+     */
+    static Batch format(final long[] timestamps, final String[] senders, final String[] bodies,
+                        final long firstMessageNumber, final Runnable whenFormatted) {
+        final int count = timestamps.length;
+        final int chunkSize = Math.max(MINIMUM_CHUNK_SIZE, (count + THREAD_COUNT - 1) / THREAD_COUNT);
+        final Batch batch = new Batch(timestamps, senders, bodies, firstMessageNumber, (count + chunkSize - 1) / chunkSize);
+        for (int start = 0 ; start < count ; start += chunkSize) {
+            EXECUTOR.execute(new Chunk(batch, start, Math.min(start + chunkSize, count), whenFormatted));
+        }
+        return batch;
+    }
+
+    /**
+     * @return the start of the day of the timestamp, in the default time zone
+     */
+    private static long getDay(final Calendar calendar, final long timestamp) {
+        calendar.setTimeInMillis(timestamp);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * A batch of messages being formatted, whose rows are available once it has been formatted.
+     */
+    static final class Batch {
+
+        private final long[] timestamps;
+        private final String[] senders;
+        private final String[] bodies;
+        private final long firstMessageNumber;
+        private final Row[] rows;
+        private final AtomicInteger remainingChunkCount;
+        private volatile RuntimeException failure;
+
+        private Batch(final long[] timestamps, final String[] senders, final String[] bodies,
+                      final long firstMessageNumber, final int chunkCount) {
+            this.timestamps = timestamps;
+            this.senders = senders;
+            this.bodies = bodies;
+            this.firstMessageNumber = firstMessageNumber;
+            this.rows = new Row[timestamps.length];
+            this.remainingChunkCount = new AtomicInteger(chunkCount);
+        }
+
+        boolean isFormatted() {
+            return this.remainingChunkCount.get() == 0;
+        }
+
+        /**
+         * @return the rows, in the order of the messages - only once the batch has been formatted
+         */
+        List<Row> getRows() {
+            if (!isFormatted()) {
+                throw new IllegalStateException("The messages have not been formatted yet");
+            }
+            if (null != this.failure) {
+                throw new RuntimeException(this.failure);
+            }
+            return Arrays.asList(this.rows);
+        }
+    }
+
+    /**
+     * A message, formatted ready to be inserted.
+     */
+    static final class Row {
+
+        private final long messageNumber;
+        private final long day;
+        private final String date;
+        private final List<ElementSpec> specs;
+        private final MutableAttributeSet senderCellAttributes;
+
+        private Row(final long messageNumber, final long day, final String date, final List<ElementSpec> specs,
+                    final MutableAttributeSet senderCellAttributes) {
+            this.messageNumber = messageNumber;
+            this.day = day;
+            this.date = date;
+            this.specs = specs;
+            this.senderCellAttributes = senderCellAttributes;
+        }
+
+        long getMessageNumber() {
+            return this.messageNumber;
+        }
+
+        /**
+         * @return the start of the day the message was sent, for deciding where the date headers go
+         */
+        long getDay() {
+            return this.day;
+        }
+
+        /**
+         * @return the text of the date header, should the row be the first of its day
+         */
+        String getDate() {
+            return this.date;
+        }
+
+        /**
+         * Adds the row's element specs.  Rows are formatted as unread, as whether the message has been read is only
+         * known once the row is inserted, on the event dispatch thread.
+         *
+         * @param read whether the message has been read by now
+         */
+        void appendTo(final List<ElementSpec> specs, final boolean read) {
+            if (read) {
+                this.senderCellAttributes.addAttribute(HTML.Attribute.CLASS, "sender");
+            }
+            specs.addAll(this.specs);
+        }
+    }
+
+    /**
+     * Formats a run of the messages of a batch.
+     */
+    private static final class Chunk implements Runnable {
+
+        private final Batch batch;
+        private final int start;
+        private final int end;
+        private final Runnable whenFormatted;
+
+        private Chunk(final Batch batch, final int start, final int end, final Runnable whenFormatted) {
+            this.batch = batch;
+            this.start = start;
+            this.end = end;
+            this.whenFormatted = whenFormatted;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // the formatters aren't thread-safe, so each chunk has its own
+                final DateFormat dateFormatter = new SimpleDateFormat("EEEE, d MMMM, yyyy");
+                final DateFormat timeFormatter = new SimpleDateFormat("HH:mm");
+                final Calendar calendar = Calendar.getInstance(Locale.getDefault());
+                long previousDay = Long.MIN_VALUE;
+                String previousDate = null;
+                for (int index = this.start ; index < this.end ; index++) {
+                    final long timestamp = this.batch.timestamps[index];
+                    final long day = getDay(calendar, timestamp);
+                    // the messages of a day share the text of its header
+                    final String date = (day == previousDay) ? previousDate : dateFormatter.format(new Date(day));
+                    final long messageNumber = this.batch.firstMessageNumber + index;
+
+                    final List<ElementSpec> specs = new ArrayList<ElementSpec>();
+                    final MutableAttributeSet senderCellAttributes = MessageRowBuilder.appendRow(specs,
+                            messageNumber, this.batch.senders[index], false,
+                            MessageTokenizer.tokenize(this.batch.bodies[index]), timeFormatter.format(new Date(timestamp)));
+                    this.batch.rows[index] = new Row(messageNumber, day, date, specs, senderCellAttributes);
+
+                    previousDay = day;
+                    previousDate = date;
+                }
+            } catch (RuntimeException exception) {
+                this.batch.failure = exception;
+            } finally {
+                if (this.batch.remainingChunkCount.decrementAndGet() == 0) {
+                    SwingUtilities.invokeLater(this.whenFormatted);
+                }
+            }
+        }
+    }
+}
@@ -29,7 +29,7 @@
  */
 package uk.co.rjsoftware.xmpp.view;
 
-import uk.co.rjsoftware.xmpp.model.CustomMessage;
+import uk.co.rjsoftware.xmpp.model.CustomMessageListModel;
 
 import javax.swing.*;
 import javax.swing.text.AttributeSet;
@@ -46,20 +46,46 @@ import java.awt.*;
 import java.io.IOException;
 import java.io.StringReader;
 import java.lang.reflect.Field;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 
+/**
+ * The messages of a chat, as HTML.  Messages are formatted into rows on background threads (see
+ * {@link MessageFormatter}), and the rows are inserted on the event dispatch thread, in the order that the messages
+ * were passed to the document, once they are ready.
+ * <p>
+ * Other than creating it, everything is done with the document on the event dispatch thread, which is checked.
+ */
 public class MessageListHTMLDocument extends HTMLDocument {
 
     private static final char[] NEWLINE;
     private static final String DODGER_BLUE = "#1E90FF";
+    // a rough figure for the elements and attribute sets of a message's table row, not counting its text
+    private static final long ESTIMATED_BYTES_PER_ROW = 2048;
+
+    // shared by every document, as they hold no state of their own
+    private static final StyleSheet DEFAULT_STYLES = new HTMLEditorKit().getStyleSheet();
+    private static final HTMLEditorKit.Parser PARSER = new ParserDelegator();
 
     private int currentTableId;
-    private Calendar lastMessageDate;
-    private final DateFormat dateFormatter = new SimpleDateFormat("EEEE, d MMMM, yyyy");
+    // the id of the first table, which goes down as older messages are inserted before it
+    private int firstTableId;
+    private int rowCount;
+    // the days of the last and first messages, as the start of the day
+    private long lastMessageDay;
+    private long firstMessageDay;
+    // the batches of messages that are being formatted, in the order they were passed to the document.  Only used on
+    // the event dispatch thread
+    private final List<PendingBatch> pendingBatches = new LinkedList<PendingBatch>();
+    private final ReadState readState;
+    private final Runnable batchInserter = new Runnable() {
+        @Override
+        public void run() {
+            insertFormattedBatches();
+        }
+    };
 
     static {
         NEWLINE = new char[1];
@@ -68,18 +94,27 @@ public class MessageListHTMLDocument extends HTMLDocument {
 
     private boolean firstMessage = true;
 
-    public MessageListHTMLDocument() {
-        // Setup the default HTML formatting
-        final HTMLEditorKit editorKit = new HTMLEditorKit();
-        final StyleSheet styles = editorKit.getStyleSheet();
-        this.getStyleSheet().addStyleSheet(styles);
+    /**
+     * @param readState asked whether each message has been read as its row is inserted
+     */
+    public MessageListHTMLDocument(final ReadState readState) {
+        this.readState = readState;
+        addMessageStyles(getStyleSheet());
 
-        setParser(new ParserDelegator());
+        setParser(PARSER);
 
-        this.currentTableId = 1;
-        clear();
+        reset();
+    }
 
-        Font font = new JLabel().getFont();
+    /**
+     * Adds the styles of the messages to the style sheet - shared with the rows of {@link MessageListView}.
+     */
+    static void addMessageStyles(final StyleSheet styleSheet) {
+        // Setup the default HTML formatting
+        styleSheet.addStyleSheet(DEFAULT_STYLES);
+
+        // the font a JLabel would use, without creating one
+        Font font = UIManager.getFont("Label.font");
         String bodyRule = "body { font-family: " + font.getFamily() + "; " +
                 "font-size: " + font.getSize() + "pt; }";
         String senderRule = ".sender {white-space: nowrap; color: " + DODGER_BLUE + ";}";
@@ -87,20 +122,38 @@ public class MessageListHTMLDocument extends HTMLDocument {
         String dateHeaderRule = ".dateHeader {font-weight:bold; padding-top: 4px; padding-bottom: 4px; margin-top: 5px; margin-left: 100px; border-style:solid; " +
                 "border-width:0px; border-bottom-width:1px; border-top-width:1px; border-color:" + DODGER_BLUE + "; }";
 
-        getStyleSheet().addRule(bodyRule);
-        getStyleSheet().addRule(senderRule);
-        getStyleSheet().addRule(unreadSenderRule);
-        getStyleSheet().addRule(dateHeaderRule);
-
-        this.lastMessageDate = Calendar.getInstance(Locale.getDefault());
-        this.lastMessageDate.setTime(new Date(0));
+        styleSheet.addRule(bodyRule);
+        styleSheet.addRule(senderRule);
+        styleSheet.addRule(unreadSenderRule);
+        styleSheet.addRule(dateHeaderRule);
     }
 
     public void clear() {
+        checkEventDispatchThread();
+
+        // the messages still being formatted are dropped, but anything waiting for them is let go
+        for (PendingBatch batch : this.pendingBatches) {
+            for (Runnable task : batch.whenInserted) {
+                SwingUtilities.invokeLater(task);
+            }
+        }
+        this.pendingBatches.clear();
+
+        reset();
+    }
+
+    private void reset() {
+        this.currentTableId = 1;
+        this.firstTableId = 1;
+        this.firstMessageDay = 0;
+        this.rowCount = 0;
+        this.firstMessage = true;
+        this.lastMessageDay = 0;
+
         try {
             remove(0, getLength());
             insertAfterStart(getRootElements()[0],
-                    "<html><head></head><body><table id='t" + this.currentTableId + "' style='width:100%'></table></body></html>");
+                    "<html><head></head><body>" + formatTable(this.currentTableId) + "</body></html>");
         } catch (BadLocationException exception) {
             throw new RuntimeException(exception);
         } catch (IOException e) {
@@ -108,73 +161,275 @@ public class MessageListHTMLDocument extends HTMLDocument {
         }
     }
 
-    public void insertMessage(final CustomMessage message, final long messageNumber) {
-        // TODO: Use a thread-safe date formatter, and change it into a class attribute, so it doesn't need creating here
-        final DateFormat formatter = new SimpleDateFormat("HH:mm");
-        final Date date = new Date(message.getTimestamp());
-
-        final Calendar messageDate = Calendar.getInstance(Locale.getDefault());
-        messageDate.setTime(date);
-        messageDate.set(Calendar.HOUR_OF_DAY, 0);
-        messageDate.set(Calendar.MINUTE, 0);
-        messageDate.set(Calendar.SECOND, 0);
-        messageDate.set(Calendar.MILLISECOND, 0);
-        if (messageDate.after(this.lastMessageDate)) {
-            outputDateHeader(messageDate);
-            this.lastMessageDate = messageDate;
-        }
-
-        // escape all HTML, except for <img> and <a> tags
-        String messageBody = MessageUtils.escapeHtml(message.getBody());
-        // add HTML <a> tags around text that looks like web references (http(s)...)
-        messageBody = MessageUtils.addLinks(messageBody);
-        // convert emoticons into Image tags
-        messageBody = MessageUtils.addEmoticons(messageBody);
-        // convert carriage returns into <br> tags
-        messageBody = MessageUtils.convertCarriageReturns(messageBody);
-        // convert leading spaces into non-breaking spaces (&nbsp;)
-        messageBody = MessageUtils.convertLeadingSpacesAndTabs(messageBody);
+    /**
+     * Adds the messages of the model from <code>fromIndex</code> (inclusive) to <code>toIndex</code> (exclusive)
+     * after the ones already in the document, once they have been formatted.
+     *
+     * @param firstMessageNumber the number of the first of the messages - the rest are numbered on from it
+     */
+    public void insertMessages(final CustomMessageListModel model, final int fromIndex, final int toIndex,
+                               final long firstMessageNumber) {
+        addPendingBatch(model, fromIndex, toIndex, firstMessageNumber, false);
+    }
 
-        try {
-            final String senderClassName;
-            if (message.isRead()) {
-                senderClassName = "sender";
+    /**
+     * Inserts the messages of the model from <code>fromIndex</code> (inclusive) to <code>toIndex</code> (exclusive),
+     * which are older than those already in the document, before them, once they have been formatted.
+     *
+     * @param firstMessageNumber the number of the first of the messages - the rest are numbered on from it
+     */
+    public void insertMessagesAtStart(final CustomMessageListModel model, final int fromIndex, final int toIndex,
+                                      final long firstMessageNumber) {
+        addPendingBatch(model, fromIndex, toIndex, firstMessageNumber, true);
+    }
+
+    /**
+     * Runs the task on the event dispatch thread once all of the messages passed to the document so far have been
+     * inserted - straight away, if they have been.
+     */
+    public void invokeWhenInserted(final Runnable task) {
+        checkEventDispatchThread();
+        if (this.pendingBatches.isEmpty()) {
+            SwingUtilities.invokeLater(task);
+        }
+        else {
+            this.pendingBatches.get(this.pendingBatches.size() - 1).whenInserted.add(task);
+        }
+    }
+
+    private void addPendingBatch(final CustomMessageListModel model, final int fromIndex, final int toIndex,
+                                 final long firstMessageNumber, final boolean atStart) {
+        // the fields are copied out of the model's columns, as the model may be changed before they are formatted
+        final int count = toIndex - fromIndex;
+        final long[] timestamps = new long[count];
+        final String[] senders = new String[count];
+        final String[] bodies = new String[count];
+        for (int index = 0 ; index < count ; index++) {
+            timestamps[index] = model.getTimestamp(fromIndex + index);
+            senders[index] = model.getSender(fromIndex + index);
+            bodies[index] = model.getBody(fromIndex + index);
+        }
+        addPendingBatch(timestamps, senders, bodies, firstMessageNumber, atStart);
+    }
+
+    private void addPendingBatch(final long[] timestamps, final String[] senders, final String[] bodies,
+                                 final long firstMessageNumber, final boolean atStart) {
+        checkEventDispatchThread();
+        if (timestamps.length == 0) {
+            return;
+        }
+        this.pendingBatches.add(new PendingBatch(MessageFormatter.format(timestamps, senders, bodies,
+                firstMessageNumber, this.batchInserter), atStart));
+    }
+
+    private static void checkEventDispatchThread() {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            throw new IllegalStateException("The messages document can only be changed on the event dispatch thread");
+        }
+    }
+
+    /**
+     * Inserts the batches that have been formatted, up to the first that hasn't.
+     */
+    private void insertFormattedBatches() {
+        while (!this.pendingBatches.isEmpty() && this.pendingBatches.get(0).batch.isFormatted()) {
+            final PendingBatch pendingBatch = this.pendingBatches.remove(0);
+            try {
+                if (pendingBatch.atStart && !this.firstMessage) {
+                    insertRowsAtStart(pendingBatch.batch.getRows());
+                }
+                else {
+                    insertRows(pendingBatch.batch.getRows());
+                }
+            } finally {
+                for (Runnable task : pendingBatch.whenInserted) {
+                    task.run();
+                }
             }
-            else {
-                senderClassName = "unreadSender";
+        }
+    }
+
+    /**
+     * Adds the rows after the ones already in the document.  Rather than building up their HTML for the parser,
+     * their rows - and the date headers and tables of any new days - are built as element specs (see
+     * {@link MessageRowBuilder}) and inserted in one go.
+     */
+    private void insertRows(final List<MessageFormatter.Row> rows) {
+        final int lastTableId = this.currentTableId;
+        final List<ElementSpec> firstDateHeader = new ArrayList<ElementSpec>();
+        // the rows for the last table, then, for each new day, the end of the previous table, a date header, and the
+        // start of the day's table and its rows.  The last table is left open, to be closed with the rest
+        final List<ElementSpec> specs = new ArrayList<ElementSpec>();
+        for (MessageFormatter.Row row : rows) {
+            if (row.getDay() > this.lastMessageDay) {
+                if (this.firstMessage) {
+                    // the very first message goes in the existing, empty, table
+                    MessageRowBuilder.appendDateHeader(firstDateHeader, this.currentTableId, row.getDate());
+                    this.firstMessageDay = row.getDay();
+                }
+                else {
+                    this.currentTableId++;
+                    MessageRowBuilder.endTable(specs);
+                    MessageRowBuilder.appendDateHeader(specs, this.currentTableId, row.getDate());
+                    MessageRowBuilder.startTable(specs, this.currentTableId);
+                }
+                this.lastMessageDay = row.getDay();
             }
+            this.firstMessage = false;
+
+            row.appendTo(specs, this.readState.isRead(row.getMessageNumber()));
+        }
 
-            insertBeforeEnd(getElement("t" + this.currentTableId),
-                    "<tr>" +
-                            "<td id='" + messageNumber + "' width='125' class='" + senderClassName + "' align='right' valign='top'>" + message.getSender() + "</td>" +
-                            "<td valign='top'>" + messageBody + "</td>" +
-                            "<td width='42' valign='top'>" + formatter.format(date) + "</td></tr>");
+        // the table is looked up each time, in case the previous change replaced its element
+        try {
+            if (!firstDateHeader.isEmpty()) {
+                final Element table = getElement("t" + lastTableId);
+                insertSpecs(table.getParentElement(), table.getStartOffset(), firstDateHeader);
+            }
+            final Element table = getElement("t" + lastTableId);
+            insertSpecs(table, table.getEndOffset(), specs);
         } catch (BadLocationException exception) {
             throw new RuntimeException(exception);
-        } catch (IOException exception) {
-            throw new RuntimeException(exception);
         }
-        this.firstMessage = false;
+        this.rowCount += rows.size();
     }
 
-    private void outputDateHeader(final Calendar messageDate) {
-        try {
-            final Element element = getElement("t" + this.currentTableId);
+    /**
+     * Inserts rows older than those already in the document before them, without touching the existing rows.
+     * The rows from the same day as the first existing row go at the start of its table, and the rest go in tables of
+     * their own, each with a date header, before it.
+     */
+    private void insertRowsAtStart(final List<MessageFormatter.Row> rows) {
+        final int existingFirstTableId = this.firstTableId;
+        final List<ElementSpec> olderDays = new ArrayList<ElementSpec>();
+        final List<ElementSpec> firstDayRows = new ArrayList<ElementSpec>();
+        long tableDay = 0;
+        boolean inTable = false;
+        boolean inFirstDay = false;
+        for (MessageFormatter.Row row : rows) {
+            // once a message from the first day is reached, the rest must follow it, to stay in order
+            inFirstDay = inFirstDay || (row.getDay() >= this.firstMessageDay);
+            if (inFirstDay) {
+                row.appendTo(firstDayRows, this.readState.isRead(row.getMessageNumber()));
+                continue;
+            }
 
-            if (this.firstMessage) {
-                insertBeforeStart(element,
-                        "<div class='dateHeader'>" + this.dateFormatter.format(messageDate.getTime())  + "</div>");
+            if (!inTable || (row.getDay() > tableDay)) {
+                if (inTable) {
+                    MessageRowBuilder.endTable(olderDays);
+                }
+                this.firstTableId--;
+                MessageRowBuilder.appendDateHeader(olderDays, this.firstTableId, row.getDate());
+                MessageRowBuilder.startTable(olderDays, this.firstTableId);
+                tableDay = row.getDay();
+                inTable = true;
             }
-            else {
-                this.currentTableId++;
-                insertAfterEnd(element,
-                        "<div class='dateHeader'>" + this.dateFormatter.format(messageDate.getTime())  + "</div>" +
-                                "<table id='t" + this.currentTableId + "' style='width:100%'></table>");
+            row.appendTo(olderDays, this.readState.isRead(row.getMessageNumber()));
+        }
+        if (inTable) {
+            MessageRowBuilder.endTable(olderDays);
+        }
+
+        try {
+            if (!firstDayRows.isEmpty()) {
+                final Element firstRow = getFirstRow(getElement("t" + existingFirstTableId));
+                insertSpecs(firstRow.getParentElement(), firstRow.getStartOffset(), firstDayRows);
+            }
+            if (!olderDays.isEmpty()) {
+                final Element firstDateHeader = getElement("d" + existingFirstTableId);
+                insertSpecs(firstDateHeader.getParentElement(), firstDateHeader.getStartOffset(), olderDays);
             }
         } catch (BadLocationException exception) {
             throw new RuntimeException(exception);
-        } catch (IOException exception) {
-            throw new RuntimeException(exception);
+        }
+        this.firstMessageDay = rows.get(0).getDay();
+        this.rowCount += rows.size();
+    }
+
+    /**
+     * Inserts element specs into the parent element at the given offset, the way the HTML reader would have: the
+     * elements around the character before the offset are closed up to the first element that they share with the
+     * parent, the elements from there down to the parent are joined, then the specs go in, and then the parent and
+     * the elements around it are closed.
+     */
+    private void insertSpecs(final Element parent, final int offset, final List<ElementSpec> specs)
+            throws BadLocationException {
+        final int lastOffset = Math.max(0, offset - 1);
+        final List<Element> pushedElements = new ArrayList<Element>();
+        Element commonParent = parent;
+        while (commonParent.getStartOffset() > lastOffset) {
+            pushedElements.add(0, commonParent);
+            commonParent = commonParent.getParentElement();
+            if (null == commonParent) {
+                throw new BadLocationException("No common parent", offset);
+            }
+        }
+
+        final List<ElementSpec> allSpecs = new ArrayList<ElementSpec>(specs.size() + 8);
+        for (Element element = getCharacterElement(lastOffset).getParentElement() ; element != commonParent ;
+             element = element.getParentElement()) {
+            allSpecs.add(new ElementSpec(null, ElementSpec.EndTagType));
+        }
+        for (Element pushedElement : pushedElements) {
+            final ElementSpec spec = new ElementSpec(pushedElement.getAttributes(), ElementSpec.StartTagType);
+            spec.setDirection(ElementSpec.JoinNextDirection);
+            allSpecs.add(spec);
+        }
+        allSpecs.addAll(specs);
+        for (Element ancestor = parent.getParentElement() ; null != ancestor ; ancestor = ancestor.getParentElement()) {
+            allSpecs.add(new ElementSpec(null, ElementSpec.EndTagType));
+        }
+        insert(offset, allSpecs.toArray(new ElementSpec[allSpecs.size()]));
+    }
+
+    /**
+     * @return the first row of the table - which isn't its first child, as the table starts with an empty paragraph
+     */
+    private static Element getFirstRow(final Element table) {
+        for (int index = 0 ; index < table.getElementCount() ; index++) {
+            final Element child = table.getElement(index);
+            if (HTML.Tag.TR == child.getAttributes().getAttribute(StyleConstants.NameAttribute)) {
+                return child;
+            }
+        }
+        throw new IllegalStateException("The table has no rows");
+    }
+
+    private static String formatTable(final int tableId) {
+        return "<table id='t" + tableId + "' style='width:100%'></table>";
+    }
+
+    /**
+     * @return roughly how many bytes of heap the messages in the document take up
+     */
+    public long estimateMemoryUsage() {
+        return (this.rowCount * ESTIMATED_BYTES_PER_ROW) + (getLength() * 2L);
+    }
+
+    /**
+     * Whether the messages have been read, which may change between a message being passed to the document and its
+     * row being inserted.
+     */
+    public interface ReadState {
+
+        /**
+         * Called on the event dispatch thread.
+         */
+        boolean isRead(long messageNumber);
+    }
+
+    /**
+     * A batch of messages passed to the document, and the tasks waiting for it to be inserted.
+     */
+    private static final class PendingBatch {
+
+        private final MessageFormatter.Batch batch;
+        private final boolean atStart;
+        private final List<Runnable> whenInserted = new ArrayList<Runnable>();
+
+        private PendingBatch(final MessageFormatter.Batch batch, final boolean atStart) {
+            this.batch = batch;
+            this.atStart = atStart;
         }
     }
 
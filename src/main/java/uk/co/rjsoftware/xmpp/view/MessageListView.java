@@ -0,0 +1,614 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import uk.co.rjsoftware.xmpp.model.ChatTarget;
+import uk.co.rjsoftware.xmpp.model.CustomMessageListModel;
+
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.HyperlinkListener;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.EditorKit;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.html.StyleSheet;
+import java.awt.*;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.ActionEvent;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Shows the messages of a chat straight from its message list model, as an alternative to displaying its whole
+ * messages document.  Only the rows in and near the viewport are materialised - each as a small document of its own,
+ * built like the rows of {@link MessageListHTMLDocument} - and the height of each row is cached once it has been
+ * measured, so scrolling costs the same however many messages the chat has.
+ * <p>
+ * Text can be selected within a row as usual.  Dragging from one row into another selects whole rows instead, which
+ * are copied as text.  Links are passed to the hyperlink listener, and the rows that have been read are tracked by
+ * MessageStateChanger through {@link #getVisibleUnreadMessages()} and {@link #setMessageRead(long)}.
+ * <p>
+ * Everything happens on the event dispatch thread.
+ */
+public class MessageListView extends JPanel implements Scrollable {
+
+    // how far above and below the viewport rows are materialised, so that they are ready before they are scrolled to
+    private static final int OVERSCAN = 400;
+    // the height of a row that hasn't been measured yet - roughly that of a single line message
+    private static final int ESTIMATED_ROW_HEIGHT = 25;
+    private static final int UNIT_INCREMENT = 16;
+    // the rows that are taken out of view are kept for reuse, up to this many
+    private static final int MAXIMUM_SPARE_ROWS = 64;
+
+    // shared by the documents of every row
+    private static StyleSheet rowStyles;
+
+    private final EditorKit editorKit;
+    private final HyperlinkListener hyperlinkListener;
+    private final RowHeights rowHeights = new RowHeights(ESTIMATED_ROW_HEIGHT);
+    private final Map<Integer, RowPane> rowPanes = new HashMap<Integer, RowPane>();
+    private final List<RowPane> spareRowPanes = new ArrayList<RowPane>();
+    private final ListDataListener modelListener = new ModelListener();
+    private final ChangeListener viewportListener;
+    private final Action copyAction = new CopyAction();
+    private final Highlighter.HighlightPainter selectionPainter;
+    private final DateFormat dateFormatter = new SimpleDateFormat("EEEE, d MMMM, yyyy");
+    private final DateFormat timeFormatter = new SimpleDateFormat("HH:mm");
+
+    private ChatTarget chatTarget;
+    private CustomMessageListModel model;
+    private int measuredWidth = -1;
+    private boolean updatingRows;
+    // the rows selected by dragging from one row to another - the anchor is -1 when there are none
+    private int selectionAnchor = -1;
+    private int selectionLead = -1;
+
+    /**
+     * @param editorKit copied for each row
+     */
+    public MessageListView(final EditorKit editorKit, final HyperlinkListener hyperlinkListener) {
+        super(null);
+        this.editorKit = editorKit;
+        this.hyperlinkListener = hyperlinkListener;
+        this.selectionPainter = new DefaultHighlighter.DefaultHighlightPainter(UIManager.getColor("TextPane.selectionBackground"));
+        setBackground(UIManager.getColor("TextPane.background"));
+
+        this.viewportListener = new ChangeListener() {
+            @Override
+            public void stateChanged(final ChangeEvent event) {
+                updateRows();
+            }
+        };
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(final ComponentEvent event) {
+                updateRows();
+            }
+        });
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        if (getParent() instanceof JViewport) {
+            ((JViewport)getParent()).addChangeListener(this.viewportListener);
+        }
+    }
+
+    @Override
+    public void removeNotify() {
+        if (getParent() instanceof JViewport) {
+            ((JViewport)getParent()).removeChangeListener(this.viewportListener);
+        }
+        super.removeNotify();
+    }
+
+    /**
+     * Shows the messages of the chat, scrolled to the latest of them.
+     */
+    public void setChatTarget(final ChatTarget chatTarget) {
+        if (null != this.model) {
+            this.model.removeListDataListener(this.modelListener);
+        }
+        removeRows(0, Integer.MAX_VALUE);
+        clearSelection();
+        this.rowHeights.clear();
+
+        this.chatTarget = chatTarget;
+        this.model = (null == chatTarget) ? null : chatTarget.getCustomMessageListModel();
+        if (null != this.model) {
+            this.model.addListDataListener(this.modelListener);
+            this.rowHeights.insert(0, this.model.size());
+        }
+
+        updateSize();
+        final JViewport viewport = getViewport();
+        if (null != viewport) {
+            viewport.setViewPosition(new Point(0, Math.max(0, getHeight() - viewport.getExtentSize().height)));
+        }
+        updateRows();
+        repaint();
+    }
+
+    /**
+     * @return the sequence numbers of the unread messages whose sender can be seen in full
+     */
+    public List<Long> getVisibleUnreadMessages() {
+        updateRows();
+
+        final List<Long> messageSequences = new ArrayList<Long>();
+        for (Map.Entry<Integer, RowPane> entry : this.rowPanes.entrySet()) {
+            final RowPane rowPane = entry.getValue();
+            if (!rowPane.getRowDocument().isRead() && isVisible(rowPane)) {
+                messageSequences.add(this.chatTarget.getMessageSequence(entry.getKey()));
+            }
+        }
+        return messageSequences;
+    }
+
+    public boolean isMessageVisible(final long messageSequence) {
+        final RowPane rowPane = this.rowPanes.get(getIndex(messageSequence));
+        return (null != rowPane) && isVisible(rowPane);
+    }
+
+    /**
+     * Marks the message, and so every message before it, as read, both in the chat and in the rows showing them.
+     */
+    public void setMessageRead(final long messageSequence) {
+        if (null == this.chatTarget) {
+            return;
+        }
+
+        this.chatTarget.setMessageRead(messageSequence);
+        for (Map.Entry<Integer, RowPane> entry : this.rowPanes.entrySet()) {
+            final MessageRowDocument rowDocument = entry.getValue().getRowDocument();
+            final long rowSequence = this.chatTarget.getMessageSequence(entry.getKey());
+            if (this.chatTarget.isMessageRead(rowSequence) && !rowDocument.isRead()) {
+                rowDocument.setRead();
+            }
+        }
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        final Dimension size = super.getPreferredSize();
+        size.height = this.rowHeights.getTotalHeight();
+        return size;
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(final Rectangle visibleRect, final int orientation, final int direction) {
+        return UNIT_INCREMENT;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(final Rectangle visibleRect, final int orientation, final int direction) {
+        return (orientation == SwingConstants.VERTICAL) ? visibleRect.height : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        // fill the viewport when there aren't enough messages to scroll, as a text pane does
+        return (getParent() instanceof JViewport) && (getParent().getHeight() > this.rowHeights.getTotalHeight());
+    }
+
+    @Override
+    public void doLayout() {
+        for (Map.Entry<Integer, RowPane> entry : this.rowPanes.entrySet()) {
+            final int index = entry.getKey();
+            entry.getValue().setBounds(0, this.rowHeights.getOffset(index), getWidth(), this.rowHeights.getHeight(index));
+        }
+    }
+
+    /**
+     * Materialises the rows in and near the viewport, measuring any that haven't been measured at this width, and
+     * drops the rest.  As the rows above the viewport are measured, the view is scrolled to keep the rows that were
+     * showing where they were - or, if it was scrolled to the bottom, to keep it there.
+     */
+    private void updateRows() {
+        if (this.updatingRows || (null == this.model) || (getWidth() <= 0)) {
+            return;
+        }
+
+        this.updatingRows = true;
+        try {
+            if (getWidth() != this.measuredWidth) {
+                // the rows wrap differently at a new width, so they all need measuring again
+                this.measuredWidth = getWidth();
+                this.rowHeights.invalidate();
+            }
+
+            // a few passes may be needed, as measuring the rows moves them
+            for (int pass = 0 ; pass < 3 ; pass++) {
+                final Rectangle visibleRect = getVisibleRect();
+                final boolean atBottom = (this.rowHeights.size() > 0)
+                        && (visibleRect.y + visibleRect.height >= this.rowHeights.getTotalHeight());
+                final int anchorIndex = this.rowHeights.getIndexAt(visibleRect.y);
+                final int anchorOffset = (anchorIndex < 0) ? 0 : visibleRect.y - this.rowHeights.getOffset(anchorIndex);
+
+                if (!materialiseRows(visibleRect)) {
+                    break;
+                }
+
+                updateSize();
+                final JViewport viewport = getViewport();
+                if (null != viewport) {
+                    final int y;
+                    if (atBottom) {
+                        y = Math.max(0, this.rowHeights.getTotalHeight() - visibleRect.height);
+                    }
+                    else {
+                        y = this.rowHeights.getOffset(anchorIndex) + anchorOffset;
+                    }
+                    if (y != visibleRect.y) {
+                        viewport.setViewPosition(new Point(viewport.getViewPosition().x, y));
+                    }
+                }
+            }
+            doLayout();
+            repaint();
+        } finally {
+            this.updatingRows = false;
+        }
+    }
+
+    /**
+     * @return true if any of the rows changed height
+     */
+    private boolean materialiseRows(final Rectangle visibleRect) {
+        final int size = this.rowHeights.size();
+        if (size == 0) {
+            return false;
+        }
+
+        boolean heightsChanged = false;
+        final int firstIndex = this.rowHeights.getIndexAt(Math.max(0, visibleRect.y - OVERSCAN));
+        final int bottom = visibleRect.y + visibleRect.height + OVERSCAN;
+        int index = firstIndex;
+        while ((index < size) && (this.rowHeights.getOffset(index) < bottom)) {
+            final RowPane rowPane = getRowPane(index);
+            if (!this.rowHeights.isMeasured(index)) {
+                rowPane.setSize(getWidth(), Short.MAX_VALUE);
+                heightsChanged |= this.rowHeights.setHeight(index, rowPane.getPreferredSize().height);
+            }
+            index++;
+        }
+        removeRows(0, firstIndex);
+        removeRows(index, Integer.MAX_VALUE);
+        return heightsChanged;
+    }
+
+    private RowPane getRowPane(final int index) {
+        RowPane rowPane = this.rowPanes.get(index);
+        if (null != rowPane) {
+            return rowPane;
+        }
+
+        final MessageRowDocument rowDocument = createRowDocument(index);
+        if (this.spareRowPanes.isEmpty()) {
+            rowPane = new RowPane(this);
+        }
+        else {
+            rowPane = this.spareRowPanes.remove(this.spareRowPanes.size() - 1);
+        }
+        rowPane.setRowDocument(rowDocument);
+        rowPane.setSelected(isSelected(index));
+        this.rowPanes.put(index, rowPane);
+        add(rowPane);
+        return rowPane;
+    }
+
+    private MessageRowDocument createRowDocument(final int index) {
+        final long timestamp = this.model.getTimestamp(index);
+        // the first message of each day has the date above it
+        String date = null;
+        if ((index == 0) || !isSameDay(this.model.getTimestamp(index - 1), timestamp)) {
+            date = this.dateFormatter.format(new Date(timestamp));
+        }
+        final long messageSequence = this.chatTarget.getMessageSequence(index);
+        return new MessageRowDocument(getRowStyles(), messageSequence, this.model.getSender(index),
+                this.chatTarget.isMessageRead(messageSequence), MessageTokenizer.tokenize(this.model.getBody(index)),
+                date, this.timeFormatter.format(new Date(timestamp)));
+    }
+
+    /**
+     * Drops the materialised rows from <code>fromIndex</code> (inclusive) to <code>toIndex</code> (exclusive).
+     */
+    private void removeRows(final int fromIndex, final int toIndex) {
+        final Iterator<Map.Entry<Integer, RowPane>> iterator = this.rowPanes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Integer, RowPane> entry = iterator.next();
+            if ((entry.getKey() >= fromIndex) && (entry.getKey() < toIndex)) {
+                final RowPane rowPane = entry.getValue();
+                iterator.remove();
+                remove(rowPane);
+                if (this.spareRowPanes.size() < MAXIMUM_SPARE_ROWS) {
+                    this.spareRowPanes.add(rowPane);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the materialised rows from the given index on by the given number of rows.
+     */
+    private void shiftRows(final int fromIndex, final int count) {
+        final Map<Integer, RowPane> shiftedRowPanes = new HashMap<Integer, RowPane>();
+        final Iterator<Map.Entry<Integer, RowPane>> iterator = this.rowPanes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Integer, RowPane> entry = iterator.next();
+            if (entry.getKey() >= fromIndex) {
+                shiftedRowPanes.put(entry.getKey() + count, entry.getValue());
+                iterator.remove();
+            }
+        }
+        this.rowPanes.putAll(shiftedRowPanes);
+    }
+
+    private void updateSize() {
+        final int height = this.rowHeights.getTotalHeight();
+        final int minimumHeight = (getParent() instanceof JViewport) ? getParent().getHeight() : 0;
+        if (getHeight() != Math.max(height, minimumHeight)) {
+            // resize straight away, rather than when the viewport is next laid out, so that it can be scrolled
+            setSize(getWidth(), Math.max(height, minimumHeight));
+            revalidate();
+        }
+    }
+
+    private boolean isVisible(final RowPane rowPane) {
+        final Rectangle visibleRect = getVisibleRect();
+        final Rectangle senderRect;
+        try {
+            senderRect = rowPane.modelToView(rowPane.getRowDocument().getSenderOffset());
+        } catch (BadLocationException exception) {
+            throw new RuntimeException(exception);
+        }
+        if (null == senderRect) {
+            return false;
+        }
+
+        final int top = rowPane.getY() + senderRect.y;
+        return (top >= visibleRect.y) && (top + senderRect.height <= visibleRect.y + visibleRect.height);
+    }
+
+    private int getIndex(final long messageSequence) {
+        if ((null == this.model) || this.model.isEmpty()) {
+            return -1;
+        }
+        return (int)(messageSequence - this.chatTarget.getMessageSequence(0));
+    }
+
+    private JViewport getViewport() {
+        return (getParent() instanceof JViewport) ? (JViewport)getParent() : null;
+    }
+
+    private static boolean isSameDay(final long timestamp1, final long timestamp2) {
+        final Calendar calendar = Calendar.getInstance(Locale.getDefault());
+        calendar.setTimeInMillis(timestamp1);
+        final int year = calendar.get(Calendar.YEAR);
+        final int dayOfYear = calendar.get(Calendar.DAY_OF_YEAR);
+        calendar.setTimeInMillis(timestamp2);
+        return (year == calendar.get(Calendar.YEAR)) && (dayOfYear == calendar.get(Calendar.DAY_OF_YEAR));
+    }
+
+    private static StyleSheet getRowStyles() {
+        if (null == rowStyles) {
+            rowStyles = new StyleSheet();
+            MessageListHTMLDocument.addMessageStyles(rowStyles);
+        }
+        return rowStyles;
+    }
+
+    private boolean isSelected(final int index) {
+        return (this.selectionAnchor != -1)
+                && (index >= Math.min(this.selectionAnchor, this.selectionLead))
+                && (index <= Math.max(this.selectionAnchor, this.selectionLead));
+    }
+
+    private void setSelection(final int anchor, final int lead) {
+        this.selectionAnchor = anchor;
+        this.selectionLead = lead;
+        for (Map.Entry<Integer, RowPane> entry : this.rowPanes.entrySet()) {
+            entry.getValue().setSelected(isSelected(entry.getKey()));
+        }
+    }
+
+    private void clearSelection() {
+        setSelection(-1, -1);
+    }
+
+    /**
+     * @return the text of the selected rows, as the messages document would have given it
+     */
+    private String getSelectedText() {
+        final StringBuilder text = new StringBuilder();
+        for (int index = Math.min(this.selectionAnchor, this.selectionLead) ;
+             index <= Math.max(this.selectionAnchor, this.selectionLead) ; index++) {
+            final MessageRowDocument rowDocument = createRowDocument(index);
+            try {
+                text.append(rowDocument.getText(0, rowDocument.getLength()));
+            } catch (BadLocationException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+        return text.toString();
+    }
+
+    private final class ModelListener implements ListDataListener {
+
+        @Override
+        public void intervalAdded(final ListDataEvent event) {
+            final int count = event.getIndex1() - event.getIndex0() + 1;
+            MessageListView.this.rowHeights.insert(event.getIndex0(), count);
+            // the row after the new ones may have gained or lost its date header
+            removeRows(event.getIndex0(), event.getIndex0() + 1);
+            shiftRows(event.getIndex0(), count);
+            if (MessageListView.this.selectionAnchor >= event.getIndex0()) {
+                MessageListView.this.selectionAnchor += count;
+                MessageListView.this.selectionLead += count;
+            }
+            updateSize();
+            updateRows();
+        }
+
+        @Override
+        public void intervalRemoved(final ListDataEvent event) {
+            // messages are only removed when a chat's messages are evicted, so start again
+            removeRows(0, Integer.MAX_VALUE);
+            clearSelection();
+            MessageListView.this.rowHeights.remove(event.getIndex0(), event.getIndex1() + 1);
+            updateSize();
+            updateRows();
+        }
+
+        @Override
+        public void contentsChanged(final ListDataEvent event) {
+            removeRows(0, Integer.MAX_VALUE);
+            updateRows();
+        }
+    }
+
+    /**
+     * Copies the selected rows, or else the text selected in the row that has the focus.
+     */
+    private final class CopyAction extends AbstractAction {
+
+        @Override
+        public void actionPerformed(final ActionEvent event) {
+            if (MessageListView.this.selectionAnchor != -1) {
+                Toolkit.getDefaultToolkit().getSystemClipboard().setContents(new StringSelection(getSelectedText()), null);
+            }
+            else if (event.getSource() instanceof JTextComponent) {
+                ((JTextComponent)event.getSource()).copy();
+            }
+        }
+    }
+
+    /**
+     * A materialised row.  Dragging out of it into another row selects the rows in between.
+     */
+    private static final class RowPane extends JEditorPane {
+
+        private final MessageListView view;
+        private Object selectionHighlight;
+
+        private RowPane(final MessageListView view) {
+            this.view = view;
+            setEditable(false);
+            setEditorKit((EditorKit)view.editorKit.clone());
+            addHyperlinkListener(view.hyperlinkListener);
+            getActionMap().put(DefaultEditorKit.copyAction, view.copyAction);
+
+            final MouseAdapter mouseListener = new MouseAdapter() {
+                @Override
+                public void mousePressed(final MouseEvent event) {
+                    RowPane.this.view.clearSelection();
+                    getCaret().setSelectionVisible(true);
+                }
+
+                @Override
+                public void mouseDragged(final MouseEvent event) {
+                    final Point point = SwingUtilities.convertPoint(RowPane.this, event.getPoint(), RowPane.this.view);
+                    final int pressedIndex = getIndex();
+                    final int index = RowPane.this.view.rowHeights.getIndexAt(point.y);
+                    if ((pressedIndex != -1) && ((index != pressedIndex) || (RowPane.this.view.selectionAnchor != -1))) {
+                        // the whole rows are selected, so hide the selection within this one
+                        getCaret().setSelectionVisible(false);
+                        RowPane.this.view.setSelection(pressedIndex, index);
+                    }
+                    RowPane.this.view.scrollRectToVisible(new Rectangle(point.x, point.y, 1, 1));
+                }
+            };
+            addMouseListener(mouseListener);
+            addMouseMotionListener(mouseListener);
+        }
+
+        private MessageRowDocument getRowDocument() {
+            return (MessageRowDocument)getDocument();
+        }
+
+        private void setRowDocument(final MessageRowDocument rowDocument) {
+            this.selectionHighlight = null;
+            setDocument(rowDocument);
+        }
+
+        private int getIndex() {
+            for (Map.Entry<Integer, RowPane> entry : this.view.rowPanes.entrySet()) {
+                if (entry.getValue() == this) {
+                    return entry.getKey();
+                }
+            }
+            return -1;
+        }
+
+        private void setSelected(final boolean selected) {
+            if (selected && (null == this.selectionHighlight)) {
+                try {
+                    this.selectionHighlight = getHighlighter().addHighlight(0, getDocument().getLength(),
+                            this.view.selectionPainter);
+                } catch (BadLocationException exception) {
+                    throw new RuntimeException(exception);
+                }
+            }
+            else if (!selected && (null != this.selectionHighlight)) {
+                getHighlighter().removeHighlight(this.selectionHighlight);
+                this.selectionHighlight = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.DefaultStyledDocument.ElementSpec;
+import javax.swing.text.MutableAttributeSet;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.StyleSheet;
+import java.util.List;
+
+/**
+ * Builds the element specs for the rows of messages - and the date headers and tables that they go in - directly,
+ * giving the same elements that the HTML reader did when parsing their HTML:
+ *
+ * <pre>
+ *     div (id = 'd' + table id, class = dateHeader) - p-implied - the date
+ *     table (id = 't' + table id, width = 100%)
+ *         tr
+ *             td (id = message number, class = sender or unreadSender) - p-implied - the sender
+ *             td - p-implied - the tokens of the message body
+ *             td - p-implied - the time
+ * </pre>
+ *
+ * Each paragraph ends with a newline, as the HTML reader's did.
+ */
+final class MessageRowBuilder {
+
+    // the attribute HTMLDocument puts on the newline that ends a paragraph (HTMLDocument.ImpliedCR isn't public)
+    private static final String IMPLIED_CR = "CR";
+    private static final char[] NEWLINE = {'\n'};
+    private static final char[] LINE_SEPARATOR = System.lineSeparator().toCharArray();
+
+    private static final SimpleAttributeSet ROW_ATTRIBUTES = createTagAttributes(HTML.Tag.TR);
+    private static final SimpleAttributeSet PARAGRAPH_ATTRIBUTES = createTagAttributes(HTML.Tag.IMPLIED);
+    private static final SimpleAttributeSet CONTENT_ATTRIBUTES = createTagAttributes(HTML.Tag.CONTENT);
+    private static final SimpleAttributeSet LINE_BREAK_ATTRIBUTES = createTagAttributes(HTML.Tag.BR);
+    private static final SimpleAttributeSet END_OF_PARAGRAPH_ATTRIBUTES = createTagAttributes(HTML.Tag.CONTENT);
+    private static final SimpleAttributeSet BODY_CELL_ATTRIBUTES = createTagAttributes(HTML.Tag.TD);
+    private static final SimpleAttributeSet TIME_CELL_ATTRIBUTES = createTagAttributes(HTML.Tag.TD);
+    private static final AttributeSet FULL_WIDTH = new StyleSheet().getDeclaration("width:100%");
+
+    static {
+        END_OF_PARAGRAPH_ATTRIBUTES.addAttribute(IMPLIED_CR, Boolean.TRUE);
+        BODY_CELL_ATTRIBUTES.addAttribute(HTML.Attribute.VALIGN, "top");
+        TIME_CELL_ATTRIBUTES.addAttribute(HTML.Attribute.WIDTH, "42");
+        TIME_CELL_ATTRIBUTES.addAttribute(HTML.Attribute.VALIGN, "top");
+    }
+
+    private MessageRowBuilder() {
+        // empty private constructor to prevent instantiation
+    }
+
+    private static SimpleAttributeSet createTagAttributes(final HTML.Tag tag) {
+        final SimpleAttributeSet attributes = new SimpleAttributeSet();
+        attributes.addAttribute(StyleConstants.NameAttribute, tag);
+        return attributes;
+    }
+
+    static void appendDateHeader(final List<ElementSpec> specs, final int tableId, final String date) {
+        final SimpleAttributeSet headerAttributes = createTagAttributes(HTML.Tag.DIV);
+        headerAttributes.addAttribute(HTML.Attribute.ID, "d" + tableId);
+        headerAttributes.addAttribute(HTML.Attribute.CLASS, "dateHeader");
+        startCell(specs, headerAttributes);
+        appendText(specs, CONTENT_ATTRIBUTES, date);
+        endCell(specs);
+    }
+
+    /**
+     * Starts a table for the rows of a day, which must be ended with {@link #endTable(List)}.
+     */
+    static void startTable(final List<ElementSpec> specs, final int tableId) {
+        final SimpleAttributeSet tableAttributes = createTagAttributes(HTML.Tag.TABLE);
+        tableAttributes.addAttribute(HTML.Attribute.ID, "t" + tableId);
+        tableAttributes.addAttributes(FULL_WIDTH);
+        specs.add(new ElementSpec(tableAttributes, ElementSpec.StartTagType));
+    }
+
+    static void endTable(final List<ElementSpec> specs) {
+        specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+    }
+
+    /**
+     * @return the attributes of the row's sender cell, whose class can be changed to mark the row read until it has
+     * been inserted
+     */
+    static MutableAttributeSet appendRow(final List<ElementSpec> specs, final long messageNumber, final String sender,
+                                         final boolean read, final List<MessageToken> tokens, final String time) {
+        specs.add(new ElementSpec(ROW_ATTRIBUTES, ElementSpec.StartTagType));
+
+        final SimpleAttributeSet senderCellAttributes = createTagAttributes(HTML.Tag.TD);
+        senderCellAttributes.addAttribute(HTML.Attribute.ID, Long.toString(messageNumber));
+        senderCellAttributes.addAttribute(HTML.Attribute.WIDTH, "125");
+        senderCellAttributes.addAttribute(HTML.Attribute.CLASS, read ? "sender" : "unreadSender");
+        senderCellAttributes.addAttribute(HTML.Attribute.ALIGN, "right");
+        senderCellAttributes.addAttribute(HTML.Attribute.VALIGN, "top");
+        startCell(specs, senderCellAttributes);
+        appendText(specs, CONTENT_ATTRIBUTES, sender);
+        endCell(specs);
+
+        startCell(specs, BODY_CELL_ATTRIBUTES);
+        for (MessageToken token : tokens) {
+            switch (token.getType()) {
+                case TEXT:
+                    appendText(specs, CONTENT_ATTRIBUTES, token.getText());
+                    break;
+                case LINK:
+                    final SimpleAttributeSet linkAttributes = new SimpleAttributeSet();
+                    linkAttributes.addAttribute(HTML.Attribute.HREF, token.getUrl());
+                    final MutableAttributeSet contentAttributes = createTagAttributes(HTML.Tag.CONTENT);
+                    contentAttributes.addAttribute(HTML.Tag.A, linkAttributes);
+                    appendText(specs, contentAttributes, token.getText());
+                    break;
+                case IMAGE:
+                    final MutableAttributeSet imageAttributes = createTagAttributes(HTML.Tag.IMG);
+                    imageAttributes.addAttribute(HTML.Attribute.SRC, token.getUrl());
+                    imageAttributes.addAttribute(HTML.Attribute.ALIGN, "bottom");
+                    // the alt text is the image's text, so that copying the image copies the emoticon's shortcut
+                    final String altText = token.getText();
+                    if (altText.isEmpty()) {
+                        appendText(specs, imageAttributes, " ");
+                    }
+                    else {
+                        imageAttributes.addAttribute(HTML.Attribute.ALT, altText);
+                        appendText(specs, imageAttributes, altText);
+                    }
+                    break;
+                case LINE_BREAK:
+                    specs.add(new ElementSpec(LINE_BREAK_ATTRIBUTES, ElementSpec.ContentType, LINE_SEPARATOR, 0,
+                            LINE_SEPARATOR.length));
+                    break;
+                default: // do nothing
+            }
+        }
+        endCell(specs);
+
+        startCell(specs, TIME_CELL_ATTRIBUTES);
+        appendText(specs, CONTENT_ATTRIBUTES, time);
+        endCell(specs);
+
+        specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+        return senderCellAttributes;
+    }
+
+    // starts a block (a cell, or the date header) and the paragraph within it
+    private static void startCell(final List<ElementSpec> specs, final SimpleAttributeSet blockAttributes) {
+        specs.add(new ElementSpec(blockAttributes, ElementSpec.StartTagType));
+        specs.add(new ElementSpec(PARAGRAPH_ATTRIBUTES, ElementSpec.StartTagType));
+    }
+
+    private static void endCell(final List<ElementSpec> specs) {
+        specs.add(new ElementSpec(END_OF_PARAGRAPH_ATTRIBUTES, ElementSpec.ContentType, NEWLINE, 0, 1));
+        specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+        specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+    }
+
+    private static void appendText(final List<ElementSpec> specs, final MutableAttributeSet attributes, final String text) {
+        if (!text.isEmpty()) {
+            final char[] characters = text.toCharArray();
+            specs.add(new ElementSpec(attributes, ElementSpec.ContentType, characters, 0, characters.length));
+        }
+    }
+}
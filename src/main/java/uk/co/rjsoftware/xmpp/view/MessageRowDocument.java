@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import javax.swing.text.Element;
+import javax.swing.text.MutableAttributeSet;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.StyleSheet;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A document holding the row of a single message, for {@link MessageListView} - preceded by the date header, for the
+ * first message of a day.  It is built by {@link MessageRowBuilder}, so it looks just like the same row in a
+ * {@link MessageListHTMLDocument}.
+ */
+final class MessageRowDocument extends HTMLDocument {
+
+    private final long messageNumber;
+
+    /**
+     * @param styles shared by the documents of every row
+     * @param date the date for the header above the row, or null for no header
+     */
+    MessageRowDocument(final StyleSheet styles, final long messageNumber, final String sender, final boolean read,
+                       final List<MessageToken> tokens, final String date, final String time) {
+        super(styles);
+        this.messageNumber = messageNumber;
+
+        final List<ElementSpec> specs = new ArrayList<ElementSpec>();
+        // the first spec gives the attributes of the root element, which the rest go in
+        specs.add(new ElementSpec(createTagAttributes(HTML.Tag.HTML), ElementSpec.StartTagType));
+        specs.add(new ElementSpec(createTagAttributes(HTML.Tag.BODY), ElementSpec.StartTagType));
+        final int tableId = (int)messageNumber;
+        if (null != date) {
+            MessageRowBuilder.appendDateHeader(specs, tableId, date);
+        }
+        MessageRowBuilder.startTable(specs, tableId);
+        MessageRowBuilder.appendRow(specs, messageNumber, sender, read, tokens, time);
+        MessageRowBuilder.endTable(specs);
+        specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+        create(specs.toArray(new ElementSpec[specs.size()]));
+    }
+
+    private static MutableAttributeSet createTagAttributes(final HTML.Tag tag) {
+        final MutableAttributeSet attributes = new SimpleAttributeSet();
+        attributes.addAttribute(StyleConstants.NameAttribute, tag);
+        return attributes;
+    }
+
+    /**
+     * @return the start of the sender's name, which is where the row is checked for being visible
+     */
+    int getSenderOffset() {
+        return getSenderCell().getStartOffset();
+    }
+
+    boolean isRead() {
+        // the paragraph inherits the class of its cell, unless it has been marked as read
+        return "sender".equals(getParagraphElement(getSenderOffset()).getAttributes().getAttribute(HTML.Attribute.CLASS));
+    }
+
+    /**
+     * Shows the row as read, the way MessageStateChanger marks the rows of the messages document.
+     */
+    void setRead() {
+        final MutableAttributeSet attributes = new SimpleAttributeSet();
+        attributes.addAttribute(HTML.Attribute.CLASS, "sender");
+        setParagraphAttributes(getSenderOffset(), 1, attributes, false);
+    }
+
+    private Element getSenderCell() {
+        return getElement(Long.toString(this.messageNumber));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+/**
+ * A span of a message body, as displayed: plain text, a link, an image (an emoticon, or an image the sender
+ * included) or a line break.  The text is as it should appear - it is not HTML.
+ */
+public final class MessageToken {
+
+    public enum Type {
+        TEXT,
+        LINK,
+        IMAGE,
+        LINE_BREAK
+    }
+
+    private static final MessageToken LINE_BREAK = new MessageToken(Type.LINE_BREAK, "", null);
+
+    private final Type type;
+    private final String text;
+    private final String url;
+
+    private MessageToken(final Type type, final String text, final String url) {
+        this.type = type;
+        this.text = text;
+        this.url = url;
+    }
+
+    public static MessageToken text(final String text) {
+        return new MessageToken(Type.TEXT, text, null);
+    }
+
+    public static MessageToken link(final String url, final String text) {
+        return new MessageToken(Type.LINK, text, url);
+    }
+
+    /**
+     * @param text the image's alt text, which is what is copied when the image is
+     */
+    public static MessageToken image(final String url, final String text) {
+        return new MessageToken(Type.IMAGE, text, url);
+    }
+
+    public static MessageToken lineBreak() {
+        return LINE_BREAK;
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public String getText() {
+        return this.text;
+    }
+
+    /**
+     * @return the href of a link, or the src of an image
+     */
+    public String getUrl() {
+        return this.url;
+    }
+
+    MessageToken withText(final String text) {
+        return new MessageToken(this.type, text, this.url);
+    }
+
+    @Override
+    public String toString() {
+        if (null == this.url) {
+            return this.type + "(" + this.text + ")";
+        }
+        return this.type + "(" + this.url + ", " + this.text + ")";
+    }
+}
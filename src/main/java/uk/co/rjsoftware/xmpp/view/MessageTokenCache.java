@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import uk.co.rjsoftware.xmpp.model.Emoticon;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of the tokens of message bodies, so that the bodies that are repeated over and over (by bots, for
+ * example) are only tokenized once.  When full, the least recently used body is dropped.
+ * <p>
+ * The tokens depend on the emoticons, so the cache is emptied whenever HipChatEmoticons publishes a new list of them.
+ * The hits and misses are counted from when the cache was created, so that its hit rate can be seen.  It can be used
+ * from any thread.
+ */
+public final class MessageTokenCache {
+
+    private final int capacity;
+    private final int maximumBodyLength;
+    // least recently used first
+    private final Map<String, List<MessageToken>> entries;
+    // the emoticons that the cached tokens were built with
+    private List<Emoticon> emoticons;
+    private long hitCount;
+    private long missCount;
+    private long invalidationCount;
+
+    /**
+     * @param capacity the number of bodies to keep the tokens of
+     * @param maximumBodyLength the length of the longest body to keep the tokens of - longer ones are unlikely to be
+     * repeated, and would make the cache's size in memory hard to predict
+     */
+    MessageTokenCache(final int capacity, final int maximumBodyLength) {
+        this.capacity = capacity;
+        this.maximumBodyLength = maximumBodyLength;
+        this.entries = new LinkedHashMap<String, List<MessageToken>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, List<MessageToken>> eldest) {
+                return size() > MessageTokenCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cached tokens of the body, if they were built with the given emoticons, or null
+     */
+    synchronized List<MessageToken> get(final String body, final List<Emoticon> emoticons) {
+        if (emoticons != this.emoticons) {
+            if (!this.entries.isEmpty()) {
+                this.invalidationCount++;
+            }
+            this.entries.clear();
+            this.emoticons = emoticons;
+        }
+
+        final List<MessageToken> tokens = this.entries.get(body);
+        if (null == tokens) {
+            this.missCount++;
+        }
+        else {
+            this.hitCount++;
+        }
+        return tokens;
+    }
+
+    /**
+     * Caches the tokens of the body, unless they were built with emoticons that have since been replaced.
+     *
+     * @return the tokens, which can no longer be changed
+     */
+    synchronized List<MessageToken> put(final String body, final List<Emoticon> emoticons, final List<MessageToken> tokens) {
+        final List<MessageToken> unmodifiableTokens = Collections.unmodifiableList(tokens);
+        if ((emoticons == this.emoticons) && (body.length() <= this.maximumBodyLength)) {
+            this.entries.put(body, unmodifiableTokens);
+        }
+        return unmodifiableTokens;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * @return the number of times the cache has been emptied because the emoticons changed
+     */
+    public synchronized long getInvalidationCount() {
+        return this.invalidationCount;
+    }
+
+    /**
+     * @return the fraction of lookups that were hits, or 0 if there have been none
+     */
+    public synchronized double getHitRate() {
+        final long lookupCount = this.hitCount + this.missCount;
+        return (lookupCount == 0) ? 0 : (double)this.hitCount / lookupCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d of %d bodies cached, %d hits, %d misses (%.1f%% hit rate), %d invalidations",
+                this.entries.size(), this.capacity, this.hitCount, this.missCount, getHitRate() * 100, this.invalidationCount);
+    }
+}
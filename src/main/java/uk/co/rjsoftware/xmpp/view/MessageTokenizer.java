@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import uk.co.rjsoftware.xmpp.model.Emoticon;
+import uk.co.rjsoftware.xmpp.model.hipchat.emoticons.HipChatEmoticons;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a message body into the {@link MessageToken}s to display, in a single pass over the body, without building
+ * any HTML for it:
+ *
+ * <ul>
+ *     <li>&lt;img&gt; and &lt;a&gt; tags in the body become images and links - any other HTML is left as text</li>
+ *     <li>http and https addresses become links</li>
+ *     <li>emoticon shortcuts, outside of links, become images - where shortcuts overlap, the longest one starting
+ *     first wins</li>
+ *     <li>carriage returns and newlines become line breaks</li>
+ *     <li>the spaces and tabs at the very start of the body become non-breaking spaces</li>
+ * </ul>
+ *
+ * Whitespace is treated the way the HTML parser treated it: runs of spaces and tabs become a single space, and spaces
+ * at the start (even after an image) and end of a line are dropped.
+ * <p>
+ * The tokens of recent bodies are cached - see {@link #getCache()} - so the lists returned cannot be changed.
+ */
+public final class MessageTokenizer {
+
+    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("([A-Za-z]+)\\s*=\\s*(?:'([^']*)'|\"([^\"]*)\"|([^\\s>]+))");
+    private static final Pattern TAG_PATTERN = Pattern.compile("<[^>]*>");
+
+    private static final int TAB_SIZE = 4;
+    private static final char NON_BREAKING_SPACE = '\u00A0';
+    private static final String HTTP = "http://";
+    private static final String HTTPS = "https://";
+
+    private static final int CACHE_CAPACITY = 2000;
+    private static final int CACHE_MAXIMUM_BODY_LENGTH = 1000;
+
+    // built from the current emoticons, and replaced when they change
+    private static volatile EmoticonMatcher emoticonMatcher;
+    private static final MessageTokenCache CACHE = new MessageTokenCache(CACHE_CAPACITY, CACHE_MAXIMUM_BODY_LENGTH);
+
+    private MessageTokenizer() {
+        // empty private constructor to prevent instantiation
+    }
+
+    public static List<MessageToken> tokenize(final String body) {
+        final EmoticonMatcher matcher = getEmoticonMatcher();
+        final List<MessageToken> tokens = CACHE.get(body, matcher.getEmoticons());
+        if (null != tokens) {
+            return tokens;
+        }
+        return CACHE.put(body, matcher.getEmoticons(), new Tokenizer(body, matcher.findEmoticons(body)).tokenize());
+    }
+
+    /**
+     * @return the cache of the tokens of recent bodies, for its hit rate
+     */
+    public static MessageTokenCache getCache() {
+        return CACHE;
+    }
+
+    private static EmoticonMatcher getEmoticonMatcher() {
+        final List<Emoticon> emoticons = HipChatEmoticons.getEmoticons();
+        EmoticonMatcher matcher = emoticonMatcher;
+        // HipChatEmoticons publishes a new list whenever the emoticons change.  Threads that see the change at the
+        // same time may each build a matcher, which does no harm.
+        if ((null == matcher) || (matcher.getEmoticons() != emoticons)) {
+            matcher = new EmoticonMatcher(emoticons);
+            emoticonMatcher = matcher;
+        }
+        return matcher;
+    }
+
+    /**
+     * The state of a single pass over a message body.
+     */
+    private static final class Tokenizer {
+
+        private final String body;
+        // the emoticon with the longest shortcut starting at each index of the body, or null if there are none
+        private final Emoticon[] emoticons;
+        private final List<MessageToken> tokens = new ArrayList<MessageToken>();
+        // the text since the last token
+        private final StringBuilder text = new StringBuilder();
+        // at the start of a line, spaces are dropped - until some text is reached, as images don't count
+        private boolean atLineStart = true;
+        private boolean afterSpace = true;
+
+        private Tokenizer(final String body, final Emoticon[] emoticons) {
+            this.body = body;
+            this.emoticons = emoticons;
+        }
+
+        private List<MessageToken> tokenize() {
+            int index = appendLeadingSpaces();
+            while (index < this.body.length()) {
+                final char character = this.body.charAt(index);
+                int end = -1;
+                switch (character) {
+                    case '<':
+                        end = appendTag(index);
+                        break;
+                    case 'h':
+                        end = appendLink(index);
+                        break;
+                    case '\r':
+                    case '\n':
+                        end = appendLineBreak(index);
+                        break;
+                    default: // do nothing
+                }
+                if (end == -1) {
+                    end = appendEmoticon(index);
+                }
+                if (end == -1) {
+                    appendCharacter(character);
+                    end = index + 1;
+                }
+                index = end;
+            }
+
+            appendText();
+            trimTrailingSpace();
+            return this.tokens;
+        }
+
+        /**
+         * @return the index of the first character after the leading spaces and tabs
+         */
+        private int appendLeadingSpaces() {
+            int index = 0;
+            while (index < this.body.length()) {
+                final char character = this.body.charAt(index);
+                if (character == ' ') {
+                    this.text.append(NON_BREAKING_SPACE);
+                }
+                else if (character == '\t') {
+                    for (int space = 0 ; space < TAB_SIZE ; space++) {
+                        this.text.append(NON_BREAKING_SPACE);
+                    }
+                }
+                else {
+                    break;
+                }
+                this.atLineStart = false;
+                this.afterSpace = false;
+                index++;
+            }
+            return index;
+        }
+
+        /**
+         * Appends the character to the text, collapsing runs of spaces and tabs into a single space.
+         */
+        private void appendCharacter(final char character) {
+            if ((character == ' ') || (character == '\t')) {
+                if (!this.afterSpace) {
+                    this.text.append(' ');
+                    this.afterSpace = true;
+                }
+            }
+            else {
+                this.text.append(character);
+                this.atLineStart = false;
+                this.afterSpace = false;
+            }
+        }
+
+        /**
+         * Adds the text since the last token as a token of its own.
+         */
+        private void appendText() {
+            if (this.text.length() > 0) {
+                this.tokens.add(MessageToken.text(this.text.toString()));
+                this.text.setLength(0);
+            }
+        }
+
+        private void appendImage(final String url, final String altText) {
+            appendText();
+            this.tokens.add(MessageToken.image(url, altText));
+            this.afterSpace = this.atLineStart;
+        }
+
+        private void appendLink(final String url, final String linkText) {
+            appendText();
+            for (int index = 0 ; index < linkText.length() ; index++) {
+                appendCharacter(linkText.charAt(index));
+            }
+            if (this.text.length() > 0) {
+                this.tokens.add(MessageToken.link(url, this.text.toString()));
+                this.text.setLength(0);
+            }
+        }
+
+        /**
+         * Appends the &lt;img&gt; or &lt;a&gt; tag at the index, if there is one - these are the only tags that are
+         * allowed in a message.
+         *
+         * @return the index after the tag, or -1 if there isn't one
+         */
+        private int appendTag(final int index) {
+            if (this.body.regionMatches(true, index, "<img ", 0, 5)) {
+                final int tagEnd = indexOnLine("/>", index + 6);
+                if (tagEnd == -1) {
+                    return -1;
+                }
+
+                final String tag = this.body.substring(index, tagEnd + 2);
+                appendImage(unescape(getAttribute(tag, "src")), unescape(getAttribute(tag, "alt")));
+                return tagEnd + 2;
+            }
+
+            if (this.body.regionMatches(true, index, "<a ", 0, 3)) {
+                final int closeTagStart = indexOnLine("</a>", index + 4);
+                final int openTagEnd = this.body.indexOf('>', index);
+                if ((closeTagStart == -1) || (openTagEnd > closeTagStart)) {
+                    return -1;
+                }
+
+                final String linkText = TAG_PATTERN.matcher(this.body.substring(openTagEnd + 1, closeTagStart)).replaceAll("");
+                appendLink(unescape(getAttribute(this.body.substring(index, openTagEnd + 1), "href")), unescape(linkText));
+                return closeTagStart + 4;
+            }
+
+            return -1;
+        }
+
+        /**
+         * Appends the http or https address at the index, if there is one.  It ends at the last character that an
+         * address can end with, before the first character that can't be part of one.
+         *
+         * @return the index after the address, or -1 if there isn't one
+         */
+        private int appendLink(final int index) {
+            final int start;
+            if (this.body.startsWith(HTTP, index)) {
+                start = index + HTTP.length();
+            }
+            else if (this.body.startsWith(HTTPS, index)) {
+                start = index + HTTPS.length();
+            }
+            else {
+                return -1;
+            }
+
+            int end = -1;
+            for (int position = start ; (position < this.body.length()) && isLinkCharacter(this.body.charAt(position)) ; position++) {
+                if (isLinkEndCharacter(this.body.charAt(position))) {
+                    end = position + 1;
+                }
+            }
+            if (end == -1) {
+                return -1;
+            }
+
+            final String url = this.body.substring(index, end);
+            appendLink(url, url);
+            return end;
+        }
+
+        /**
+         * Appends the longest emoticon shortcut at the index, if there is one.
+         *
+         * @return the index after the shortcut, or -1 if there isn't one
+         */
+        private int appendEmoticon(final int index) {
+            if ((null == this.emoticons) || (null == this.emoticons[index])) {
+                return -1;
+            }
+
+            final Emoticon emoticon = this.emoticons[index];
+            appendImage(emoticon.getUrl(), emoticon.getShortcut());
+            return index + emoticon.getShortcut().length();
+        }
+
+        /**
+         * Appends a line break for a newline, a carriage return, or both together.
+         *
+         * @return the index after them
+         */
+        private int appendLineBreak(final int index) {
+            appendText();
+            trimTrailingSpace();
+            this.tokens.add(MessageToken.lineBreak());
+            this.atLineStart = true;
+            this.afterSpace = true;
+
+            if (this.body.startsWith("\r\n", index)) {
+                return index + 2;
+            }
+            return index + 1;
+        }
+
+        /**
+         * @return the index of the target (ignoring case), if it is before the end of the line, otherwise -1
+         */
+        private int indexOnLine(final String target, final int fromIndex) {
+            for (int index = fromIndex ; index + target.length() <= this.body.length() ; index++) {
+                final char character = this.body.charAt(index);
+                if ((character == '\r') || (character == '\n')) {
+                    return -1;
+                }
+                if (this.body.regionMatches(true, index, target, 0, target.length())) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        private void trimTrailingSpace() {
+            if (this.tokens.isEmpty()) {
+                return;
+            }
+
+            final MessageToken lastToken = this.tokens.get(this.tokens.size() - 1);
+            final String tokenText = lastToken.getText();
+            if ((lastToken.getType() != MessageToken.Type.IMAGE) && tokenText.endsWith(" ")) {
+                if (tokenText.length() == 1) {
+                    this.tokens.remove(this.tokens.size() - 1);
+                }
+                else {
+                    this.tokens.set(this.tokens.size() - 1, lastToken.withText(tokenText.substring(0, tokenText.length() - 1)));
+                }
+            }
+        }
+    }
+
+    private static boolean isLinkCharacter(final char character) {
+        return isLinkEndCharacter(character) || ("?()!:,.;".indexOf(character) != -1);
+    }
+
+    private static boolean isLinkEndCharacter(final char character) {
+        return ((character >= 'a') && (character <= 'z')) || ((character >= 'A') && (character <= 'Z'))
+                || ((character >= '0') && (character <= '9')) || ("-+&@#/%=~_|".indexOf(character) != -1);
+    }
+
+    private static String getAttribute(final String tag, final String name) {
+        final Matcher matcher = ATTRIBUTE_PATTERN.matcher(tag);
+        while (matcher.find()) {
+            if (matcher.group(1).equalsIgnoreCase(name)) {
+                for (int group = 2 ; group <= 4 ; group++) {
+                    if (null != matcher.group(group)) {
+                        return matcher.group(group);
+                    }
+                }
+            }
+        }
+        return "";
+    }
+
+    private static String unescape(final String html) {
+        return StringEscapeUtils.unescapeHtml4(html);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The heights of the rows of a {@link MessageListView}, summed in a Fenwick (binary indexed) tree, so that the offset
+ * of a row, and the row at an offset, can be found in O(log n) however many rows there are.  Rows that haven't been
+ * measured yet are given an estimated height.
+ */
+final class RowHeights {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int estimatedHeight;
+    private int size;
+    private int[] heights = new int[INITIAL_CAPACITY];
+    // tree[i] holds the sum of the heights of the rows (i - lowestOneBit(i)) to (i - 1)
+    private int[] tree = new int[INITIAL_CAPACITY + 1];
+    private final BitSet measured = new BitSet();
+
+    RowHeights(final int estimatedHeight) {
+        this.estimatedHeight = estimatedHeight;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    int getHeight(final int index) {
+        checkIndex(index);
+        return this.heights[index];
+    }
+
+    boolean isMeasured(final int index) {
+        checkIndex(index);
+        return this.measured.get(index);
+    }
+
+    /**
+     * Sets the measured height of the row.
+     *
+     * @return true if the height changed
+     */
+    boolean setHeight(final int index, final int height) {
+        checkIndex(index);
+        this.measured.set(index);
+        final int change = height - this.heights[index];
+        if (change == 0) {
+            return false;
+        }
+
+        this.heights[index] = height;
+        for (int node = index + 1 ; node <= this.size ; node += Integer.lowestOneBit(node)) {
+            this.tree[node] += change;
+        }
+        return true;
+    }
+
+    /**
+     * Inserts rows of the estimated height before the row at the given index.
+     */
+    void insert(final int index, final int count) {
+        if ((index < 0) || (index > this.size)) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+        if (count == 0) {
+            return;
+        }
+
+        if (this.size + count > this.heights.length) {
+            this.heights = Arrays.copyOf(this.heights, Math.max(this.heights.length * 2, this.size + count));
+        }
+        System.arraycopy(this.heights, index, this.heights, index + count, this.size - index);
+        Arrays.fill(this.heights, index, index + count, this.estimatedHeight);
+
+        final BitSet measuredAfter = this.measured.get(index, this.size);
+        this.measured.clear(index, this.size);
+        for (int bit = measuredAfter.nextSetBit(0) ; bit >= 0 ; bit = measuredAfter.nextSetBit(bit + 1)) {
+            this.measured.set(index + count + bit);
+        }
+
+        this.size += count;
+        rebuildTree();
+    }
+
+    /**
+     * Removes the rows from <code>fromIndex</code> (inclusive) to <code>toIndex</code> (exclusive).
+     */
+    void remove(final int fromIndex, final int toIndex) {
+        if ((fromIndex < 0) || (toIndex > this.size) || (fromIndex > toIndex)) {
+            throw new IndexOutOfBoundsException("From: " + fromIndex + ", To: " + toIndex + ", Size: " + this.size);
+        }
+
+        final int count = toIndex - fromIndex;
+        System.arraycopy(this.heights, toIndex, this.heights, fromIndex, this.size - toIndex);
+
+        final BitSet measuredAfter = this.measured.get(toIndex, this.size);
+        this.measured.clear(fromIndex, this.size);
+        for (int bit = measuredAfter.nextSetBit(0) ; bit >= 0 ; bit = measuredAfter.nextSetBit(bit + 1)) {
+            this.measured.set(fromIndex + bit);
+        }
+
+        this.size -= count;
+        rebuildTree();
+    }
+
+    void clear() {
+        this.size = 0;
+        this.heights = new int[INITIAL_CAPACITY];
+        this.tree = new int[INITIAL_CAPACITY + 1];
+        this.measured.clear();
+    }
+
+    /**
+     * Marks every row as needing measuring again, keeping their current heights as the estimates.
+     */
+    void invalidate() {
+        this.measured.clear();
+    }
+
+    /**
+     * @return the offset of the top of the row - or, given the number of rows, the total height
+     */
+    int getOffset(final int index) {
+        if ((index < 0) || (index > this.size)) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+
+        int offset = 0;
+        for (int node = index ; node > 0 ; node -= Integer.lowestOneBit(node)) {
+            offset += this.tree[node];
+        }
+        return offset;
+    }
+
+    int getTotalHeight() {
+        return getOffset(this.size);
+    }
+
+    /**
+     * @return the row that the offset falls in, the last row for an offset beyond them all, or -1 if there are no rows
+     */
+    int getIndexAt(final int offset) {
+        if (this.size == 0) {
+            return -1;
+        }
+
+        // walk down the tree, finding the most rows whose heights add up to no more than the offset
+        int index = 0;
+        int remaining = offset;
+        for (int step = Integer.highestOneBit(this.size) ; step > 0 ; step >>= 1) {
+            final int node = index + step;
+            if ((node <= this.size) && (this.tree[node] <= remaining)) {
+                index = node;
+                remaining -= this.tree[node];
+            }
+        }
+        return Math.min(Math.max(index, 0), this.size - 1);
+    }
+
+    private void rebuildTree() {
+        if (this.tree.length < this.size + 1) {
+            this.tree = new int[this.heights.length + 1];
+        }
+        else {
+            Arrays.fill(this.tree, 0);
+        }
+
+        for (int node = 1 ; node <= this.size ; node++) {
+            this.tree[node] += this.heights[node - 1];
+            final int parent = node + Integer.lowestOneBit(node);
+            if (parent <= this.size) {
+                this.tree[parent] += this.tree[node];
+            }
+        }
+    }
+
+    private void checkIndex(final int index) {
+        if ((index < 0) || (index >= this.size)) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+    }
+}
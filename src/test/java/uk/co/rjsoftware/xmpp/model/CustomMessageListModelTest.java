@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CustomMessageListModelTest {
+
+    @Test
+    public void testOlderMessagesInsertedBeforeExistingOnes() {
+        final CustomMessageListModel model = new CustomMessageListModel();
+        model.add(new CustomMessage(3000L, "room@conf.hipchat.com/Someone Else", "third"));
+        model.add(new CustomMessage(4000L, "Me", "fourth \u263A"));
+
+        model.addAll(0, Arrays.asList(new CustomMessage(1000L, "Me", "first"),
+                new CustomMessage(2000L, "Someone Else", "second")));
+
+        assertEquals("incorrect size", 4, model.size());
+        final String[] bodies = {"first", "second", "third", "fourth \u263A"};
+        final String[] senders = {"Me", "Someone Else", "Someone Else", "Me"};
+        for (int index = 0 ; index < model.size() ; index++) {
+            final CustomMessage message = model.get(index);
+            assertEquals("incorrect timestamp", (index + 1) * 1000L, message.getTimestamp());
+            assertEquals("incorrect sender", senders[index], message.getSender());
+            assertEquals("incorrect body", bodies[index], message.getBody());
+        }
+
+        model.clear();
+        assertTrue("model not cleared", model.isEmpty());
+        assertFalse("cleared model has messages", model.iterator().hasNext());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageFingerprintIndexTest {
+
+    @Test
+    public void testReplayOfHistoryWithoutStanzaIds() {
+        final MessageFingerprintIndex index = new MessageFingerprintIndex();
+        // the history has the same message twice in the same second, then another message
+        index.addExisting(new CustomMessage(1418580087000L, "Someone Else", "+1"));
+        index.addExisting(new CustomMessage(1418580087000L, "Someone Else", "+1"));
+        index.addExisting(new CustomMessage(1418580090000L, "Someone Else", "done"));
+
+        index.startReplay();
+        // the server's timestamps are to the second, and the live messages' weren't
+        assertFalse("replayed message added", index.isNew(new CustomMessage(1418580087000L, "Someone Else", "+1"), "a"));
+        assertFalse("replayed message added", index.isNew(new CustomMessage(1418580087000L, "Someone Else", "+1"), "b"));
+        // a third one in the same second was sent while offline
+        assertTrue("new message dropped", index.isNew(new CustomMessage(1418580087000L, "Someone Else", "+1"), "c"));
+        assertFalse("replayed message added", index.isNew(new CustomMessage(1418580090000L, "Someone Else", "done"), "d"));
+        assertTrue("new message dropped", index.isNew(new CustomMessage(1418580091000L, "Someone Else", "done"), "e"));
+
+        // reconnecting replays the same messages again, with the same ids
+        index.startReplay();
+        assertFalse("replayed message added", index.isNew(new CustomMessage(1418580087000L, "Someone Else", "+1"), "c"));
+        assertFalse("replayed message added", index.isNew(new CustomMessage(1418580087000L, "Someone Else", "+1"), "a"));
+        assertFalse("replayed message added", index.isNew(new CustomMessage(1418580087000L, "Someone Else", "+1"), "b"));
+        assertFalse("replayed message added", index.isNew(new CustomMessage(1418580091000L, "Someone Else", "done"), "e"));
+        assertTrue("new message dropped", index.isNew(new CustomMessage(1418580087000L, "Someone Else", "+1"), "f"));
+    }
+
+    @Test
+    public void testSavedStanzaIdsAreRecognised() {
+        final MessageFingerprintIndex index = new MessageFingerprintIndex();
+        index.startReplay();
+        assertTrue("new message dropped", index.isNew(new CustomMessage(1418580087400L, "Someone Else", "hello"), "id1"));
+        assertTrue("new message dropped", index.isNew(new CustomMessage(1418580087600L, "Someone Else", "hello"), "id2"));
+
+        // next session - the live messages were stored with their own timestamps
+        final MessageFingerprintIndex reloadedIndex = new MessageFingerprintIndex();
+        reloadedIndex.addStanzaIdFingerprints(index.getStanzaIdFingerprints());
+        reloadedIndex.addExisting(new CustomMessage(1418580087400L, "Someone Else", "hello"));
+        reloadedIndex.addExisting(new CustomMessage(1418580087600L, "Someone Else", "hello"));
+
+        reloadedIndex.startReplay();
+        assertFalse("replayed message added", reloadedIndex.isNew(new CustomMessage(1418580087000L, "Someone Else", "hello"), "id2"));
+        assertFalse("replayed message added", reloadedIndex.isNew(new CustomMessage(1418580087000L, "Someone Else", "hello"), "id1"));
+        assertTrue("new message dropped", reloadedIndex.isNew(new CustomMessage(1418580087000L, "Someone Else", "hello"), "id3"));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model;
+
+import org.junit.Test;
+
+import javax.swing.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageIngesterTest {
+
+    // the batches handled by all of the channels, as name:first item-last item
+    private final List<String> batches = Collections.synchronizedList(new ArrayList<String>());
+
+    private MessageIngester.Channel<Integer> createChannel(final MessageIngester ingester, final String name,
+                                                           final CountDownLatch handled) {
+        return ingester.createChannel(name, new MessageIngester.BatchHandler<Integer>() {
+            @Override
+            public void handle(final List<Integer> batch) {
+                assertTrue("batches should be handled on the event dispatch thread", SwingUtilities.isEventDispatchThread());
+                for (int index = 1 ; index < batch.size() ; index++) {
+                    assertEquals("the items should be in order", batch.get(index - 1) + 1, (int)batch.get(index));
+                }
+                MessageIngesterTest.this.batches.add(name + ":" + batch.get(0) + "-" + batch.get(batch.size() - 1));
+                for (int index = 0 ; index < batch.size() ; index++) {
+                    handled.countDown();
+                }
+            }
+        });
+    }
+
+    // holds up the event dispatch thread until the returned latch is released
+    private static CountDownLatch blockEventDispatchThread() {
+        final CountDownLatch release = new CountDownLatch(1);
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException exception) {
+                    throw new RuntimeException(exception);
+                }
+            }
+        });
+        return release;
+    }
+
+    // the frame that handled the last batch ends in the same event
+    private static void waitForFrameToEnd() {
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    // do nothing
+                }
+            });
+        } catch (InterruptedException | InvocationTargetException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    @Test
+    public void testTheChatsTakeTurnsInBatches() throws InterruptedException {
+        final MessageIngester ingester = new MessageIngester(1000);
+        final CountDownLatch handled = new CountDownLatch(1210);
+        final MessageIngester.Channel<Integer> busy = createChannel(ingester, "busy", handled);
+        final MessageIngester.Channel<Integer> quiet = createChannel(ingester, "quiet", handled);
+
+        final CountDownLatch release = blockEventDispatchThread();
+        for (int index = 0 ; index < 1200 ; index++) {
+            busy.offer(index);
+        }
+        for (int index = 0 ; index < 10 ; index++) {
+            quiet.offer(index);
+        }
+        assertEquals("incorrect backlog", 1210, ingester.getBacklog());
+        release.countDown();
+
+        assertTrue("the items should have been handled", handled.await(10, TimeUnit.SECONDS));
+        waitForFrameToEnd();
+        assertEquals("incorrect batches", "[busy:0-499, quiet:0-9, busy:500-999, busy:1000-1199]", this.batches.toString());
+        assertEquals("incorrect backlog", 0, ingester.getBacklog());
+        assertEquals("incorrect maximum backlog", 1210, ingester.getMaxBacklog());
+    }
+
+    @Test
+    public void testAFrameStopsOnceItsBudgetIsUsedUp() throws InterruptedException {
+        // no budget, so each frame handles a single batch
+        final MessageIngester ingester = new MessageIngester(0);
+        final CountDownLatch handled = new CountDownLatch(3);
+        final List<MessageIngester.Channel<Integer>> channels = new ArrayList<MessageIngester.Channel<Integer>>();
+        for (int index = 0 ; index < 3 ; index++) {
+            channels.add(createChannel(ingester, "chat" + index, handled));
+        }
+
+        final CountDownLatch release = blockEventDispatchThread();
+        for (MessageIngester.Channel<Integer> channel : channels) {
+            channel.offer(1);
+        }
+        release.countDown();
+
+        assertTrue("the items should have been handled", handled.await(10, TimeUnit.SECONDS));
+        waitForFrameToEnd();
+        assertEquals("incorrect batches", "[chat0:1-1, chat1:1-1, chat2:1-1]", this.batches.toString());
+        assertEquals("each batch should have had a frame of its own", 3, ingester.getOverBudgetFrameCount());
+    }
+}
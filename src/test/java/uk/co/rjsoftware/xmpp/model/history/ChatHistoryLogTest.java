@@ -0,0 +1,707 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChatHistoryLogTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File getHistoryDirectory() {
+        return new File(this.folder.getRoot(), "room@conf.hipchat.com");
+    }
+
+    private File getLastSegmentFile(final File directory) {
+        final File[] files = directory.listFiles();
+        File lastSegment = null;
+        for (File file : files) {
+            if (file.getName().endsWith(HistoryFormat.SEGMENT_SUFFIX)
+                    && ((null == lastSegment) || (file.getName().compareTo(lastSegment.getName()) > 0))) {
+                lastSegment = file;
+            }
+        }
+        return lastSegment;
+    }
+
+    private void assertMessageEquals(final CustomMessage expected, final CustomMessage actual) {
+        assertEquals("incorrect timestamp", expected.getTimestamp(), actual.getTimestamp());
+        assertEquals("incorrect sender", expected.getSender(), actual.getSender());
+        assertEquals("incorrect body", expected.getBody(), actual.getBody());
+    }
+
+    @Test
+    public void testMessagesAreReadBackAfterReopening() {
+        final CustomMessage first = new CustomMessage(1418580087000L, "Richard Simpson", "hello \u00E9\u00E8 :)");
+        final CustomMessage second = new CustomMessage(1418580080000L, "Someone Else", "");
+        final CustomMessage third = new CustomMessage(1418590087123L, "Richard Simpson", "line one\nline two");
+
+        final ChatHistoryLog log = new ChatHistoryLog(getHistoryDirectory());
+        assertEquals("incorrect sequence", 0, log.append(first));
+        assertEquals("incorrect sequence", 1, log.append(second));
+        log.close();
+
+        final ChatHistoryLog reopenedLog = new ChatHistoryLog(getHistoryDirectory());
+        assertEquals("incorrect sequence", 2, reopenedLog.append(third));
+        final List<CustomMessage> messages = reopenedLog.readAll();
+        reopenedLog.close();
+
+        assertEquals("incorrect number of messages", 3, messages.size());
+        assertMessageEquals(first, messages.get(0));
+        assertMessageEquals(second, messages.get(1));
+        assertMessageEquals(third, messages.get(2));
+    }
+
+    @Test
+    public void testLargeHistoryIsSplitIntoSegments() {
+        final StringBuilder body = new StringBuilder();
+        for (int index = 0 ; index < 1000 ; index++) {
+            body.append("0123456789");
+        }
+
+        final int messageCount = (int)(2 * ChatHistoryLog.MAX_SEGMENT_SIZE / body.length()) + 10;
+        final ChatHistoryLog log = new ChatHistoryLog(getHistoryDirectory());
+        for (int index = 0 ; index < messageCount ; index++) {
+            log.append(new CustomMessage(index, "sender" + (index % 7), body.toString()));
+        }
+        log.close();
+
+        assertTrue("history not split into segments", getHistoryDirectory().list().length > 3);
+
+        for (boolean memoryMapped : new boolean[] {false, true}) {
+            final ChatHistoryLog reopenedLog = new ChatHistoryLog(getHistoryDirectory(), memoryMapped);
+            final List<CustomMessage> messages = reopenedLog.readAll();
+            reopenedLog.close();
+
+            assertEquals("incorrect number of messages", messageCount, messages.size());
+            for (int index = 0 ; index < messageCount ; index++) {
+                assertEquals("incorrect timestamp", index, messages.get(index).getTimestamp());
+                assertEquals("incorrect sender", "sender" + (index % 7), messages.get(index).getSender());
+            }
+        }
+    }
+
+    @Test
+    public void testHistoryIsPagedBackwardsFromTheEnd() {
+        final StringBuilder body = new StringBuilder();
+        for (int index = 0 ; index < 1000 ; index++) {
+            body.append("0123456789");
+        }
+
+        final int messageCount = (int)(2 * ChatHistoryLog.MAX_SEGMENT_SIZE / body.length()) + 10;
+        final ChatHistoryLog log = new ChatHistoryLog(getHistoryDirectory());
+        for (int index = 0 ; index < messageCount ; index++) {
+            log.append(new CustomMessage(index, "sender", body.toString()));
+        }
+        log.close();
+
+        for (boolean memoryMapped : new boolean[] {false, true}) {
+            final ChatHistoryLog reopenedLog = new ChatHistoryLog(getHistoryDirectory(), memoryMapped);
+            List<HistoryRecord> records = reopenedLog.readTail(150);
+            long expectedSequence = messageCount;
+            while (!records.isEmpty()) {
+                expectedSequence -= records.size();
+                for (int index = 0 ; index < records.size() ; index++) {
+                    assertEquals("incorrect sequence", expectedSequence + index, records.get(index).getSequence());
+                    assertEquals("incorrect timestamp", expectedSequence + index, records.get(index).getMessage().getTimestamp());
+                }
+                records = reopenedLog.readBefore(records.get(0).getSequence(), 150);
+            }
+            reopenedLog.close();
+
+            assertEquals("not all messages were read", 0, expectedSequence);
+        }
+    }
+
+    @Test
+    public void testHistoryIsPagedBackwardsThroughASegmentThatCannotBeReadBackwards() throws IOException {
+        final ChatHistoryLog log = new ChatHistoryLog(getHistoryDirectory());
+        for (int index = 0 ; index < 100 ; index++) {
+            log.append(new CustomMessage(index, "sender", "message " + index));
+        }
+        log.close();
+
+        // spoil the reversed length at the end of the last record, which is only used when reading backwards
+        final File segmentFile = getLastSegmentFile(getHistoryDirectory());
+        try (final RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.seek(file.length() - 1);
+            file.write(0);
+        }
+
+        for (boolean memoryMapped : new boolean[] {false, true}) {
+            final ChatHistoryLog reopenedLog = new ChatHistoryLog(getHistoryDirectory(), memoryMapped);
+            List<HistoryRecord> records = reopenedLog.readTail(10);
+            long expectedSequence = 100;
+            int pageCount = 0;
+            while (!records.isEmpty()) {
+                expectedSequence -= records.size();
+                pageCount++;
+                for (int index = 0 ; index < records.size() ; index++) {
+                    assertEquals("incorrect sequence", expectedSequence + index, records.get(index).getSequence());
+                }
+                records = reopenedLog.readBefore(records.get(0).getSequence(), 10);
+            }
+            reopenedLog.close();
+
+            assertEquals("incorrect number of pages", 10, pageCount);
+            assertEquals("not all messages were read", 0, expectedSequence);
+        }
+    }
+
+    @Test
+    public void testQueuedMessagesAreWrittenInTheBackground() {
+        final HistoryWriter historyWriter = new HistoryWriter(60000, 1000);
+        final ChatHistoryLog log = new ChatHistoryLog(getHistoryDirectory());
+        for (int index = 0 ; index < 10 ; index++) {
+            historyWriter.append(log, new CustomMessage(index, "sender", "message " + index));
+        }
+
+        // the flush interval hasn't passed, so the messages are only on disk once the writer has been synced
+        historyWriter.sync(log);
+        final ChatHistoryLog reopenedLog = new ChatHistoryLog(getHistoryDirectory());
+        final List<CustomMessage> messages = reopenedLog.readAll();
+        reopenedLog.close();
+
+        assertEquals("incorrect number of messages", 10, messages.size());
+        for (int index = 0 ; index < 10 ; index++) {
+            assertEquals("incorrect body", "message " + index, messages.get(index).getBody());
+        }
+
+        // once closed, messages are written straight away
+        historyWriter.close();
+        historyWriter.append(log, new CustomMessage(10, "sender", "message 10"));
+        assertEquals("incorrect number of messages", 11, log.readAll().size());
+        log.close();
+    }
+
+    @Test
+    public void testNothingQueuedWhileClosingIsLost() throws InterruptedException {
+        final HistoryWriter historyWriter = new HistoryWriter(60000, 1000);
+        final ChatHistoryLog log = new ChatHistoryLog(getHistoryDirectory());
+        final Thread appender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int index = 0 ; index < 2000 ; index++) {
+                    historyWriter.append(log, new CustomMessage(index, "sender", "message " + index));
+                }
+            }
+        });
+        appender.start();
+        historyWriter.close();
+        appender.join();
+
+        final List<CustomMessage> messages = log.readAll();
+        log.close();
+        assertEquals("incorrect number of messages", 2000, messages.size());
+        for (int index = 0 ; index < 2000 ; index++) {
+            assertEquals("incorrect body", "message " + index, messages.get(index).getBody());
+        }
+    }
+
+    @Test
+    public void testFailedWritesAreTriedAgainInOrder() {
+        final HistoryWriter historyWriter = new HistoryWriter(60000, 1000);
+        final FailingChatHistory log = new FailingChatHistory(new ChatHistoryLog(getHistoryDirectory()));
+        log.failAfter(2);
+        for (int index = 0 ; index < 5 ; index++) {
+            historyWriter.append(log, new CustomMessage(index, "sender", "message " + index));
+        }
+        historyWriter.markRead(log, 3);
+        historyWriter.sync(log);
+        assertEquals("incorrect number of messages written", 2, log.getNextSequence());
+
+        // once the log can be written to again, the messages that failed reach it, in order
+        log.failAfter(-1);
+        historyWriter.sync(log);
+        historyWriter.close();
+
+        final List<CustomMessage> messages = log.readAll();
+        assertEquals("incorrect number of messages", 5, messages.size());
+        for (int index = 0 ; index < 5 ; index++) {
+            assertEquals("incorrect body", "message " + index, messages.get(index).getBody());
+        }
+        assertEquals("incorrect read watermark", 4, log.getReadWatermark());
+        log.close();
+    }
+
+    @Test
+    public void testSharedJournalIsReplayedAfterACrash() throws IOException {
+        final File journalFile = new File(this.folder.getRoot(), HistoryWriter.JOURNAL_FILENAME);
+        final ChatHistoryLog firstLog = new ChatHistoryLog(getHistoryDirectory());
+        final ChatHistoryLog secondLog = new ChatHistoryLog(new File(this.folder.getRoot(), "someone@chat.hipchat.com"));
+        firstLog.append(new CustomMessage(0, "sender", "already in the log"));
+
+        final SharedJournal journal = new SharedJournal(journalFile, new LogChatStorage(this.folder.getRoot()));
+        for (int index = 1 ; index < 5 ; index++) {
+            journal.append(firstLog, new CustomMessage(index, "sender", "first " + index));
+            journal.append(secondLog, new CustomMessage(index, "sender", "second " + index));
+        }
+        journal.markRead(firstLog, 2);
+        journal.commit();
+        // killed before the journal was checkpointed, so nothing has reached the logs
+        assertEquals("journal applied before checkpoint", 1, firstLog.getNextSequence());
+        firstLog.close();
+        secondLog.close();
+
+        SharedJournal.replay(journalFile, new LogChatStorage(this.folder.getRoot()));
+        // replaying again, as if the application was killed before the journal was emptied, adds nothing
+        SharedJournal.replay(journalFile, new LogChatStorage(this.folder.getRoot()));
+
+        final List<CustomMessage> firstMessages = firstLog.readAll();
+        final List<CustomMessage> secondMessages = secondLog.readAll();
+        assertEquals("incorrect number of messages", 5, firstMessages.size());
+        assertEquals("incorrect body", "first 4", firstMessages.get(4).getBody());
+        assertEquals("incorrect read watermark", 3, firstLog.getReadWatermark());
+        assertEquals("incorrect number of messages", 4, secondMessages.size());
+        assertEquals("incorrect body", "second 1", secondMessages.get(0).getBody());
+        firstLog.close();
+        secondLog.close();
+    }
+
+    @Test
+    public void testJournalThatCannotBeReplayedIsSetAside() throws IOException {
+        final File journalFile = new File(this.folder.getRoot(), HistoryWriter.JOURNAL_FILENAME);
+        final File badJournalFile = new File(this.folder.getRoot(), HistoryWriter.JOURNAL_FILENAME + SharedJournal.BAD_SUFFIX);
+
+        // a journal left by an older version
+        try (final RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.writeInt(0x5941434A);
+            file.writeByte(2);
+            file.write(new byte[100]);
+        }
+        final SharedJournal journal = new SharedJournal(journalFile, new LogChatStorage(this.folder.getRoot()));
+        assertTrue("journal not set aside", badJournalFile.exists());
+        assertEquals("incorrect size of the set aside journal", 105, badJournalFile.length());
+        assertEquals("new journal not started", SharedJournal.HEADER_SIZE, journalFile.length());
+        journal.close();
+
+        // something that isn't a journal at all, found when the journal isn't being used
+        try (final RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.write(new byte[100]);
+        }
+        HistoryWriter.replayJournal(journalFile, new LogChatStorage(this.folder.getRoot()));
+        assertFalse("journal not moved", journalFile.exists());
+        assertEquals("incorrect size of the set aside journal", 100, badJournalFile.length());
+    }
+
+    @Test
+    public void testSyncingAChatOnlyAppliesItsOwnJournalEntries() {
+        final File journalFile = new File(this.folder.getRoot(), HistoryWriter.JOURNAL_FILENAME);
+        final HistoryWriter historyWriter = new HistoryWriter(60000, 1000, journalFile, new LogChatStorage(this.folder.getRoot()));
+        final ChatHistoryLog firstLog = new ChatHistoryLog(getHistoryDirectory());
+        final ChatHistoryLog secondLog = new ChatHistoryLog(new File(this.folder.getRoot(), "someone@chat.hipchat.com"));
+        for (int index = 0 ; index < 5 ; index++) {
+            historyWriter.append(firstLog, new CustomMessage(index, "sender", "first " + index));
+            historyWriter.append(secondLog, new CustomMessage(index, "sender", "second " + index));
+        }
+
+        historyWriter.sync(firstLog);
+        assertEquals("incorrect number of messages", 5, firstLog.readAll().size());
+        assertEquals("other chat's messages applied", 0, secondLog.getNextSequence());
+
+        historyWriter.sync(secondLog);
+        assertEquals("incorrect number of messages", 5, secondLog.readAll().size());
+        // nothing is left in the journal, so it has been emptied
+        assertEquals("journal not emptied", SharedJournal.HEADER_SIZE, journalFile.length());
+
+        historyWriter.close();
+        firstLog.close();
+        secondLog.close();
+    }
+
+    @Test
+    public void testSharedJournalKeepsEntriesThatCannotBeApplied() throws IOException {
+        final File journalFile = new File(this.folder.getRoot(), HistoryWriter.JOURNAL_FILENAME);
+        final FailingChatHistory firstLog = new FailingChatHistory(new ChatHistoryLog(getHistoryDirectory()));
+        final ChatHistoryLog secondLog = new ChatHistoryLog(new File(this.folder.getRoot(), "someone@chat.hipchat.com"));
+
+        final SharedJournal journal = new SharedJournal(journalFile, new LogChatStorage(this.folder.getRoot()));
+        for (int index = 0 ; index < 3 ; index++) {
+            journal.append(firstLog, new CustomMessage(index, "sender", "first " + index));
+            journal.append(secondLog, new CustomMessage(index, "sender", "second " + index));
+        }
+
+        // the first log fails part way through being applied, twice
+        firstLog.failAfter(1);
+        journal.checkpoint();
+        assertEquals("incorrect number of messages applied", 3, secondLog.getNextSequence());
+        assertEquals("incorrect number of messages applied", 1, firstLog.getNextSequence());
+        assertTrue("journal emptied with entries not applied", journal.size() > SharedJournal.HEADER_SIZE);
+
+        for (int index = 3 ; index < 5 ; index++) {
+            journal.append(firstLog, new CustomMessage(index, "sender", "first " + index));
+            journal.append(secondLog, new CustomMessage(index, "sender", "second " + index));
+        }
+        journal.markRead(firstLog, 3);
+        firstLog.failAfter(0);
+        journal.checkpoint();
+        assertEquals("incorrect number of messages applied", 5, secondLog.getNextSequence());
+        assertTrue("journal emptied with entries not applied", journal.size() > SharedJournal.HEADER_SIZE);
+
+        // once the log can be written to again, everything reaches it, in order
+        firstLog.failAfter(-1);
+        journal.append(firstLog, new CustomMessage(5, "sender", "first 5"));
+        journal.close();
+        assertEquals("journal not emptied", SharedJournal.HEADER_SIZE, journalFile.length());
+
+        final List<CustomMessage> firstMessages = firstLog.readAll();
+        assertEquals("incorrect number of messages", 6, firstMessages.size());
+        for (int index = 0 ; index < 6 ; index++) {
+            assertEquals("incorrect body", "first " + index, firstMessages.get(index).getBody());
+        }
+        assertEquals("incorrect read watermark", 4, firstLog.getReadWatermark());
+        assertEquals("incorrect number of messages", 5, secondLog.readAll().size());
+        firstLog.close();
+        secondLog.close();
+    }
+
+    @Test
+    public void testSharedJournalEntriesThatCannotBeAppliedAreReplayed() throws IOException {
+        final File journalFile = new File(this.folder.getRoot(), HistoryWriter.JOURNAL_FILENAME);
+        final FailingChatHistory log = new FailingChatHistory(new ChatHistoryLog(getHistoryDirectory()));
+
+        final SharedJournal journal = new SharedJournal(journalFile, new LogChatStorage(this.folder.getRoot()));
+        for (int index = 0 ; index < 4 ; index++) {
+            journal.append(log, new CustomMessage(index, "sender", "message " + index));
+        }
+        log.failAfter(2);
+        journal.checkpoint();
+        log.close();
+
+        // killed before the log could be written to again
+        SharedJournal.replay(journalFile, new LogChatStorage(this.folder.getRoot()));
+
+        final List<CustomMessage> messages = log.readAll();
+        log.close();
+        assertEquals("incorrect number of messages", 4, messages.size());
+        for (int index = 0 ; index < 4 ; index++) {
+            assertEquals("incorrect body", "message " + index, messages.get(index).getBody());
+        }
+    }
+
+    /**
+     * A history that can be made to fail to append, as if its disk were full.
+     */
+    private static final class FailingChatHistory implements ChatHistory {
+
+        private final ChatHistoryLog log;
+        // the number of messages that can be appended before appending fails, or -1 to never fail
+        private int remainingAppendCount = -1;
+
+        private FailingChatHistory(final ChatHistoryLog log) {
+            this.log = log;
+        }
+
+        private void failAfter(final int appendCount) {
+            this.remainingAppendCount = appendCount;
+        }
+
+        private List<CustomMessage> readAll() {
+            return this.log.readAll();
+        }
+
+        @Override
+        public String getChatJid() {
+            return this.log.getChatJid();
+        }
+
+        @Override
+        public void setAppendListener(final HistoryAppendListener appendListener) {
+            this.log.setAppendListener(appendListener);
+        }
+
+        @Override
+        public long append(final CustomMessage message) {
+            if (this.remainingAppendCount == 0) {
+                throw new RuntimeException("No space left on device");
+            }
+            if (this.remainingAppendCount > 0) {
+                this.remainingAppendCount--;
+            }
+            return this.log.append(message);
+        }
+
+        @Override
+        public void markRead(final long sequence) {
+            this.log.markRead(sequence);
+        }
+
+        @Override
+        public long getReadWatermark() {
+            return this.log.getReadWatermark();
+        }
+
+        @Override
+        public long getNextSequence() {
+            return this.log.getNextSequence();
+        }
+
+        @Override
+        public long getFirstSequence() {
+            return this.log.getFirstSequence();
+        }
+
+        @Override
+        public long getLastTimestamp() {
+            return this.log.getLastTimestamp();
+        }
+
+        @Override
+        public List<HistoryRecord> readTail(final int count) {
+            return this.log.readTail(count);
+        }
+
+        @Override
+        public List<HistoryRecord> readBefore(final long sequence, final int count) {
+            return this.log.readBefore(sequence, count);
+        }
+
+        @Override
+        public List<HistoryRecord> readForwards(final long sequence, final int count) {
+            return this.log.readForwards(sequence, count);
+        }
+
+        @Override
+        public List<HistoryRecord> readFrom(final long timestamp, final int count) {
+            return this.log.readFrom(timestamp, count);
+        }
+
+        @Override
+        public long[] readFingerprints() {
+            return this.log.readFingerprints();
+        }
+
+        @Override
+        public void writeFingerprints(final long[] fingerprints) {
+            this.log.writeFingerprints(fingerprints);
+        }
+
+        @Override
+        public void flush() {
+            this.log.flush();
+        }
+
+        @Override
+        public void checkpoint() {
+            this.log.checkpoint();
+        }
+
+        @Override
+        public void close() {
+            this.log.close();
+        }
+
+        @Override
+        public int compact() {
+            return this.log.compact();
+        }
+    }
+
+    @Test
+    public void testColdSegmentsAreCompressed() {
+        final String[] words = {"hello", "build", "deploy", "coffee", "(coffee)", "release", "the", "tests", "failed", ":)"};
+        final Calendar calendar = Calendar.getInstance(Locale.getDefault());
+        calendar.clear();
+        calendar.set(2014, Calendar.JANUARY, 1);
+
+        // four months of messages, so the first three are cold
+        final ChatHistoryLog log = new ChatHistoryLog(getHistoryDirectory());
+        final List<String> bodies = new ArrayList<String>();
+        for (int month = 0 ; month < 4 ; month++) {
+            for (int index = 0 ; index < 500 ; index++) {
+                final String body = words[index % words.length] + " " + words[(index * 7) % words.length] + " " + index;
+                bodies.add(body);
+                log.append(new CustomMessage(calendar.getTimeInMillis() + index, "sender" + (index % 3), body));
+            }
+            calendar.add(Calendar.MONTH, 1);
+        }
+
+        assertEquals("incorrect number of segments compressed", 3, log.compactColdSegments());
+        assertEquals("incorrect number of segments compressed", 0, log.compactColdSegments());
+        assertEquals("incorrect number of compressed segments", 3,
+                getHistoryDirectory().list(new SuffixFilter(HistoryFormat.COMPRESSED_SEGMENT_SUFFIX)).length);
+        assertEquals("incorrect number of uncompressed segments", 1,
+                getHistoryDirectory().list(new SuffixFilter(HistoryFormat.SEGMENT_SUFFIX)).length);
+
+        log.append(new CustomMessage(calendar.getTimeInMillis(), "sender", "after compaction"));
+        bodies.add("after compaction");
+        log.close();
+
+        final ChatHistoryLog reopenedLog = new ChatHistoryLog(getHistoryDirectory());
+        final List<CustomMessage> messages = reopenedLog.readAll();
+        assertEquals("incorrect number of messages", bodies.size(), messages.size());
+        for (int index = 0 ; index < bodies.size() ; index++) {
+            assertEquals("incorrect body", bodies.get(index), messages.get(index).getBody());
+        }
+
+        int pagedCount = 0;
+        List<HistoryRecord> records = reopenedLog.readTail(170);
+        while (!records.isEmpty()) {
+            pagedCount += records.size();
+            records = reopenedLog.readBefore(records.get(0).getSequence(), 170);
+        }
+        reopenedLog.close();
+        assertEquals("incorrect number of messages paged", bodies.size(), pagedCount);
+    }
+
+    private static final class SuffixFilter implements FilenameFilter {
+
+        private final String suffix;
+
+        private SuffixFilter(final String suffix) {
+            this.suffix = suffix;
+        }
+
+        @Override
+        public boolean accept(final File dir, final String name) {
+            return name.endsWith(this.suffix);
+        }
+    }
+
+    @Test
+    public void testMessagesAreFoundByTimestamp() {
+        final long start = 1418580087000L;
+        final long interval = 10 * 60 * 1000;
+
+        // ten days of messages, every ten minutes
+        final ChatHistoryLog log = new ChatHistoryLog(getHistoryDirectory());
+        for (int index = 0 ; index < 1440 ; index++) {
+            log.append(new CustomMessage(start + (index * interval), "sender", "message " + index));
+        }
+        log.close();
+
+        for (int run = 0 ; run < 2 ; run++) {
+            final ChatHistoryLog reopenedLog = new ChatHistoryLog(getHistoryDirectory());
+            assertEquals("incorrect last timestamp", start + (1439 * interval), reopenedLog.getLastTimestamp());
+
+            List<HistoryRecord> records = reopenedLog.readFrom(start + (700 * interval) - 1, 50);
+            assertEquals("incorrect number of messages", 50, records.size());
+            assertEquals("incorrect first message", "message 700", records.get(0).getMessage().getBody());
+            assertEquals("incorrect last message", "message 749", records.get(49).getMessage().getBody());
+
+            records = reopenedLog.readBefore(records.get(0).getSequence(), 10);
+            assertEquals("incorrect message before", "message 699", records.get(9).getMessage().getBody());
+
+            assertEquals("incorrect first message", "message 0", reopenedLog.readFrom(0, 1).get(0).getMessage().getBody());
+            assertTrue("expected no messages", reopenedLog.readFrom(start + (1440 * interval), 10).isEmpty());
+            reopenedLog.close();
+
+            // the index is rebuilt if it is lost
+            assertTrue("unable to delete index", new File(getHistoryDirectory(), HistoryFormat.TIMESTAMP_INDEX_FILENAME).delete());
+        }
+    }
+
+    @Test
+    public void testPartiallyWrittenRecordIsDiscarded() throws IOException {
+        final ChatHistoryLog log = new ChatHistoryLog(getHistoryDirectory());
+        log.append(new CustomMessage(1000, "sender", "first"));
+        log.append(new CustomMessage(2000, "sender", "second"));
+        log.close();
+
+        // chop the end off the last record, as if the application had been killed part way through writing it
+        final File segmentFile = getLastSegmentFile(getHistoryDirectory());
+        try (final RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        final ChatHistoryLog reopenedLog = new ChatHistoryLog(getHistoryDirectory());
+        assertEquals("incorrect sequence", 1, reopenedLog.append(new CustomMessage(3000, "sender", "third")));
+        final List<CustomMessage> messages = reopenedLog.readAll();
+        reopenedLog.close();
+
+        assertEquals("incorrect number of messages", 2, messages.size());
+        assertEquals("incorrect body", "first", messages.get(0).getBody());
+        assertEquals("incorrect body", "third", messages.get(1).getBody());
+    }
+
+    @Test
+    public void testReadWatermarkIsKeptWithoutRewriting() {
+        final ChatHistoryLog log = new ChatHistoryLog(getHistoryDirectory());
+        for (int index = 0 ; index < 10 ; index++) {
+            log.append(new CustomMessage(index, "sender", "message " + index));
+        }
+        log.markRead(2);
+        log.markRead(7);
+        log.markRead(4);
+        log.checkpoint();
+        log.close();
+
+        final ChatHistoryLog reopenedLog = new ChatHistoryLog(getHistoryDirectory());
+        assertEquals("incorrect read watermark", 8, reopenedLog.getReadWatermark());
+        final List<CustomMessage> messages = reopenedLog.readAll();
+        reopenedLog.close();
+
+        assertEquals("incorrect number of messages", 10, messages.size());
+    }
+
+    @Test
+    public void testTextHistoryIsMigrated() throws IOException {
+        final File textFile = new File(getHistoryDirectory().getPath() + TextHistoryMigrator.TEXT_HISTORY_SUFFIX);
+        try (final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(textFile), HistoryFormat.UTF8))) {
+            writer.println("{\"timestamp\":1418580087000,\"sender\":\"Richard Simpson\",\"body\":\"hello\",\"read\":true}");
+            writer.println("{\"timestamp\":1418580088000,\"sender\":\"Someone Else\",\"body\":\"<b>hi</b>\",\"read\":false}");
+            writer.print("{\"timestamp\":14185800");
+        }
+
+        assertTrue("history not migrated", TextHistoryMigrator.migrate(textFile, getHistoryDirectory()));
+        assertFalse("text history not renamed", textFile.exists());
+        assertFalse("history migrated twice", TextHistoryMigrator.migrate(textFile, getHistoryDirectory()));
+
+        final ChatHistoryLog log = new ChatHistoryLog(getHistoryDirectory());
+        final List<CustomMessage> messages = log.readAll();
+        final long readWatermark = log.getReadWatermark();
+        log.close();
+
+        assertEquals("incorrect read watermark", 1, readWatermark);
+        assertEquals("incorrect number of messages", 2, messages.size());
+        assertMessageEquals(new CustomMessage(1418580087000L, "Richard Simpson", "hello"), messages.get(0));
+        assertMessageEquals(new CustomMessage(1418580088000L, "Someone Else", "<b>hi</b>"), messages.get(1));
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import uk.co.rjsoftware.xmpp.model.ChatPersistor;
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the two chat storage backends - a {@link LogChatStorage} and a {@link KeyValueChatStorage} - by timing,
+ * for each of them:
+ *
+ * <ul>
+ *     <li>writing the messages, spread over several chats, flushing every batch as the history writer does</li>
+ *     <li>opening every chat and reading the messages that are loaded when a chat is opened</li>
+ *     <li>paging backwards through every chat</li>
+ *     <li>seeking to a point in time in every chat</li>
+ * </ul>
+ *
+ * Each storage is reopened before it is read from, and the reads are run once before they are timed, so the figures
+ * are for a warm page cache.  This is not run as part of the build.  The numbers of messages can be passed as
+ * arguments - the default is 100,000 and 1,000,000.
+ */
+public final class ChatStorageBenchmark {
+
+    private static final int CHAT_COUNT = 20;
+    private static final int FLUSH_BATCH_SIZE = 256;
+    private static final int PAGE_SIZE = ChatPersistor.OLDER_MESSAGE_COUNT;
+    private static final int RUNS = 3;
+    private static final long FIRST_TIMESTAMP = 1418580087000L;
+
+    private ChatStorageBenchmark() {
+        // empty private constructor to prevent instantiation
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final int[] messageCounts;
+        if (args.length == 0) {
+            messageCounts = new int[] {100000, 1000000};
+        }
+        else {
+            messageCounts = new int[args.length];
+            for (int index = 0 ; index < args.length ; index++) {
+                messageCounts[index] = Integer.parseInt(args[index]);
+            }
+        }
+
+        final File workingDirectory = Files.createTempDirectory("yacc-benchmark").toFile();
+        try {
+            for (int messageCount : messageCounts) {
+                System.out.println(messageCount + " messages in " + CHAT_COUNT + " chats");
+                runBenchmark("log", new File(workingDirectory, "log" + messageCount), false, messageCount);
+                runBenchmark("key-value", new File(workingDirectory, "keyValue" + messageCount), true, messageCount);
+            }
+        } finally {
+            ChatHistoryLog.deleteDirectory(workingDirectory);
+        }
+    }
+
+    private static ChatStorage openStorage(final File directory, final boolean keyValue) {
+        return keyValue ? new KeyValueChatStorage(directory) : new LogChatStorage(directory);
+    }
+
+    private static String chatJid(final int chat) {
+        return "room" + chat + "@conf.hipchat.com";
+    }
+
+    private static void runBenchmark(final String name, final File directory, final boolean keyValue, final int messageCount) {
+        final long writeStart = System.nanoTime();
+        final long lastTimestamp = write(openStorage(directory, keyValue), messageCount);
+        final long writeMillis = (System.nanoTime() - writeStart) / 1000000;
+
+        System.out.println(String.format("    %-10s write:           %8d ms", name, writeMillis));
+        System.out.println(String.format("    %-10s open (tail):     %8d ms", name, time(new Read(directory, keyValue, Read.TAIL, 0))));
+        System.out.println(String.format("    %-10s page through:    %8d ms", name, time(new Read(directory, keyValue, Read.PAGES, 0))));
+        System.out.println(String.format("    %-10s seek to time:    %8d ms", name,
+                time(new Read(directory, keyValue, Read.SEEK, (FIRST_TIMESTAMP + lastTimestamp) / 2))));
+        System.out.println(String.format("    %-10s size on disk:    %8d KB", name, sizeOf(directory) / 1024));
+    }
+
+    /**
+     * Writes randomly generated messages to the chats in turn.
+     *
+     * @return the timestamp of the last message
+     */
+    private static long write(final ChatStorage storage, final int messageCount) {
+        final Random random = new Random(messageCount);
+        final String words = "the quick brown fox jumps over the lazy dog :) (coffee) https://www.example.com/ ";
+        final ChatHistory[] chats = new ChatHistory[CHAT_COUNT];
+        for (int chat = 0 ; chat < CHAT_COUNT ; chat++) {
+            chats[chat] = storage.openChat(chatJid(chat));
+        }
+
+        long timestamp = FIRST_TIMESTAMP;
+        for (int index = 0 ; index < messageCount ; index++) {
+            final StringBuilder body = new StringBuilder();
+            final int length = 20 + random.nextInt(300);
+            while (body.length() < length) {
+                final int start = random.nextInt(words.length() - 10);
+                body.append(words, start, start + 10);
+            }
+
+            timestamp += random.nextInt(60000);
+            chats[random.nextInt(CHAT_COUNT)].append(new CustomMessage(timestamp, "Sender " + random.nextInt(20),
+                    body.toString()));
+            if ((index + 1) % FLUSH_BATCH_SIZE == 0) {
+                for (ChatHistory chat : chats) {
+                    chat.flush();
+                }
+            }
+        }
+
+        for (ChatHistory chat : chats) {
+            chat.checkpoint();
+            chat.close();
+        }
+        storage.close();
+        return timestamp;
+    }
+
+    private static long sizeOf(final File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : file.listFiles()) {
+            size += sizeOf(child);
+        }
+        return size;
+    }
+
+    /**
+     * @return the fastest of several runs, in milliseconds, after an untimed run to warm up the page cache
+     */
+    private static long time(final Runnable read) {
+        read.run();
+
+        long fastest = Long.MAX_VALUE;
+        for (int run = 0 ; run < RUNS ; run++) {
+            final long start = System.nanoTime();
+            read.run();
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest / 1000000;
+    }
+
+    /**
+     * Opens the storage, then reads from every chat in it.
+     */
+    private static final class Read implements Runnable {
+
+        private static final int TAIL = 0;
+        private static final int PAGES = 1;
+        private static final int SEEK = 2;
+
+        private final File directory;
+        private final boolean keyValue;
+        private final int mode;
+        private final long timestamp;
+
+        private Read(final File directory, final boolean keyValue, final int mode, final long timestamp) {
+            this.directory = directory;
+            this.keyValue = keyValue;
+            this.mode = mode;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public void run() {
+            final ChatStorage storage = openStorage(this.directory, this.keyValue);
+            int messageCount = 0;
+            try {
+                for (int chat = 0 ; chat < CHAT_COUNT ; chat++) {
+                    final ChatHistory history = storage.openChat(chatJid(chat));
+                    if (this.mode == SEEK) {
+                        messageCount += history.readFrom(this.timestamp, ChatPersistor.INITIAL_MESSAGE_COUNT).size();
+                    }
+                    else {
+                        List<HistoryRecord> records = history.readTail(ChatPersistor.INITIAL_MESSAGE_COUNT);
+                        messageCount += records.size();
+                        while ((this.mode == PAGES) && !records.isEmpty()) {
+                            records = history.readBefore(records.get(0).getSequence(), PAGE_SIZE);
+                            messageCount += records.size();
+                        }
+                    }
+                    history.close();
+                }
+            } finally {
+                storage.close();
+            }
+
+            if (messageCount == 0) {
+                throw new IllegalStateException("No messages read");
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import uk.co.rjsoftware.xmpp.model.ChatPersistor;
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the time taken to read chat histories of various sizes, using:
+ *
+ * <ul>
+ *     <li>the original JSON text files, read a line at a time with a BufferedReader</li>
+ *     <li>the binary history log, read through streams</li>
+ *     <li>the binary history log, read by memory mapping the segments</li>
+ * </ul>
+ *
+ * Each history is read once before it is timed, so the figures are for a warm page cache.  This is not run as part
+ * of the build.  The sizes, in MB, can be passed as arguments - the default is 10, 100 and 1000.
+ */
+public final class HistoryReadBenchmark {
+
+    private static final int RUNS = 3;
+    private static final int PAGE_SIZE = 1000;
+
+    private HistoryReadBenchmark() {
+        // empty private constructor to prevent instantiation
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final int[] sizes;
+        if (args.length == 0) {
+            sizes = new int[] {10, 100, 1000};
+        }
+        else {
+            sizes = new int[args.length];
+            for (int index = 0 ; index < args.length ; index++) {
+                sizes[index] = Integer.parseInt(args[index]);
+            }
+        }
+
+        final File workingDirectory = Files.createTempDirectory("yacc-benchmark").toFile();
+        try {
+            for (int size : sizes) {
+                runBenchmark(workingDirectory, size);
+            }
+        } finally {
+            ChatHistoryLog.deleteDirectory(workingDirectory);
+        }
+    }
+
+    private static void runBenchmark(final File workingDirectory, final int sizeInMegabytes) throws IOException {
+        final File textFile = new File(workingDirectory, sizeInMegabytes + "MB.txt");
+        final File logDirectory = new File(workingDirectory, sizeInMegabytes + "MB");
+        final int messageCount = createHistories(textFile, logDirectory, sizeInMegabytes * 1024L * 1024L);
+
+        System.out.println(sizeInMegabytes + "MB of JSON text (" + messageCount + " messages)");
+        System.out.println(String.format("    text, full read:        %8d ms", time(new TextRead(textFile))));
+        System.out.println(String.format("    stream, full read:      %8d ms", time(new LogRead(logDirectory, false, false))));
+        System.out.println(String.format("    mapped, full read:      %8d ms", time(new LogRead(logDirectory, true, false))));
+        System.out.println(String.format("    stream, open (tail):    %8d ms", time(new LogRead(logDirectory, false, true))));
+        System.out.println(String.format("    mapped, open (tail):    %8d ms", time(new LogRead(logDirectory, true, true))));
+
+        textFile.delete();
+        ChatHistoryLog.deleteDirectory(logDirectory);
+    }
+
+    /**
+     * Writes the same randomly generated messages to a JSON text file and a history log, until the text file
+     * reaches the given size.
+     *
+     * @return the number of messages written
+     */
+    private static int createHistories(final File textFile, final File logDirectory, final long size) throws IOException {
+        final Random random = new Random(size);
+        final Gson gson = new Gson();
+        final ChatHistoryLog log = new ChatHistoryLog(logDirectory);
+        final String words = "the quick brown fox jumps over the lazy dog :) (coffee) https://www.example.com/ ";
+
+        int messageCount = 0;
+        long timestamp = 1418580087000L;
+        try (final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(textFile), HistoryFormat.UTF8))) {
+            while (textFile.length() < size) {
+                for (int batch = 0 ; batch < 1000 ; batch++) {
+                    final StringBuilder body = new StringBuilder();
+                    final int length = 20 + random.nextInt(300);
+                    while (body.length() < length) {
+                        final int start = random.nextInt(words.length() - 10);
+                        body.append(words, start, start + 10);
+                    }
+
+                    timestamp += random.nextInt(60000);
+                    final CustomMessage message = new CustomMessage(timestamp, "Sender " + random.nextInt(20), body.toString());
+                    // the text history also recorded whether each message had been read
+                    final JsonObject line = gson.toJsonTree(message).getAsJsonObject();
+                    line.addProperty("read", random.nextBoolean());
+                    writer.println(gson.toJson(line));
+                    log.append(message);
+                    messageCount++;
+                }
+                writer.flush();
+            }
+        }
+        log.close();
+
+        return messageCount;
+    }
+
+    /**
+     * @return the fastest of several runs, in milliseconds, after an untimed run to warm up the page cache
+     */
+    private static long time(final Runnable read) {
+        read.run();
+
+        long fastest = Long.MAX_VALUE;
+        for (int run = 0 ; run < RUNS ; run++) {
+            final long start = System.nanoTime();
+            read.run();
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest / 1000000;
+    }
+
+    /**
+     * Reads the whole of a JSON text history, in the same way as the original ChatPersistor.
+     */
+    private static final class TextRead implements Runnable {
+
+        private final File textFile;
+        private final Gson gson = new Gson();
+
+        private TextRead(final File textFile) {
+            this.textFile = textFile;
+        }
+
+        @Override
+        public void run() {
+            int messageCount = 0;
+            try (final BufferedReader reader = new BufferedReader(new FileReader(this.textFile))) {
+                String line = reader.readLine();
+                while (null != line) {
+                    if (null != this.gson.fromJson(line, CustomMessage.class)) {
+                        messageCount++;
+                    }
+                    line = reader.readLine();
+                }
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+            check(messageCount);
+        }
+    }
+
+    /**
+     * Reads either the whole of a history log, a page at a time from the end, or just the messages that are loaded
+     * when a chat is opened.
+     */
+    private static final class LogRead implements Runnable {
+
+        private final File logDirectory;
+        private final boolean memoryMapped;
+        private final boolean tailOnly;
+
+        private LogRead(final File logDirectory, final boolean memoryMapped, final boolean tailOnly) {
+            this.logDirectory = logDirectory;
+            this.memoryMapped = memoryMapped;
+            this.tailOnly = tailOnly;
+        }
+
+        @Override
+        public void run() {
+            final ChatHistoryLog log = new ChatHistoryLog(this.logDirectory, this.memoryMapped);
+            try {
+                List<HistoryRecord> records = log.readTail(this.tailOnly ? ChatPersistor.INITIAL_MESSAGE_COUNT : PAGE_SIZE);
+                int messageCount = records.size();
+                while (!this.tailOnly && !records.isEmpty()) {
+                    records = log.readBefore(records.get(0).getSequence(), PAGE_SIZE);
+                    messageCount += records.size();
+                }
+                check(messageCount);
+            } finally {
+                log.close();
+            }
+        }
+    }
+
+    private static void check(final int messageCount) {
+        if (messageCount == 0) {
+            throw new IllegalStateException("No messages read");
+        }
+    }
+}
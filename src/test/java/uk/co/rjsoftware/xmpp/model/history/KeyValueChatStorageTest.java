@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.history;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class KeyValueChatStorageTest {
+
+    private static final String CHAT_JID = "room@conf.hipchat.com";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLogIsImportedAndAppendedTo() {
+        final ChatHistory log = new LogChatStorage(this.folder.getRoot()).openChat(CHAT_JID);
+        for (int index = 0 ; index < 10 ; index++) {
+            log.append(new CustomMessage(1418580087000L + (index * 1000L), "sender", "message " + index));
+        }
+        log.markRead(3);
+        log.close();
+
+        final KeyValueChatStorage storage = new KeyValueChatStorage(this.folder.getRoot());
+        final ChatHistory history = storage.openChat(CHAT_JID);
+        assertEquals("incorrect sequence", 10, history.append(new CustomMessage(1418580097000L, "sender", "message 10")));
+        storage.writeRecentChats(Arrays.asList("Room:" + CHAT_JID));
+        storage.close();
+
+        final KeyValueChatStorage reopenedStorage = new KeyValueChatStorage(this.folder.getRoot());
+        final ChatHistory reopenedHistory = reopenedStorage.openChat(CHAT_JID);
+        assertEquals("incorrect next sequence", 11, reopenedHistory.getNextSequence());
+        assertEquals("incorrect read watermark", 4, reopenedHistory.getReadWatermark());
+        assertEquals("incorrect last timestamp", 1418580097000L, reopenedHistory.getLastTimestamp());
+
+        final List<HistoryRecord> tail = reopenedHistory.readTail(3);
+        assertEquals("incorrect number of messages", 3, tail.size());
+        assertEquals("incorrect body", "message 8", tail.get(0).getMessage().getBody());
+        assertEquals("incorrect body", "message 10", tail.get(2).getMessage().getBody());
+
+        final List<HistoryRecord> from = reopenedHistory.readFrom(1418580089500L, 2);
+        assertEquals("incorrect sequence", 3, from.get(0).getSequence());
+        assertEquals("incorrect sequence", 4, from.get(1).getSequence());
+
+        assertEquals("incorrect recent chats", Arrays.asList("Room:" + CHAT_JID), reopenedStorage.readRecentChats());
+        reopenedStorage.close();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.search;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.rjsoftware.xmpp.model.CustomMessage;
+import uk.co.rjsoftware.xmpp.model.history.ChatHistoryLog;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SearchIndexTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File getIndexDirectory() {
+        return new File(this.folder.getRoot(), SearchIndex.SEARCH_INDEX_DIR);
+    }
+
+    private ChatHistoryLog createLog(final String chatJid) {
+        return new ChatHistoryLog(new File(this.folder.getRoot(), chatJid));
+    }
+
+    @Test
+    public void testAppendedMessagesAreFound() {
+        final SearchIndex searchIndex = new SearchIndex(getIndexDirectory());
+        final ChatHistoryLog log = createLog("1234_developers@conf.hipchat.com");
+        searchIndex.register(log);
+
+        log.append(new CustomMessage(1418580087000L, "Richard Simpson", "the build is broken"));
+        log.append(new CustomMessage(1418580088000L, "Someone Else", "the build is fixed, the build is green"));
+        log.append(new CustomMessage(1418580089000L, "Someone Else", "time for coffee"));
+
+        List<SearchHit> hits = searchIndex.search("Build", 10);
+        assertEquals("incorrect number of hits", 2, hits.size());
+        // mentions the build more often
+        assertEquals("incorrect best hit", 1, hits.get(0).getSequence());
+        assertEquals("incorrect chat", "1234_developers@conf.hipchat.com", hits.get(0).getChatJid());
+
+        hits = searchIndex.search("build from:richard", 10);
+        assertEquals("incorrect number of hits", 1, hits.size());
+        assertEquals("incorrect sender", "Richard Simpson", hits.get(0).getSender());
+
+        assertEquals("incorrect number of hits", 3, searchIndex.search("in:developers", 10).size());
+        assertTrue("expected no hits", searchIndex.search("build coffee", 10).isEmpty());
+        assertTrue("expected no hits", searchIndex.search("tea", 10).isEmpty());
+
+        // written out as a segment, and read back
+        searchIndex.close();
+        log.close();
+        final SearchIndex reopenedIndex = new SearchIndex(getIndexDirectory());
+        hits = reopenedIndex.search("coffee", 10);
+        assertEquals("incorrect number of hits", 1, hits.size());
+        assertEquals("incorrect snippet", "time for coffee", hits.get(0).getSnippet());
+        reopenedIndex.close();
+    }
+
+    @Test
+    public void testExistingHistoryIsIndexed() throws InterruptedException {
+        final ChatHistoryLog log = createLog("someone@chat.hipchat.com");
+        for (int index = 0 ; index < 60000 ; index++) {
+            log.append(new CustomMessage(1418580087000L + index, "sender" + (index % 10), "message " + index + " word" + (index % 100)));
+        }
+
+        // indexed in the background
+        final SearchIndex searchIndex = new SearchIndex(getIndexDirectory());
+        searchIndex.register(log);
+        for (int attempt = 0 ; (attempt < 400) && (searchIndex.search("word42", 1000).size() < 600) ; attempt++) {
+            Thread.sleep(50);
+        }
+        searchIndex.close();
+        log.close();
+
+        final SearchIndex reopenedIndex = new SearchIndex(getIndexDirectory());
+        assertEquals("incorrect number of hits", 600, reopenedIndex.search("word42", 1000).size());
+        final List<SearchHit> hits = reopenedIndex.search("12345", 10);
+        assertEquals("incorrect number of hits", 1, hits.size());
+        assertEquals("incorrect sequence", 12345, hits.get(0).getSequence());
+        assertEquals("incorrect number of hits", 600, reopenedIndex.search("word42 from:sender2", 1000).size());
+        reopenedIndex.close();
+    }
+
+    @Test
+    public void testSegmentsAreMerged() throws InterruptedException {
+        final SearchIndex searchIndex = new SearchIndex(getIndexDirectory());
+        final ChatHistoryLog log = createLog("1234_developers@conf.hipchat.com");
+        searchIndex.register(log);
+
+        for (int segment = 0 ; segment < 12 ; segment++) {
+            for (int index = 0 ; index < 100 ; index++) {
+                log.append(new CustomMessage(1418580087000L + index, "sender", "segment" + segment + " message" + index));
+            }
+            searchIndex.flush();
+        }
+        for (int attempt = 0 ; (attempt < 200) && (getIndexDirectory().list().length > 11) ; attempt++) {
+            Thread.sleep(50);
+        }
+
+        // the ten segments, plus the list of them
+        assertTrue("segments not merged", getIndexDirectory().list().length <= 11);
+        assertEquals("incorrect number of hits", 12, searchIndex.search("message42", 100).size());
+        assertEquals("incorrect number of hits", 100, searchIndex.search("segment3", 1000).size());
+        assertEquals("incorrect hit", 742, searchIndex.search("segment7 message42", 100).get(0).getSequence());
+        searchIndex.close();
+        log.close();
+    }
+}
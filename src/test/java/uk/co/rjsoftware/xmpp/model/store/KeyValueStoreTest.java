@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.model.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.SortedMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyValueStoreTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File getStoreFile() {
+        return new File(this.folder.getRoot(), "test.kv");
+    }
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(UTF8);
+    }
+
+    private static String string(final byte[] value) {
+        return (null == value) ? null : new String(value, UTF8);
+    }
+
+    private static String key(final int index) {
+        return String.format("key%05d", index);
+    }
+
+    @Test
+    public void testValuesAreReadBackAcrossRunsAndCompaction() throws IOException {
+        // a tiny memtable, so that there are plenty of runs to merge
+        final KeyValueStore store = new KeyValueStore(getStoreFile(), 4 * 1024);
+        for (int index = 0 ; index < 5000 ; index++) {
+            store.put(bytes(key(index)), bytes("value " + index));
+        }
+        for (int index = 0 ; index < 5000 ; index += 10) {
+            store.put(bytes(key(index)), bytes("replaced " + index));
+        }
+        assertTrue("runs not compacted", store.getRunCount() <= KeyValueStore.MAX_RUNS);
+        store.close();
+
+        final KeyValueStore reopenedStore = new KeyValueStore(getStoreFile(), 4 * 1024);
+        assertEquals("incorrect value", "replaced 0", string(reopenedStore.get(bytes(key(0)))));
+        assertEquals("incorrect value", "value 4999", string(reopenedStore.get(bytes(key(4999)))));
+        assertNull("unexpected value", reopenedStore.get(bytes("missing")));
+
+        final SortedMap<byte[], byte[]> range = reopenedStore.scan(bytes(key(1995)), bytes(key(2005)));
+        assertEquals("incorrect number of entries", 10, range.size());
+        int index = 1995;
+        for (Map.Entry<byte[], byte[]> entry : range.entrySet()) {
+            assertEquals("incorrect key", key(index), string(entry.getKey()));
+            assertEquals("incorrect value", ((index % 10 == 0) ? "replaced " : "value ") + index, string(entry.getValue()));
+            index++;
+        }
+        reopenedStore.close();
+    }
+
+    @Test
+    public void testPartiallyWrittenEntryIsDropped() throws IOException {
+        final KeyValueStore store = new KeyValueStore(getStoreFile());
+        store.put(bytes("first"), bytes("1"));
+        store.put(bytes("second"), bytes("2"));
+        store.close();
+
+        // as if the application was killed part way through writing another entry
+        try (final RandomAccessFile file = new RandomAccessFile(getStoreFile(), "rw")) {
+            file.seek(file.length());
+            file.write(new byte[] {KeyValueStore.FRAME_PUT, 0, 0, 0, 20, 5, 't', 'h'});
+        }
+
+        final KeyValueStore reopenedStore = new KeyValueStore(getStoreFile());
+        assertEquals("incorrect value", "2", string(reopenedStore.get(bytes("second"))));
+        reopenedStore.put(bytes("third"), bytes("3"));
+        reopenedStore.close();
+
+        final KeyValueStore finalStore = new KeyValueStore(getStoreFile());
+        assertEquals("incorrect value", "1", string(finalStore.get(bytes("first"))));
+        assertEquals("incorrect value", "3", string(finalStore.get(bytes("third"))));
+        finalStore.close();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import org.junit.Test;
+import uk.co.rjsoftware.xmpp.model.Emoticon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EmoticonMatcherTest {
+
+    private static EmoticonMatcher createMatcher(final String... shortcuts) {
+        final List<Emoticon> emoticons = new ArrayList<Emoticon>();
+        for (String shortcut : shortcuts) {
+            emoticons.add(new Emoticon(shortcut, "http://emoticons/" + shortcut));
+        }
+        return new EmoticonMatcher(emoticons);
+    }
+
+    // describes the emoticons found, as index:shortcut
+    private static String describe(final Emoticon[] found) {
+        final StringBuilder description = new StringBuilder();
+        for (int index = 0 ; index < found.length ; index++) {
+            if (null != found[index]) {
+                description.append(index).append(':').append(found[index].getShortcut()).append(' ');
+            }
+        }
+        return description.toString().trim();
+    }
+
+    @Test
+    public void testFindEmoticonsWithNoMatches() {
+        assertNull("no emoticons should be found", createMatcher(":)", "(coffee)").findEmoticons("no emoticons here :-"));
+        assertNull("no emoticons should be found", createMatcher().findEmoticons("(coffee)"));
+    }
+
+    @Test
+    public void testFindEmoticonsFindsOverlappingShortcuts() {
+        final EmoticonMatcher matcher = createMatcher("he", "she", "his", "hers");
+
+        assertEquals("incorrect emoticons found", "1:she 2:hers", describe(matcher.findEmoticons("ushers")));
+    }
+
+    @Test
+    public void testFindEmoticonsFindsTheLongestShortcutAtEachIndex() {
+        final EmoticonMatcher matcher = createMatcher(":)", "O:)", ":-)", ":", "(coffee)");
+
+        assertEquals("incorrect emoticons found", "0:O:) 1::) 4::-) 8:(coffee) 16::",
+                describe(matcher.findEmoticons("O:) :-) (coffee):")));
+    }
+
+    @Test
+    public void testFindEmoticonsWithNonAsciiShortcuts() {
+        final EmoticonMatcher matcher = createMatcher("(caf\u00E9)", "\u2603");
+
+        assertEquals("incorrect emoticons found", "0:(caf\u00E9) 6:\u2603", describe(matcher.findEmoticons("(caf\u00E9)\u2603")));
+    }
+}
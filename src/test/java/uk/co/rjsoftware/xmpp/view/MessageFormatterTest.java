@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageFormatterTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Test
+    public void testFormatSplitsTheDaysOfALargeBatch() throws InterruptedException {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.set(2014, Calendar.DECEMBER, 14, 0, 0, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        final long firstDay = calendar.getTimeInMillis();
+
+        // enough messages to be split between threads, two an hour, over several days
+        final int count = 500;
+        final long[] timestamps = new long[count];
+        final String[] senders = new String[count];
+        final String[] bodies = new String[count];
+        for (int index = 0 ; index < count ; index++) {
+            timestamps[index] = firstDay + (index * HOUR / 2);
+            senders[index] = "Sender";
+            bodies[index] = "message " + index + " :)";
+        }
+
+        final CountDownLatch formatted = new CountDownLatch(1);
+        final MessageFormatter.Batch batch = MessageFormatter.format(timestamps, senders, bodies, 100, new Runnable() {
+            @Override
+            public void run() {
+                formatted.countDown();
+            }
+        });
+        assertTrue("the messages should have been formatted", formatted.await(10, TimeUnit.SECONDS));
+        assertTrue("the batch should be formatted", batch.isFormatted());
+
+        final List<MessageFormatter.Row> rows = batch.getRows();
+        assertEquals("incorrect number of rows", count, rows.size());
+        for (int index = 0 ; index < rows.size() ; index++) {
+            assertEquals("incorrect message number for row " + index, 100 + index, rows.get(index).getMessageNumber());
+            calendar.setTimeInMillis(firstDay);
+            calendar.add(Calendar.DAY_OF_MONTH, index / 48);
+            assertEquals("incorrect day for row " + index, calendar.getTimeInMillis(), rows.get(index).getDay());
+        }
+        assertEquals("incorrect date", "Sunday, 14 December, 2014", rows.get(0).getDate());
+        assertSame("the rows of a day should share their date", rows.get(0).getDate(), rows.get(47).getDate());
+        assertEquals("incorrect date", "Monday, 15 December, 2014", rows.get(48).getDate());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import uk.co.rjsoftware.xmpp.model.Emoticon;
+import uk.co.rjsoftware.xmpp.model.hipchat.emoticons.HipChatEmoticons;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the cost of formatting a message body with {@link MessageTokenizer}, both for different bodies and for
+ * messages that repeat the same few bodies, as bots do - most of these are found in its cache.
+ *
+ * For each, both the time taken and the bytes allocated per message are reported - the allocation is counted by the
+ * JVM for the current thread, so this needs a HotSpot JVM.  This is not run as part of the build.  The numbers of
+ * emoticons can be passed as arguments - the default is 30 (the standard ones) and 300.
+ */
+public final class MessageFormattingBenchmark {
+
+    private static final int MESSAGE_COUNT = 10000;
+    private static final int RUNS = 5;
+    private static final int REPEATED_BODY_COUNT = 100;
+
+    private MessageFormattingBenchmark() {
+        // empty private constructor to prevent instantiation
+    }
+
+    public static void main(final String[] args) {
+        final int[] emoticonCounts;
+        if (args.length == 0) {
+            emoticonCounts = new int[] {30, 300};
+        }
+        else {
+            emoticonCounts = new int[args.length];
+            for (int index = 0 ; index < args.length ; index++) {
+                emoticonCounts[index] = Integer.parseInt(args[index]);
+            }
+        }
+
+        final String[] bodies = createBodies();
+        final String[] repeatedBodies = new String[MESSAGE_COUNT];
+        for (int index = 0 ; index < MESSAGE_COUNT ; index++) {
+            repeatedBodies[index] = bodies[index % REPEATED_BODY_COUNT];
+        }
+        for (int emoticonCount : emoticonCounts) {
+            setEmoticons(emoticonCount);
+
+            System.out.println(emoticonCount + " emoticons, " + MESSAGE_COUNT + " messages");
+            report("    MessageTokenizer:     ", measure(new TokenFormat(bodies)));
+            report("    repeated bodies:      ", measure(new TokenFormat(repeatedBodies)));
+            System.out.println("    " + MessageTokenizer.getCache());
+        }
+    }
+
+    private static void report(final String name, final long[] measurement) {
+        System.out.println(String.format("%s%8d ns/message %8d bytes/message", name, measurement[0] / MESSAGE_COUNT,
+                measurement[1] / MESSAGE_COUNT));
+    }
+
+    /**
+     * Replaces the emoticons with the given number of them - the standard ones first, then made up custom ones.
+     */
+    private static void setEmoticons(final int emoticonCount) {
+        final String[] standardShortcuts = {"(zzz)", "8)", "8-)", ":#", ":$", ":'(", ":')", ":(", ":)", ":-)", ":-*", ":D",
+                ":-D", ":Z", ":\\", ":o", ":p", ":|", ":-|", ";)", ";-)", ";p", ">:-(", "O:)", "(embarrassed)", "(oops)",
+                "(thumbsup)", "(thumbsdown)", "(coffee)", "(smile)"};
+
+        final List<Emoticon> emoticons = new ArrayList<Emoticon>();
+        for (int index = 0 ; index < emoticonCount ; index++) {
+            final String shortcut = (index < standardShortcuts.length) ? standardShortcuts[index] : "(custom" + index + ")";
+            emoticons.add(new Emoticon(StringEscapeUtils.escapeHtml4(shortcut), "https://www.example.com/emoticons/" + index + ".png"));
+        }
+        HipChatEmoticons.setEmoticons(emoticons);
+    }
+
+    private static String[] createBodies() {
+        final Random random = new Random(MESSAGE_COUNT);
+        final String words = "the quick brown fox jumps over the lazy dog :) (coffee) https://www.example.com/ a < b & c\n";
+
+        final String[] bodies = new String[MESSAGE_COUNT];
+        for (int index = 0 ; index < MESSAGE_COUNT ; index++) {
+            final StringBuilder body = new StringBuilder();
+            final int length = 20 + random.nextInt(300);
+            while (body.length() < length) {
+                final int start = random.nextInt(words.length() - 10);
+                body.append(words, start, start + 10);
+            }
+            bodies[index] = body.toString();
+        }
+        return bodies;
+    }
+
+    /**
+     * @return the fastest of several runs, in nanoseconds, and the bytes allocated by it, after an untimed run to
+     * warm up the JIT
+     */
+    private static long[] measure(final Runnable format) {
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        format.run();
+
+        final long[] fastest = {Long.MAX_VALUE, 0};
+        for (int run = 0 ; run < RUNS ; run++) {
+            final long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+            final long start = System.nanoTime();
+            format.run();
+            final long time = System.nanoTime() - start;
+            final long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            if (time < fastest[0]) {
+                fastest[0] = time;
+                fastest[1] = allocated;
+            }
+        }
+        return fastest;
+    }
+
+    private static final class TokenFormat implements Runnable {
+
+        private final String[] bodies;
+
+        private TokenFormat(final String[] bodies) {
+            this.bodies = bodies;
+        }
+
+        @Override
+        public void run() {
+            int tokenCount = 0;
+            for (String body : this.bodies) {
+                tokenCount += MessageTokenizer.tokenize(body).size();
+            }
+            check(tokenCount);
+        }
+    }
+
+    // stops the JIT from optimising the formatting away
+    private static void check(final int result) {
+        if (result == 0) {
+            throw new RuntimeException("Nothing was formatted");
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import org.junit.Test;
+import uk.co.rjsoftware.xmpp.model.Emoticon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MessageTokenCacheTest {
+
+    private final List<Emoticon> emoticons = new ArrayList<Emoticon>();
+
+    private static List<MessageToken> createTokens(final String body) {
+        final List<MessageToken> tokens = new ArrayList<MessageToken>();
+        tokens.add(MessageToken.text(body));
+        return tokens;
+    }
+
+    @Test
+    public void testGetCountsHitsAndMisses() {
+        final MessageTokenCache cache = new MessageTokenCache(10, 100);
+
+        assertNull("nothing should be cached", cache.get("one", this.emoticons));
+        final List<MessageToken> tokens = cache.put("one", this.emoticons, createTokens("one"));
+        assertSame("incorrect tokens cached", tokens, cache.get("one", this.emoticons));
+        assertSame("incorrect tokens cached", tokens, cache.get("one", this.emoticons));
+
+        assertEquals("incorrect hit count", 2, cache.getHitCount());
+        assertEquals("incorrect miss count", 1, cache.getMissCount());
+        assertEquals("incorrect hit rate", 2.0 / 3, cache.getHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testPutDropsTheLeastRecentlyUsedBody() {
+        final MessageTokenCache cache = new MessageTokenCache(2, 100);
+        cache.get("one", this.emoticons);
+        cache.put("one", this.emoticons, createTokens("one"));
+        cache.put("two", this.emoticons, createTokens("two"));
+        cache.get("one", this.emoticons);
+        cache.put("three", this.emoticons, createTokens("three"));
+
+        assertEquals("incorrect size", 2, cache.size());
+        assertNull("two should have been dropped", cache.get("two", this.emoticons));
+        assertEquals("one should be cached", "one", cache.get("one", this.emoticons).get(0).getText());
+        assertEquals("three should be cached", "three", cache.get("three", this.emoticons).get(0).getText());
+    }
+
+    @Test
+    public void testPutSkipsLongBodies() {
+        final MessageTokenCache cache = new MessageTokenCache(10, 3);
+        cache.get("four", this.emoticons);
+        cache.put("four", this.emoticons, createTokens("four"));
+
+        assertEquals("incorrect size", 0, cache.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testPutReturnsUnmodifiableTokens() {
+        final MessageTokenCache cache = new MessageTokenCache(10, 100);
+        cache.get("one", this.emoticons);
+        cache.put("one", this.emoticons, createTokens("one")).clear();
+    }
+
+    @Test
+    public void testTheEmoticonsChangingEmptiesTheCache() {
+        final MessageTokenCache cache = new MessageTokenCache(10, 100);
+        cache.get("one", this.emoticons);
+        cache.put("one", this.emoticons, createTokens("one"));
+
+        final List<Emoticon> newEmoticons = Collections.emptyList();
+        assertNull("the cache should have been emptied", cache.get("one", newEmoticons));
+        assertEquals("incorrect invalidation count", 1, cache.getInvalidationCount());
+
+        // tokens built with the old emoticons are not cached
+        cache.put("one", this.emoticons, createTokens("one"));
+        assertEquals("incorrect size", 0, cache.size());
+    }
+}
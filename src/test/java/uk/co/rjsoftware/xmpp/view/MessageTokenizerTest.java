@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.rjsoftware.xmpp.model.Emoticon;
+import uk.co.rjsoftware.xmpp.model.hipchat.emoticons.HipChatEmoticons;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MessageTokenizerTest {
+
+    @Before
+    public void setUp() {
+        final List<Emoticon> emoticons = new ArrayList<Emoticon>();
+        for (String shortcut : new String[] {":)", "O:)", ">:-(", "(coffee)"}) {
+            emoticons.add(new Emoticon(StringEscapeUtils.escapeHtml4(shortcut), "http://emoticons/" + shortcut));
+        }
+        HipChatEmoticons.setEmoticons(emoticons);
+    }
+
+    @After
+    public void tearDown() {
+        HipChatEmoticons.setEmoticons(Collections.<Emoticon>emptyList());
+    }
+
+    // describes the tokens, as type[text|url]
+    private static String describe(final List<MessageToken> tokens) {
+        final StringBuilder description = new StringBuilder();
+        for (MessageToken token : tokens) {
+            description.append(token.getType()).append('[').append(token.getText());
+            if (null != token.getUrl()) {
+                description.append('|').append(token.getUrl());
+            }
+            description.append("] ");
+        }
+        return description.toString().trim();
+    }
+
+    @Test
+    public void testTokenizeWithEmptyString() {
+        assertEquals("incorrect tokens returned", "", describe(MessageTokenizer.tokenize("")));
+    }
+
+    @Test
+    public void testTokenizeWithSingleCharacter() {
+        assertEquals("incorrect tokens returned", "TEXT[t]", describe(MessageTokenizer.tokenize("t")));
+    }
+
+    @Test
+    public void testTokenizeWithPlainText() {
+        assertEquals("incorrect tokens returned", "TEXT[this is a test]",
+                describe(MessageTokenizer.tokenize("this is a test")));
+    }
+
+    @Test
+    public void testTokenizeWithSingleRogueTag() {
+        assertEquals("incorrect tokens returned", "TEXT[<boom>]", describe(MessageTokenizer.tokenize("<boom>")));
+    }
+
+    @Test
+    public void testTokenizeWithSeveralRogueTags() {
+        assertEquals("incorrect tokens returned", "TEXT[this<boom>is<blaa>a<boom2>decent<boom3>test]",
+                describe(MessageTokenizer.tokenize("this<boom>is<blaa>a<boom2>decent<boom3>test")));
+    }
+
+    @Test
+    public void testTokenizeWithConsecutiveRogueTags() {
+        assertEquals("incorrect tokens returned", "TEXT[<boom><blaa><boom2><boom3>]",
+                describe(MessageTokenizer.tokenize("<boom><blaa><boom2><boom3>")));
+    }
+
+    @Test
+    public void testTokenizeWithRogueTagsBetweenImageAndLinkTags() {
+        assertEquals("incorrect tokens returned", "LINK[link|blaa] TEXT[another<boom2>decent] IMAGE[|blaa]",
+                describe(MessageTokenizer.tokenize("<a href='blaa'>link</a>another<boom2>decent<img src='blaa'/>")));
+    }
+
+    @Test
+    public void testTokenizeWithRogueTagsAroundImageAndLinkTags() {
+        assertEquals("incorrect tokens returned",
+                "TEXT[this<boom>is] LINK[link|blaa] TEXT[another<boom2>decent] IMAGE[|blaa] TEXT[<boom3>test]",
+                describe(MessageTokenizer.tokenize("this<boom>is<a href='blaa'>link</a>another<boom2>decent<img src='blaa'/><boom3>test")));
+    }
+
+    @Test
+    public void testTokenizeLeavesRogueHtmlAsText() {
+        assertEquals("incorrect tokens returned", "TEXT[this<boom>is &amp; a <b>test</b>]",
+                describe(MessageTokenizer.tokenize("this<boom>is &amp; a <b>test</b>")));
+    }
+
+    @Test
+    public void testTokenizeWithImageAndLinkTags() {
+        assertEquals("incorrect tokens returned", "IMAGE[pic|http://i/x.png] TEXT[and ] LINK[some text|http://l/?a=b&c=d]",
+                describe(MessageTokenizer.tokenize("<img src='http://i/x.png' alt='pic'/> and <A HREF=\"http://l/?a=b&amp;c=d\">some <i>text</i></A>")));
+    }
+
+    @Test
+    public void testTokenizeWithLinks() {
+        assertEquals("incorrect tokens returned",
+                "TEXT[see ] LINK[https://www.example.com/a?b=c&d=e|https://www.example.com/a?b=c&d=e] TEXT[. or ] LINK[http://x.org/|http://x.org/] TEXT[<b>]",
+                describe(MessageTokenizer.tokenize("see https://www.example.com/a?b=c&d=e. or http://x.org/<b>")));
+    }
+
+    @Test
+    public void testTokenizeWithEmoticons() {
+        assertEquals("incorrect tokens returned",
+                "IMAGE[O:)|http://emoticons/O:)] TEXT[no] IMAGE[(coffee)|http://emoticons/(coffee)] IMAGE[>:-(|http://emoticons/>:-(] TEXT[ ] LINK[http://x.org/|http://x.org/] IMAGE[:)|http://emoticons/:)]",
+                describe(MessageTokenizer.tokenize("O:) no(coffee)>:-( http://x.org/:)")));
+    }
+
+    @Test
+    public void testTokenizeAfterTheEmoticonsChange() {
+        assertEquals("incorrect tokens returned", "TEXT[(tea)]", describe(MessageTokenizer.tokenize("(tea)")));
+
+        HipChatEmoticons.setEmoticons(Collections.singletonList(new Emoticon("(tea)", "http://emoticons/(tea)")));
+
+        assertEquals("incorrect tokens returned", "IMAGE[(tea)|http://emoticons/(tea)]", describe(MessageTokenizer.tokenize("(tea)")));
+    }
+
+    @Test
+    public void testTokenizeWithLineBreaks() {
+        assertEquals("incorrect tokens returned", "TEXT[one] LINE_BREAK[] TEXT[two] LINE_BREAK[] LINE_BREAK[] TEXT[three]",
+                describe(MessageTokenizer.tokenize("one\r\ntwo\n\rthree")));
+    }
+
+    @Test
+    public void testTokenizeCollapsesWhitespace() {
+        assertEquals("incorrect tokens returned",
+                "TEXT[\u00A0\u00A0\u00A0\u00A0\u00A0a b] LINE_BREAK[] IMAGE[:)|http://emoticons/:)] TEXT[c]",
+                describe(MessageTokenizer.tokenize("\t a  \t b  \n  :)  c  ")));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014, Richard Simpson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.co.rjsoftware.xmpp.view;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RowHeightsTest {
+
+    @Test
+    public void testInsertedRowsHaveTheEstimatedHeight() {
+        final RowHeights rowHeights = new RowHeights(20);
+
+        rowHeights.insert(0, 100);
+
+        assertEquals("incorrect size", 100, rowHeights.size());
+        assertEquals("incorrect total height", 2000, rowHeights.getTotalHeight());
+        assertEquals("incorrect offset", 1000, rowHeights.getOffset(50));
+        assertFalse("row should not be measured", rowHeights.isMeasured(50));
+    }
+
+    @Test
+    public void testSetHeightMovesTheRowsAfterIt() {
+        final RowHeights rowHeights = new RowHeights(20);
+        rowHeights.insert(0, 100);
+
+        assertTrue("height should have changed", rowHeights.setHeight(10, 50));
+        assertFalse("height should not have changed", rowHeights.setHeight(10, 50));
+
+        assertTrue("row should be measured", rowHeights.isMeasured(10));
+        assertEquals("incorrect offset", 200, rowHeights.getOffset(10));
+        assertEquals("incorrect offset", 250, rowHeights.getOffset(11));
+        assertEquals("incorrect total height", 2030, rowHeights.getTotalHeight());
+    }
+
+    @Test
+    public void testGetIndexAt() {
+        final RowHeights rowHeights = new RowHeights(20);
+        rowHeights.insert(0, 5);
+        rowHeights.setHeight(2, 100);
+
+        assertEquals("incorrect index", 0, rowHeights.getIndexAt(0));
+        assertEquals("incorrect index", 0, rowHeights.getIndexAt(19));
+        assertEquals("incorrect index", 1, rowHeights.getIndexAt(20));
+        assertEquals("incorrect index", 2, rowHeights.getIndexAt(139));
+        assertEquals("incorrect index", 3, rowHeights.getIndexAt(140));
+        assertEquals("incorrect index", 4, rowHeights.getIndexAt(10000));
+        assertEquals("incorrect index", -1, new RowHeights(20).getIndexAt(0));
+    }
+
+    @Test
+    public void testInsertAndRemoveKeepTheMeasuredHeights() {
+        final RowHeights rowHeights = new RowHeights(20);
+        rowHeights.insert(0, 10);
+        rowHeights.setHeight(5, 60);
+
+        rowHeights.insert(0, 3);
+
+        assertEquals("incorrect height", 60, rowHeights.getHeight(8));
+        assertTrue("row should be measured", rowHeights.isMeasured(8));
+        assertFalse("row should not be measured", rowHeights.isMeasured(5));
+
+        rowHeights.remove(0, 6);
+
+        assertEquals("incorrect height", 60, rowHeights.getHeight(2));
+        assertTrue("row should be measured", rowHeights.isMeasured(2));
+        assertEquals("incorrect total height", (6 * 20) + 60, rowHeights.getTotalHeight());
+    }
+}